@@ -0,0 +1,61 @@
+package com.kayyagari.benchmarks;
+
+import com.kayyagari.ConsistentHashStrategy;
+import com.kayyagari.LeastOutstandingStrategy;
+import com.kayyagari.LoadBalancingStrategy;
+import com.kayyagari.PeakEwmaStrategy;
+import com.kayyagari.PowerOfTwoChoicesStrategy;
+import com.kayyagari.Provider;
+import com.kayyagari.RandomStrategy;
+import com.kayyagari.RoundRobinStrategy;
+import com.kayyagari.SimpleProviderImpl;
+import com.kayyagari.SlowAsyncResponseProviderImpl;
+import com.kayyagari.SlowResponseProviderImpl;
+import com.kayyagari.SmoothWeightedRoundRobinStrategy;
+
+/**
+ * Maps the @Param values used in the benchmarks to providers and strategies.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+final class Backends {
+    /** the delay used by the slow backend, long enough to dominate the LoadBalancer's own overhead */
+    static final long SLOW_DELAY_MILLIS = 1;
+
+    private Backends() {
+    }
+
+    static Provider provider(String backend, int nameSuffix) {
+        switch(backend) {
+            case "simple":
+                return new SimpleProviderImpl(nameSuffix);
+            case "slow":
+                return new SlowResponseProviderImpl(SLOW_DELAY_MILLIS);
+            case "slow-async":
+                return new SlowAsyncResponseProviderImpl(SLOW_DELAY_MILLIS);
+            default:
+                throw new IllegalArgumentException("unknown backend " + backend);
+        }
+    }
+
+    static LoadBalancingStrategy strategy(String name) {
+        switch(name) {
+            case "round-robin":
+                return new RoundRobinStrategy();
+            case "random":
+                return new RandomStrategy();
+            case "least-outstanding":
+                return new LeastOutstandingStrategy();
+            case "power-of-two-choices":
+                return new PowerOfTwoChoicesStrategy();
+            case "peak-ewma":
+                return new PeakEwmaStrategy();
+            case "smooth-weighted-round-robin":
+                return new SmoothWeightedRoundRobinStrategy();
+            case "consistent-hash":
+                return new ConsistentHashStrategy();
+            default:
+                throw new IllegalArgumentException("unknown strategy " + name);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.kayyagari.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the selection and end-to-end benchmarks once for each of the thread counts
+ * in {@link #THREADS} with the GC profiler enabled, so that the report contains
+ * throughput, average time and the allocation rate (gc.alloc.rate.norm) for each.
+ * 
+ * Any regular JMH command line option, e.g. a benchmark name filter, can be passed and
+ * is applied to every run. To run a single configuration use the regular JMH main class:
+ * 
+ *   java -cp target/benchmarks.jar org.openjdk.jmh.Main StrategyBenchmark -t 8 -prof gc
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public class BenchmarkRunner {
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions cmdOptions = new CommandLineOptions(args);
+        boolean filtered = !cmdOptions.getIncludes().isEmpty();
+
+        for(int t : THREADS) {
+            OptionsBuilder builder = new OptionsBuilder();
+            builder.parent(cmdOptions);
+            if(!filtered) {
+                builder.include(StrategyBenchmark.class.getSimpleName())
+                       .include(LoadBalancerBenchmark.class.getSimpleName());
+            }
+
+            Options opts = builder.threads(t)
+                                  .addProfiler(GCProfiler.class)
+                                  .build();
+            new Runner(opts).run();
+        }
+
+        // these benchmarks fix their own thread counts
+        if(!filtered) {
+            Options fixedOpts = new OptionsBuilder()
+                    .parent(cmdOptions)
+                    .include(ChurnBenchmark.class.getSimpleName())
+                    .include(RegistryBenchmark.class.getSimpleName())
+                    .include(ExecutionModeBenchmark.class.getSimpleName())
+                    .include(TcpProxyBenchmark.class.getSimpleName())
+                    .addProfiler(GCProfiler.class)
+                    .build();
+            new Runner(fixedOpts).run();
+        }
+    }
+}
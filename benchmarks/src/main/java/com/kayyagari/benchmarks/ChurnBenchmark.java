@@ -0,0 +1,108 @@
+package com.kayyagari.benchmarks;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kayyagari.CapacityExceededException;
+import com.kayyagari.LoadBalancer;
+import com.kayyagari.Provider;
+
+/**
+ * Measures the membership changes, i.e. add, exclude and include, both on their
+ * own and while requests are being served.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChurnBenchmark {
+
+    @Param({"round-robin", "random", "least-outstanding", "power-of-two-choices", "peak-ewma", "smooth-weighted-round-robin", "consistent-hash"})
+    private String strategyName;
+
+    @Param({"simple", "slow"})
+    private String backend;
+
+    private LoadBalancer lb;
+
+    private String[] ids;
+
+    @Setup
+    public void setup() {
+        lb = new LoadBalancer(Backends.strategy(strategyName));
+        ids = new String[LoadBalancer.MAX_NUM_PROVIDERS];
+        for(int i=0; i < ids.length; i++) {
+            Provider p = Backends.provider(backend, i);
+            ids[i] = p.id();
+            lb.add(p);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        lb.shutdown();
+    }
+
+    /**
+     * Builds a LoadBalancer and fills it up with providers.
+     */
+    @Benchmark
+    @Threads(1)
+    @OperationsPerInvocation(LoadBalancer.MAX_NUM_PROVIDERS)
+    public LoadBalancer add() {
+        LoadBalancer fresh = new LoadBalancer(Backends.strategy(strategyName));
+        for(int i=0; i < LoadBalancer.MAX_NUM_PROVIDERS; i++) {
+            fresh.add(Backends.provider(backend, i));
+        }
+        fresh.shutdown();
+        return fresh;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean excludeInclude() {
+        String id = ids[ThreadLocalRandom.current().nextInt(ids.length)];
+        return lb.exclude(id) & lb.include(id);
+    }
+
+    @Benchmark
+    @Group("churnUnderLoad")
+    @GroupThreads(3)
+    public String churnUnderLoadGet() throws InterruptedException, ExecutionException {
+        try {
+            return lb.get().get();
+        }
+        catch(CapacityExceededException e) {
+            return null;
+        }
+    }
+
+    @Benchmark
+    @Group("churnUnderLoad")
+    @GroupThreads(1)
+    public boolean churnUnderLoadExcludeInclude() {
+        return excludeInclude();
+    }
+}
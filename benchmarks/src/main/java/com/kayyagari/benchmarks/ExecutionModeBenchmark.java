@@ -0,0 +1,84 @@
+package com.kayyagari.benchmarks;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kayyagari.ExecutionMode;
+import com.kayyagari.LoadBalancer;
+import com.kayyagari.LoadBalancerConfig;
+import com.kayyagari.RoundRobinStrategy;
+import com.kayyagari.SlowResponseProviderImpl;
+
+/**
+ * Compares the fixed pool of platform threads with virtual threads when the providers block,
+ * by sending a burst of {@link #BURST} requests to {@link SlowResponseProviderImpl}s and waiting for all of them.
+ * 
+ * Virtual threads need Java 21 or later, on older runtimes both the modes use platform threads and
+ * the report shows the mode that was in effect as a failed run of the VIRTUAL_THREADS configuration.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+public class ExecutionModeBenchmark {
+    /** the number of requests sent at once, all of them are admitted given the weight of the providers */
+    static final int BURST = 500;
+
+    @Param({"PLATFORM_THREADS", "VIRTUAL_THREADS"})
+    private ExecutionMode mode;
+
+    @Param({"5"})
+    private long delayMillis;
+
+    private LoadBalancer lb;
+
+    @Setup
+    public void setup() {
+        lb = new LoadBalancer(new RoundRobinStrategy(), new LoadBalancerConfig().setExecutionMode(mode));
+        if(lb.getExecutionMode() != mode) {
+            lb.shutdown();
+            throw new IllegalStateException(mode + " is not supported by this runtime");
+        }
+
+        for(int i=0; i < LoadBalancer.MAX_NUM_PROVIDERS; i++) {
+            // a weight of 10 allows 100 requests in-flight per provider
+            lb.add(new SlowResponseProviderImpl(delayMillis), 10);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        lb.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void burst() {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[BURST];
+        for(int i=0; i < BURST; i++) {
+            futures[i] = lb.getAsync();
+        }
+
+        CompletableFuture.allOf(futures).join();
+    }
+}
@@ -0,0 +1,92 @@
+package com.kayyagari.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kayyagari.CapacityExceededException;
+import com.kayyagari.LoadBalancer;
+
+/**
+ * Measures {@link LoadBalancer#get()}, {@link LoadBalancer#getAsync()} and {@link LoadBalancer#getBatch(int)} end to end, i.e. admission,
+ * selection of the provider, submission to the request pool (for blocking providers) and the provider's response.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoadBalancerBenchmark {
+    /** the number of requests sent together by the getBatch benchmark, the scores are per request */
+    static final int BATCH_SIZE = 10;
+
+    @Param({"round-robin", "random", "least-outstanding", "power-of-two-choices", "peak-ewma", "smooth-weighted-round-robin", "consistent-hash"})
+    private String strategyName;
+
+    @Param({"simple", "slow", "slow-async"})
+    private String backend;
+
+    private LoadBalancer lb;
+
+    @Setup
+    public void setup() {
+        lb = new LoadBalancer(Backends.strategy(strategyName));
+        for(int i=0; i < LoadBalancer.MAX_NUM_PROVIDERS; i++) {
+            lb.add(Backends.provider(backend, i));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        lb.shutdown();
+    }
+
+    @Benchmark
+    public String get() throws InterruptedException, ExecutionException {
+        try {
+            return lb.get().get();
+        }
+        catch(CapacityExceededException e) {
+            // rejected requests are part of the measurement, they are not errors
+            return null;
+        }
+    }
+
+    @Benchmark
+    public String getAsync() throws InterruptedException, ExecutionException {
+        try {
+            return lb.getAsync().get();
+        }
+        catch(CapacityExceededException e) {
+            return null;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public List<String> getBatch() throws InterruptedException, ExecutionException {
+        try {
+            return lb.getBatch(BATCH_SIZE).get();
+        }
+        catch(CapacityExceededException e) {
+            return null;
+        }
+    }
+}
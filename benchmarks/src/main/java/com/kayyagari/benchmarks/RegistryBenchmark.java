@@ -0,0 +1,94 @@
+package com.kayyagari.benchmarks;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kayyagari.CapacityExceededException;
+import com.kayyagari.LoadBalancer;
+import com.kayyagari.LoadBalancerConfig;
+import com.kayyagari.Provider;
+
+/**
+ * Measures the selection and the membership changes with 10 to 10,000 providers, the scores
+ * of get() and excludeInclude() should not depend on the number of providers.
+ *
+ * excludeIncludeGet() sends a request after every change and thus publishes a new snapshot
+ * each time, it shows the cost of a change that can't be coalesced with others. For consistent-hash
+ * and smooth-weighted-round-robin it includes deriving their state from the new snapshot.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistryBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    private int providerCount;
+
+    @Param({"round-robin", "random", "power-of-two-choices", "consistent-hash", "smooth-weighted-round-robin"})
+    private String strategyName;
+
+    private LoadBalancer lb;
+
+    private String[] ids;
+
+    @Setup
+    public void setup() {
+        lb = new LoadBalancer(Backends.strategy(strategyName), new LoadBalancerConfig().setMaxProviders(providerCount));
+        ids = new String[providerCount];
+        for(int i=0; i < ids.length; i++) {
+            Provider p = Backends.provider("simple", i);
+            ids[i] = p.id();
+            lb.add(p);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        lb.shutdown();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String get() throws InterruptedException, ExecutionException {
+        try {
+            return lb.get().get();
+        }
+        catch(CapacityExceededException e) {
+            return null;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean excludeInclude() {
+        String id = ids[ThreadLocalRandom.current().nextInt(ids.length)];
+        return lb.exclude(id) & lb.include(id);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String excludeIncludeGet() throws InterruptedException, ExecutionException {
+        excludeInclude();
+        return get();
+    }
+}
@@ -0,0 +1,61 @@
+package com.kayyagari.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kayyagari.LoadBalancer;
+import com.kayyagari.LoadBalancingStrategy;
+import com.kayyagari.Provider;
+
+/**
+ * Measures the cost of selecting a provider, i.e. {@link LoadBalancingStrategy#next(List)}
+ * in isolation from the request pool. The thread count is set by {@link BenchmarkRunner}
+ * or with the -t option of JMH.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StrategyBenchmark {
+
+    @Param({"round-robin", "random", "least-outstanding", "power-of-two-choices", "peak-ewma", "smooth-weighted-round-robin", "consistent-hash"})
+    private String strategyName;
+
+    @Param({"simple", "slow"})
+    private String backend;
+
+    private LoadBalancingStrategy strategy;
+
+    private List<Provider> providers;
+
+    @Setup
+    public void setup() {
+        strategy = Backends.strategy(strategyName);
+        providers = new ArrayList<>();
+        for(int i=0; i < LoadBalancer.MAX_NUM_PROVIDERS; i++) {
+            providers.add(Backends.provider(backend, i));
+        }
+    }
+
+    @Benchmark
+    public Provider next() {
+        return strategy.next(providers);
+    }
+}
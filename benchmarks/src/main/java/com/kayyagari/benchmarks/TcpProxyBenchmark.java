@@ -0,0 +1,184 @@
+package com.kayyagari.benchmarks;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kayyagari.LeastOutstandingStrategy;
+import com.kayyagari.LoadBalancer;
+import com.kayyagari.TcpProvider;
+import com.kayyagari.TcpProxyServer;
+
+/**
+ * Measures the round trips of a payload to echo servers on the loopback interface, either directly or
+ * through a {@link TcpProxyServer}. Each benchmark thread keeps its own connection open for the whole
+ * trial, so only the relaying is measured, the throughput in bytes per millisecond is the score times
+ * the payload size in each direction.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+// every thread holds a connection, which must stay within the capacity of the LoadBalancer
+@Threads(4)
+public class TcpProxyBenchmark {
+    static final int ECHO_SERVERS = 2;
+
+    @Param({"64", "4096", "65536"})
+    private int payloadSize;
+
+    @Param({"direct", "proxy"})
+    private String route;
+
+    private final List<ServerSocket> echoServers = new ArrayList<>();
+
+    private LoadBalancer lb;
+
+    private TcpProxyServer proxy;
+
+    /** the address the clients connect to */
+    private InetSocketAddress target;
+
+    /**
+     * A connection and the buffers of one benchmark thread
+     */
+    @State(Scope.Thread)
+    public static class Client {
+        private Socket socket;
+        private OutputStream out;
+        private DataInputStream in;
+        private byte[] payload;
+        private byte[] echoed;
+
+        @Setup(Level.Trial)
+        public void connect(TcpProxyBenchmark b) throws IOException {
+            socket = new Socket(b.target.getAddress(), b.target.getPort());
+            socket.setTcpNoDelay(true);
+            out = socket.getOutputStream();
+            in = new DataInputStream(socket.getInputStream());
+            payload = new byte[b.payloadSize];
+            echoed = new byte[b.payloadSize];
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        lb = new LoadBalancer(new LeastOutstandingStrategy());
+        for(int i=0; i < ECHO_SERVERS; i++) {
+            ServerSocket server = startEchoServer();
+            echoServers.add(server);
+            lb.add(new TcpProvider("echo-" + i, (InetSocketAddress) server.getLocalSocketAddress()));
+        }
+
+        if("proxy".equals(route)) {
+            proxy = new TcpProxyServer(lb, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            proxy.start();
+            target = proxy.getAddress();
+        }
+        else {
+            target = (InetSocketAddress) echoServers.get(0).getLocalSocketAddress();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if(proxy != null) {
+            proxy.stop();
+        }
+        lb.shutdown();
+        for(ServerSocket server : echoServers) {
+            server.close();
+        }
+    }
+
+    @Benchmark
+    public byte[] roundTrip(Client c) throws IOException {
+        c.out.write(c.payload);
+        c.in.readFully(c.echoed);
+        return c.echoed;
+    }
+
+    private static ServerSocket startEchoServer() throws IOException {
+        final ServerSocket server = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while(!server.isClosed()) {
+                    try {
+                        final Socket s = server.accept();
+                        s.setTcpNoDelay(true);
+                        Thread t = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                echo(s);
+                            }
+                        });
+                        t.setDaemon(true);
+                        t.start();
+                    }
+                    catch(IOException e) {
+                        return;
+                    }
+                }
+            }
+        }, "echo-" + server.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server;
+    }
+
+    private static void echo(Socket s) {
+        try {
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+        }
+        catch(IOException e) {
+            // the client went away
+        }
+        finally {
+            try {
+                s.close();
+            }
+            catch(IOException e) {
+                // ignore
+            }
+        }
+    }
+}
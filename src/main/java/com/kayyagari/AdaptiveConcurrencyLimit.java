@@ -0,0 +1,168 @@
+package com.kayyagari;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrency limit that follows the gradient of a provider's latency, similar to the Gradient2
+ * limiter of Netflix's concurrency-limits.
+ *
+ * The samples are summed up without locks. At the end of each window the thread that recorded the
+ * last sample computes
+ * <pre>
+ *   gradient = max(0.5, min(1, tolerance * longRtt / shortRtt))
+ *   estimate = limit * gradient + sqrt(limit)
+ *   limit    = limit * (1 - smoothing) + estimate * smoothing
+ * </pre>
+ * where shortRtt is the average latency of the window and longRtt an exponential average over
+ * {@link #LONG_WINDOWS} windows. The sqrt(limit) term lets the limit probe upwards while the latency is
+ * stable. The limit doesn't grow while the provider is not using at least half of it, nor beyond the
+ * ceiling, e.g. the number of threads that can call the provider, and it is cut by {@link #BACKOFF}
+ * for a window in which the provider failed a request.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+final class AdaptiveConcurrencyLimit {
+    /** the number of windows the long-term latency is averaged over */
+    static final int LONG_WINDOWS = 20;
+
+    /** the factor applied to the limit after a window with failures */
+    static final double BACKOFF = 0.9;
+
+    private final AdaptiveLimitConfig config;
+
+    private final long windowNanos;
+
+    /** the limit never grows above this, a higher initial limit is left to shrink */
+    private final int ceiling;
+
+    private volatile int limit;
+
+    /** the unrounded limit, only accessed by the thread closing a window */
+    private double estimatedLimit;
+
+    private double longRttNanos = -1;
+
+    private final LongAdder sampleSum = new LongAdder();
+
+    private final LongAdder sampleCount = new LongAdder();
+
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    private final AtomicBoolean failed = new AtomicBoolean();
+
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+
+    AdaptiveConcurrencyLimit(int initialLimit, AdaptiveLimitConfig config) {
+        this(initialLimit, Integer.MAX_VALUE, config);
+    }
+
+    AdaptiveConcurrencyLimit(int initialLimit, int ceiling, AdaptiveLimitConfig config) {
+        this.config = config;
+        this.ceiling = ceiling;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(config.getWindowMillis());
+        this.estimatedLimit = Math.max(config.getMinLimit(), Math.min(config.getMaxLimit(), initialLimit));
+        this.limit = (int) estimatedLimit;
+    }
+
+    int get() {
+        return limit;
+    }
+
+    /**
+     * Records the latency of a successful call
+     *
+     * @param inFlight the number of calls that were in-flight when this one completed
+     * @return true if the limit has changed
+     */
+    boolean onSample(long rttNanos, int inFlight) {
+        sampleSum.add(rttNanos);
+        sampleCount.increment();
+        while(true) {
+            int max = maxInFlight.get();
+            if(inFlight <= max || maxInFlight.compareAndSet(max, inFlight)) {
+                break;
+            }
+        }
+
+        return maybeUpdate();
+    }
+
+    /**
+     * Records a failed call
+     *
+     * @return true if the limit has changed
+     */
+    boolean onFailure() {
+        failed.set(true);
+        return maybeUpdate();
+    }
+
+    private boolean maybeUpdate() {
+        long now = System.nanoTime();
+        long start = windowStart.get();
+        if(now - start < windowNanos) {
+            return false;
+        }
+
+        if(sampleCount.sum() < config.getMinWindowSamples() && !failed.get()) {
+            return false;
+        }
+
+        // only one thread closes the window
+        if(!windowStart.compareAndSet(start, now)) {
+            return false;
+        }
+
+        synchronized(this) {
+            return update();
+        }
+    }
+
+    private boolean update() {
+        long count = sampleCount.sumThenReset();
+        long sum = sampleSum.sumThenReset();
+        int peakInFlight = maxInFlight.getAndSet(0);
+        boolean backoff = failed.getAndSet(false);
+
+        double newLimit = estimatedLimit;
+        if(backoff) {
+            newLimit = estimatedLimit * BACKOFF;
+        }
+        else if(count > 0) {
+            double shortRtt = (double) sum / count;
+            if(longRttNanos < 0) {
+                longRttNanos = shortRtt;
+            }
+            else {
+                longRttNanos += (shortRtt - longRttNanos) / LONG_WINDOWS;
+            }
+
+            // after a period of high latency the long-term average lags behind, let it catch up
+            if(longRttNanos / shortRtt > 2) {
+                longRttNanos *= 0.95;
+            }
+
+            double gradient = Math.max(0.5, Math.min(1.0, config.getRttTolerance() * longRttNanos / Math.max(shortRtt, 1)));
+            double estimate = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+            newLimit = estimatedLimit * (1 - config.getSmoothing()) + estimate * config.getSmoothing();
+
+            // a provider that doesn't use its limit tells nothing about a higher one
+            if(newLimit > estimatedLimit && peakInFlight < estimatedLimit / 2) {
+                newLimit = estimatedLimit;
+            }
+
+            if(newLimit > estimatedLimit && newLimit > ceiling) {
+                newLimit = Math.max(estimatedLimit, ceiling);
+            }
+        }
+
+        estimatedLimit = Math.max(config.getMinLimit(), Math.min(config.getMaxLimit(), newLimit));
+        int old = limit;
+        limit = (int) estimatedLimit;
+        return (limit != old);
+    }
+}
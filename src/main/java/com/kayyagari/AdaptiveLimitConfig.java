@@ -0,0 +1,115 @@
+package com.kayyagari;
+
+/**
+ * The settings of the adaptive concurrency limits, see {@link LoadBalancerConfig#setAdaptiveLimitConfig(AdaptiveLimitConfig)}.
+ *
+ * Each provider starts with the static limit, i.e. {@link LoadBalancer#MAX_REQ_PER_PROVIDER} times its weight,
+ * and the limit is adjusted after every window of samples using the gradient of the latency: while the
+ * recent latency stays close to the long-term latency the limit grows, when the recent latency rises
+ * above the long-term one, a sign that requests are queueing inside the provider, it shrinks.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public class AdaptiveLimitConfig {
+    private int minLimit = 1;
+
+    private int maxLimit = 1000;
+
+    private double smoothing = 0.2;
+
+    private double rttTolerance = 1.5;
+
+    private long windowMillis = 100;
+
+    private int minWindowSamples = 10;
+
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    public AdaptiveLimitConfig setMinLimit(int minLimit) {
+        if(minLimit < 1) {
+            throw new IllegalArgumentException("min limit must be at least 1");
+        }
+
+        this.minLimit = minLimit;
+        return this;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    public AdaptiveLimitConfig setMaxLimit(int maxLimit) {
+        if(maxLimit < 1) {
+            throw new IllegalArgumentException("max limit must be at least 1");
+        }
+
+        this.maxLimit = maxLimit;
+        return this;
+    }
+
+    public double getSmoothing() {
+        return smoothing;
+    }
+
+    /**
+     * Sets the weight of a new estimate in the limit, 1 applies every estimate as is
+     */
+    public AdaptiveLimitConfig setSmoothing(double smoothing) {
+        if(!(smoothing > 0 && smoothing <= 1)) {
+            throw new IllegalArgumentException("smoothing must be in the range (0, 1]");
+        }
+
+        this.smoothing = smoothing;
+        return this;
+    }
+
+    public double getRttTolerance() {
+        return rttTolerance;
+    }
+
+    /**
+     * Sets how much the recent latency may exceed the long-term latency before the limit is reduced
+     */
+    public AdaptiveLimitConfig setRttTolerance(double rttTolerance) {
+        if(rttTolerance < 1) {
+            throw new IllegalArgumentException("tolerance must be at least 1");
+        }
+
+        this.rttTolerance = rttTolerance;
+        return this;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * Sets the min duration of a window of samples
+     */
+    public AdaptiveLimitConfig setWindowMillis(long windowMillis) {
+        if(windowMillis < 1) {
+            throw new IllegalArgumentException("window must be at least 1ms");
+        }
+
+        this.windowMillis = windowMillis;
+        return this;
+    }
+
+    public int getMinWindowSamples() {
+        return minWindowSamples;
+    }
+
+    /**
+     * Sets the min number of samples in a window, a window with fewer samples is extended
+     */
+    public AdaptiveLimitConfig setMinWindowSamples(int minWindowSamples) {
+        if(minWindowSamples < 1) {
+            throw new IllegalArgumentException("at least one sample is needed");
+        }
+
+        this.minWindowSamples = minWindowSamples;
+        return this;
+    }
+}
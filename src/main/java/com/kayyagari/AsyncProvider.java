@@ -0,0 +1,28 @@
+package com.kayyagari;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The interface for providers that produce their values asynchronously, e.g. using non-blocking I/O.
+ *
+ * LoadBalancer calls {@link #getAsync()} instead of {@link #get()} for these providers, so a request
+ * doesn't occupy a thread of the request pool while it is being served. Existing blocking providers
+ * can be adapted with {@link AsyncProviderAdapter}.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public interface AsyncProvider extends Provider {
+    /**
+     * Returns a future that gets completed with the value generated by the provider.
+     * This method must not block.
+     */
+    CompletableFuture<String> getAsync();
+
+    /**
+     * Waits for the value returned by {@link #getAsync()}
+     */
+    @Override
+    default String get() {
+        return getAsync().join();
+    }
+}
@@ -0,0 +1,40 @@
+package com.kayyagari;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Adapts a blocking {@link Provider} to {@link AsyncProvider} by calling
+ * its get() method on the given executor.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public class AsyncProviderAdapter implements AsyncProvider {
+    private Provider wrapped;
+    private Executor executor;
+
+    public AsyncProviderAdapter(Provider wrapped, Executor executor) {
+        this.wrapped = wrapped;
+        this.executor = executor;
+    }
+
+    @Override
+    public CompletableFuture<String> getAsync() {
+        return CompletableFuture.supplyAsync(wrapped::get, executor);
+    }
+
+    @Override
+    public String get() {
+        return wrapped.get();
+    }
+
+    @Override
+    public boolean check() {
+        return wrapped.check();
+    }
+
+    @Override
+    public String id() {
+        return wrapped.id();
+    }
+}
@@ -0,0 +1,20 @@
+package com.kayyagari;
+
+import java.util.List;
+
+/**
+ * The interface for providers that can generate several values in a single call.
+ * When LoadBalancer selects such a provider for more than one request of a batch,
+ * see {@link LoadBalancer#getBatch(int)}, all of them are served by one call to {@link #getBatch(int)}.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public interface BatchProvider extends Provider {
+    /**
+     * Returns the given number of values generated by the provider
+     *
+     * @param count the number of values, at least 1
+     * @return a list containing exactly count values
+     */
+    List<String> getBatch(int count);
+}
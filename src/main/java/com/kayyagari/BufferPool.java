@@ -0,0 +1,68 @@
+package com.kayyagari;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of direct ByteBuffers of the same size.
+ *
+ * Direct buffers live outside the heap, so the bytes relayed between two channels are never
+ * copied into a Java array, but they are expensive to allocate and are freed only when the
+ * GC collects them. Reusing them keeps both costs off the path of a new connection.
+ * At most maxPooled buffers are retained, the rest are left to the GC on release.
+ *
+ * The pool is not thread safe, it is used by the single thread of an {@link NioEventLoop}.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+final class BufferPool {
+    private final int bufferSize;
+
+    private final int maxPooled;
+
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+
+    private long allocated;
+
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Returns an empty buffer, either a pooled one or a newly allocated one
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buf = free.pollFirst();
+        if(buf == null) {
+            buf = ByteBuffer.allocateDirect(bufferSize);
+            allocated++;
+        }
+
+        return buf;
+    }
+
+    /**
+     * Returns the given buffer to the pool
+     */
+    void release(ByteBuffer buf) {
+        if(free.size() < maxPooled) {
+            buf.clear();
+            free.addFirst(buf);
+        }
+    }
+
+    /**
+     * Returns the number of buffers allocated so far
+     */
+    long allocated() {
+        return allocated;
+    }
+
+    /**
+     * Returns the number of buffers available for reuse
+     */
+    int pooled() {
+        return free.size();
+    }
+}
@@ -0,0 +1,67 @@
+package com.kayyagari;
+
+/**
+ * The settings of the response cache, see {@link LoadBalancerConfig#setCacheConfig(CacheConfig)}.
+ *
+ * Only the responses of keyed requests, e.g. {@link LoadBalancer#get(String)}, are cached. A response
+ * is served from the cache until its TTL expires, after that and for the stale period it is still served
+ * while a single request refreshes it in the background.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public class CacheConfig {
+    private int maxSize = 10000;
+
+    private long ttlMillis = 1000;
+
+    private long staleWhileRevalidateMillis = 0;
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Sets the max number of responses kept in the cache
+     */
+    public CacheConfig setMaxSize(int maxSize) {
+        if(maxSize < 2) {
+            throw new IllegalArgumentException("max size must be at least 2");
+        }
+
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    /**
+     * Sets the time a response is served from the cache without refreshing it
+     */
+    public CacheConfig setTtlMillis(long ttlMillis) {
+        if(ttlMillis <= 0) {
+            throw new IllegalArgumentException("TTL must be positive");
+        }
+
+        this.ttlMillis = ttlMillis;
+        return this;
+    }
+
+    public long getStaleWhileRevalidateMillis() {
+        return staleWhileRevalidateMillis;
+    }
+
+    /**
+     * Sets the time an expired response is still served while it is refreshed in the background,
+     * 0, the default, disables serving stale responses
+     */
+    public CacheConfig setStaleWhileRevalidateMillis(long staleWhileRevalidateMillis) {
+        if(staleWhileRevalidateMillis < 0) {
+            throw new IllegalArgumentException("stale period cannot be negative");
+        }
+
+        this.staleWhileRevalidateMillis = staleWhileRevalidateMillis;
+        return this;
+    }
+}
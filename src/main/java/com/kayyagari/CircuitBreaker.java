@@ -0,0 +1,101 @@
+package com.kayyagari;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A circuit breaker that trips on the failure rate of a provider's calls.
+ *
+ * <pre>
+ *   CLOSED --(failure rate over the threshold)--&gt; OPEN --(open duration)--&gt; HALF_OPEN
+ *   HALF_OPEN --(all trials succeed)--&gt; CLOSED
+ *   HALF_OPEN --(a trial fails)--&gt; OPEN
+ * </pre>
+ *
+ * The breaker only tracks the state, acting on the transitions, i.e. excluding and including the provider
+ * and scheduling the end of the open duration, is left to the caller based on the returned values.
+ * All the transitions are made with compare-and-set, so exactly one caller observes each of them.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+final class CircuitBreaker {
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final CircuitBreakerConfig config;
+
+    private final OutcomeWindow window;
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+
+    /** the number of successful trials since the breaker became half-open */
+    private final AtomicInteger trialSuccesses = new AtomicInteger();
+
+    CircuitBreaker(CircuitBreakerConfig config) {
+        this.config = config;
+        this.window = new OutcomeWindow(config.getWindowMillis(), 10);
+    }
+
+    State state() {
+        return state.get();
+    }
+
+    /**
+     * Records the outcome of a call
+     *
+     * @return true if this call opened the breaker
+     */
+    boolean record(boolean success) {
+        switch(state.get()) {
+            case CLOSED:
+                window.record(success);
+                if(!success && isFailureRateExceeded()) {
+                    return state.compareAndSet(State.CLOSED, State.OPEN);
+                }
+                return false;
+
+            case HALF_OPEN:
+                if(!success) {
+                    return state.compareAndSet(State.HALF_OPEN, State.OPEN);
+                }
+
+                if(trialSuccesses.incrementAndGet() >= config.getHalfOpenTrials()) {
+                    close();
+                }
+                return false;
+
+            default:
+                // calls that were in-flight when the breaker opened
+                return false;
+        }
+    }
+
+    /**
+     * Moves the breaker from open to half-open, called when the open duration has elapsed
+     *
+     * @return true if the breaker was open
+     */
+    boolean halfOpen() {
+        trialSuccesses.set(0);
+        return state.compareAndSet(State.OPEN, State.HALF_OPEN);
+    }
+
+    /**
+     * Closes the breaker and forgets the past outcomes
+     */
+    void close() {
+        window.reset();
+        state.set(State.CLOSED);
+    }
+
+    private boolean isFailureRateExceeded() {
+        long[] counts = window.counts();
+        long total = counts[0] + counts[1];
+        if(total < config.getMinimumCalls()) {
+            return false;
+        }
+
+        return counts[1] >= config.getFailureRateThreshold() * total;
+    }
+}
@@ -0,0 +1,118 @@
+package com.kayyagari;
+
+/**
+ * The settings of the circuit breakers that LoadBalancer maintains for each provider,
+ * see {@link LoadBalancerConfig#setCircuitBreakerConfig(CircuitBreakerConfig)}.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public class CircuitBreakerConfig {
+    private double failureRateThreshold = 0.5;
+
+    private int minimumCalls = 20;
+
+    private long windowMillis = 10000;
+
+    private long openMillis = 5000;
+
+    private int halfOpenTrials = 3;
+
+    private long callTimeoutMillis = 0;
+
+    public double getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+
+    /**
+     * Sets the fraction of the calls in the window that must fail for the breaker to open
+     */
+    public CircuitBreakerConfig setFailureRateThreshold(double failureRateThreshold) {
+        if(!(failureRateThreshold > 0 && failureRateThreshold <= 1)) {
+            throw new IllegalArgumentException("failure rate threshold must be in the range (0, 1]");
+        }
+
+        this.failureRateThreshold = failureRateThreshold;
+        return this;
+    }
+
+    public int getMinimumCalls() {
+        return minimumCalls;
+    }
+
+    /**
+     * Sets the number of calls that must be present in the window before the failure rate is evaluated
+     */
+    public CircuitBreakerConfig setMinimumCalls(int minimumCalls) {
+        if(minimumCalls < 1) {
+            throw new IllegalArgumentException("minimum calls must be at least 1");
+        }
+
+        this.minimumCalls = minimumCalls;
+        return this;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * Sets the duration of the sliding window in which the outcomes of the calls are counted
+     */
+    public CircuitBreakerConfig setWindowMillis(long windowMillis) {
+        if(windowMillis < 10) {
+            throw new IllegalArgumentException("window must be at least 10ms");
+        }
+
+        this.windowMillis = windowMillis;
+        return this;
+    }
+
+    public long getOpenMillis() {
+        return openMillis;
+    }
+
+    /**
+     * Sets the time a provider stays excluded after its breaker opens, before trial requests are let through
+     */
+    public CircuitBreakerConfig setOpenMillis(long openMillis) {
+        if(openMillis <= 0) {
+            throw new IllegalArgumentException("open duration must be positive");
+        }
+
+        this.openMillis = openMillis;
+        return this;
+    }
+
+    public int getHalfOpenTrials() {
+        return halfOpenTrials;
+    }
+
+    /**
+     * Sets the number of trial requests that must succeed in a row for the breaker to close again
+     */
+    public CircuitBreakerConfig setHalfOpenTrials(int halfOpenTrials) {
+        if(halfOpenTrials < 1) {
+            throw new IllegalArgumentException("at least one trial is needed");
+        }
+
+        this.halfOpenTrials = halfOpenTrials;
+        return this;
+    }
+
+    public long getCallTimeoutMillis() {
+        return callTimeoutMillis;
+    }
+
+    /**
+     * Sets the time after which a call that hasn't completed yet is counted as failed,
+     * zero disables it. The call itself is not cancelled.
+     */
+    public CircuitBreakerConfig setCallTimeoutMillis(long callTimeoutMillis) {
+        if(callTimeoutMillis < 0) {
+            throw new IllegalArgumentException("call timeout cannot be negative");
+        }
+
+        this.callTimeoutMillis = callTimeoutMillis;
+        return this;
+    }
+}
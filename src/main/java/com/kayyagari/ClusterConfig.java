@@ -0,0 +1,127 @@
+package com.kayyagari;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The settings of the cluster mode, see {@link LoadBalancerConfig#setClusterConfig(ClusterConfig)}.
+ *
+ * LoadBalancers in front of the same providers gossip over UDP about the health of the providers,
+ * the manual exclusions and their in-flight requests. Each provider is probed by only one of the live
+ * nodes, chosen by rendezvous hashing, and the other nodes use the health it reports.
+ *
+ * The messages are neither authenticated nor encrypted, the nodes must be on a trusted network.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public class ClusterConfig {
+    private String nodeId = UUID.randomUUID().toString();
+
+    private InetSocketAddress bindAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+
+    private List<InetSocketAddress> seeds = new ArrayList<>();
+
+    private long gossipIntervalMillis = 200;
+
+    private int fanout = 2;
+
+    private long failureTimeoutMillis = 3000;
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Sets the ID of this node, it must be unique in the cluster. A random UUID by default.
+     */
+    public ClusterConfig setNodeId(String nodeId) {
+        if(nodeId == null || nodeId.isEmpty()) {
+            throw new IllegalArgumentException("node ID cannot be empty");
+        }
+
+        this.nodeId = nodeId;
+        return this;
+    }
+
+    public InetSocketAddress getBindAddress() {
+        return bindAddress;
+    }
+
+    /**
+     * Sets the address the node listens on, the loopback address with an ephemeral port by default.
+     * The address is also advertised to the other nodes, so it must not be a wildcard address.
+     */
+    public ClusterConfig setBindAddress(InetSocketAddress bindAddress) {
+        if(bindAddress == null) {
+            throw new IllegalArgumentException("bind address cannot be null");
+        }
+
+        this.bindAddress = bindAddress;
+        return this;
+    }
+
+    public List<InetSocketAddress> getSeeds() {
+        return Collections.unmodifiableList(seeds);
+    }
+
+    /**
+     * Adds the address of a node that is contacted to join the cluster, the other nodes are learned from it
+     */
+    public ClusterConfig addSeed(InetSocketAddress seed) {
+        seeds.add(seed);
+        return this;
+    }
+
+    public long getGossipIntervalMillis() {
+        return gossipIntervalMillis;
+    }
+
+    /**
+     * Sets the interval between the messages a node sends to its peers
+     */
+    public ClusterConfig setGossipIntervalMillis(long gossipIntervalMillis) {
+        if(gossipIntervalMillis <= 0) {
+            throw new IllegalArgumentException("gossip interval must be positive");
+        }
+
+        this.gossipIntervalMillis = gossipIntervalMillis;
+        return this;
+    }
+
+    public int getFanout() {
+        return fanout;
+    }
+
+    /**
+     * Sets the number of peers a node sends its state to in every interval
+     */
+    public ClusterConfig setFanout(int fanout) {
+        if(fanout < 1) {
+            throw new IllegalArgumentException("fanout must be at least 1");
+        }
+
+        this.fanout = fanout;
+        return this;
+    }
+
+    public long getFailureTimeoutMillis() {
+        return failureTimeoutMillis;
+    }
+
+    /**
+     * Sets the time after which a node that hasn't been heard of is considered dead,
+     * the providers it probed are then taken over by the remaining nodes
+     */
+    public ClusterConfig setFailureTimeoutMillis(long failureTimeoutMillis) {
+        if(failureTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("failure timeout must be positive");
+        }
+
+        this.failureTimeoutMillis = failureTimeoutMillis;
+        return this;
+    }
+}
@@ -0,0 +1,504 @@
+package com.kayyagari;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A key-affine load-balancing strategy based on a consistent hash ring (ketama).
+ *
+ * Each provider is placed on a ring of 64-bit hashes at {@link #POINTS_PER_WEIGHT} times its weight
+ * positions derived from its ID, and a key is served by the provider owning the first position at or
+ * after the key's hash. The positions of a provider do not depend on the other providers, so when a
+ * provider gets excluded only the keys it owned move to other providers, and they move back when
+ * it is included again. Lookups are a binary search over the ring, i.e. O(log n).
+ *
+ * Hot keys are kept from overloading a provider with bounded loads: a provider whose in-flight count
+ * exceeds {@link #loadFactor} times its fair share of the current load is skipped, and the walk
+ * continues clockwise to the next provider on the ring. Every position knows the next position owned
+ * by a different provider, so the walk visits at most {@link #MAX_PROBES} providers and returns the
+ * first one when all of them are busy. The current load is read from the {@link ProviderSnapshot}
+ * when the providers are one, otherwise it is summed up.
+ *
+ * The ring is built once per snapshot, LoadBalancer passes the same snapshot until the membership
+ * changes. The positions of the providers that left the list stay on the ring and are skipped by
+ * the lookups, so excluding a provider and including it again only records the new members, in O(n).
+ * When new providers arrive, the new ring is derived from the previous one by dropping the positions
+ * of the departed providers and merging those of the added ones, so only the added providers are
+ * hashed. The ring is built from scratch when the departed providers outweigh the present ones.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public class ConsistentHashStrategy implements KeyedLoadBalancingStrategy {
+
+    /** the number of positions on the ring per unit of a provider's weight */
+    public static final int POINTS_PER_WEIGHT = 160;
+
+    /** the load factor used by the default constructor */
+    public static final double DEFAULT_LOAD_FACTOR = 1.25;
+
+    /** the max number of providers visited by the walk of a busy key */
+    static final int MAX_PROBES = 16;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /** the max allowed load of a provider relative to its fair share */
+    private final double loadFactor;
+
+    /** the ring built for the most recently seen list, the base of the next one */
+    private volatile Ring ring;
+
+    public ConsistentHashStrategy() {
+        this(DEFAULT_LOAD_FACTOR);
+    }
+
+    /**
+     * @param loadFactor the max allowed load of a provider relative to its fair share,
+     *                   must be greater than 1. Use {@link Double#POSITIVE_INFINITY} to disable
+     *                   the spillover.
+     */
+    public ConsistentHashStrategy(double loadFactor) {
+        if(!(loadFactor > 1)) {
+            throw new IllegalArgumentException("load factor must be greater than 1");
+        }
+
+        this.loadFactor = loadFactor;
+    }
+
+    @Override
+    public Provider next(List<Provider> providers, String key) {
+        return ring(providers).lookup(hash(key), loadFactor);
+    }
+
+    /**
+     * Selects a provider for a random key, used for the requests without a key
+     */
+    @Override
+    public Provider next(List<Provider> providers) {
+        return ring(providers).lookup(ThreadLocalRandom.current().nextLong(), loadFactor);
+    }
+
+    private Ring ring(List<Provider> providers) {
+        Ring r = ring;
+        if(r != null && r.source == providers) {
+            return r;
+        }
+
+        if(providers instanceof ProviderSnapshot) {
+            // built by one thread, the others racing here wait for it
+            r = ((ProviderSnapshot)providers).derive(this, s -> build(s));
+        }
+        else {
+            r = build(providers);
+        }
+
+        ring = r;
+        return r;
+    }
+
+    private Ring build(List<Provider> providers) {
+        Ring prev = ring;
+        return (prev == null) ? Ring.of(providers) : prev.next(providers);
+    }
+
+    /**
+     * Computes a 64-bit hash of the given string with FNV-1a followed by
+     * the finalizer of MurmurHash3, which spreads the similar IDs and keys
+     * across the whole ring.
+     */
+    static long hash(String s) {
+        return mix(fnv(FNV_OFFSET, s));
+    }
+
+    /**
+     * Returns the position of the given replica of a provider, the same as
+     * hash(id + "-" + replica) without building the string
+     */
+    static long pointHash(long idState, int replica) {
+        long h = (idState ^ '-') * FNV_PRIME;
+        // the decimal digits, the most significant first
+        int div = 1;
+        while(div <= replica / 10) {
+            div *= 10;
+        }
+        for(; div > 0; div /= 10) {
+            h = (h ^ ('0' + (replica / div) % 10)) * FNV_PRIME;
+        }
+
+        return mix(h);
+    }
+
+    /**
+     * Returns the FNV-1a state after the given string, the argument of {@link #pointHash(long, int)}
+     */
+    static long idState(String id) {
+        return fnv(FNV_OFFSET, id);
+    }
+
+    private static long fnv(long h, String s) {
+        for(int i=0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= FNV_PRIME;
+        }
+
+        return h;
+    }
+
+    private static long mix(long h) {
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= (h >>> 33);
+        return h;
+    }
+
+    private static int weight(Provider p) {
+        if(p instanceof MeteredProvider) {
+            return ((MeteredProvider)p).weight();
+        }
+
+        return 1;
+    }
+
+    private static int inFlight(Provider p) {
+        if(p instanceof MeteredProvider) {
+            return ((MeteredProvider)p).inFlight();
+        }
+
+        return 0;
+    }
+
+    private static final class Ring {
+        private final List<Provider> source;
+
+        /** the providers owning the positions, an owner is referred to by its index in this array */
+        private final Provider[] members;
+
+        /** the index of each member */
+        private final Map<Provider, Integer> ordinals;
+
+        /** the index of the member at the same index in the source */
+        private final int[] sourceOrdinals;
+
+        /** the weight each member was placed with */
+        private final int[] placedWeights;
+
+        /** true at the index of each member present in the source, null if all of them are */
+        private final boolean[] present;
+
+        /** the positions on the ring in ascending order */
+        private final long[] points;
+
+        /** the index of the member owning the position present at the same index in points */
+        private final int[] owners;
+
+        /** the index of the next position, clockwise, whose owner differs from the one at the same index */
+        private final int[] nextOwner;
+
+        /** the weight of the members present in the source */
+        private final int totalWeight;
+
+        /** the weight of all the members */
+        private final int placedWeight;
+
+        private Ring(List<Provider> source, Provider[] members, Map<Provider, Integer> ordinals, int[] sourceOrdinals,
+                int[] placedWeights, long[] points, int[] owners) {
+            this.source = source;
+            this.members = members;
+            this.ordinals = ordinals;
+            this.sourceOrdinals = sourceOrdinals;
+            this.placedWeights = placedWeights;
+            this.present = null;
+            this.points = points;
+            this.owners = owners;
+
+            int total = 0;
+            for(int w : placedWeights) {
+                total += w;
+            }
+            this.totalWeight = total;
+            this.placedWeight = total;
+
+            int n = points.length;
+            nextOwner = new int[n];
+            // two passes backwards, the first one only carries the position over the end of the ring
+            int next = 0;
+            for(int i=2 * n - 1; i >= 0; i--) {
+                int pos = i % n;
+                int after = (pos + 1) % n;
+                if(owners[after] != owners[pos]) {
+                    next = after;
+                }
+                nextOwner[pos] = next;
+            }
+        }
+
+        /**
+         * Creates a ring of the given providers sharing the positions of the given ring
+         */
+        private Ring(List<Provider> source, int[] sourceOrdinals, Ring positions, boolean[] present, int totalWeight) {
+            this.source = source;
+            this.members = positions.members;
+            this.ordinals = positions.ordinals;
+            this.sourceOrdinals = sourceOrdinals;
+            this.placedWeights = positions.placedWeights;
+            this.present = (totalWeight == positions.placedWeight) ? null : present;
+            this.points = positions.points;
+            this.owners = positions.owners;
+            this.nextOwner = positions.nextOwner;
+            this.totalWeight = totalWeight;
+            this.placedWeight = positions.placedWeight;
+        }
+
+        /**
+         * Builds the ring of the given providers from scratch
+         */
+        private static Ring of(List<Provider> source) {
+            Provider[] members = source.toArray(new Provider[0]);
+            Map<Provider, Integer> ordinals = new IdentityHashMap<>(members.length);
+            int[] sourceOrdinals = new int[members.length];
+            int[] weights = new int[members.length];
+            for(int i=0; i < members.length; i++) {
+                ordinals.put(members[i], i);
+                sourceOrdinals[i] = i;
+                weights[i] = weight(members[i]);
+            }
+
+            Placement all = place(members, weights, 0, members.length);
+            return new Ring(source, members, ordinals, sourceOrdinals, weights, all.points, all.owners);
+        }
+
+        /**
+         * Derives the ring of the given providers from this one, keeping the positions of the members
+         * present in the given providers with the same weight
+         */
+        private Ring next(List<Provider> source) {
+            boolean[] nextPresent = new boolean[members.length];
+            int[] nextSourceOrdinals = new int[source.size()];
+            List<Provider> added = new ArrayList<>();
+            int kept = 0;
+            int j = 0;
+            for(int i=0; i < source.size(); i++) {
+                Provider p = source.get(i);
+                // the lists mostly keep their order, so only the providers out of place are looked up
+                int ordinal;
+                if(j < this.source.size() && this.source.get(j) == p) {
+                    ordinal = sourceOrdinals[j++];
+                }
+                else if(j + 1 < this.source.size() && this.source.get(j + 1) == p) {
+                    ordinal = sourceOrdinals[j + 1];
+                    j += 2;
+                }
+                else {
+                    Integer known = ordinals.get(p);
+                    ordinal = (known == null) ? -1 : known;
+                }
+
+                int w = weight(p);
+                if(ordinal >= 0 && placedWeights[ordinal] == w) {
+                    nextPresent[ordinal] = true;
+                    nextSourceOrdinals[i] = ordinal;
+                    kept += w;
+                }
+                else {
+                    added.add(p);
+                }
+            }
+
+            // a big change is cheaper to build from scratch
+            if(kept * 2 < placedWeight) {
+                return of(source);
+            }
+
+            // only departures and returns, the positions stay as they are
+            if(added.isEmpty()) {
+                return new Ring(source, nextSourceOrdinals, this, nextPresent, kept);
+            }
+
+            // renumber the kept members and append the added ones
+            int[] renumbered = new int[members.length];
+            int count = 0;
+            for(int i=0; i < members.length; i++) {
+                renumbered[i] = nextPresent[i] ? count++ : -1;
+            }
+
+            Provider[] nextMembers = new Provider[count + added.size()];
+            int[] nextWeights = new int[nextMembers.length];
+            Map<Provider, Integer> nextOrdinals = new IdentityHashMap<>(nextMembers.length);
+            for(int i=0; i < members.length; i++) {
+                if(renumbered[i] >= 0) {
+                    nextMembers[renumbered[i]] = members[i];
+                    nextWeights[renumbered[i]] = placedWeights[i];
+                }
+            }
+            for(Provider p : added) {
+                nextMembers[count] = p;
+                nextWeights[count] = weight(p);
+                count++;
+            }
+            for(int i=0; i < nextMembers.length; i++) {
+                nextOrdinals.put(nextMembers[i], i);
+            }
+            for(int i=0; i < nextSourceOrdinals.length; i++) {
+                nextSourceOrdinals[i] = nextOrdinals.get(source.get(i));
+            }
+
+            Placement fresh = place(nextMembers, nextWeights, nextMembers.length - added.size(), nextMembers.length);
+            int total = kept * POINTS_PER_WEIGHT + fresh.points.length;
+            long[] mergedPoints = new long[total];
+            int[] mergedOwners = new int[total];
+            int i = 0;
+            j = 0;
+            int n = 0;
+            while(n < total) {
+                // skip the positions of the departed members and of the ones whose weight changed
+                while(i < points.length && renumbered[owners[i]] < 0) {
+                    i++;
+                }
+
+                if(j == fresh.points.length || (i < points.length && points[i] <= fresh.points[j])) {
+                    mergedPoints[n] = points[i];
+                    mergedOwners[n++] = renumbered[owners[i++]];
+                }
+                else {
+                    mergedPoints[n] = fresh.points[j];
+                    mergedOwners[n++] = fresh.owners[j++];
+                }
+            }
+
+            return new Ring(source, nextMembers, nextOrdinals, nextSourceOrdinals, nextWeights, mergedPoints, mergedOwners);
+        }
+
+        /**
+         * Returns the sorted positions of the members in the range [from, to) along with their indexes
+         */
+        private static Placement place(Provider[] members, int[] weights, int from, int to) {
+            int count = 0;
+            for(int k=from; k < to; k++) {
+                count += weights[k] * POINTS_PER_WEIGHT;
+            }
+
+            long[] unsorted = new long[count];
+            int[] unsortedOwners = new int[count];
+            int n = 0;
+            for(int k=from; k < to; k++) {
+                long state = idState(members[k].id());
+                int replicas = weights[k] * POINTS_PER_WEIGHT;
+                for(int i=0; i < replicas; i++) {
+                    unsorted[n] = pointHash(state, i);
+                    unsortedOwners[n] = k;
+                    n++;
+                }
+            }
+
+            // sort the positions, then find the place of each unsorted one to carry the owners along
+            long[] points = unsorted.clone();
+            Arrays.sort(points);
+            int[] owners = new int[count];
+            Arrays.fill(owners, -1);
+            for(int i=0; i < count; i++) {
+                int j = Arrays.binarySearch(points, unsorted[i]);
+                // colliding positions are adjacent, take the first free one
+                while(j > 0 && points[j - 1] == unsorted[i]) {
+                    j--;
+                }
+                while(owners[j] != -1) {
+                    j++;
+                }
+                owners[j] = unsortedOwners[i];
+            }
+
+            return new Placement(points, owners);
+        }
+
+        private boolean present(int ordinal) {
+            return present == null || present[ordinal];
+        }
+
+        private int totalLoad() {
+            if(source instanceof ProviderSnapshot) {
+                int load = ((ProviderSnapshot)source).load();
+                if(load >= 0) {
+                    // the request being routed is already counted
+                    return Math.max(load, 1);
+                }
+            }
+
+            // the fair share of the load counting the request being routed
+            int totalLoad = 1;
+            for(Provider p : source) {
+                totalLoad += inFlight(p);
+            }
+            return totalLoad;
+        }
+
+        private Provider lookup(long hash, double loadFactor) {
+            int idx = Arrays.binarySearch(points, hash);
+            if(idx < 0) {
+                // the insertion point, i.e. the first position greater than the hash
+                idx = -(idx + 1);
+            }
+
+            if(idx == points.length) {
+                idx = 0;
+            }
+
+            // skip the positions of the departed members, they weigh less than the present ones
+            while(!present(owners[idx])) {
+                idx = nextOwner[idx];
+            }
+
+            int homeOrdinal = owners[idx];
+            Provider home = members[homeOrdinal];
+            // the max load computed below is never less than the weight, so there is no need
+            // to compute it unless the home provider is busy
+            if(Double.isInfinite(loadFactor) || source.size() == 1 || inFlight(home) < weight(home)) {
+                return home;
+            }
+
+            double maxLoadPerWeight = Math.ceil(loadFactor * totalLoad() / totalWeight);
+            if(inFlight(home) < maxLoadPerWeight * weight(home)) {
+                return home;
+            }
+
+            // walk clockwise over the next different providers until one with spare capacity is found
+            int pos = idx;
+            for(int i=0; i < MAX_PROBES; i++) {
+                pos = nextOwner[pos];
+                int ordinal = owners[pos];
+                if(ordinal != homeOrdinal && present(ordinal)) {
+                    Provider p = members[ordinal];
+                    if(inFlight(p) < maxLoadPerWeight * weight(p)) {
+                        return p;
+                    }
+                }
+            }
+
+            return home;
+        }
+    }
+
+    /**
+     * Sorted positions and the indexes of their owners
+     */
+    private static final class Placement {
+        private final long[] points;
+        private final int[] owners;
+
+        private Placement(long[] points, int[] owners) {
+            this.points = points;
+            this.owners = owners;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "consistent-hash";
+    }
+}
@@ -0,0 +1,21 @@
+package com.kayyagari;
+
+/**
+ * The kind of threads used by LoadBalancer for calling the blocking providers
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public enum ExecutionMode {
+    /**
+     * a fixed pool of platform threads serving a bounded queue, see {@link LoadBalancerConfig#setRequestThreads(int)}
+     * and {@link LoadBalancerConfig#setOverloadPolicy(OverloadPolicy)}
+     */
+    PLATFORM_THREADS,
+
+    /**
+     * a new virtual thread for each request, a request blocked in {@link Provider#get()} then
+     * costs a virtual thread instead of a pooled OS thread. Needs Java 21 or later, on older
+     * runtimes LoadBalancer falls back to {@link #PLATFORM_THREADS}.
+     */
+    VIRTUAL_THREADS
+}
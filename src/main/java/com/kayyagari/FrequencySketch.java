@@ -0,0 +1,80 @@
+package com.kayyagari;
+
+/**
+ * A count-min sketch estimating how often a key was seen recently, used by {@link ResponseCache}
+ * to decide whether a new response is worth evicting an older one (TinyLFU).
+ *
+ * Each key has a 4-bit counter in each of the {@link #DEPTH} rows and its frequency is the
+ * smallest of them. When the number of increments reaches ten times the width all the counters
+ * are halved, so that keys which were popular long ago fade away. Not thread safe.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+final class FrequencySketch {
+    static final int DEPTH = 4;
+
+    static final int MAX_COUNT = 15;
+
+    private static final int[] SEEDS = {0x97cb3127, 0xb7e15163, 0x6b43a9b5, 0xc2b2ae35};
+
+    private final byte[] counters;
+
+    private final int mask;
+
+    private final int sampleSize;
+
+    private int additions;
+
+    FrequencySketch(int maxSize) {
+        int width = Integer.highestOneBit(Math.max(maxSize, 16) - 1) << 1;
+        counters = new byte[width * DEPTH];
+        mask = width - 1;
+        sampleSize = width * 10;
+    }
+
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for(int i=0; i < DEPTH; i++) {
+            int index = indexOf(hash, i);
+            if(counters[index] < MAX_COUNT) {
+                counters[index]++;
+                added = true;
+            }
+        }
+
+        if(added && ++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int min = MAX_COUNT;
+        for(int i=0; i < DEPTH; i++) {
+            min = Math.min(min, counters[indexOf(hash, i)]);
+        }
+
+        return min;
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * SEEDS[row];
+        h ^= h >>> 16;
+        return (row * (mask + 1)) + (h & mask);
+    }
+
+    private void reset() {
+        for(int i=0; i < counters.length; i++) {
+            counters[i] >>= 1;
+        }
+        additions /= 2;
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 17;
+        h *= 0xed5ad4bb;
+        h ^= h >>> 11;
+        return h;
+    }
+}
@@ -0,0 +1,545 @@
+package com.kayyagari;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A member of a cluster of LoadBalancers that share the state of their providers by gossiping over UDP.
+ *
+ * Every interval the node sends its view to a few random peers, or to the seeds while it knows no peers.
+ * A message carries the members known to the sender with their heartbeats, the sender's in-flight requests
+ * per provider and the state of the providers. A member whose heartbeat hasn't advanced within the failure
+ * timeout is considered dead. Every start of a node is a new incarnation, identified by its start time, and
+ * the heartbeats are compared within an incarnation, so a node that restarts with the same ID is alive
+ * again as soon as its first message arrives even though its heartbeat starts over.
+ *
+ * The state of a provider, i.e. its health and whether it was excluded manually, is versioned with a
+ * Lamport clock. The state with the higher version wins, the node ID breaks ties, so all the nodes end up
+ * with the same state no matter the order in which the messages arrive. Between two states published by
+ * the same node the one of the later incarnation wins, because the clock of a restarted node starts over.
+ *
+ * Each provider is probed only by its owner, the live node with the highest rendezvous hash of the node and
+ * provider IDs. When a node joins or dies only the providers it owns change their owner.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+final class GossipNode {
+    /**
+     * The LoadBalancer the node belongs to
+     */
+    interface Host {
+        /**
+         * Called on the gossip thread when the manual exclusion of a provider was changed by another node
+         */
+        void exclusionChanged(String providerId, boolean excluded);
+
+        /**
+         * Returns the number of in-flight requests of the providers that have any
+         */
+        Map<String, Integer> localLoad();
+    }
+
+    /** identifies the messages, changed along with their format */
+    static final int MAGIC = 0x4c424732;
+
+    /** leaves room for the IP and UDP headers in the max datagram size */
+    static final int MAX_DATAGRAM_SIZE = 60000;
+
+    private static final class ProviderState {
+        private final boolean healthy;
+        private final boolean excluded;
+        private final long version;
+        private final String origin;
+
+        /** the incarnation of the origin that published the state */
+        private final long incarnation;
+
+        private ProviderState(boolean healthy, boolean excluded, long version, String origin, long incarnation) {
+            this.healthy = healthy;
+            this.excluded = excluded;
+            this.version = version;
+            this.origin = origin;
+            this.incarnation = incarnation;
+        }
+
+        private boolean isNewerThan(ProviderState other) {
+            if(origin.equals(other.origin) && incarnation != other.incarnation) {
+                return (incarnation > other.incarnation);
+            }
+
+            if(version != other.version) {
+                return (version > other.version);
+            }
+
+            return (origin.compareTo(other.origin) > 0);
+        }
+    }
+
+    private static final class Member {
+        private final String id;
+        private volatile InetSocketAddress address;
+        private volatile long incarnation;
+        private volatile long heartbeat;
+        private volatile long lastSeenNanos;
+        private volatile Map<String, Integer> load = Collections.emptyMap();
+
+        private Member(String id, InetSocketAddress address, long incarnation, long heartbeat) {
+            this.id = id;
+            this.address = address;
+            this.incarnation = incarnation;
+            this.heartbeat = heartbeat;
+            this.lastSeenNanos = System.nanoTime();
+        }
+
+        /**
+         * Returns true if the given heartbeat is later than the last one known, a heartbeat of
+         * a later incarnation always is
+         */
+        private boolean isBehind(long inc, long hb) {
+            return (inc > incarnation) || (inc == incarnation && hb > heartbeat);
+        }
+    }
+
+    private final String nodeId;
+
+    /** the start time of this node, it orders the incarnations of the nodes with the same ID */
+    private final long incarnation = System.currentTimeMillis();
+
+    private final Host host;
+
+    private final List<InetSocketAddress> seeds;
+
+    private final long intervalNanos;
+
+    private final long failureTimeoutNanos;
+
+    private final int fanout;
+
+    private final DatagramSocket socket;
+
+    private final InetSocketAddress address;
+
+    private final Map<String, ProviderState> states = new ConcurrentHashMap<>();
+
+    /** the other nodes, only accessed by the gossip thread except for reads */
+    private final Map<String, Member> members = new ConcurrentHashMap<>();
+
+    /** the IDs of the live nodes including this one */
+    private volatile List<String> liveNodes;
+
+    private final AtomicLong clock = new AtomicLong();
+
+    private long heartbeat;
+
+    private final Thread thread;
+
+    private volatile boolean running = true;
+
+    GossipNode(ClusterConfig config, Host host) {
+        this.nodeId = config.getNodeId();
+        this.host = host;
+        this.seeds = new ArrayList<>(config.getSeeds());
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(config.getGossipIntervalMillis());
+        this.failureTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getFailureTimeoutMillis());
+        this.fanout = config.getFanout();
+        this.liveNodes = Collections.singletonList(nodeId);
+        try {
+            socket = new DatagramSocket(config.getBindAddress());
+        }
+        catch(SocketException e) {
+            throw new IllegalStateException("failed to bind the gossip socket to " + config.getBindAddress(), e);
+        }
+        address = (InetSocketAddress) socket.getLocalSocketAddress();
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "lb-gossip-" + nodeId);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    String nodeId() {
+        return nodeId;
+    }
+
+    InetSocketAddress address() {
+        return address;
+    }
+
+    /**
+     * Returns the IDs of the live nodes, including this one
+     */
+    List<String> liveNodes() {
+        return liveNodes;
+    }
+
+    /**
+     * Returns true if this node must probe the provider with the given ID
+     */
+    boolean isProbeOwner(String providerId) {
+        String owner = null;
+        long best = Long.MIN_VALUE;
+        for(String node : liveNodes) {
+            long score = rendezvousHash(node, providerId);
+            if(owner == null || score > best || (score == best && node.compareTo(owner) > 0)) {
+                owner = node;
+                best = score;
+            }
+        }
+
+        return nodeId.equals(owner);
+    }
+
+    /**
+     * Returns a provider whose check() probes the given provider if this node owns it, and returns the
+     * health reported by the owner otherwise. A provider whose owner hasn't reported yet is considered healthy.
+     */
+    Provider probe(final Provider p) {
+        return new Provider() {
+            @Override
+            public boolean check() {
+                if(isProbeOwner(p.id())) {
+                    boolean healthy = p.check();
+                    publishHealth(p.id(), healthy);
+                    return healthy;
+                }
+
+                ProviderState s = states.get(p.id());
+                return (s == null || s.healthy);
+            }
+
+            @Override
+            public String get() {
+                return p.get();
+            }
+
+            @Override
+            public String id() {
+                return p.id();
+            }
+        };
+    }
+
+    synchronized void publishHealth(String providerId, boolean healthy) {
+        ProviderState s = states.get(providerId);
+        publish(providerId, healthy, (s != null && s.excluded));
+    }
+
+    synchronized void publishExclusion(String providerId, boolean excluded) {
+        ProviderState s = states.get(providerId);
+        publish(providerId, (s == null || s.healthy), excluded);
+    }
+
+    /**
+     * Returns the sum of the in-flight requests of the given provider reported by the live peers
+     */
+    int remoteInFlight(String providerId) {
+        int total = 0;
+        long now = System.nanoTime();
+        for(Member m : members.values()) {
+            if(!isAlive(m, now)) {
+                continue;
+            }
+
+            Integer n = m.load.get(providerId);
+            if(n != null) {
+                total += n;
+            }
+        }
+
+        return total;
+    }
+
+    void stop() {
+        running = false;
+        socket.close();
+        try {
+            thread.join(TimeUnit.NANOSECONDS.toMillis(intervalNanos) + 1000);
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean isAlive(Member m, long now) {
+        return (now - m.lastSeenNanos <= failureTimeoutNanos);
+    }
+
+    private synchronized void publish(String providerId, boolean healthy, boolean excluded) {
+        ProviderState s = states.get(providerId);
+        if(s != null && s.healthy == healthy && s.excluded == excluded) {
+            return;
+        }
+
+        states.put(providerId, new ProviderState(healthy, excluded, clock.incrementAndGet(), nodeId, incarnation));
+    }
+
+    private void loop() {
+        byte[] buf = new byte[65536];
+        long nextRound = System.nanoTime();
+        while(running) {
+            try {
+                long wait = nextRound - System.nanoTime();
+                if(wait <= 0) {
+                    round();
+                    nextRound = System.nanoTime() + intervalNanos;
+                    continue;
+                }
+
+                socket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                try {
+                    socket.receive(packet);
+                }
+                catch(SocketTimeoutException e) {
+                    continue;
+                }
+                receive(packet);
+            }
+            catch(IOException e) {
+                // the socket is closed when the node stops, other failures lose only one message
+            }
+            catch(RuntimeException e) {
+                // a malformed message must not stop the gossip
+            }
+        }
+    }
+
+    private void round() throws IOException {
+        heartbeat++;
+        long now = System.nanoTime();
+        List<String> live = new ArrayList<>();
+        live.add(nodeId);
+        List<Member> peers = new ArrayList<>();
+        // dead members are kept, they come back to life only when their heartbeat advances
+        for(Member m : members.values()) {
+            if(isAlive(m, now)) {
+                live.add(m.id);
+                peers.add(m);
+            }
+        }
+        Collections.sort(live);
+        liveNodes = Collections.unmodifiableList(live);
+
+        List<InetSocketAddress> targets = new ArrayList<>();
+        if(peers.isEmpty()) {
+            targets.addAll(seeds);
+        }
+        else {
+            Collections.shuffle(peers, ThreadLocalRandom.current());
+            for(int i=0; i < Math.min(fanout, peers.size()); i++) {
+                targets.add(peers.get(i).address);
+            }
+        }
+
+        if(targets.isEmpty()) {
+            return;
+        }
+
+        for(byte[] msg : encode(peers)) {
+            for(InetSocketAddress target : targets) {
+                socket.send(new DatagramPacket(msg, msg.length, target));
+            }
+        }
+    }
+
+    /**
+     * Encodes the view of this node, the members and the load go into the first datagram and the
+     * provider states are spread over as many datagrams as needed
+     */
+    private List<byte[]> encode(List<Member> peers) throws IOException {
+        List<byte[]> datagrams = new ArrayList<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeHeader(out);
+
+        out.writeInt(peers.size() + 1);
+        writeMember(out, nodeId, address, incarnation, heartbeat);
+        for(Member m : peers) {
+            writeMember(out, m.id, m.address, m.incarnation, m.heartbeat);
+        }
+
+        Map<String, Integer> load = host.localLoad();
+        int loadCount = 0;
+        ByteArrayOutputStream loadBytes = new ByteArrayOutputStream();
+        DataOutputStream loadOut = new DataOutputStream(loadBytes);
+        for(Map.Entry<String, Integer> e : load.entrySet()) {
+            if(bytes.size() + loadBytes.size() > MAX_DATAGRAM_SIZE / 2) {
+                break;
+            }
+            loadOut.writeUTF(e.getKey());
+            loadOut.writeInt(e.getValue());
+            loadCount++;
+        }
+        out.writeInt(loadCount);
+        loadBytes.writeTo(out);
+
+        ByteArrayOutputStream stateBytes = new ByteArrayOutputStream();
+        DataOutputStream stateOut = new DataOutputStream(stateBytes);
+        int stateCount = 0;
+        for(Map.Entry<String, ProviderState> e : states.entrySet()) {
+            if(bytes.size() + stateBytes.size() > MAX_DATAGRAM_SIZE - 1024) {
+                datagrams.add(finish(bytes, out, stateBytes, stateCount));
+                bytes = new ByteArrayOutputStream();
+                out = new DataOutputStream(bytes);
+                writeHeader(out);
+                out.writeInt(0);
+                out.writeInt(0);
+                stateBytes.reset();
+                stateCount = 0;
+            }
+
+            ProviderState s = e.getValue();
+            stateOut.writeUTF(e.getKey());
+            stateOut.writeUTF(s.origin);
+            stateOut.writeLong(s.incarnation);
+            stateOut.writeLong(s.version);
+            stateOut.writeBoolean(s.healthy);
+            stateOut.writeBoolean(s.excluded);
+            stateCount++;
+        }
+        datagrams.add(finish(bytes, out, stateBytes, stateCount));
+
+        return datagrams;
+    }
+
+    private void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeUTF(nodeId);
+    }
+
+    private static void writeMember(DataOutputStream out, String id, InetSocketAddress address, long incarnation,
+            long heartbeat) throws IOException {
+        out.writeUTF(id);
+        out.writeUTF(address.getAddress().getHostAddress());
+        out.writeInt(address.getPort());
+        out.writeLong(incarnation);
+        out.writeLong(heartbeat);
+    }
+
+    private static byte[] finish(ByteArrayOutputStream bytes, DataOutputStream out, ByteArrayOutputStream states, int count) throws IOException {
+        out.writeInt(count);
+        states.writeTo(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private void receive(DatagramPacket packet) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(packet.getData(), packet.getOffset(), packet.getLength()));
+        if(in.readInt() != MAGIC) {
+            return;
+        }
+
+        String sender = in.readUTF();
+        if(sender.equals(nodeId)) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        int memberCount = in.readInt();
+        for(int i=0; i < memberCount; i++) {
+            String id = in.readUTF();
+            InetSocketAddress addr = new InetSocketAddress(in.readUTF(), in.readInt());
+            long inc = in.readLong();
+            long hb = in.readLong();
+            if(id.equals(nodeId)) {
+                continue;
+            }
+
+            // the sender is reachable at the source of the packet
+            if(id.equals(sender)) {
+                addr = (InetSocketAddress) packet.getSocketAddress();
+            }
+
+            Member m = members.get(id);
+            if(m == null) {
+                members.put(id, new Member(id, addr, inc, hb));
+            }
+            else if(m.isBehind(inc, hb)) {
+                if(inc != m.incarnation) {
+                    // restarted, the load of the previous incarnation is gone
+                    m.load = Collections.emptyMap();
+                }
+                m.incarnation = inc;
+                m.heartbeat = hb;
+                m.address = addr;
+                m.lastSeenNanos = now;
+            }
+        }
+
+        // only the first datagram of a round carries the members and the load
+        int loadCount = in.readInt();
+        Map<String, Integer> load = new HashMap<>();
+        for(int i=0; i < loadCount; i++) {
+            load.put(in.readUTF(), in.readInt());
+        }
+
+        Member senderMember = members.get(sender);
+        if(memberCount > 0 && senderMember != null) {
+            senderMember.load = load;
+        }
+
+        int stateCount = in.readInt();
+        for(int i=0; i < stateCount; i++) {
+            String providerId = in.readUTF();
+            String origin = in.readUTF();
+            long inc = in.readLong();
+            long version = in.readLong();
+            merge(providerId, new ProviderState(in.readBoolean(), in.readBoolean(), version, origin, inc));
+        }
+    }
+
+    private void merge(String providerId, ProviderState received) {
+        ProviderState current;
+        synchronized(this) {
+            // the clock moves past every version seen, even of a state that loses, so that a restarted
+            // node catches up with the versions of its previous incarnation
+            long c = clock.get();
+            while(received.version > c && !clock.compareAndSet(c, received.version)) {
+                c = clock.get();
+            }
+
+            current = states.get(providerId);
+            if(current != null && !received.isNewerThan(current)) {
+                return;
+            }
+
+            states.put(providerId, received);
+        }
+
+        boolean wasExcluded = (current != null && current.excluded);
+        if(received.excluded != wasExcluded) {
+            host.exclusionChanged(providerId, received.excluded);
+        }
+    }
+
+    private static long rendezvousHash(String node, String providerId) {
+        long h = ((long) node.hashCode() << 32) ^ (providerId.hashCode() & 0xffffffffL);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,177 @@
+package com.kayyagari;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A timer for a large number of short tasks that need to run approximately on time, e.g. health checks and
+ * their deadlines. The tasks are placed in the buckets of a wheel, one bucket per tick, and a single thread
+ * advances the wheel, so adding and cancelling a task is O(1) regardless of the number of tasks.
+ *
+ * The tasks are executed by the thread advancing the wheel and must not block, they should hand over any
+ * real work to an executor. A task is executed at the earliest one tick after its deadline.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+final class HashedWheelTimer {
+    private final long tickNanos;
+
+    private final List<Timeout>[] wheel;
+
+    private final int mask;
+
+    /** the tasks that were added but not yet placed in the wheel, only the timer thread touches the wheel */
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+
+    private final long startTime;
+
+    private final Thread thread;
+
+    private volatile boolean stopped;
+
+    /**
+     * @param name the name of the timer thread
+     * @param tickDuration the duration of a tick
+     * @param unit the unit of tickDuration
+     * @param ticksPerWheel the number of buckets, rounded up to the next power of two
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        if(tickDuration <= 0 || ticksPerWheel <= 0) {
+            throw new IllegalArgumentException("tick duration and ticks per wheel must be positive");
+        }
+
+        this.tickNanos = unit.toNanos(tickDuration);
+        int size = Integer.highestOneBit(ticksPerWheel - 1) << 1;
+        if(size == 0) {
+            size = 1;
+        }
+
+        wheel = new List[size];
+        for(int i=0; i < size; i++) {
+            wheel[i] = new ArrayList<>();
+        }
+        mask = size - 1;
+
+        startTime = System.nanoTime();
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                advance();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Schedules the given task for execution after the given delay
+     *
+     * @return the handle for cancelling the task
+     */
+    Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        if(stopped) {
+            throw new IllegalStateException("timer is stopped");
+        }
+
+        Timeout t = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(delay));
+        pending.add(t);
+        return t;
+    }
+
+    /**
+     * Stops the timer, the tasks that are still pending will never be executed
+     */
+    void stop() {
+        stopped = true;
+        thread.interrupt();
+    }
+
+    private void advance() {
+        long tick = 0;
+        while(!stopped) {
+            long sleepNanos = (tickNanos * (tick + 1)) - (System.nanoTime() - startTime);
+            if(sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                }
+                catch(InterruptedException e) {
+                    // stopped
+                    continue;
+                }
+            }
+
+            transferPending(tick);
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void transferPending(long tick) {
+        Timeout t;
+        while((t = pending.poll()) != null) {
+            if(t.cancelled) {
+                continue;
+            }
+
+            long expiresAtTick = t.deadline / tickNanos;
+            t.remainingRounds = (expiresAtTick - tick) / wheel.length;
+            // a task whose deadline has already passed goes into the current bucket
+            long ticks = Math.max(expiresAtTick, tick);
+            wheel[(int) (ticks & mask)].add(t);
+        }
+    }
+
+    private void expire(List<Timeout> bucket) {
+        Iterator<Timeout> itr = bucket.iterator();
+        while(itr.hasNext()) {
+            Timeout t = itr.next();
+            if(t.cancelled) {
+                itr.remove();
+            }
+            else if(t.remainingRounds <= 0) {
+                itr.remove();
+                try {
+                    t.task.run();
+                }
+                catch(Throwable e) {
+                    // a failing task must not stop the timer
+                }
+            }
+            else {
+                t.remainingRounds--;
+            }
+        }
+    }
+
+    /**
+     * The handle of a scheduled task
+     */
+    static final class Timeout {
+        private final Runnable task;
+
+        /** the deadline relative to the timer's start time */
+        private final long deadline;
+
+        /** the number of full rotations of the wheel to wait, only used by the timer thread */
+        private long remainingRounds;
+
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the task, it has no effect if the task was already executed
+         */
+        void cancel() {
+            cancelled = true;
+        }
+    }
+}
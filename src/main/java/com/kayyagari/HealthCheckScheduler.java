@@ -0,0 +1,295 @@
+package com.kayyagari;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the health checks of the providers on a fixed number of threads.
+ *
+ * The time of the next check of every provider is kept in a {@link HashedWheelTimer}, so hundreds of
+ * providers cost no more than a few threads. Each check
+ * <ul>
+ *   <li>has a deadline, a check that doesn't finish in time is interrupted and reported as unhealthy</li>
+ *   <li>is delayed by a random jitter of up to {@link #JITTER_FRACTION} of the interval, so that the checks
+ *       of the providers added together do not keep firing together</li>
+ *   <li>runs less often for a provider that has been healthy for {@link #SLOWDOWN_AFTER} checks in a row,
+ *       and with exponential backoff for a provider that keeps failing, both up to {@link #MAX_INTERVAL_FACTOR}
+ *       times the base interval</li>
+ * </ul>
+ * A provider gets at most one check running at any time. If a check() ignores the interrupt, its provider
+ * is reported as unhealthy on every round until that check returns, and it holds at most one thread.
+ * A restart does not blame the provider for a check started before it: the first check after the restart
+ * waits for the deadline of that check instead, and only if it is still running then it counts as stuck.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+final class HealthCheckScheduler {
+    /** the max jitter added to an interval, as a fraction of the interval */
+    static final double JITTER_FRACTION = 0.1;
+
+    /** the number of consecutive healthy checks after which the interval starts growing */
+    static final int SLOWDOWN_AFTER = 5;
+
+    /** the max interval as a multiple of the base interval */
+    static final int MAX_INTERVAL_FACTOR = 4;
+
+    private final long baseIntervalMillis;
+
+    private final long timeoutMillis;
+
+    private final HashedWheelTimer timer;
+
+    private final ExecutorService workers;
+
+    /**
+     * Receives the outcome of every check of a provider
+     */
+    interface Listener {
+        void healthChecked(boolean healthy);
+    }
+
+    /**
+     * @param baseIntervalMillis the interval between the checks of a provider
+     * @param timeoutMillis the max time a check is allowed to take
+     * @param threads the number of threads running the checks
+     */
+    HealthCheckScheduler(long baseIntervalMillis, long timeoutMillis, int threads) {
+        this.baseIntervalMillis = baseIntervalMillis;
+        this.timeoutMillis = timeoutMillis;
+        // the interval is in seconds by default, 100ms ticks give enough precision for the deadlines too
+        this.timer = new HashedWheelTimer("health-check-timer", 100, TimeUnit.MILLISECONDS, 512);
+        this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+    }
+
+    /**
+     * Starts checking the health of the given provider, the first check runs immediately
+     *
+     * @return the handle for stopping or restarting the checks
+     */
+    Registration register(Provider provider, Listener listener) {
+        Registration r = new Registration(provider, listener);
+        r.scheduleNext(0);
+        return r;
+    }
+
+    /**
+     * Returns the timer driving the checks, it can be used for scheduling other short tasks
+     * that must not block, e.g. the recovery of the circuit breakers
+     */
+    HashedWheelTimer timer() {
+        return timer;
+    }
+
+    void shutdown() {
+        timer.stop();
+        workers.shutdownNow();
+    }
+
+    /**
+     * The state of the health checks of a single provider
+     */
+    final class Registration {
+        private final Provider provider;
+        private final Listener listener;
+
+        /** guards the scheduling of checks so that cancel() and restart() do not race with a completing check */
+        private final Object lock = new Object();
+
+        private HashedWheelTimer.Timeout next;
+
+        private boolean cancelled;
+
+        /** incremented by restart(), the result of a check started before a restart is discarded */
+        private int generation;
+
+        private int successStreak;
+
+        private int failureStreak;
+
+        /** set while a check() of the provider is executing, even after its deadline has passed */
+        private final AtomicBoolean running = new AtomicBoolean();
+
+        /** the generation the executing check counts against, only accessed by the timer thread */
+        private int runningGeneration;
+
+        private Registration(Provider provider, Listener listener) {
+            this.provider = provider;
+            this.listener = listener;
+        }
+
+        /**
+         * Stops checking the provider
+         */
+        void cancel() {
+            synchronized(lock) {
+                cancelled = true;
+                if(next != null) {
+                    next.cancel();
+                }
+            }
+        }
+
+        /**
+         * Forgets the history of the provider and checks it immediately
+         */
+        void restart() {
+            synchronized(lock) {
+                if(cancelled) {
+                    return;
+                }
+
+                generation++;
+                successStreak = 0;
+                failureStreak = 0;
+                if(next != null) {
+                    next.cancel();
+                }
+                scheduleNext(0);
+            }
+        }
+
+        private void scheduleNext(long delayMillis) {
+            synchronized(lock) {
+                if(cancelled) {
+                    return;
+                }
+
+                final int gen = generation;
+                next = timer.newTimeout(new Runnable() {
+                    @Override
+                    public void run() {
+                        startCheck(gen);
+                    }
+                }, delayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Called by the timer thread, so it only hands over the check to the workers
+         */
+        private void startCheck(final int gen) {
+            if(!running.compareAndSet(false, true)) {
+                if(runningGeneration == gen) {
+                    // the previous check is stuck despite being interrupted
+                    completeCheck(gen, false);
+                }
+                else {
+                    // a check started before a restart, it gets until its deadline and then counts
+                    // as stuck in this generation
+                    runningGeneration = gen;
+                    retry(gen);
+                }
+                return;
+            }
+
+            runningGeneration = gen;
+            final AtomicBoolean completed = new AtomicBoolean();
+            final AtomicReference<HashedWheelTimer.Timeout> deadline = new AtomicReference<>();
+            final Future<?> f;
+            try {
+                f = workers.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean healthy;
+                        try {
+                            healthy = provider.check();
+                        }
+                        catch(RuntimeException e) {
+                            healthy = false;
+                        }
+                        finally {
+                            running.set(false);
+                        }
+
+                        if(completed.compareAndSet(false, true)) {
+                            cancelDeadline(deadline.get());
+                            completeCheck(gen, healthy);
+                        }
+                    }
+                });
+            }
+            catch(RejectedExecutionException e) {
+                // shutdown
+                running.set(false);
+                return;
+            }
+
+            deadline.set(timer.newTimeout(new Runnable() {
+                @Override
+                public void run() {
+                    if(completed.compareAndSet(false, true)) {
+                        f.cancel(true);
+                        completeCheck(gen, false);
+                    }
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS));
+
+            // the check may have completed before its deadline was set
+            if(completed.get()) {
+                cancelDeadline(deadline.get());
+            }
+        }
+
+        private void cancelDeadline(HashedWheelTimer.Timeout t) {
+            if(t != null) {
+                t.cancel();
+            }
+        }
+
+        /**
+         * Starts the check of the given generation again after the deadline of the running one
+         */
+        private void retry(int gen) {
+            synchronized(lock) {
+                if(gen == generation) {
+                    scheduleNext(timeoutMillis);
+                }
+            }
+        }
+
+        private void completeCheck(int gen, boolean healthy) {
+            long interval;
+            synchronized(lock) {
+                if(cancelled || gen != generation) {
+                    return;
+                }
+
+                if(healthy) {
+                    successStreak++;
+                    failureStreak = 0;
+                }
+                else {
+                    failureStreak++;
+                    successStreak = 0;
+                }
+
+                interval = nextInterval();
+            }
+
+            // the listener may take locks of its own, so it is called without holding the lock
+            listener.healthChecked(healthy);
+            scheduleNext(interval);
+        }
+
+        private long nextInterval() {
+            int factor = 1;
+            if(successStreak >= SLOWDOWN_AFTER) {
+                factor = 1 << Math.min(successStreak - SLOWDOWN_AFTER + 1, 30);
+            }
+            else if(failureStreak > 0) {
+                factor = 1 << Math.min(failureStreak - 1, 30);
+            }
+
+            long interval = baseIntervalMillis * Math.min(factor, MAX_INTERVAL_FACTOR);
+            long jitter = (long) (ThreadLocalRandom.current().nextDouble() * JITTER_FRACTION * interval);
+            return interval + jitter;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.kayyagari;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the state LoadBalancer needs for hedging requests: the budget, the recent latencies and
+ * a fine-grained timer for the hedging delays.
+ *
+ * The learned delay is computed from a histogram covering the last {@link #WINDOW_MILLIS} and
+ * recomputed at most once every {@link #REFRESH_MILLIS}, so it costs nothing on the request path.
+ * Until {@link #MIN_SAMPLES} latencies are known no request is hedged.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+final class Hedger {
+    static final long WINDOW_MILLIS = 10000;
+
+    static final long REFRESH_MILLIS = 1000;
+
+    static final int MIN_SAMPLES = 100;
+
+    private final HedgingConfig config;
+
+    private final RequestBudget budget;
+
+    private final HashedWheelTimer timer;
+
+    private volatile LatencyHistogram current = new LatencyHistogram();
+
+    private volatile LatencyHistogram previous;
+
+    private volatile long currentStartedAt = System.nanoTime();
+
+    /** the learned delay, -1 until enough samples are available */
+    private volatile long learnedDelayNanos = -1;
+
+    private final AtomicLong computedAt = new AtomicLong(System.nanoTime());
+
+    Hedger(HedgingConfig config) {
+        this.config = config;
+        this.budget = new RequestBudget(config.getBudgetRatio(), config.getMaxBurst());
+        // hedging delays are usually a few milliseconds, they need a much finer tick than the health checks
+        this.timer = new HashedWheelTimer("hedging-timer", 1, TimeUnit.MILLISECONDS, 1024);
+    }
+
+    /**
+     * Records the latency of a successful call
+     */
+    void observe(long nanos) {
+        current.record(nanos);
+    }
+
+    /**
+     * Called for every request that may be hedged, funds the budget
+     */
+    void requestSent() {
+        budget.deposit();
+    }
+
+    boolean tryAcquireHedge() {
+        return budget.tryWithdraw();
+    }
+
+    /**
+     * Returns the time to wait for the first provider before hedging, or -1 if requests
+     * must not be hedged yet
+     */
+    long delayNanos() {
+        if(config.getDelayMillis() > 0) {
+            return TimeUnit.MILLISECONDS.toNanos(config.getDelayMillis());
+        }
+
+        long now = System.nanoTime();
+        long last = computedAt.get();
+        if(now - last > TimeUnit.MILLISECONDS.toNanos(REFRESH_MILLIS) && computedAt.compareAndSet(last, now)) {
+            refresh(now);
+        }
+
+        return learnedDelayNanos;
+    }
+
+    private void refresh(long now) {
+        if(now - currentStartedAt > TimeUnit.MILLISECONDS.toNanos(WINDOW_MILLIS)) {
+            previous = current;
+            current = new LatencyHistogram();
+            currentStartedAt = now;
+        }
+
+        // the previous window is complete, prefer it over the one still filling up
+        LatencyHistogram h = previous;
+        if(h == null || h.count() < MIN_SAMPLES) {
+            h = current;
+        }
+
+        learnedDelayNanos = (h.count() < MIN_SAMPLES) ? -1 : h.percentile(config.getPercentile());
+    }
+
+    HashedWheelTimer.Timeout schedule(Runnable task, long delayNanos) {
+        return timer.newTimeout(task, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    void stop() {
+        timer.stop();
+    }
+}
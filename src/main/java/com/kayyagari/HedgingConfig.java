@@ -0,0 +1,85 @@
+package com.kayyagari;
+
+/**
+ * The settings of request hedging, see {@link LoadBalancerConfig#setHedgingConfig(HedgingConfig)}.
+ *
+ * A request whose provider hasn't answered within the hedging delay is sent once more to a different
+ * provider, and the response that arrives first is used. The delay is either fixed or learned from the
+ * latencies of the recent requests.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public class HedgingConfig {
+    private long delayMillis = 0;
+
+    private double percentile = 0.95;
+
+    private double budgetRatio = 0.1;
+
+    private int maxBurst = 10;
+
+    public long getDelayMillis() {
+        return delayMillis;
+    }
+
+    /**
+     * Sets a fixed hedging delay, zero makes the delay follow the {@link #setPercentile(double) percentile}
+     * of the recent latencies
+     */
+    public HedgingConfig setDelayMillis(long delayMillis) {
+        if(delayMillis < 0) {
+            throw new IllegalArgumentException("delay cannot be negative");
+        }
+
+        this.delayMillis = delayMillis;
+        return this;
+    }
+
+    public double getPercentile() {
+        return percentile;
+    }
+
+    /**
+     * Sets the percentile of the recent latencies used as the delay when no fixed delay is set
+     */
+    public HedgingConfig setPercentile(double percentile) {
+        if(!(percentile > 0 && percentile < 1)) {
+            throw new IllegalArgumentException("percentile must be in the range (0, 1)");
+        }
+
+        this.percentile = percentile;
+        return this;
+    }
+
+    public double getBudgetRatio() {
+        return budgetRatio;
+    }
+
+    /**
+     * Sets the max number of hedges per request, e.g. 0.1 allows one hedge for every ten requests
+     */
+    public HedgingConfig setBudgetRatio(double budgetRatio) {
+        if(!(budgetRatio > 0 && budgetRatio <= 1)) {
+            throw new IllegalArgumentException("budget ratio must be in the range (0, 1]");
+        }
+
+        this.budgetRatio = budgetRatio;
+        return this;
+    }
+
+    public int getMaxBurst() {
+        return maxBurst;
+    }
+
+    /**
+     * Sets the max number of hedges that can be sent in a burst when the budget has been accumulated
+     */
+    public HedgingConfig setMaxBurst(int maxBurst) {
+        if(maxBurst < 1) {
+            throw new IllegalArgumentException("max burst must be at least 1");
+        }
+
+        this.maxBurst = maxBurst;
+        return this;
+    }
+}
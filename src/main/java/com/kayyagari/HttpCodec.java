@@ -0,0 +1,489 @@
+package com.kayyagari;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Parses the HTTP/1.1 messages received on a connection and encodes the messages sent on it.
+ *
+ * The received bytes are appended to a buffer and a message is returned only when it is complete,
+ * bodies are either sized by Content-Length or chunked, the chunks are joined into a single body.
+ * A response without either is delimited by the end of the stream. A header that is repeated keeps
+ * all its values and is written back as one line per value. A codec instance is used by only one
+ * thread at a time.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+final class HttpCodec {
+    /** the max size of the request or status line and the headers */
+    static final int MAX_HEAD_SIZE = 64 * 1024;
+
+    /** the max size of a body */
+    static final int MAX_BODY_SIZE = 16 * 1024 * 1024;
+
+    /** the headers that apply to a single connection and are not forwarded by a proxy */
+    private static final Set<String> HOP_BY_HOP = new HashSet<>(Arrays.asList("connection", "keep-alive",
+            "proxy-connection", "proxy-authenticate", "proxy-authorization", "te", "trailer", "transfer-encoding", "upgrade"));
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private byte[] buf = new byte[8192];
+
+    /** the received bytes are in buf[start, end) */
+    private int start;
+    private int end;
+
+    // the head of the message being received, null until the whole head arrived
+    private String[] startLine;
+    private Map<String, List<String>> headers;
+    private int bodyStart;
+
+    /**
+     * Appends the bytes remaining in the given buffer
+     */
+    void append(ByteBuffer src) {
+        int n = src.remaining();
+        if(end + n > buf.length) {
+            int size = end - start;
+            if(size + n > buf.length) {
+                buf = Arrays.copyOfRange(buf, start, start + Math.max(buf.length * 2, size + n));
+            }
+            else {
+                System.arraycopy(buf, start, buf, 0, size);
+            }
+
+            if(bodyStart > 0) {
+                bodyStart -= start;
+            }
+            start = 0;
+            end = size;
+        }
+
+        src.get(buf, end, n);
+        end += n;
+    }
+
+    /**
+     * Returns true if no bytes of the next message were received yet
+     */
+    boolean isEmpty() {
+        return start == end;
+    }
+
+    /**
+     * Returns the number of received bytes that were not consumed yet
+     */
+    int size() {
+        return end - start;
+    }
+
+    /**
+     * Returns true if the head of the next request arrived and it expects a 100 (Continue) response,
+     * called after {@link #nextRequest()} returned null, i.e. its body is not complete
+     */
+    boolean expectsContinue() throws IOException {
+        return readHead() && "100-continue".equalsIgnoreCase(join(headers, "expect"));
+    }
+
+    /**
+     * Returns the next request or null if it is not complete yet
+     *
+     * @throws IOException if the request is malformed or too large
+     */
+    HttpRequest nextRequest() throws IOException {
+        if(!readHead()) {
+            return null;
+        }
+
+        byte[] body = readBody(true);
+        if(body == null) {
+            return null;
+        }
+
+        HttpRequest req = new HttpRequest(startLine[0], startLine[1], startLine[2], headers, body);
+        resetHead();
+        return req;
+    }
+
+    /**
+     * Returns the next final response or null if it is not complete yet, interim 1xx responses are skipped
+     *
+     * @param head true if the response is for a HEAD request and hence has no body
+     * @throws IOException if the response is malformed or too large
+     */
+    HttpResponse nextResponse(boolean head) throws IOException {
+        while(readHead()) {
+            int status = status();
+            if(status >= 100 && status < 200) {
+                resetHead();
+                continue;
+            }
+
+            byte[] body = (head || status == 204 || status == 304) ? new byte[0] : readBody(false);
+            if(body == null) {
+                return null;
+            }
+
+            HttpResponse resp = newResponse(body);
+            resetHead();
+            return resp;
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the response that is delimited by the end of the stream, or null if the stream ended
+     * before a response was complete
+     */
+    HttpResponse endOfStream() throws IOException {
+        if(!readHead() || headers.containsKey("content-length") || isChunked()) {
+            return null;
+        }
+
+        HttpResponse resp = newResponse(Arrays.copyOfRange(buf, bodyStart, end));
+        start = end;
+        resetHead();
+        return resp;
+    }
+
+    /**
+     * Returns true if the connection the given message was received on stays open after it
+     */
+    static boolean isKeepAlive(String version, Map<String, List<String>> headers) {
+        String connection = join(headers, "connection");
+        if(connection != null && connection.toLowerCase(Locale.ROOT).contains("close")) {
+            return false;
+        }
+
+        if("HTTP/1.0".equals(version)) {
+            return connection != null && connection.toLowerCase(Locale.ROOT).contains("keep-alive");
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns a copy of the given headers without the hop-by-hop headers and the headers
+     * that frame the body, which are set again when the message is encoded
+     */
+    static Map<String, List<String>> endToEnd(Map<String, List<String>> headers) {
+        Map<String, List<String>> tmp = new LinkedHashMap<>(headers);
+        String connection = join(headers, "connection");
+        if(connection != null) {
+            for(String name : connection.split(",")) {
+                tmp.remove(name.trim().toLowerCase(Locale.ROOT));
+            }
+        }
+        tmp.keySet().removeAll(HOP_BY_HOP);
+        tmp.remove("content-length");
+        return tmp;
+    }
+
+    static ByteBuffer encode(HttpRequest req) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256 + req.getBody().length);
+        writeLine(out, req.getMethod() + " " + req.getTarget() + " HTTP/1.1");
+        for(Map.Entry<String, List<String>> e : req.getHeaders().entrySet()) {
+            if(!"content-length".equals(e.getKey()) && !"transfer-encoding".equals(e.getKey())) {
+                writeHeader(out, e.getKey(), e.getValue());
+            }
+        }
+
+        if(req.getBody().length > 0 || req.getHeaders().containsKey("content-length")) {
+            writeLine(out, "content-length: " + req.getBody().length);
+        }
+        out.write(CRLF, 0, CRLF.length);
+        out.write(req.getBody(), 0, req.getBody().length);
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    /**
+     * Encodes the given response
+     *
+     * @param resp the response
+     * @param head true if the response is for a HEAD request, its Content-Length is then sent as is
+     */
+    static ByteBuffer encode(HttpResponse resp, boolean head) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256 + resp.getBody().length);
+        writeLine(out, "HTTP/1.1 " + resp.getStatus() + " " + resp.getReason());
+        for(Map.Entry<String, List<String>> e : resp.getHeaders().entrySet()) {
+            if(!"transfer-encoding".equals(e.getKey()) && (head || !"content-length".equals(e.getKey()))) {
+                writeHeader(out, e.getKey(), e.getValue());
+            }
+        }
+
+        int status = resp.getStatus();
+        if(!head && status != 204 && status != 304 && status >= 200) {
+            writeLine(out, "content-length: " + resp.getBody().length);
+        }
+        out.write(CRLF, 0, CRLF.length);
+        if(!head) {
+            out.write(resp.getBody(), 0, resp.getBody().length);
+        }
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    /**
+     * Writes a line for each value of the given header
+     */
+    private static void writeHeader(ByteArrayOutputStream out, String name, List<String> values) {
+        for(String v : values) {
+            writeLine(out, name + ": " + v);
+        }
+    }
+
+    /**
+     * Returns the values of the given header joined with a comma, or null if it is not present
+     *
+     * @param name the lower case name of the header
+     */
+    static String join(Map<String, List<String>> headers, String name) {
+        List<String> values = headers.get(name);
+        if(values == null || values.isEmpty()) {
+            return null;
+        }
+
+        return (values.size() == 1) ? values.get(0) : String.join(", ", values);
+    }
+
+    /**
+     * Returns the given single valued headers as multi-valued ones
+     *
+     * @param headers the headers, can be null
+     */
+    static Map<String, List<String>> multiValued(Map<String, String> headers) {
+        Map<String, List<String>> tmp = new LinkedHashMap<>();
+        if(headers != null) {
+            for(Map.Entry<String, String> e : headers.entrySet()) {
+                tmp.put(e.getKey(), Collections.singletonList(e.getValue()));
+            }
+        }
+        return tmp;
+    }
+
+    /**
+     * Returns an unmodifiable copy of the given headers with lower case names, the values of
+     * the names that differ only in case are merged
+     *
+     * @param headers the headers, can be null
+     */
+    static Map<String, List<String>> copyOf(Map<String, List<String>> headers) {
+        Map<String, List<String>> tmp = new LinkedHashMap<>();
+        if(headers != null) {
+            for(Map.Entry<String, List<String>> e : headers.entrySet()) {
+                String name = e.getKey().toLowerCase(Locale.ROOT);
+                List<String> values = tmp.get(name);
+                if(values == null) {
+                    values = new ArrayList<>(e.getValue().size());
+                    tmp.put(name, values);
+                }
+                values.addAll(e.getValue());
+            }
+        }
+
+        for(Map.Entry<String, List<String>> e : tmp.entrySet()) {
+            e.setValue(Collections.unmodifiableList(e.getValue()));
+        }
+        return Collections.unmodifiableMap(tmp);
+    }
+
+    private static void writeLine(ByteArrayOutputStream out, String line) {
+        byte[] b = line.getBytes(StandardCharsets.ISO_8859_1);
+        out.write(b, 0, b.length);
+        out.write(CRLF, 0, CRLF.length);
+    }
+
+    /**
+     * Parses the head of the next message if it arrived
+     *
+     * @return true if the head is available
+     */
+    private boolean readHead() throws IOException {
+        if(startLine != null) {
+            return true;
+        }
+
+        // tolerate the empty lines sent between the messages
+        while(end - start >= 2 && buf[start] == '\r' && buf[start + 1] == '\n') {
+            start += 2;
+        }
+
+        int headEnd = indexOf(start, end, true);
+        if(headEnd < 0) {
+            if(end - start > MAX_HEAD_SIZE) {
+                throw new IOException("message head exceeds " + MAX_HEAD_SIZE + " bytes");
+            }
+            return false;
+        }
+
+        String[] lines = new String(buf, start, headEnd - start, StandardCharsets.ISO_8859_1).split("\r\n");
+        String[] first = lines[0].split(" ", 3);
+        if(first.length < 2) {
+            throw new IOException("malformed start line: " + lines[0]);
+        }
+
+        Map<String, List<String>> tmp = new LinkedHashMap<>();
+        for(int i=1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if(colon <= 0) {
+                throw new IOException("malformed header: " + lines[i]);
+            }
+
+            String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = lines[i].substring(colon + 1).trim();
+            List<String> values = tmp.get(name);
+            if(values == null) {
+                values = new ArrayList<>(1);
+                tmp.put(name, values);
+            }
+            values.add(value);
+        }
+
+        startLine = (first.length == 3) ? first : new String[] {first[0], first[1], ""};
+        headers = tmp;
+        bodyStart = headEnd + 4;
+        return true;
+    }
+
+    /**
+     * Reads the body of the message whose head was read
+     *
+     * @param request true for a request, whose body is empty when it has neither
+     *                Content-Length nor chunked encoding
+     * @return the body or null if it is not complete, or if a response is delimited by the end of stream
+     */
+    private byte[] readBody(boolean request) throws IOException {
+        if(isChunked()) {
+            return readChunks();
+        }
+
+        String length = join(headers, "content-length");
+        if(length == null) {
+            if(request) {
+                start = bodyStart;
+                return new byte[0];
+            }
+            return null;
+        }
+
+        long size;
+        try {
+            size = Long.parseLong(length.trim());
+        }
+        catch(NumberFormatException e) {
+            throw new IOException("invalid content-length " + length);
+        }
+
+        if(size < 0 || size > MAX_BODY_SIZE) {
+            throw new IOException("invalid content-length " + length);
+        }
+
+        if(end - bodyStart < size) {
+            return null;
+        }
+
+        byte[] body = Arrays.copyOfRange(buf, bodyStart, bodyStart + (int) size);
+        start = bodyStart + (int) size;
+        return body;
+    }
+
+    private byte[] readChunks() throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int pos = bodyStart;
+        while(true) {
+            int lineEnd = indexOf(pos, end, false);
+            if(lineEnd < 0) {
+                return null;
+            }
+
+            String line = new String(buf, pos, lineEnd - pos, StandardCharsets.ISO_8859_1);
+            int semicolon = line.indexOf(';');
+            int size;
+            try {
+                size = Integer.parseInt(((semicolon < 0) ? line : line.substring(0, semicolon)).trim(), 16);
+            }
+            catch(NumberFormatException e) {
+                throw new IOException("invalid chunk size " + line);
+            }
+
+            if(size < 0 || body.size() + size > MAX_BODY_SIZE) {
+                throw new IOException("body exceeds " + MAX_BODY_SIZE + " bytes");
+            }
+
+            pos = lineEnd + 2;
+            if(size == 0) {
+                // skip the trailers up to the empty line
+                while(true) {
+                    int trailerEnd = indexOf(pos, end, false);
+                    if(trailerEnd < 0) {
+                        return null;
+                    }
+
+                    boolean empty = (trailerEnd == pos);
+                    pos = trailerEnd + 2;
+                    if(empty) {
+                        start = pos;
+                        return body.toByteArray();
+                    }
+                }
+            }
+
+            if(end - pos < size + 2) {
+                return null;
+            }
+
+            body.write(buf, pos, size);
+            pos += size + 2;
+        }
+    }
+
+    private boolean isChunked() {
+        String te = join(headers, "transfer-encoding");
+        return te != null && te.toLowerCase(Locale.ROOT).contains("chunked");
+    }
+
+    private int status() throws IOException {
+        try {
+            return Integer.parseInt(startLine[1]);
+        }
+        catch(NumberFormatException e) {
+            throw new IOException("invalid status " + startLine[1]);
+        }
+    }
+
+    private HttpResponse newResponse(byte[] body) throws IOException {
+        return new HttpResponse(status(), startLine[2], startLine[0], headers, body);
+    }
+
+    private void resetHead() {
+        startLine = null;
+        headers = null;
+        bodyStart = 0;
+    }
+
+    /**
+     * Returns the position of the first CRLF, or of the first CRLFCRLF if head is true,
+     * in buf[from, to) or -1 if there is none
+     */
+    private int indexOf(int from, int to, boolean head) {
+        int n = head ? 4 : 2;
+        for(int i=from; i <= to - n; i++) {
+            if(buf[i] == '\r' && buf[i + 1] == '\n' && (!head || (buf[i + 2] == '\r' && buf[i + 3] == '\n'))) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+}
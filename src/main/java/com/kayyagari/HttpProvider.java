@@ -0,0 +1,537 @@
+package com.kayyagari;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A provider that is a remote HTTP/1.1 server, the backend.
+ *
+ * The requests are sent over a pool of persistent connections, a connection is reused as long as the
+ * backend keeps it open and at most maxConnections are open at a time, further requests wait for a
+ * connection to become free. All the connections are served by a single non-blocking I/O thread.
+ * A request sent on a reused connection that the backend has closed in the meantime is sent again
+ * on a new connection, if its method is idempotent or it was not completely written.
+ *
+ * A request whose response doesn't arrive within the response timeout, counted from the time it got
+ * a connection, fails with a SocketTimeoutException and its connection is closed. So is the connection
+ * of a request whose future is cancelled.
+ *
+ * {@link #check()} sends a GET request to the health path on a connection of its own, so it doesn't
+ * wait for the pool, the backend is healthy if it responds with a 2xx status within
+ * {@link #HEALTH_CHECK_TIMEOUT_MILLIS}.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public class HttpProvider implements AsyncProvider {
+    /** the time a health check waits for the response */
+    public static final long HEALTH_CHECK_TIMEOUT_MILLIS = 2000;
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 16;
+
+    public static final long DEFAULT_RESPONSE_TIMEOUT_MILLIS = 30000;
+
+    /** the methods whose requests can be sent again, see RFC 7231 section 4.2.2 */
+    private static final Set<String> IDEMPOTENT_METHODS = new HashSet<>(Arrays.asList("GET", "HEAD", "OPTIONS",
+            "TRACE", "PUT", "DELETE"));
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private final String id;
+
+    private final InetSocketAddress address;
+
+    private final String healthPath;
+
+    private final int maxConnections;
+
+    private final long responseTimeoutMillis;
+
+    private final NioEventLoop loop;
+
+    // the pool, accessed only on the loop's thread
+    private final ArrayDeque<Connection> idle = new ArrayDeque<>();
+    private final List<Connection> open = new ArrayList<>();
+    private final ArrayDeque<Exchange> waiting = new ArrayDeque<>();
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    private volatile boolean closed;
+
+    /**
+     * Same as {@link #HttpProvider(String, InetSocketAddress, String, int)} with the health path /health
+     * and {@link #DEFAULT_MAX_CONNECTIONS}
+     */
+    public HttpProvider(String id, InetSocketAddress address) throws IOException {
+        this(id, address, "/health", DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * Same as {@link #HttpProvider(String, InetSocketAddress, String, int, long)} with
+     * {@link #DEFAULT_RESPONSE_TIMEOUT_MILLIS}
+     */
+    public HttpProvider(String id, InetSocketAddress address, String healthPath, int maxConnections) throws IOException {
+        this(id, address, healthPath, maxConnections, DEFAULT_RESPONSE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param id the ID of the provider
+     * @param address the address of the backend
+     * @param healthPath the path requested by the health checks
+     * @param maxConnections the max number of connections opened to the backend
+     * @param responseTimeoutMillis the max time a request waits for its response once it got a connection
+     * @throws IOException if the I/O thread cannot be started
+     */
+    public HttpProvider(String id, InetSocketAddress address, String healthPath, int maxConnections,
+            long responseTimeoutMillis) throws IOException {
+        if(maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be at least 1");
+        }
+
+        if(responseTimeoutMillis < 1) {
+            throw new IllegalArgumentException("responseTimeoutMillis must be at least 1");
+        }
+
+        this.id = id;
+        this.address = address;
+        this.healthPath = healthPath;
+        this.maxConnections = maxConnections;
+        this.responseTimeoutMillis = responseTimeoutMillis;
+        this.loop = new NioEventLoop("http-provider-" + id);
+    }
+
+    /**
+     * Sends the given request to the backend
+     *
+     * @return the future holding the backend's response, it fails with an IOException if the
+     *         connection fails or the response is malformed
+     */
+    public CompletableFuture<HttpResponse> send(HttpRequest req) {
+        return send(new Exchange(req, responseTimeoutMillis, false));
+    }
+
+    private CompletableFuture<HttpResponse> send(final Exchange ex) {
+        if(closed) {
+            ex.result.completeExceptionally(new IOException("provider " + id + " is closed"));
+            return ex.result;
+        }
+
+        ex.result.whenComplete((resp, e) -> {
+            if(ex.result.isCancelled()) {
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        abandoned(ex);
+                    }
+                });
+            }
+        });
+
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                dispatch(ex);
+            }
+        });
+        return ex.result;
+    }
+
+    /**
+     * Sends a GET request for / and returns the body of a 2xx response
+     */
+    @Override
+    public CompletableFuture<String> getAsync() {
+        return send(new HttpRequest("GET", "/", hostHeader(), null)).thenApply(resp -> {
+            if(resp.getStatus() / 100 != 2) {
+                throw new IllegalStateException("backend " + address + " responded with " + resp.getStatus());
+            }
+            return resp.getBodyAsString();
+        });
+    }
+
+    @Override
+    public boolean check() {
+        Map<String, String> headers = hostHeader();
+        headers.put("connection", "close");
+        CompletableFuture<HttpResponse> probe = send(new Exchange(new HttpRequest("GET", healthPath, headers, null),
+                HEALTH_CHECK_TIMEOUT_MILLIS, true));
+        try {
+            HttpResponse resp = probe.get(HEALTH_CHECK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            return resp.getStatus() / 100 == 2;
+        }
+        catch(Exception e) {
+            // closes the probe's connection
+            probe.cancel(true);
+            return false;
+        }
+    }
+
+    @Override
+    public String id() {
+        return id;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Closes the connections and stops the I/O thread, the pending requests fail
+     */
+    public void close() {
+        closed = true;
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                IOException e = new IOException("provider " + id + " is closed");
+                Exchange ex;
+                while((ex = waiting.poll()) != null) {
+                    ex.result.completeExceptionally(e);
+                }
+            }
+        });
+        loop.stop();
+    }
+
+    /**
+     * Returns the number of open connections, for tests
+     */
+    int openConnections() throws Exception {
+        final CompletableFuture<Integer> count = new CompletableFuture<>();
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                count.complete(open.size());
+            }
+        });
+        return count.get(1, TimeUnit.SECONDS);
+    }
+
+    private Map<String, String> hostHeader() {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("host", address.getHostString() + ":" + address.getPort());
+        return headers;
+    }
+
+    private void dispatch(Exchange ex) {
+        if(ex.result.isDone()) {
+            return;
+        }
+
+        if(ex.dedicated) {
+            connect(ex);
+            return;
+        }
+
+        Connection c = idle.pollFirst();
+        if(c != null) {
+            c.start(ex);
+            return;
+        }
+
+        if(open.size() < maxConnections) {
+            connect(ex);
+            return;
+        }
+
+        waiting.add(ex);
+    }
+
+    private void connect(Exchange ex) {
+        SocketChannel ch;
+        try {
+            ch = SocketChannel.open();
+        }
+        catch(IOException e) {
+            ex.result.completeExceptionally(e);
+            return;
+        }
+
+        Connection c = new Connection(ch, ex.dedicated);
+        if(!c.dedicated) {
+            open.add(c);
+        }
+        c.assign(ex);
+        try {
+            ch.configureBlocking(false);
+            ch.socket().setTcpNoDelay(true);
+            int ops = ch.connect(address) ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT;
+            c.key = loop.register(ch, ops, c);
+        }
+        catch(IOException e) {
+            c.failed(e);
+        }
+    }
+
+    /**
+     * Hands the given free connection to the next waiting request or parks it in the pool
+     */
+    private void released(Connection c) {
+        Exchange ex;
+        while((ex = waiting.poll()) != null) {
+            if(!ex.result.isDone()) {
+                c.start(ex);
+                return;
+            }
+        }
+
+        c.exchange = null;
+        idle.addFirst(c);
+    }
+
+    /**
+     * Closes the connection of an exchange whose future was cancelled, the state of the connection is unknown
+     */
+    private void abandoned(Exchange ex) {
+        if(ex.connection != null && ex.connection.exchange == ex) {
+            ex.connection.exchange = null;
+            ex.connection.close();
+        }
+        else {
+            waiting.remove(ex);
+        }
+    }
+
+    /**
+     * Removes the given connection from the pool, a waiting request may now open a new connection
+     */
+    private void removed(Connection c) {
+        open.remove(c);
+        idle.remove(c);
+        Exchange ex;
+        while((ex = waiting.poll()) != null) {
+            if(!ex.result.isDone()) {
+                dispatch(ex);
+                return;
+            }
+        }
+    }
+
+    private static void closeQuietly(SocketChannel ch) {
+        try {
+            ch.close();
+        }
+        catch(IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * A request and its response
+     */
+    private static final class Exchange {
+        private final HttpRequest request;
+        private final boolean head;
+        private final CompletableFuture<HttpResponse> result = new CompletableFuture<>();
+        private final long timeoutMillis;
+
+        /** true if the exchange gets a connection of its own that is closed after it, e.g. a health check */
+        private final boolean dedicated;
+
+        /** true after the request was sent again because a reused connection was closed */
+        private boolean resent;
+
+        // the connection serving the exchange and its timeout, accessed only on the loop's thread
+        private Connection connection;
+        private NioEventLoop.Timeout timeout;
+
+        private Exchange(HttpRequest request, long timeoutMillis, boolean dedicated) {
+            this.request = request;
+            this.head = "HEAD".equals(request.getMethod());
+            this.timeoutMillis = timeoutMillis;
+            this.dedicated = dedicated;
+        }
+
+        /**
+         * Returns true if the request can be sent again after its connection failed
+         *
+         * @param written true if the request was completely written to the failed connection
+         */
+        private boolean isRetriable(boolean written) {
+            return !resent && (!written || IDEMPOTENT_METHODS.contains(request.getMethod()));
+        }
+
+        private void cancelTimeout() {
+            if(timeout != null) {
+                timeout.cancel();
+                timeout = null;
+            }
+        }
+    }
+
+    /**
+     * A connection to the backend serving one exchange at a time
+     */
+    private final class Connection implements NioEventLoop.Handler {
+        private final SocketChannel ch;
+        private SelectionKey key;
+        private final HttpCodec codec = new HttpCodec();
+        private Exchange exchange;
+        private ByteBuffer out;
+
+        /** true once the request of the current exchange was completely written */
+        private boolean written;
+
+        /** true once the connection served a response, the backend may then close it any time */
+        private boolean reused;
+
+        /** true if the connection is not pooled and serves only one exchange */
+        private final boolean dedicated;
+
+        private Connection(SocketChannel ch, boolean dedicated) {
+            this.ch = ch;
+            this.dedicated = dedicated;
+        }
+
+        private void start(Exchange ex) {
+            assign(ex);
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        /**
+         * Makes the given exchange the current one and starts its response timeout
+         */
+        private void assign(final Exchange ex) {
+            exchange = ex;
+            out = null;
+            written = false;
+            ex.connection = this;
+            ex.timeout = loop.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if(exchange == ex) {
+                        exchange = null;
+                        ex.timeout = null;
+                        close();
+                        ex.result.completeExceptionally(new SocketTimeoutException("no response from " + address
+                                + " within " + ex.timeoutMillis + "ms"));
+                    }
+                }
+            }, ex.timeoutMillis);
+        }
+
+        @Override
+        public void ready(SelectionKey key) throws IOException {
+            if(key.isConnectable()) {
+                ch.finishConnect();
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+
+            if(key.isWritable()) {
+                if(out == null) {
+                    out = HttpCodec.encode(exchange.request);
+                }
+
+                ch.write(out);
+                if(!out.hasRemaining()) {
+                    out = null;
+                    written = true;
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+                return;
+            }
+
+            if(key.isReadable()) {
+                read();
+            }
+        }
+
+        @Override
+        public void failed(Exception e) {
+            Exchange ex = exchange;
+            exchange = null;
+            close();
+            if(ex == null) {
+                return;
+            }
+
+            ex.cancelTimeout();
+            // the backend closed a reused connection before responding, the request can be sent again unless
+            // the backend may have processed a request that must not be repeated
+            if(reused && codec.isEmpty() && !closed && ex.isRetriable(written)) {
+                ex.resent = true;
+                dispatch(ex);
+                return;
+            }
+
+            ex.result.completeExceptionally(e);
+        }
+
+        private void read() throws IOException {
+            readBuffer.clear();
+            int n = ch.read(readBuffer);
+            if(n < 0) {
+                endOfStream();
+                return;
+            }
+
+            if(exchange == null) {
+                // an idle connection is not supposed to receive anything
+                close();
+                return;
+            }
+
+            readBuffer.flip();
+            codec.append(readBuffer);
+            HttpResponse resp = codec.nextResponse(exchange.head);
+            if(resp == null) {
+                return;
+            }
+
+            Exchange ex = exchange;
+            ex.cancelTimeout();
+            reused = true;
+            if(!dedicated && HttpCodec.isKeepAlive(resp.getVersion(), resp.getHeaders()) && codec.isEmpty()) {
+                released(this);
+            }
+            else {
+                exchange = null;
+                close();
+            }
+            ex.result.complete(resp);
+        }
+
+        private void endOfStream() throws IOException {
+            HttpResponse resp = (exchange == null) ? null : codec.endOfStream();
+            if(resp == null) {
+                failed(new IOException("connection to " + address + " closed before the response was complete"));
+                return;
+            }
+
+            Exchange ex = exchange;
+            ex.cancelTimeout();
+            exchange = null;
+            close();
+            ex.result.complete(resp);
+        }
+
+        private void close() {
+            closeQuietly(ch);
+            if(key != null) {
+                key.cancel();
+            }
+            if(!dedicated) {
+                removed(this);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HttpProvider [" + id + ", " + address + "]";
+    }
+}
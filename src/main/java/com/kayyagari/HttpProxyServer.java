@@ -0,0 +1,383 @@
+package com.kayyagari;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * An HTTP/1.1 reverse proxy in front of a LoadBalancer whose providers are {@link HttpProvider}s.
+ *
+ * The client connections are served by a single non-blocking I/O thread. Every request is sent through
+ * {@link LoadBalancer#execute(String, java.util.function.Function)}, so the active strategy selects
+ * the backend and the capacity limits, circuit breakers and metrics apply to it as to any other request.
+ * A connection serves its requests one at a time and is kept open unless the client asks to close it.
+ * While a request is served the connection stops reading once it buffered {@link #MAX_BUFFERED_SIZE} bytes
+ * of the next ones, until the response was written. A client closing its connection cancels the
+ * request being served.
+ *
+ * The proxy responds with
+ * <ul>
+ *   <li>503 (Service Unavailable) when the LoadBalancer rejects the request</li>
+ *   <li>502 (Bad Gateway) when the backend fails or the selected provider is not an HttpProvider</li>
+ *   <li>400 (Bad Request) when the request is malformed, the connection is then closed</li>
+ * </ul>
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public class HttpProxyServer {
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    /** the max number of bytes of the next requests read while a request is served */
+    static final int MAX_BUFFERED_SIZE = HttpCodec.MAX_HEAD_SIZE;
+
+    private final LoadBalancer lb;
+
+    private final InetSocketAddress bindAddress;
+
+    private final String keyHeader;
+
+    private NioEventLoop loop;
+
+    private ServerSocketChannel server;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    /**
+     * Same as {@link #HttpProxyServer(LoadBalancer, InetSocketAddress, String)} without a key header
+     */
+    public HttpProxyServer(LoadBalancer lb, InetSocketAddress bindAddress) {
+        this(lb, bindAddress, null);
+    }
+
+    /**
+     * @param lb the LoadBalancer the requests are routed through
+     * @param bindAddress the address to listen on, the port can be 0
+     * @param keyHeader the header whose value is the key of the request, see {@link LoadBalancer#get(String)},
+     *                  can be null
+     */
+    public HttpProxyServer(LoadBalancer lb, InetSocketAddress bindAddress, String keyHeader) {
+        this.lb = lb;
+        this.bindAddress = bindAddress;
+        this.keyHeader = keyHeader;
+    }
+
+    /**
+     * Starts listening for connections
+     */
+    public synchronized void start() throws IOException {
+        if(loop != null) {
+            throw new IllegalStateException("already started");
+        }
+
+        server = ServerSocketChannel.open();
+        server.bind(bindAddress);
+        server.configureBlocking(false);
+        loop = new NioEventLoop("http-proxy-" + bindAddress.getPort());
+        final CompletableFuture<Void> registered = new CompletableFuture<>();
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loop.register(server, SelectionKey.OP_ACCEPT, new Acceptor());
+                    registered.complete(null);
+                }
+                catch(IOException e) {
+                    registered.completeExceptionally(e);
+                }
+            }
+        });
+
+        try {
+            registered.join();
+        }
+        catch(CompletionException e) {
+            stop();
+            throw (IOException) e.getCause();
+        }
+    }
+
+    /**
+     * Returns the address the proxy is listening on
+     */
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    /**
+     * Closes the listening socket and all the client connections
+     */
+    public synchronized void stop() {
+        if(loop != null) {
+            loop.stop();
+        }
+    }
+
+    private static void closeQuietly(Channel ch) {
+        try {
+            ch.close();
+        }
+        catch(IOException e) {
+            // ignore
+        }
+    }
+
+    private final class Acceptor implements NioEventLoop.Handler {
+        @Override
+        public void ready(SelectionKey key) throws IOException {
+            SocketChannel ch;
+            while((ch = server.accept()) != null) {
+                try {
+                    ch.configureBlocking(false);
+                    ch.socket().setTcpNoDelay(true);
+                    ClientConnection c = new ClientConnection(ch);
+                    c.key = loop.register(ch, SelectionKey.OP_READ, c);
+                }
+                catch(IOException e) {
+                    closeQuietly(ch);
+                }
+            }
+        }
+
+        @Override
+        public void failed(Exception e) {
+            closeQuietly(server);
+        }
+    }
+
+    /**
+     * A client connection, it parses the next request only after the response to the previous one was written.
+     * It keeps reading while a request is served to notice the client closing the connection, but stops
+     * once {@link #MAX_BUFFERED_SIZE} bytes are buffered.
+     */
+    private final class ClientConnection implements NioEventLoop.Handler {
+        private final SocketChannel ch;
+        private SelectionKey key;
+        private final HttpCodec codec = new HttpCodec();
+        private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+
+        /** true while a request is being served */
+        private boolean busy;
+
+        /** the response to the request being served */
+        private CompletableFuture<HttpResponse> pending;
+
+        private boolean continueSent;
+
+        /** true if the connection is closed after the pending output is written */
+        private boolean closing;
+
+        private final String remoteAddress;
+
+        private ClientConnection(SocketChannel ch) throws IOException {
+            this.ch = ch;
+            this.remoteAddress = ((InetSocketAddress) ch.getRemoteAddress()).getAddress().getHostAddress();
+        }
+
+        @Override
+        public void ready(SelectionKey key) throws IOException {
+            if(key.isReadable()) {
+                readBuffer.clear();
+                int n = ch.read(readBuffer);
+                if(n < 0) {
+                    close();
+                    return;
+                }
+
+                readBuffer.flip();
+                codec.append(readBuffer);
+                nextRequest();
+            }
+
+            if(key.isValid() && key.isWritable()) {
+                flush();
+            }
+            updateInterest();
+        }
+
+        /**
+         * Serves the next request unless one is being served or the previous response is not written yet
+         */
+        private void nextRequest() {
+            if(busy || closing || !out.isEmpty() || !ch.isOpen()) {
+                return;
+            }
+
+            HttpRequest req;
+            try {
+                req = codec.nextRequest();
+                if(req == null && !continueSent && codec.expectsContinue()) {
+                    continueSent = true;
+                    write(ByteBuffer.wrap(CONTINUE));
+                }
+            }
+            catch(IOException e) {
+                closing = true;
+                respond(error(400, "Bad Request", e.getMessage()), false);
+                return;
+            }
+
+            if(req == null) {
+                return;
+            }
+
+            busy = true;
+            continueSent = false;
+            final boolean keepAlive = HttpCodec.isKeepAlive(req.getVersion(), req.getHeaders());
+            final boolean head = "HEAD".equals(req.getMethod());
+            CompletableFuture<HttpResponse> response;
+            try {
+                response = forward(req);
+            }
+            catch(RuntimeException e) {
+                response = new CompletableFuture<>();
+                response.completeExceptionally(e);
+            }
+
+            pending = response;
+            response.whenComplete((resp, e) -> {
+                final HttpResponse r = (e == null) ? resp : failure(e);
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(!keepAlive) {
+                            closing = true;
+                        }
+                        respond(r, head);
+                    }
+                });
+            });
+        }
+
+        private CompletableFuture<HttpResponse> forward(HttpRequest req) {
+            Map<String, List<String>> headers = HttpCodec.endToEnd(req.getHeaders());
+            headers.remove("expect");
+            String forwardedFor = HttpCodec.join(headers, "x-forwarded-for");
+            headers.put("x-forwarded-for", Collections.singletonList((forwardedFor == null) ? remoteAddress
+                    : forwardedFor + ", " + remoteAddress));
+            final HttpRequest forwarded = new HttpRequest(req.getMethod(), req.getTarget(), "HTTP/1.1", headers, req.getBody());
+
+            String key = (keyHeader == null) ? null : req.getHeader(keyHeader);
+            return lb.execute(key, p -> {
+                if(!(p instanceof HttpProvider)) {
+                    throw new IllegalStateException("provider " + p.id() + " is not an HttpProvider");
+                }
+                return ((HttpProvider)p).send(forwarded);
+            });
+        }
+
+        private HttpResponse failure(Throwable e) {
+            while(e instanceof CompletionException && e.getCause() != null) {
+                e = e.getCause();
+            }
+
+            if(e instanceof CapacityExceededException) {
+                return error(503, "Service Unavailable", e.getMessage());
+            }
+
+            return error(502, "Bad Gateway", e.getMessage());
+        }
+
+        private HttpResponse error(int status, String reason, String message) {
+            byte[] body = ((message == null) ? reason : message).getBytes(StandardCharsets.UTF_8);
+            return new HttpResponse(status, reason, Collections.singletonMap("content-type", "text/plain; charset=utf-8"), body);
+        }
+
+        private void respond(HttpResponse resp, boolean head) {
+            if(!ch.isOpen()) {
+                return;
+            }
+
+            Map<String, List<String>> headers = HttpCodec.endToEnd(resp.getHeaders());
+            if(closing) {
+                headers.put("connection", Collections.singletonList("close"));
+            }
+            if(head && resp.getHeader("content-length") != null) {
+                headers.put("content-length", resp.getHeaderValues("content-length"));
+            }
+
+            busy = false;
+            pending = null;
+            // the next request is served once the response was written
+            write(HttpCodec.encode(new HttpResponse(resp.getStatus(), resp.getReason(), "HTTP/1.1", headers, resp.getBody()), head));
+        }
+
+        private void write(ByteBuffer buf) {
+            if(!ch.isOpen()) {
+                return;
+            }
+
+            out.add(buf);
+            try {
+                flush();
+            }
+            catch(IOException e) {
+                close();
+            }
+        }
+
+        private void flush() throws IOException {
+            ByteBuffer buf;
+            while((buf = out.peek()) != null) {
+                ch.write(buf);
+                if(buf.hasRemaining()) {
+                    break;
+                }
+                out.poll();
+            }
+
+            if(out.isEmpty()) {
+                if(closing) {
+                    close();
+                    return;
+                }
+                nextRequest();
+            }
+            updateInterest();
+        }
+
+        /**
+         * Writes while there is pending output and reads unless a request is being served, or its response
+         * written, and the bytes of the next requests reached the limit
+         */
+        private void updateInterest() {
+            if(!key.isValid()) {
+                return;
+            }
+
+            int ops = out.isEmpty() ? 0 : SelectionKey.OP_WRITE;
+            boolean waiting = busy || !out.isEmpty();
+            if(!waiting || codec.size() < MAX_BUFFERED_SIZE) {
+                ops |= SelectionKey.OP_READ;
+            }
+            key.interestOps(ops);
+        }
+
+        @Override
+        public void failed(Exception e) {
+            close();
+        }
+
+        private void close() {
+            closeQuietly(ch);
+            key.cancel();
+            if(pending != null) {
+                // nobody waits for the response anymore
+                pending.cancel(true);
+                pending = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.kayyagari;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An HTTP/1.1 request with its whole body.
+ *
+ * The header names are kept in lower case, a header that is repeated keeps all its values
+ * in the order they were received.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public final class HttpRequest {
+    private final String method;
+    private final String target;
+    private final String version;
+    private final Map<String, List<String>> headers;
+    private final byte[] body;
+
+    /**
+     * Creates a HTTP/1.1 request
+     *
+     * @param method the method, e.g. GET
+     * @param target the request target, e.g. /index.html?q=1
+     * @param headers the headers, can be null
+     * @param body the body, can be null
+     */
+    public HttpRequest(String method, String target, Map<String, String> headers, byte[] body) {
+        this(method, target, "HTTP/1.1", HttpCodec.multiValued(headers), body);
+    }
+
+    HttpRequest(String method, String target, String version, Map<String, List<String>> headers, byte[] body) {
+        this.method = method;
+        this.target = target;
+        this.version = version;
+        this.headers = HttpCodec.copyOf(headers);
+        this.body = (body == null) ? new byte[0] : body;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the values of the headers keyed by their lower case names
+     */
+    public Map<String, List<String>> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Returns the values of the given header joined with a comma, or null if it is not present.
+     * Use {@link #getHeaderValues(String)} for a header like Set-Cookie whose values cannot be joined.
+     */
+    public String getHeader(String name) {
+        return HttpCodec.join(headers, name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Returns the values of the given header, the list is empty if it is not present
+     */
+    public List<String> getHeaderValues(String name) {
+        List<String> values = headers.get(name.toLowerCase(Locale.ROOT));
+        return (values == null) ? Collections.<String>emptyList() : values;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + target + " " + version;
+    }
+}
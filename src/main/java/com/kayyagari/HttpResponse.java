@@ -0,0 +1,94 @@
+package com.kayyagari;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An HTTP/1.1 response with its whole body.
+ *
+ * The header names are kept in lower case, a header that is repeated keeps all its values
+ * in the order they were received.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public final class HttpResponse {
+    private final int status;
+    private final String reason;
+    private final String version;
+    private final Map<String, List<String>> headers;
+    private final byte[] body;
+
+    /**
+     * Creates a HTTP/1.1 response
+     *
+     * @param status the status code, e.g. 200
+     * @param reason the reason phrase, e.g. OK
+     * @param headers the headers, can be null
+     * @param body the body, can be null
+     */
+    public HttpResponse(int status, String reason, Map<String, String> headers, byte[] body) {
+        this(status, reason, "HTTP/1.1", HttpCodec.multiValued(headers), body);
+    }
+
+    HttpResponse(int status, String reason, String version, Map<String, List<String>> headers, byte[] body) {
+        this.status = status;
+        this.reason = reason;
+        this.version = version;
+        this.headers = HttpCodec.copyOf(headers);
+        this.body = (body == null) ? new byte[0] : body;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the values of the headers keyed by their lower case names
+     */
+    public Map<String, List<String>> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Returns the values of the given header joined with a comma, or null if it is not present.
+     * Use {@link #getHeaderValues(String)} for a header like Set-Cookie whose values cannot be joined.
+     */
+    public String getHeader(String name) {
+        return HttpCodec.join(headers, name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Returns the values of the given header, the list is empty if it is not present
+     */
+    public List<String> getHeaderValues(String name) {
+        List<String> values = headers.get(name.toLowerCase(Locale.ROOT));
+        return (values == null) ? Collections.<String>emptyList() : values;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * Returns the body decoded as UTF-8
+     */
+    public String getBodyAsString() {
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return version + " " + status + " " + reason;
+    }
+}
@@ -0,0 +1,21 @@
+package com.kayyagari;
+
+import java.util.List;
+
+/**
+ * Interface definition for loadbalancing strategies that route the requests based on a key,
+ * see {@link LoadBalancer#get(String)}
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public interface KeyedLoadBalancingStrategy extends LoadBalancingStrategy {
+    /**
+     * Selects a provider for the given key. The same provider should be returned
+     * for a key as long as the list of providers remains the same.
+     *
+     * @param providers the active providers, see {@link LoadBalancingStrategy#next(List)}
+     * @param key the key of the request, never null
+     * @return the selected provider
+     */
+    Provider next(List<Provider> providers, String key);
+}
@@ -0,0 +1,84 @@
+package com.kayyagari;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies in nanoseconds with log-linear buckets.
+ *
+ * Every power of two is divided into {@link #SUB_BUCKETS} linear buckets, so the value reported for a
+ * percentile is at most 1/16th (about 6%) higher than the actual value, over the full range of a long.
+ * Recording a value is a single atomic increment and doesn't allocate.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    void record(long nanos) {
+        counts.incrementAndGet(indexOf(Math.max(nanos, 0)));
+    }
+
+    /**
+     * Returns the number of recorded values, this sums up all the buckets
+     */
+    long count() {
+        long n = 0;
+        for(int i=0; i < BUCKET_COUNT; i++) {
+            n += counts.get(i);
+        }
+
+        return n;
+    }
+
+    /**
+     * Returns the value below which the given fraction of the recorded values fall
+     *
+     * @param p the percentile as a fraction, e.g. 0.99
+     * @return the upper bound of the bucket holding the percentile, or 0 if nothing was recorded
+     */
+    long percentile(double p) {
+        return snapshot().getPercentile(p);
+    }
+
+    /**
+     * Copies the current counts, the values recorded while copying may or may not be included
+     */
+    LatencySnapshot snapshot() {
+        long[] copy = new long[BUCKET_COUNT];
+        for(int i=0; i < BUCKET_COUNT; i++) {
+            copy[i] = counts.get(i);
+        }
+
+        return new LatencySnapshot(copy);
+    }
+
+    static int indexOf(long value) {
+        int msb = 63 - Long.numberOfLeadingZeros(value | 1);
+        if(msb < SUB_BUCKET_BITS) {
+            return (int) value;
+        }
+
+        int shift = msb - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long upperBoundOf(int index) {
+        if(index < SUB_BUCKETS) {
+            return index;
+        }
+
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = SUB_BUCKETS + (index % SUB_BUCKETS);
+        if(shift >= 63 - SUB_BUCKET_BITS) {
+            return Long.MAX_VALUE;
+        }
+
+        return ((sub + 1) << shift) - 1;
+    }
+}
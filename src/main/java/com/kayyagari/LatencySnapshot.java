@@ -0,0 +1,85 @@
+package com.kayyagari;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An immutable copy of a latency histogram, the values are in nanoseconds.
+ *
+ * The percentiles are the upper bounds of the histogram's buckets, so they overstate the actual
+ * values by at most 1/16th.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public final class LatencySnapshot {
+    private final long[] counts;
+
+    private final long count;
+
+    LatencySnapshot(long[] counts) {
+        this.counts = counts;
+        long n = 0;
+        for(long c : counts) {
+            n += c;
+        }
+        this.count = n;
+    }
+
+    /**
+     * Returns the number of recorded values
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the value below which the given fraction of the recorded values fall
+     *
+     * @param p the percentile as a fraction, e.g. 0.99
+     * @return the value in nanoseconds, 0 if nothing was recorded
+     */
+    public long getPercentile(double p) {
+        if(!(p > 0 && p <= 1)) {
+            throw new IllegalArgumentException("percentile must be in the range (0, 1]");
+        }
+
+        if(count == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(p * count);
+        long seen = 0;
+        for(int i=0; i < counts.length; i++) {
+            seen += counts[i];
+            if(seen >= rank) {
+                return LatencyHistogram.upperBoundOf(i);
+            }
+        }
+
+        return LatencyHistogram.upperBoundOf(counts.length - 1);
+    }
+
+    public long getP50() {
+        return getPercentile(0.5);
+    }
+
+    public long getP99() {
+        return getPercentile(0.99);
+    }
+
+    public long getP999() {
+        return getPercentile(0.999);
+    }
+
+    /**
+     * Returns the given percentile in milliseconds, for reporting
+     */
+    public double getPercentileMillis(double p) {
+        return getPercentile(p) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + count + ", p50=" + getPercentileMillis(0.5) + "ms, p99=" + getPercentileMillis(0.99)
+                + "ms, p999=" + getPercentileMillis(0.999) + "ms";
+    }
+}
@@ -0,0 +1,56 @@
+package com.kayyagari;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A load-balancing strategy that selects the provider with the least number of
+ * outstanding (in-flight) requests. Providers that do not implement {@link MeteredProvider}
+ * are treated as idle.
+ *
+ * This strategy visits all the providers on every call, use {@link PowerOfTwoChoicesStrategy}
+ * when there are a large number of providers.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public class LeastOutstandingStrategy implements LoadBalancingStrategy {
+
+    /** the index from which the scan starts, rotated so that ties do not always go to the first provider */
+    private AtomicInteger startIdx = new AtomicInteger();
+
+    @Override
+    public Provider next(List<Provider> providers) {
+        int len = providers.size();
+        int start = (startIdx.getAndIncrement() & Integer.MAX_VALUE) % len;
+
+        Provider selected = null;
+        int minLoad = Integer.MAX_VALUE;
+        for(int i=0; i < len; i++) {
+            Provider p = providers.get((start + i) % len);
+            int load = inFlight(p);
+            if(load < minLoad) {
+                selected = p;
+                minLoad = load;
+                if(load == 0) {
+                    // cannot do better than an idle provider
+                    break;
+                }
+            }
+        }
+
+        return selected;
+    }
+
+    private static int inFlight(Provider p) {
+        if(p instanceof MeteredProvider) {
+            return ((MeteredProvider)p).inFlight();
+        }
+
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "least-outstanding";
+    }
+}
@@ -1,97 +1,1069 @@
 package com.kayyagari;
 
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import java.util.function.ToIntFunction;
 
-public class LoadBalancer {
-    /** the list of active providers */
-    private List<Provider> providers;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
-    // actually here I need a thread-safe Set but ConcurrentHashMap is better than CopyOnWriteArraySet
-    /** the inactive providers */
-    private Map<String, Provider> inactiveProviders;
+public class LoadBalancer {
+    /** the active and inactive providers, publishes a new snapshot after the membership changes */
+    private ProviderRegistry registry;
     
     /** the strategy to be used for balancing load */
     private LoadBalancingStrategy strategy;
 
-    /** threadpool for checking the heartbeats of providers */
-    private ScheduledThreadPoolExecutor healthCheckExecutor;
+    /** runs the checks of the heartbeats of providers */
+    private HealthCheckScheduler healthChecker;
+
+    /** starts a virtual thread for each call to a blocking provider, null when platform threads are used */
+    private ExecutorService requestPool;
+
+    /** runs the calls to blocking providers on platform threads, null when virtual threads are used */
+    private RequestQueue requestQueue;
+
+    /** the kind of threads used for calling blocking providers */
+    private ExecutionMode executionMode;
+
+    /** the settings of the circuit breakers of the providers, null if they are disabled */
+    private CircuitBreakerConfig breakerConfig;
+
+    /** null if hedging is disabled */
+    private Hedger hedger;
+
+    /** the settings of the retries, null if they are disabled */
+    private RetryConfig retryConfig;
+
+    /** limits the retries to a fraction of the requests, null if they are disabled */
+    private RequestBudget retryBudget;
+
+    /** the settings of the adaptive concurrency limits, null if the static limits are used */
+    private AdaptiveLimitConfig adaptiveLimitConfig;
+
+    /** caches the responses of keyed requests, null if caching is disabled */
+    private ResponseCache cache;
 
-    /** threadpool for processing the incoming requests */
-    private ThreadPoolExecutor requestPool;
+    /** shares the state of the providers with other LoadBalancers, null if not in cluster mode */
+    private GossipNode cluster;
 
+    /**
+     * true if the providers are {@link TcpProvider}s relaying connections, false if they serve requests,
+     * null until the first provider is added
+     */
+    private volatile Boolean relaysConnections;
+
+    /**
+     * the default max number of providers, see {@link LoadBalancerConfig#setMaxProviders(int)},
+     * and the default number of platform threads calling blocking providers, see
+     * {@link LoadBalancerConfig#setRequestThreads(int)}
+     */
     public static final int MAX_NUM_PROVIDERS = 10;
 
     public static final int MAX_REQ_PER_PROVIDER = 10;
 
     public static final int HEART_BEAT_INTERVAL = 2;
 
-    /** used for monitoring the pending request in a naive way */
+    /** the decay time of the latency averages maintained for each provider */
+    public static final long LATENCY_DECAY_MILLIS = 10000;
+
+    /** the number of admitted requests that are either queued or being served */
     private AtomicInteger pendingReqCount = new AtomicInteger(0);
 
-    /** used for storing the max request handling capacity of the LoadBalancer */
-    private AtomicInteger maxReqCapacity = new AtomicInteger(0);
+    /** the pending requests of each priority class, indexed by the ordinal */
+    private final AtomicIntegerArray pendingByPriority = new AtomicIntegerArray(Priority.values().length);
+
+    /** the shares of the capacity reserved for each priority class, null if none is reserved */
+    private double[] reservedShares;
+
+    // the metrics, updated on the request path without locks or allocation
+    private final LongAdder requestCount = new LongAdder();
+    private final LongAdder rejectionCount = new LongAdder();
+    private final LongAdder successCount = new LongAdder();
+    private final LongAdder failureCount = new LongAdder();
+    private final LongAdder hedgeCount = new LongAdder();
+    private final LongAdder retryCount = new LongAdder();
+
+    /** the time from admission to completion of the requests */
+    private final LatencyHistogram responseTime = new LatencyHistogram();
+
+    /** the latency of the successful calls of all the providers */
+    private final LatencyHistogram serviceTime = new LatencyHistogram();
+
+    /** the time the calls to blocking providers wait for a thread */
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+
+    /** the name of the registered MXBean, null if not registered */
+    private ObjectName mbeanName;
 
     public LoadBalancer(LoadBalancingStrategy strategy) {
-        this.providers = new CopyOnWriteArrayList<>();
-        this.inactiveProviders = new ConcurrentHashMap<>();
+        this(strategy, new LoadBalancerConfig());
+    }
+
+    public LoadBalancer(LoadBalancingStrategy strategy, LoadBalancerConfig config) {
+        this.registry = new ProviderRegistry(config.getMaxProviders(), new ToIntFunction<Provider>() {
+            @Override
+            public int applyAsInt(Provider p) {
+                return ((HealthAwareProviderWrapper)p).baseLimit();
+            }
+        }, new IntSupplier() {
+            @Override
+            public int getAsInt() {
+                return pendingReqCount.get();
+            }
+        });
         this.strategy = strategy;
+        this.breakerConfig = config.getCircuitBreakerConfig();
+        if(config.getHedgingConfig() != null) {
+            hedger = new Hedger(config.getHedgingConfig());
+        }
+
+        adaptiveLimitConfig = config.getAdaptiveLimitConfig();
+        if(config.getCacheConfig() != null) {
+            cache = new ResponseCache(config.getCacheConfig());
+        }
+        for(Priority p : Priority.values()) {
+            if(config.getPriorityConfig().getReservedShare(p) > 0) {
+                reservedShares = new double[Priority.values().length];
+                for(Priority q : Priority.values()) {
+                    reservedShares[q.ordinal()] = config.getPriorityConfig().getReservedShare(q);
+                }
+                break;
+            }
+        }
+
+        retryConfig = config.getRetryConfig();
+        if(retryConfig != null) {
+            retryBudget = new RequestBudget(retryConfig.getBudgetRatio(), retryConfig.getMaxBurst());
+        }
         
-        // half the size of the total number of providers, this still 
-        // doesn't eliminate possibility of stuck threads if a provider takes too long to return from check() method
-        healthCheckExecutor = new ScheduledThreadPoolExecutor(MAX_NUM_PROVIDERS/2);
+        // a check() that takes too long is interrupted when its deadline passes and the provider is
+        // considered unhealthy, a provider that ignores the interrupt can hold at most one of these threads
+        healthChecker = new HealthCheckScheduler(TimeUnit.SECONDS.toMillis(HEART_BEAT_INTERVAL),
+                config.getHealthCheckTimeoutMillis(), config.getHealthCheckThreads());
         
-        requestPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(MAX_NUM_PROVIDERS);
+        if(config.getExecutionMode() == ExecutionMode.VIRTUAL_THREADS) {
+            requestPool = newVirtualThreadPerTaskExecutor();
+        }
+
+        if(requestPool != null) {
+            executionMode = ExecutionMode.VIRTUAL_THREADS;
+        }
+        else {
+            requestQueue = new RequestQueue("lb-request", config.getRequestThreads(), config);
+            executionMode = ExecutionMode.PLATFORM_THREADS;
+        }
+
+        if(config.getClusterConfig() != null) {
+            cluster = new GossipNode(config.getClusterConfig(), new GossipNode.Host() {
+                @Override
+                public void exclusionChanged(String providerId, boolean excluded) {
+                    if(excluded) {
+                        exclude(providerId);
+                    }
+                    else {
+                        include(providerId);
+                    }
+                }
+
+                @Override
+                public Map<String, Integer> localLoad() {
+                    Map<String, Integer> load = new HashMap<>();
+                    for(Provider p : registry.snapshot()) {
+                        int n = ((HealthAwareProviderWrapper)p).inFlight();
+                        if(n > 0) {
+                            load.put(p.id(), n);
+                        }
+                    }
+                    return load;
+                }
+            });
+        }
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task. Looked up using reflection
+     * because this code is compiled for Java 8.
+     *
+     * @return the executor or null if the runtime doesn't support virtual threads
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch(ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    // this method should not be synchronized
+    public Future<String> get() {
+        return get(null);
+    }
+
+    /**
+     * Same as {@link #get()} except that the key is passed to the strategy if it is
+     * a {@link KeyedLoadBalancingStrategy}, so that the requests with the same key are
+     * served by the same provider. Other strategies ignore the key.
+     *
+     * @param key the key of the request, can be null
+     * @return the future holding the provider's response
+     */
+    public Future<String> get(String key) {
+        return getAsync(key);
+    }
+
+    /**
+     * Same as {@link #get(String)} with the given priority, see {@link #getAsync(String, Priority)}
+     */
+    public Future<String> get(String key, Priority priority) {
+        return getAsync(key, priority);
     }
 
-    // this method should not be synchronized
-    public Future<String> get() {
-        if(pendingReqCount.get() >= maxReqCapacity.get()) {
-            throw new CapacityExceededException("processing capacity exceeded, max capacity = " + maxReqCapacity);
+    /**
+     * Same as {@link #getAsync(String)} with a null key
+     */
+    public CompletableFuture<String> getAsync() {
+        return getAsync(null);
+    }
+
+    /**
+     * Sends a request to a provider without blocking the calling thread or a thread of the request pool
+     * while the provider is working on it.
+     * 
+     * The request is admitted and the provider is selected on the calling thread. If the provider is an
+     * {@link AsyncProvider} its future is chained to the returned future, so any number of requests can be
+     * in-flight, up to the capacity limits, using only the threads of the provider. Other providers are called
+     * on a thread of the request pool.
+     *
+     * If hedging is enabled and the provider hasn't answered within the hedging delay, the request is sent
+     * to another provider as well, see {@link HedgingConfig}.
+     *
+     * If retries are enabled, a request whose provider fails is sent to another provider, see {@link RetryConfig}.
+     *
+     * If caching is enabled, a keyed request is served from the cache when possible, see {@link CacheConfig}.
+     * Such requests are neither admitted nor counted as requests.
+     *
+     * Cancelling the returned future cancels the future returned by an {@link AsyncProvider}, or interrupts
+     * the get() of other providers. A request waiting for a response that another request is loading into
+     * the cache is not cancelled.
+     *
+     * @param key the key of the request, can be null
+     * @return the future holding the provider's response
+     * @throws CapacityExceededException if the max capacity has been reached
+     */
+    public CompletableFuture<String> getAsync(String key) {
+        return getAsync(key, Priority.NORMAL);
+    }
+
+    /**
+     * Same as {@link #getAsync(String)} except that the request belongs to the given priority class.
+     *
+     * The request is rejected if admitting it would leave less capacity than the unused part of the
+     * capacity reserved for the other classes. A call to a blocking provider waits in the queue of its class,
+     * and the queue of a lower class is drained first when the request queue is full, see {@link PriorityConfig}.
+     * In {@link ExecutionMode#VIRTUAL_THREADS} the calls are not queued and only the reservations apply.
+     *
+     * @param key the key of the request, can be null
+     * @param priority the priority class of the request
+     * @return the future holding the provider's response
+     * @throws CapacityExceededException if the capacity available to the priority class has been reached
+     */
+    public CompletableFuture<String> getAsync(String key, final Priority priority) {
+        checkServesRequests();
+        if(cache != null && key != null) {
+            return cache.get(key, k -> send(k, priority));
+        }
+
+        return send(key, priority);
+    }
+
+    /**
+     * Admits the request and sends it to a provider
+     */
+    private CompletableFuture<String> send(String key, Priority priority) {
+        if(!tryAcquirePermits(1, priority)) {
+            rejectionCount.increment();
+            throw new CapacityExceededException("processing capacity exceeded, max capacity = " + registry.capacity());
+        }
+
+        requestCount.increment();
+        final long start = System.nanoTime();
+        CompletableFuture<String> response;
+        try {
+            // read the snapshot only once, it may get replaced while this request is being served
+            ProviderSnapshot snapshot = registry.snapshot();
+            if(snapshot.isEmpty()) {
+                response = CompletableFuture.completedFuture(null);
+            }
+            else {
+                HealthAwareProviderWrapper hw = acquireProvider(snapshot, key, null);
+                response = (retryBudget == null) ? call(snapshot, key, priority, hw)
+                        : new RetriedRequest(key, priority).send(snapshot, hw);
+            }
+        }
+        catch(RuntimeException e) {
+            countRejection(e, 1);
+            response = new CompletableFuture<>();
+            response.completeExceptionally(e);
+        }
+
+        return releaseOnCompletion(response, start, priority);
+    }
+
+    /**
+     * Sends a request to a provider using the given call instead of the provider's get(), e.g. to forward
+     * a request that carries data of its own like in {@link HttpProxyServer}.
+     *
+     * The request is admitted and the provider is selected the same way as in {@link #getAsync(String)},
+     * and the call's latency and outcome are recorded for the provider, but the request is neither hedged,
+     * retried nor cached, the LoadBalancer cannot tell whether an arbitrary request is safe to repeat.
+     * The call must not block, it is applied on the calling thread.
+     *
+     * @param key the key of the request, can be null
+     * @param call sends the request to the provider it is given, which is the provider that was added
+     * @return the future holding the result of the call
+     * @throws CapacityExceededException if the max capacity has been reached
+     */
+    public <T> CompletableFuture<T> execute(String key, Function<? super Provider, CompletableFuture<T>> call) {
+        return execute(key, Priority.NORMAL, call);
+    }
+
+    /**
+     * Same as {@link #execute(String, Function)} except that the request is admitted as a request
+     * of the given priority class, see {@link #getAsync(String, Priority)}
+     */
+    public <T> CompletableFuture<T> execute(String key, Priority priority, Function<? super Provider, CompletableFuture<T>> call) {
+        checkServesRequests();
+        if(!tryAcquirePermits(1, priority)) {
+            rejectionCount.increment();
+            throw new CapacityExceededException("processing capacity exceeded, max capacity = " + registry.capacity());
+        }
+
+        requestCount.increment();
+        final long start = System.nanoTime();
+        CompletableFuture<T> response;
+        try {
+            ProviderSnapshot snapshot = registry.snapshot();
+            if(snapshot.isEmpty()) {
+                throw new CapacityExceededException("there are no active providers");
+            }
+
+            response = acquireProvider(snapshot, key, null).execute(call);
+        }
+        catch(RuntimeException e) {
+            countRejection(e, 1);
+            response = new CompletableFuture<>();
+            response.completeExceptionally(e);
+        }
+
+        return releaseOnCompletion(response, start, priority);
+    }
+
+    /**
+     * Releases the permit of an admitted request and updates the metrics when the given response completes
+     */
+    private <T> CompletableFuture<T> releaseOnCompletion(final CompletableFuture<T> response, final long start,
+            final Priority priority) {
+        // the caller's dependent actions run only after the permit was released
+        return relay(response.whenComplete((val, e) -> {
+            releasePermits(1, priority);
+            requestsCompleted(start, e, 1);
+        }), () -> response.cancel(true));
+    }
+
+    /**
+     * Admits a connection accepted by a {@link TcpProxyServer} and opens it to the selected provider with
+     * the given call, the permit and the provider's in-flight slot are held until the returned future completes.
+     *
+     * Unlike {@link #execute(String, Function)} the lifetime of a connection is not taken as a latency, it is
+     * observed neither by the latency based strategies, the adaptive limits and the hedger nor by the response
+     * time metrics, and the call timeouts of the circuit breakers don't apply. The circuit breakers only count
+     * the connections that failed.
+     *
+     * @throws CapacityExceededException if the max capacity has been reached
+     * @throws IllegalStateException if the providers serve requests
+     */
+    <T> CompletableFuture<T> admitConnection(Function<? super Provider, CompletableFuture<T>> call) {
+        if(Boolean.FALSE.equals(relaysConnections)) {
+            throw new IllegalStateException("the providers of this LoadBalancer serve requests, they cannot relay connections");
+        }
+
+        if(!tryAcquirePermits(1, Priority.NORMAL)) {
+            rejectionCount.increment();
+            throw new CapacityExceededException("processing capacity exceeded, max capacity = " + registry.capacity());
+        }
+
+        requestCount.increment();
+        CompletableFuture<T> response;
+        try {
+            ProviderSnapshot snapshot = registry.snapshot();
+            if(snapshot.isEmpty()) {
+                throw new CapacityExceededException("there are no active providers");
+            }
+
+            response = acquireProvider(snapshot, null, null).connect(call);
+        }
+        catch(RuntimeException e) {
+            countRejection(e, 1);
+            response = new CompletableFuture<>();
+            response.completeExceptionally(e);
+        }
+
+        final CompletableFuture<T> connection = response;
+        return relay(connection.whenComplete((val, e) -> {
+            releasePermits(1, Priority.NORMAL);
+            if(e == null) {
+                successCount.increment();
+            }
+            else {
+                failureCount.increment();
+            }
+        }), () -> connection.cancel(true));
+    }
+
+    /**
+     * Throws an exception if the providers only relay the connections of a {@link TcpProxyServer}
+     */
+    private void checkServesRequests() {
+        if(Boolean.TRUE.equals(relaysConnections)) {
+            throw new IllegalStateException("the providers of this LoadBalancer relay the connections of a TcpProxyServer,"
+                    + " they cannot serve requests");
+        }
+    }
+
+    /**
+     * Returns a future that completes with the outcome of the given future. Cancelling a stage created
+     * by whenComplete() skips its action, so the stages that release permits and slots are never handed
+     * out, the caller gets this future instead and cancelling it runs the given action.
+     *
+     * @param source the future to relay
+     * @param onCancel the action cancelling the underlying call, can be null
+     */
+    private static <T> CompletableFuture<T> relay(CompletableFuture<T> source, final Runnable onCancel) {
+        final CompletableFuture<T> relayed = new CompletableFuture<>();
+        source.whenComplete((val, e) -> {
+            if(e == null) {
+                relayed.complete(val);
+            }
+            else {
+                relayed.completeExceptionally(e);
+            }
+        });
+
+        if(onCancel != null) {
+            relayed.whenComplete((val, e) -> {
+                if(relayed.isCancelled()) {
+                    onCancel.run();
+                }
+            });
+        }
+
+        return relayed;
+    }
+
+    /**
+     * Sends the given number of requests as a batch.
+     *
+     * The whole batch is admitted at once, i.e. either all the requests are admitted or none, and
+     * the providers are selected for all the requests in a single pass over the same snapshot.
+     * The requests selected for the same provider are sent to it together, in one call if the provider
+     * is a {@link BatchProvider} or else in one task of the request pool.
+     *
+     * @param count the number of requests
+     * @return the future holding the responses in the order of the requests, it fails if any of the requests fail
+     * @throws CapacityExceededException if the whole batch cannot be admitted
+     */
+    public CompletableFuture<List<String>> getBatch(int count) {
+        if(count < 1) {
+            throw new IllegalArgumentException("batch must contain at least one request");
+        }
+
+        return getBatch(count, null);
+    }
+
+    /**
+     * Same as {@link #getBatch(int)} except that there is one request for each key, see {@link #get(String)}
+     *
+     * @param keys the keys of the requests, the elements can be null
+     * @return the future holding the responses in the order of the keys
+     */
+    public CompletableFuture<List<String>> getBatch(List<String> keys) {
+        if(keys.isEmpty()) {
+            throw new IllegalArgumentException("batch must contain at least one request");
+        }
+
+        return getBatch(keys.size(), keys);
+    }
+
+    private CompletableFuture<List<String>> getBatch(final int count, List<String> keys) {
+        checkServesRequests();
+        if(!tryAcquirePermits(count, Priority.NORMAL)) {
+            rejectionCount.add(count);
+            throw new CapacityExceededException("processing capacity exceeded, cannot admit a batch of " + count
+                    + " requests, max capacity = " + registry.capacity());
+        }
+
+        requestCount.add(count);
+        final long start = System.nanoTime();
+        PendingCall<List<String>> batch;
+        try {
+            ProviderSnapshot snapshot = registry.snapshot();
+            if(snapshot.isEmpty()) {
+                batch = new PendingCall<>(CompletableFuture.completedFuture(Arrays.asList(new String[count])), null);
+            }
+            else {
+                batch = dispatchBatch(snapshot, count, keys);
+            }
+        }
+        catch(RuntimeException e) {
+            countRejection(e, count);
+            CompletableFuture<List<String>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            batch = new PendingCall<>(failed, null);
+        }
+
+        // the permits are released only after every part of the batch released its in-flight slots
+        return relay(batch.settled.whenComplete((vals, e) -> {
+            releasePermits(count, Priority.NORMAL);
+            requestsCompleted(start, e, count);
+        }), batch.canceller);
+    }
+
+    private void countRejection(RuntimeException e, int count) {
+        if(e instanceof CapacityExceededException) {
+            rejectionCount.add(count);
+        }
+    }
+
+    /**
+     * Updates the metrics when the given number of admitted requests complete
+     */
+    private void requestsCompleted(long start, Throwable e, int count) {
+        long elapsed = System.nanoTime() - start;
+        for(int i=0; i < count; i++) {
+            responseTime.record(elapsed);
+        }
+
+        if(e == null) {
+            successCount.add(count);
+        }
+        else {
+            failureCount.add(count);
+        }
+    }
+
+    /**
+     * Sends the requests of a batch to the selected providers, the returned call completes after all the
+     * parts completed and cancelling it cancels every part
+     */
+    private PendingCall<List<String>> dispatchBatch(ProviderSnapshot snapshot, int count, List<String> keys) {
+        // the single selection pass, the number of requests per provider are counted alongside
+        HealthAwareProviderWrapper[] selected = new HealthAwareProviderWrapper[count];
+        Map<HealthAwareProviderWrapper, BatchGroup> groups = new IdentityHashMap<>();
+        try {
+            for(int i=0; i < count; i++) {
+                String key = (keys == null) ? null : keys.get(i);
+                HealthAwareProviderWrapper hw = acquireProvider(snapshot, key, null);
+                selected[i] = hw;
+                BatchGroup g = groups.get(hw);
+                if(g == null) {
+                    g = new BatchGroup();
+                    groups.put(hw, g);
+                }
+                g.size++;
+            }
+        }
+        catch(RuntimeException e) {
+            for(Map.Entry<HealthAwareProviderWrapper, BatchGroup> g : groups.entrySet()) {
+                g.getKey().release(g.getValue().size);
+            }
+            throw e;
+        }
+
+        for(int i=0; i < count; i++) {
+            groups.get(selected[i]).add(i);
+        }
+
+        final String[] results = new String[count];
+        final List<PendingCall<List<String>>> parts = new ArrayList<>(groups.size());
+        CompletableFuture<?>[] filled = new CompletableFuture<?>[groups.size()];
+        for(Map.Entry<HealthAwareProviderWrapper, BatchGroup> g : groups.entrySet()) {
+            final int[] indices = g.getValue().indices;
+            PendingCall<List<String>> part = g.getKey().dispatchBatch(indices.length);
+            filled[parts.size()] = part.settled.thenAccept(vals -> {
+                for(int i=0; i < indices.length; i++) {
+                    results[indices[i]] = vals.get(i);
+                }
+            });
+            parts.add(part);
+        }
+
+        return new PendingCall<>(CompletableFuture.allOf(filled).thenApply(v -> Arrays.asList(results)), new Runnable() {
+            @Override
+            public void run() {
+                for(PendingCall<List<String>> part : parts) {
+                    part.cancel();
+                }
+            }
+        });
+    }
+
+    /**
+     * A call whose future completes only after the in-flight slots and the permits it holds were released.
+     * Cancelling a stage created by whenComplete() skips its action, so the future is never cancelled
+     * directly, the canceller cancels the underlying call instead and the future completes once it stops.
+     */
+    private static final class PendingCall<T> {
+        private final CompletableFuture<T> settled;
+
+        /** cancels the underlying call, null if it cannot be cancelled */
+        private final Runnable canceller;
+
+        private PendingCall(CompletableFuture<T> settled, Runnable canceller) {
+            this.settled = settled;
+            this.canceller = canceller;
+        }
+
+        private void cancel() {
+            if(canceller != null) {
+                canceller.run();
+            }
+        }
+    }
+
+    /**
+     * The positions of the requests of a batch that were assigned to the same provider
+     */
+    private static class BatchGroup {
+        private int size;
+        private int[] indices;
+        private int filled;
+
+        private void add(int index) {
+            if(indices == null) {
+                indices = new int[size];
+            }
+            indices[filled++] = index;
+        }
+    }
+
+    /**
+     * Sends a request to the given provider, hedging it if enabled
+     */
+    private CompletableFuture<String> call(ProviderSnapshot snapshot, String key, Priority priority,
+            HealthAwareProviderWrapper hw) {
+        return (hedger == null) ? hw.dispatch(priority, true) : new HedgedRequest(snapshot, key, priority, hw).send(true);
+    }
+
+    /**
+     * A request that is sent to another provider when the provider serving it fails. The providers that
+     * failed are never selected again for the same request, and every retry takes a token from the
+     * retry budget. When the attempts or the budget run out, or no other provider is available, the
+     * request fails with the exception of the last attempt.
+     */
+    private class RetriedRequest {
+        private final String key;
+        private final Priority priority;
+
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+
+        /** only accessed by one attempt at a time */
+        private final List<HealthAwareProviderWrapper> failed = new ArrayList<>(2);
+
+        private int attempts;
+
+        private volatile CompletableFuture<String> current;
+
+        private RetriedRequest(String key, Priority priority) {
+            this.key = key;
+            this.priority = priority;
+        }
+
+        private CompletableFuture<String> send(ProviderSnapshot snapshot, HealthAwareProviderWrapper hw) {
+            result.whenComplete((val, e) -> {
+                if(result.isCancelled()) {
+                    current.cancel(true);
+                }
+            });
+
+            retryBudget.deposit();
+            attempt(snapshot, hw, true);
+            return result;
+        }
+
+        /**
+         * @param mayBlock false if the attempt is made from the thread that completed the previous one
+         */
+        private void attempt(ProviderSnapshot snapshot, final HealthAwareProviderWrapper hw, boolean mayBlock) {
+            attempts++;
+            final HedgedRequest hedged = (hedger == null) ? null : new HedgedRequest(snapshot, key, priority, hw);
+            final CompletableFuture<String> f = (hedged == null) ? hw.dispatch(priority, mayBlock) : hedged.send(mayBlock);
+            current = f;
+            f.whenComplete((val, e) -> {
+                if(e == null) {
+                    result.complete(val);
+                }
+                else if(result.isDone() || !HealthAwareProviderWrapper.isProviderFailure(e)) {
+                    result.completeExceptionally(e);
+                }
+                else {
+                    failed.add(hw);
+                    if(hedged != null && hedged.backup != null) {
+                        failed.add(hedged.backup);
+                    }
+                    retry(e);
+                }
+            });
+
+            // cancelled while the attempt was being sent
+            if(result.isCancelled()) {
+                f.cancel(true);
+            }
+        }
+
+        private void retry(Throwable cause) {
+            if(attempts >= retryConfig.getMaxAttempts() || !retryBudget.tryWithdraw()) {
+                result.completeExceptionally(cause);
+                return;
+            }
+
+            // the failed provider may have been excluded by its circuit breaker in the meantime
+            ProviderSnapshot snapshot = registry.snapshot();
+            HealthAwareProviderWrapper next;
+            try {
+                next = acquireProvider(snapshot, key, failed);
+            }
+            catch(CapacityExceededException e) {
+                result.completeExceptionally(cause);
+                return;
+            }
+
+            retryCount.increment();
+            attempt(snapshot, next, false);
+        }
+    }
+
+    /**
+     * A request that is sent to a second provider if the first one is too slow. The first successful
+     * response completes the request and the other call is cancelled, the request fails only if
+     * all the calls fail.
+     */
+    private class HedgedRequest {
+        private final ProviderSnapshot snapshot;
+        private final String key;
+        private final Priority priority;
+        private final HealthAwareProviderWrapper primary;
+
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+
+        /** the number of calls that haven't failed yet, no hedge is sent once it drops to zero */
+        private final AtomicInteger remaining = new AtomicInteger(1);
+
+        private CompletableFuture<String> first;
+
+        private volatile CompletableFuture<String> second;
+
+        /** the provider of the second call, null if no hedge was sent */
+        private volatile HealthAwareProviderWrapper backup;
+
+        private HedgedRequest(ProviderSnapshot snapshot, String key, Priority priority, HealthAwareProviderWrapper primary) {
+            this.snapshot = snapshot;
+            this.key = key;
+            this.priority = priority;
+            this.primary = primary;
+        }
+
+        /**
+         * @param mayBlock false if the caller must not block when the request queue is full
+         */
+        private CompletableFuture<String> send(boolean mayBlock) {
+            result.whenComplete((val, e) -> {
+                if(result.isCancelled()) {
+                    cancelCalls();
+                }
+            });
+
+            hedger.requestSent();
+            first = primary.dispatch(priority, mayBlock);
+            first.whenComplete((val, e) -> completed(first, val, e));
+
+            long delayNanos = hedger.delayNanos();
+            if(delayNanos >= 0 && !result.isDone() && snapshot.size() > 1) {
+                try {
+                    final HashedWheelTimer.Timeout timeout = hedger.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            hedge();
+                        }
+                    }, delayNanos);
+                    result.whenComplete((val, e) -> timeout.cancel());
+                }
+                catch(IllegalStateException e) {
+                    // shutdown
+                }
+            }
+
+            return result;
+        }
+
+        /**
+         * Called by the hedging timer
+         */
+        private void hedge() {
+            if(result.isDone() || !hedger.tryAcquireHedge()) {
+                return;
+            }
+
+            try {
+                backup = acquireProvider(snapshot, key, Collections.singletonList(primary));
+            }
+            catch(CapacityExceededException e) {
+                return;
+            }
+
+            // the first call may have failed in the meantime
+            while(true) {
+                int n = remaining.get();
+                if(n == 0) {
+                    backup.release(1);
+                    backup = null;
+                    return;
+                }
+
+                if(remaining.compareAndSet(n, n + 1)) {
+                    break;
+                }
+            }
+
+            hedgeCount.increment();
+            // the hedge is sent from the timer thread which must never block
+            final CompletableFuture<String> f = backup.dispatch(priority, false);
+            second = f;
+            f.whenComplete((val, e) -> completed(f, val, e));
+            if(result.isDone()) {
+                f.cancel(true);
+            }
+        }
+
+        private void cancelCalls() {
+            first.cancel(true);
+            CompletableFuture<String> f = second;
+            if(f != null) {
+                f.cancel(true);
+            }
+        }
+
+        private void completed(CompletableFuture<String> call, String val, Throwable e) {
+            if(e == null) {
+                if(result.complete(val)) {
+                    CompletableFuture<String> other = (call == first) ? second : first;
+                    if(other != null) {
+                        other.cancel(true);
+                    }
+                }
+            }
+            else if(remaining.decrementAndGet() == 0) {
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Increments the pending request count by the given number only if the result doesn't exceed
+     * the max capacity. Checking and incrementing must happen in a single step, otherwise concurrent
+     * callers can all pass the check and overshoot the capacity.
+     *
+     * The capacity reserved for the other priority classes and not used by their pending requests
+     * is not available to the given class. The pending requests of each class are read separately
+     * from the total, so concurrent admissions can briefly use a little of a reservation.
+     *
+     * @param n the number of requests to be admitted
+     * @param priority the priority class of the requests
+     * @return true if the requests are admitted, false otherwise
+     */
+    private boolean tryAcquirePermits(int n, Priority priority) {
+        while(true) {
+            int pending = pendingReqCount.get();
+            int capacity = registry.capacity();
+            if(pending + n > capacity - unusedReservations(capacity, priority)) {
+                return false;
+            }
+
+            if(pendingReqCount.compareAndSet(pending, pending + n)) {
+                pendingByPriority.addAndGet(priority.ordinal(), n);
+                return true;
+            }
+        }
+    }
+
+    private void releasePermits(int n, Priority priority) {
+        pendingByPriority.addAndGet(priority.ordinal(), -n);
+        pendingReqCount.addAndGet(-n);
+    }
+
+    /**
+     * Returns the part of the capacity reserved for the classes other than the given one that
+     * their pending requests don't use
+     */
+    private int unusedReservations(int capacity, Priority priority) {
+        if(reservedShares == null) {
+            return 0;
+        }
+
+        int unused = 0;
+        for(int i=0; i < reservedShares.length; i++) {
+            if(i != priority.ordinal()) {
+                int reserved = (int) (reservedShares[i] * capacity);
+                unused += Math.max(0, reserved - pendingByPriority.get(i));
+            }
+        }
+
+        return unused;
+    }
+
+    /**
+     * Asks the strategy for a provider that has not reached its limit of in-flight requests,
+     * i.e. {@link #MAX_REQ_PER_PROVIDER} times its weight, or its adaptive limit when those are enabled,
+     * or one while its circuit breaker is half-open.
+     * A provider that is at the limit is skipped, and the strategy is asked again, at most as many times
+     * as the number of providers present in the snapshot.
+     *
+     * When some providers must be avoided, e.g. for a hedge or a retry, and the strategy keeps picking them,
+     * the remaining providers are tried in the order of the snapshot.
+     *
+     * @param snapshot the active providers
+     * @param key the key of the request, can be null
+     * @param avoid the providers that must not be selected, can be null
+     * @return the provider whose in-flight count has been incremented, the caller must release it
+     * @throws CapacityExceededException if no provider with a free slot was found
+     */
+    private HealthAwareProviderWrapper acquireProvider(ProviderSnapshot snapshot, String key, Collection<? extends Provider> avoid) {
+        LoadBalancingStrategy current = strategy;
+        for(int i=0; i < snapshot.size(); i++) {
+            Provider selected = null;
+            if(key != null && current instanceof KeyedLoadBalancingStrategy) {
+                selected = ((KeyedLoadBalancingStrategy)current).next(snapshot, key);
+            }
+
+            // the key keeps mapping to the same provider, without it the strategy can pick another one
+            if(selected == null || (avoid != null && avoid.contains(selected))) {
+                selected = current.next(snapshot);
+            }
+
+            if(avoid != null && avoid.contains(selected)) {
+                continue;
+            }
+
+            HealthAwareProviderWrapper hw = (HealthAwareProviderWrapper) selected;
+            if(hw.tryAcquire(hw.limit())) {
+                return hw;
+            }
         }
 
-        pendingReqCount.incrementAndGet();
-        Callable<String> c = new Callable<String>() {
-
-            @Override
-            public String call() throws Exception {
-                String val = null;
-                if(!providers.isEmpty()) {
-                    val = strategy.next(providers).get();
+        if(avoid != null) {
+            for(Provider p : snapshot) {
+                HealthAwareProviderWrapper hw = (HealthAwareProviderWrapper) p;
+                if(!avoid.contains(hw) && hw.tryAcquire(hw.limit())) {
+                    return hw;
                 }
-                pendingReqCount.decrementAndGet();
-                return val; 
             }
-            
-        };
+        }
 
-        return requestPool.submit(c);
+        throw new CapacityExceededException("all the selected providers have reached their limit of in-flight requests");
     }
 
     /**
-     * Adds the given provider to the list of active providers
-     * if the number of existing providers is less than {@link #MAX_NUM_PROVIDERS}
+     * Adds the given provider with a weight of 1
      *
      * @param p the provider to be added
+     * @see #add(Provider, int)
+     */
+    public void add(Provider p) {
+        add(p, 1);
+    }
+
+    /**
+     * Adds the given provider to the list of active providers if the number of existing providers,
+     * active or inactive, is less than {@link LoadBalancerConfig#getMaxProviders()}
+     *
+     * The weight scales the provider's share of the capacity, a provider with weight 3
+     * accepts up to 3 * {@link #MAX_REQ_PER_PROVIDER} in-flight requests, with adaptive limits that is
+     * only the initial limit of the provider. Weighted strategies
+     * like {@link SmoothWeightedRoundRobinStrategy} use it to distribute the requests as well.
+     *
+     * A LoadBalancer either serves requests or relays the connections of a {@link TcpProxyServer}, so
+     * {@link TcpProvider}s cannot be added together with other providers. The request methods, e.g.
+     * {@link #getAsync(String)}, fail right away when the providers are TcpProviders.
+     *
+     * @param p the provider to be added, its ID must be unique
+     * @param weight the weight of the provider, must be at least 1
+     * @throws IllegalStateException if the max number of providers is reached
+     * @throws IllegalArgumentException if the weight is invalid, a provider with the same ID is present or
+     *                                  the provider is a TcpProvider and the others are not, or vice versa
+     */
+    public void add(Provider p, int weight) {
+        add(p, weight, Locality.NONE);
+    }
+
+    /**
+     * Same as {@link #add(Provider, int)} and tags the provider with the given locality,
+     * see {@link LocalityTieredStrategy}
+     *
+     * @param p the provider to be added, its ID must be unique
+     * @param weight the weight of the provider, must be at least 1
+     * @param locality where the provider runs
      */
-    public synchronized void add(Provider p) {
-        if(providers.size() == MAX_NUM_PROVIDERS) {
-            throw new IllegalStateException("provider list is full, cannot add new providers. Only a maximum of 10 providers are allowed");
+    public void add(Provider p, int weight, Locality locality) {
+        if(weight < 1) {
+            throw new IllegalArgumentException("weight must be at least 1");
+        }
+
+        if(locality == null) {
+            throw new IllegalArgumentException("locality cannot be null, use Locality.NONE");
+        }
+
+        boolean relays = (p instanceof TcpProvider);
+        synchronized(registry) {
+            Boolean current = relaysConnections;
+            if(current != null && current != relays) {
+                throw new IllegalArgumentException(relays
+                        ? "a TcpProvider cannot be added to a LoadBalancer whose providers serve requests"
+                        : "only TcpProviders can be added to a LoadBalancer whose providers relay connections");
+            }
+
+            HealthAwareProviderWrapper hw = new HealthAwareProviderWrapper(p, weight, locality, this);
+            try {
+                registry.add(hw);
+            }
+            catch(RuntimeException e) {
+                hw.cancel();
+                throw e;
+            }
+            relaysConnections = relays;
         }
-        
-        HealthAwareProviderWrapper hw = new HealthAwareProviderWrapper(p, this);
-        providers.add(hw);
-        updateMaxReqCapacity();
     }
 
     /**
@@ -100,14 +1072,8 @@ public class LoadBalancer {
      * @param p provider to be excluded
      * @return true if excluded, false otherwise
      */
-    private synchronized boolean exclude(Provider p) {
-         boolean excluded = providers.remove(p);
-         if(excluded) {
-             inactiveProviders.put(p.id(), p);
-             updateMaxReqCapacity();
-         }
-         
-         return excluded;
+    private boolean exclude(Provider p) {
+        return (registry.exclude(p.id()) != null);
     }
 
     /**
@@ -116,14 +1082,13 @@ public class LoadBalancer {
      * @param p provider to be included
      * @return true if included, false otherwise
      */
-    private synchronized boolean include(Provider p) {
-        Provider included = inactiveProviders.remove(p.id());
-        if(included != null) {
-            providers.add(p);
-            updateMaxReqCapacity();
+    private boolean include(Provider p) {
+        boolean included = (registry.include(p.id()) != null);
+        if(included && cluster != null) {
+            cluster.publishExclusion(p.id(), false);
         }
 
-        return (included != null);
+        return included;
     }
 
     /**
@@ -133,13 +1098,16 @@ public class LoadBalancer {
      * @param id ID of the provider to be included
      * @return true if included, false otherwise
      */
-    public synchronized boolean include(String id) {
-        Provider p = inactiveProviders.remove(id);
+    public boolean include(String id) {
+        Provider p = registry.include(id);
+
+        // the flags must be reset without holding the lock on LoadBalancer, the wrapper's check()
+        // holds the wrapper's lock while calling include(Provider) and exclude(Provider)
         if(p != null) {
-            HealthAwareProviderWrapper hw = (HealthAwareProviderWrapper)p;
-            providers.add(p);
-            updateMaxReqCapacity();
-            hw.resetFlags(false);
+            ((HealthAwareProviderWrapper)p).resetFlags(false);
+            if(cluster != null) {
+                cluster.publishExclusion(id, false);
+            }
         }
         
         return (p != null);
@@ -152,65 +1120,680 @@ public class LoadBalancer {
      * @param id ID of the provider to be excluded
      * @return true if excluded, false otherwise
      */
-    public synchronized boolean exclude(String id) {
-        for(Provider p : providers) {
-            if(p.id().equals(id)) {
-                providers.remove(p);
-                HealthAwareProviderWrapper hw = (HealthAwareProviderWrapper)p;
-                inactiveProviders.put(id, p);
-                updateMaxReqCapacity();
-                hw.resetFlags(true);
-                return true;
+    public boolean exclude(String id) {
+        HealthAwareProviderWrapper hw = (HealthAwareProviderWrapper) registry.exclude(id);
+
+        // see include(String) for why this is done outside the lock
+        if(hw != null) {
+            hw.resetFlags(true);
+            if(cluster != null) {
+                cluster.publishExclusion(id, true);
             }
         }
         
-        return false;
+        return (hw != null);
+    }
+
+    /**
+     * Returns the kind of threads in use, this will be {@link ExecutionMode#PLATFORM_THREADS}
+     * if virtual threads were requested but are not supported by the runtime
+     */
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    /**
+     * Returns the number of requests that were admitted and haven't completed yet
+     */
+    public int getPendingRequestCount() {
+        return pendingReqCount.get();
+    }
+
+    /**
+     * Returns the max number of requests that can be pending at any given time
+     */
+    public int getMaxRequestCapacity() {
+        return registry.capacity();
+    }
+
+    /**
+     * Returns the number of requests that are currently being served by the provider with the given ID
+     *
+     * @param id ID of the provider, either active or inactive
+     * @return the number of in-flight requests or -1 if there is no provider with the given ID
+     */
+    public int getInFlightCount(String id) {
+        Provider p = registry.get(id);
+        if(p == null) {
+            return -1;
+        }
+
+        return ((HealthAwareProviderWrapper)p).inFlight();
+    }
+
+    /**
+     * Same as {@link #getInFlightCount(String)} but includes the requests in-flight at the other nodes
+     * of the cluster, as of their last gossip messages
+     *
+     * @param id ID of the provider, either active or inactive
+     * @return the number of in-flight requests or -1 if there is no provider with the given ID
+     */
+    public int getClusterInFlightCount(String id) {
+        int local = getInFlightCount(id);
+        if(local < 0 || cluster == null) {
+            return local;
+        }
+
+        return local + cluster.remoteInFlight(id);
+    }
+
+    /**
+     * Returns the address the cluster node listens on, other nodes can use it as a seed
+     *
+     * @return the address or null if not in cluster mode
+     */
+    public InetSocketAddress getClusterAddress() {
+        return (cluster == null) ? null : cluster.address();
+    }
+
+    /**
+     * Returns a snapshot of the counters and latency histograms of this LoadBalancer and its providers
+     */
+    public LoadBalancerMetrics getMetrics() {
+        List<ProviderMetrics> pms = new ArrayList<>();
+        for(Provider p : registry.snapshot()) {
+            pms.add(((HealthAwareProviderWrapper)p).metrics(true));
+        }
+        for(Provider p : registry.inactive().values()) {
+            pms.add(((HealthAwareProviderWrapper)p).metrics(false));
+        }
+
+        return new LoadBalancerMetrics(requestCount(), rejectionCount(), successCount(), failureCount(),
+                hedgeCount(), retryCount(), cacheHitCount(), cacheMissCount(), pendingReqCount.get(), registry.capacity(),
+                responseTime.snapshot(), serviceTime.snapshot(), queueWait.snapshot(), pms);
+    }
+
+    // the counters read without taking the snapshots of getMetrics(), see LoadBalancerJmx
+
+    long requestCount() {
+        return requestCount.sum();
+    }
+
+    long rejectionCount() {
+        return rejectionCount.sum();
+    }
+
+    long successCount() {
+        return successCount.sum();
+    }
+
+    long failureCount() {
+        return failureCount.sum();
+    }
+
+    long hedgeCount() {
+        return hedgeCount.sum();
+    }
+
+    long retryCount() {
+        return retryCount.sum();
+    }
+
+    long cacheHitCount() {
+        return (cache == null) ? 0 : cache.hitCount();
+    }
+
+    long cacheMissCount() {
+        return (cache == null) ? 0 : cache.missCount();
+    }
+
+    /**
+     * Registers a {@link LoadBalancerMXBean} with the platform MBean server under the name
+     * <code>com.kayyagari:type=LoadBalancer,name=&lt;name&gt;</code>, it is unregistered by {@link #shutdown()}
+     *
+     * @param name the name distinguishing this LoadBalancer from others in the same JVM
+     */
+    public synchronized void registerMBean(String name) {
+        if(mbeanName != null) {
+            throw new IllegalStateException("MXBean is already registered as " + mbeanName);
+        }
+
+        try {
+            ObjectName on = new ObjectName("com.kayyagari:type=LoadBalancer,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new LoadBalancerJmx(this), on);
+            mbeanName = on;
+        }
+        catch(JMException e) {
+            throw new IllegalStateException("failed to register the MXBean", e);
+        }
     }
 
     /**
-     * updates the max request capacity. This should be called whenever the active providers list changes 
+     * Stops the health checks and the request processing threads.
+     * Requests that are still pending will be interrupted.
      */
-    private synchronized void updateMaxReqCapacity() {
-        maxReqCapacity.set(providers.size() * MAX_REQ_PER_PROVIDER);
+    public void shutdown() {
+        unregisterMBean();
+        if(cluster != null) {
+            cluster.stop();
+        }
+        healthChecker.shutdown();
+        if(hedger != null) {
+            hedger.stop();
+        }
+        if(requestQueue != null) {
+            requestQueue.shutdownNow();
+        }
+        else {
+            requestPool.shutdownNow();
+        }
+    }
+
+    private synchronized void unregisterMBean() {
+        if(mbeanName == null) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+        }
+        catch(JMException e) {
+            // already unregistered by someone else
+        }
+        mbeanName = null;
     }
 
     /**
      * A wrapper for Provider instances to help in handling the automatic exclusion and inclusion of
-     * wrapped Providers based on their health. 
+     * wrapped Providers based on their health.
+     *
+     * Besides the health checks the outcome of every call is tracked by a {@link CircuitBreaker}, a provider
+     * that passes check() but fails too many calls is excluded as soon as its breaker opens. When the open
+     * duration ends it is included again, but with only one in-flight request allowed until enough trials
+     * succeed. The provider is active only if neither the health checks nor the breaker exclude it.
      */
-    private static class HealthAwareProviderWrapper implements Provider {
+    private static class HealthAwareProviderWrapper implements MeteredProvider {
         private Provider wrapped;
+        private final int weight;
+        private final Locality locality;
         private LoadBalancer lb;
         private int successCount;
         private boolean excluded;
 
-        private ScheduledFuture<?> future;
-        private Runnable command = new Runnable() {
+        /** the number of requests that are currently being served by this provider */
+        private final AtomicInteger inFlight = new AtomicInteger(0);
+
+        /** the latency of the successful calls to get() */
+        private final PeakEwma latency = new PeakEwma(LATENCY_DECAY_MILLIS);
+
+        /** the distribution of the latency of the successful calls, for the metrics */
+        private final LatencyHistogram serviceTime = new LatencyHistogram();
+
+        private final LongAdder requests = new LongAdder();
+
+        private final LongAdder failures = new LongAdder();
+
+        private HealthCheckScheduler.Registration healthCheck;
+
+        /** null if the circuit breakers are disabled */
+        private final CircuitBreaker breaker;
+
+        /** null if the adaptive limits are disabled */
+        private final AdaptiveConcurrencyLimit concurrencyLimit;
+
+        /**
+         * Calls the wrapped provider and releases the in-flight slot, that was acquired
+         * by the caller, when the response is available.
+         *
+         * Cancelling the returned future cancels the call, i.e. the future returned by an {@link AsyncProvider}
+         * is cancelled, and the get() of other providers is either never started or interrupted.
+         * The slot is still released only after the provider returns.
+         *
+         * @param priority the priority class of the call in the request queue
+         * @param mayBlock false if the caller must not block when the request queue is full
+         */
+        private CompletableFuture<String> dispatch(Priority priority, boolean mayBlock) {
+            if(wrapped instanceof AsyncProvider) {
+                return execute(p -> ((AsyncProvider)p).getAsync());
+            }
+
+            requests.increment();
+            CompletableFuture<String> response;
+            Runnable canceller = null;
+            try {
+                final BlockingCall<String> call = new BlockingCall<>(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return wrapped.get();
+                    }
+                }, 1);
+                call.priority = priority;
+                response = call.submit(mayBlock);
+                canceller = () -> call.cancel();
+            }
+            catch(RuntimeException e) {
+                // the request pool is shutdown
+                response = new CompletableFuture<>();
+                response.completeExceptionally(e);
+            }
+
+            track(response, 1);
+            return relay(response.whenComplete((val, e) -> completed(e, 1)), canceller);
+        }
+
+        /**
+         * Applies the given non-blocking call to the wrapped provider, the in-flight slot must have been
+         * acquired by the caller and is released when the returned future completes.
+         *
+         * Cancelling the returned future cancels the future returned by the call.
+         */
+        private <T> CompletableFuture<T> execute(Function<? super Provider, CompletableFuture<T>> call) {
+            PendingCall<T> pending = start(call);
+            return relay(pending.settled, pending.canceller);
+        }
+
+        /**
+         * Same as {@link #execute(Function)} except that the returned call is not relayed, its future
+         * completes after the slot was released
+         */
+        private <T> PendingCall<T> start(Function<? super Provider, CompletableFuture<T>> call) {
+            requests.increment();
+            CompletableFuture<T> response;
+            Runnable canceller = null;
+            try {
+                final long start = System.nanoTime();
+                final CompletableFuture<T> source = call.apply(wrapped);
+                response = source.whenComplete((val, e) -> {
+                    if(e == null) {
+                        long nanos = System.nanoTime() - start;
+                        observeLatency(nanos, nanos);
+                    }
+                });
+                canceller = () -> source.cancel(true);
+            }
+            catch(RuntimeException e) {
+                // the provider failed before returning a future
+                response = new CompletableFuture<>();
+                response.completeExceptionally(e);
+            }
+
+            track(response, 1);
+            return new PendingCall<>(response.whenComplete((val, e) -> completed(e, 1)), canceller);
+        }
+
+        /**
+         * Opens a connection relayed until the future returned by the given call completes, the in-flight slot
+         * must have been acquired by the caller. Only the failure of the connection is recorded, its lifetime
+         * is not a latency.
+         */
+        private <T> CompletableFuture<T> connect(Function<? super Provider, CompletableFuture<T>> call) {
+            requests.increment();
+            CompletableFuture<T> response;
+            Runnable canceller = null;
+            try {
+                final CompletableFuture<T> source = call.apply(wrapped);
+                response = source;
+                canceller = () -> source.cancel(true);
+            }
+            catch(RuntimeException e) {
+                response = new CompletableFuture<>();
+                response.completeExceptionally(e);
+            }
+
+            if(breaker != null) {
+                // without the call timeout of track()
+                response.whenComplete((val, e) -> {
+                    if(e == null || isProviderFailure(e)) {
+                        recordOutcome(e == null, 1);
+                    }
+                });
+            }
+
+            return relay(response.whenComplete((val, e) -> {
+                release(1);
+                if(e != null && isProviderFailure(e)) {
+                    failures.increment();
+                }
+            }), canceller);
+        }
+
+        /**
+         * A call to a blocking provider on a thread of the request pool. It can be cancelled, and rejected
+         * by the request queue, until it starts, after that cancelling it interrupts the thread.
+         */
+        private class BlockingCall<T> extends RequestQueue.Task {
+            private static final int QUEUED = 0;
+            private static final int RUNNING = 1;
+            private static final int INTERRUPTING = 2;
+            private static final int DONE = 3;
+
+            private final CompletableFuture<T> response = new CompletableFuture<>();
+
+            private final AtomicInteger state = new AtomicInteger(QUEUED);
+
+            private final Callable<T> body;
+
+            /** the number of requests served by the call */
+            private final int count;
+
+            private final long submittedAt = System.nanoTime();
+
+            private volatile Thread runner;
+
+            private BlockingCall(Callable<T> body, int count) {
+                this.body = body;
+                this.count = count;
+            }
+
             @Override
             public void run() {
-                check();
+                runner = Thread.currentThread();
+                if(!state.compareAndSet(QUEUED, RUNNING)) {
+                    return;
+                }
+
+                T val = null;
+                Throwable failure = null;
+                // the time spent waiting in the request pool's queue is not the provider's latency
+                long start = System.nanoTime();
+                lb.queueWait.record(start - submittedAt);
+                try {
+                    val = body.call();
+                }
+                catch(Throwable e) {
+                    failure = e;
+                }
+
+                if(!state.compareAndSet(RUNNING, DONE)) {
+                    // cancelled while running, wait for the interrupt to be delivered so that it
+                    // cannot hit the next task of this thread, then clear it
+                    while(state.get() == INTERRUPTING) {
+                        Thread.yield();
+                    }
+                    Thread.interrupted();
+                    response.cancel(false);
+                }
+                else if(failure != null) {
+                    response.completeExceptionally(failure);
+                }
+                else {
+                    // the latency is tracked per request, the limit follows the latency including the
+                    // queue wait, otherwise it keeps growing while the calls pile up in the queue
+                    long end = System.nanoTime();
+                    observeLatency((end - start) / count, (end - submittedAt) / count);
+                    response.complete(val);
+                }
+            }
+
+            private void cancel() {
+                if(state.compareAndSet(QUEUED, DONE)) {
+                    // will never run
+                    response.cancel(false);
+                }
+                else if(state.compareAndSet(RUNNING, INTERRUPTING)) {
+                    runner.interrupt();
+                    state.set(DONE);
+                }
+            }
+
+            @Override
+            void reject(CapacityExceededException e) {
+                if(state.compareAndSet(QUEUED, DONE)) {
+                    lb.rejectionCount.add(count);
+                    response.completeExceptionally(e);
+                }
+            }
+
+            private CompletableFuture<T> submit(boolean mayBlock) {
+                if(lb.requestQueue != null) {
+                    lb.requestQueue.execute(this, mayBlock);
+                }
+                else {
+                    lb.requestPool.execute(this);
+                }
+
+                return response;
+            }
+        }
+
+        /**
+         * @param nanos the time the provider took
+         * @param rttNanos the time since the call was submitted, used by the adaptive limit
+         */
+        private void observeLatency(long nanos, long rttNanos) {
+            latency.observe(nanos);
+            serviceTime.record(nanos);
+            lb.serviceTime.record(nanos);
+            if(lb.hedger != null) {
+                lb.hedger.observe(nanos);
+            }
+
+            if(concurrencyLimit != null && concurrencyLimit.onSample(rttNanos, inFlight())) {
+                lb.registry.limitChanged(this);
+            }
+        }
+
+        /**
+         * Calls the wrapped provider for the given number of requests, the in-flight slots
+         * must have been acquired by the caller for all of them. The returned call completes
+         * after all the slots were released.
+         */
+        private PendingCall<List<String>> dispatchBatch(final int count) {
+            // each request is counted by start()
+            if(wrapped instanceof AsyncProvider && !(wrapped instanceof BatchProvider)) {
+                final List<PendingCall<String>> each = new ArrayList<>(count);
+                CompletableFuture<?>[] settled = new CompletableFuture<?>[count];
+                for(int i=0; i < count; i++) {
+                    PendingCall<String> c = start(p -> ((AsyncProvider)p).getAsync());
+                    settled[i] = c.settled;
+                    each.add(c);
+                }
+
+                return new PendingCall<>(CompletableFuture.allOf(settled).thenApply(v -> {
+                    List<String> vals = new ArrayList<>(count);
+                    for(PendingCall<String> c : each) {
+                        vals.add(c.settled.join());
+                    }
+                    return vals;
+                }), new Runnable() {
+                    @Override
+                    public void run() {
+                        for(PendingCall<String> c : each) {
+                            c.cancel();
+                        }
+                    }
+                });
+            }
+
+            requests.add(count);
+            CompletableFuture<List<String>> response;
+            Runnable canceller = null;
+            try {
+                final BlockingCall<List<String>> call = new BlockingCall<>(() -> {
+                    List<String> vals;
+                    if(wrapped instanceof BatchProvider) {
+                        vals = ((BatchProvider)wrapped).getBatch(count);
+                        if(vals.size() != count) {
+                            throw new IllegalStateException("provider " + wrapped.id() + " returned " + vals.size()
+                                    + " values for a batch of " + count);
+                        }
+                    }
+                    else {
+                        vals = new ArrayList<>(count);
+                        for(int i=0; i < count; i++) {
+                            vals.add(wrapped.get());
+                        }
+                    }
+
+                    return vals;
+                }, count);
+                response = call.submit(true);
+                canceller = () -> call.cancel();
+            }
+            catch(RuntimeException e) {
+                response = new CompletableFuture<>();
+                response.completeExceptionally(e);
+            }
+
+            track(response, count);
+            return new PendingCall<>(response.whenComplete((vals, e) -> completed(e, count)), canceller);
+        }
+
+        /**
+         * Records the outcome of the given call in the circuit breaker when it completes. If a call timeout
+         * is set and the call is still running when it passes, the call is counted as failed right away.
+         *
+         * @param count the number of requests the call serves
+         */
+        private void track(CompletableFuture<?> response, final int count) {
+            if(breaker == null) {
+                return;
+            }
+
+            long timeoutMillis = lb.breakerConfig.getCallTimeoutMillis();
+            if(timeoutMillis <= 0) {
+                response.whenComplete((val, e) -> {
+                    if(e == null || isProviderFailure(e)) {
+                        recordOutcome(e == null, count);
+                    }
+                });
+                return;
+            }
+
+            final AtomicBoolean recorded = new AtomicBoolean();
+            final HashedWheelTimer.Timeout timeout;
+            try {
+                timeout = lb.healthChecker.timer().newTimeout(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(recorded.compareAndSet(false, true)) {
+                            recordOutcome(false, count);
+                        }
+                    }
+                }, timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+            catch(IllegalStateException e) {
+                // shutdown
+                return;
+            }
+
+            response.whenComplete((val, e) -> {
+                if(recorded.compareAndSet(false, true)) {
+                    timeout.cancel();
+                    if(e == null || isProviderFailure(e)) {
+                        recordOutcome(e == null, count);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Returns true if the given exception was thrown by the provider, false if the call was cancelled
+         * or never reached the provider because the request queue rejected it
+         */
+        private static boolean isProviderFailure(Throwable e) {
+            if(e instanceof CompletionException) {
+                e = e.getCause();
+            }
+
+            return !(e instanceof CancellationException || e instanceof CapacityExceededException);
+        }
+
+        private void recordOutcome(boolean success, int count) {
+            for(int i=0; i < count; i++) {
+                if(breaker.record(success)) {
+                    breakerOpened();
+                }
+            }
+        }
+
+        private void breakerOpened() {
+            synchronized(this) {
+                lb.exclude(this);
+            }
+
+            try {
+                lb.healthChecker.timer().newTimeout(new Runnable() {
+                    @Override
+                    public void run() {
+                        breakerHalfOpened();
+                    }
+                }, lb.breakerConfig.getOpenMillis(), TimeUnit.MILLISECONDS);
+            }
+            catch(IllegalStateException e) {
+                // shutdown
+            }
+        }
+
+        private synchronized void breakerHalfOpened() {
+            // a provider excluded by the health checks or manually stays excluded until they include it
+            if(breaker.halfOpen() && !excluded) {
+                lb.include(this);
+            }
+        }
+
+        /**
+         * Returns the max number of in-flight requests this provider accepts at the moment
+         */
+        @Override
+        public int limit() {
+            if(breaker != null && breaker.state() == CircuitBreaker.State.HALF_OPEN) {
+                return 1;
+            }
+
+            return baseLimit();
+        }
+
+        /**
+         * Returns the limit of in-flight requests of a healthy provider, it changes over time
+         * when the adaptive limits are enabled
+         */
+        private int baseLimit() {
+            if(concurrencyLimit != null) {
+                return concurrencyLimit.get();
             }
-        };
 
-        private HealthAwareProviderWrapper(Provider wrapped, LoadBalancer lb) {
+            return weight * MAX_REQ_PER_PROVIDER;
+        }
+
+        private HealthAwareProviderWrapper(Provider wrapped, int weight, Locality locality, LoadBalancer lb) {
             this.wrapped = wrapped;
+            this.weight = weight;
+            this.locality = locality;
             this.lb = lb;
-            enableHealthCheck();
+            this.breaker = (lb.breakerConfig == null) ? null : new CircuitBreaker(lb.breakerConfig);
+            // a blocking provider cannot be served by more calls than the threads of the request queue
+            int ceiling = (wrapped instanceof AsyncProvider || lb.requestQueue == null) ? Integer.MAX_VALUE : lb.requestQueue.threadCount();
+            this.concurrencyLimit = (lb.adaptiveLimitConfig == null) ? null
+                    : new AdaptiveConcurrencyLimit(weight * MAX_REQ_PER_PROVIDER, ceiling, lb.adaptiveLimitConfig);
+            // in cluster mode the provider is probed only by one of the nodes
+            Provider probed = (lb.cluster == null) ? wrapped : lb.cluster.probe(wrapped);
+            this.healthCheck = lb.healthChecker.register(probed, new HealthCheckScheduler.Listener() {
+                @Override
+                public void healthChecked(boolean healthy) {
+                    HealthAwareProviderWrapper.this.healthChecked(healthy);
+                }
+            });
         }
 
-        private void enableHealthCheck() {
-            future = lb.healthCheckExecutor.scheduleWithFixedDelay(command, 0, HEART_BEAT_INTERVAL, TimeUnit.SECONDS);
+        @Override
+        public boolean check() {
+            boolean h = wrapped.check();
+            healthChecked(h);
+            return h;
         }
 
         // need to synchronize due to the requirement - Step 5 – Manual node exclusion / inclusion
-        @Override
-        public synchronized boolean check() {
-            boolean h = wrapped.check();
+        private synchronized void healthChecked(boolean h) {
             if(h) {
                 //System.out.println(wrapped.id() + " is healthy");
                 successCount++;
                 if(excluded && successCount == 2) {
-                    lb.include(this);
+                    // a provider whose breaker is open gets included when the breaker becomes half-open
+                    if(breaker == null || breaker.state() != CircuitBreaker.State.OPEN) {
+                        lb.include(this);
+                    }
+                    excluded = false;
                 }
             }
             else {
@@ -225,27 +1808,88 @@ public class LoadBalancer {
             if(successCount > 2) {
                 successCount = 0;
             }
-
-            return h;
         }
         
-        // resets the successCount and excluded flags
+        // resets the successCount and excluded flags, and closes the circuit breaker on manual inclusion
         // called by the include(String) and exclude(String) methods 
         public synchronized void resetFlags(boolean excluded) {
-            future.cancel(true);
             successCount = 0;
             this.excluded = excluded;
-            enableHealthCheck();
+            if(!excluded && breaker != null) {
+                breaker.close();
+            }
+            healthCheck.restart();
+        }
+
+        public synchronized void cancel() {
+            healthCheck.cancel();
+        }
+
+        /**
+         * Increments the in-flight count if it is below the given limit
+         *
+         * @return true if incremented, false if the limit has been reached
+         */
+        private boolean tryAcquire(int limit) {
+            while(true) {
+                int current = inFlight.get();
+                if(current >= limit) {
+                    return false;
+                }
+
+                if(inFlight.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        private void release(int n) {
+            inFlight.addAndGet(-n);
+        }
+
+        /**
+         * Releases the slots of the given number of requests and counts them
+         */
+        private void completed(Throwable e, int count) {
+            release(count);
+            if(e != null && isProviderFailure(e)) {
+                failures.add(count);
+                if(concurrencyLimit != null && concurrencyLimit.onFailure()) {
+                    lb.registry.limitChanged(this);
+                }
+            }
         }
 
-        public synchronized boolean cancel() {
-            return future.cancel(true);
+        private ProviderMetrics metrics(boolean active) {
+            String breakerState = (breaker == null) ? null : breaker.state().name();
+            return new ProviderMetrics(id(), active, weight, baseLimit(), inFlight(), requests.sum(), failures.sum(),
+                    latency.get(), breakerState, serviceTime.snapshot());
         }
 
         @Override
         public String get() {
             return wrapped.get();
         }
+
+        @Override
+        public int inFlight() {
+            return inFlight.get();
+        }
+
+        @Override
+        public double expectedLatencyNanos() {
+            return latency.get();
+        }
+
+        @Override
+        public int weight() {
+            return weight;
+        }
+
+        @Override
+        public Locality locality() {
+            return locality;
+        }
         
         @Override
         public String id() {
@@ -255,21 +1899,25 @@ public class LoadBalancer {
     
     // ----- helper methods for unit testing
     
-    /*default protected*/ List<Provider> getProviders() {
-        return providers;
+    /*default protected*/ ProviderSnapshot getProviders() {
+        return registry.snapshot();
     }
 
     /*default protected*/ Map<String, Provider> getInactiveProviders() {
-        return inactiveProviders;
+        return registry.inactive();
     }
     
+    /*default protected*/ GossipNode getCluster() {
+        return cluster;
+    }
+
     /*default protected*/ void changeStrategy(LoadBalancingStrategy strategy) {
         this.strategy = strategy;
     }
     
-    /*default protected*/ synchronized void removeActiveProviderAt(int index) {
-        HealthAwareProviderWrapper hw = (HealthAwareProviderWrapper) providers.remove(index);
+    /*default protected*/ void removeActiveProviderAt(int index) {
+        HealthAwareProviderWrapper hw = (HealthAwareProviderWrapper) registry.snapshot().get(index);
+        registry.remove(hw.id());
         hw.cancel();
-        updateMaxReqCapacity();        
     }
 }
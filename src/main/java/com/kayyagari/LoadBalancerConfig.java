@@ -0,0 +1,302 @@
+package com.kayyagari;
+
+/**
+ * Holds the settings of a LoadBalancer that must be chosen when it is created.
+ * The defaults are the same as those used by {@link LoadBalancer#LoadBalancer(LoadBalancingStrategy)}.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public class LoadBalancerConfig {
+    private ExecutionMode executionMode = ExecutionMode.PLATFORM_THREADS;
+
+    private long healthCheckTimeoutMillis = 1000;
+
+    private int healthCheckThreads = 2;
+
+    private int maxProviders = LoadBalancer.MAX_NUM_PROVIDERS;
+
+    private int requestThreads = LoadBalancer.MAX_NUM_PROVIDERS;
+
+    private int queueCapacity = 1000;
+
+    private OverloadPolicy overloadPolicy = OverloadPolicy.REJECT;
+
+    private long queueBlockTimeoutMillis = 100;
+
+    private long queueTargetDelayMillis = 5;
+
+    private long queueIntervalMillis = 100;
+
+    private CircuitBreakerConfig circuitBreakerConfig;
+
+    private HedgingConfig hedgingConfig;
+
+    private RetryConfig retryConfig;
+
+    private AdaptiveLimitConfig adaptiveLimitConfig;
+
+    private CacheConfig cacheConfig;
+
+    private ClusterConfig clusterConfig;
+
+    private PriorityConfig priorityConfig = new PriorityConfig();
+
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    public LoadBalancerConfig setExecutionMode(ExecutionMode executionMode) {
+        if(executionMode == null) {
+            throw new IllegalArgumentException("execution mode cannot be null");
+        }
+
+        this.executionMode = executionMode;
+        return this;
+    }
+
+    public long getHealthCheckTimeoutMillis() {
+        return healthCheckTimeoutMillis;
+    }
+
+    /**
+     * Sets the max time a provider's check() is allowed to take, a provider whose check
+     * doesn't return in time is considered unhealthy
+     */
+    public LoadBalancerConfig setHealthCheckTimeoutMillis(long healthCheckTimeoutMillis) {
+        if(healthCheckTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("health check timeout must be positive");
+        }
+
+        this.healthCheckTimeoutMillis = healthCheckTimeoutMillis;
+        return this;
+    }
+
+    public int getHealthCheckThreads() {
+        return healthCheckThreads;
+    }
+
+    /**
+     * Sets the number of threads that run the health checks of all the providers
+     */
+    public LoadBalancerConfig setHealthCheckThreads(int healthCheckThreads) {
+        if(healthCheckThreads < 1) {
+            throw new IllegalArgumentException("at least one health check thread is needed");
+        }
+
+        this.healthCheckThreads = healthCheckThreads;
+        return this;
+    }
+
+    public int getMaxProviders() {
+        return maxProviders;
+    }
+
+    /**
+     * Sets the max number of providers, active or inactive, that can be added to the LoadBalancer.
+     * It does not change the number of threads calling the blocking providers, see {@link #setRequestThreads(int)}.
+     */
+    public LoadBalancerConfig setMaxProviders(int maxProviders) {
+        if(maxProviders < 1) {
+            throw new IllegalArgumentException("at least one provider must be allowed");
+        }
+
+        this.maxProviders = maxProviders;
+        return this;
+    }
+
+    public int getRequestThreads() {
+        return requestThreads;
+    }
+
+    /**
+     * Sets the number of platform threads calling the blocking providers in {@link ExecutionMode#PLATFORM_THREADS},
+     * shared by all the providers. An adaptive concurrency limit of a blocking provider never grows beyond it,
+     * since the calls beyond the number of threads only wait in the queue. Ignored with virtual threads.
+     * Defaults to {@link LoadBalancer#MAX_NUM_PROVIDERS}.
+     */
+    public LoadBalancerConfig setRequestThreads(int requestThreads) {
+        if(requestThreads < 1) {
+            throw new IllegalArgumentException("at least one request thread is needed");
+        }
+
+        this.requestThreads = requestThreads;
+        return this;
+    }
+
+    public CircuitBreakerConfig getCircuitBreakerConfig() {
+        return circuitBreakerConfig;
+    }
+
+    /**
+     * Enables the circuit breakers of the providers with the given settings, null disables them.
+     * The circuit breakers are disabled by default.
+     */
+    public LoadBalancerConfig setCircuitBreakerConfig(CircuitBreakerConfig circuitBreakerConfig) {
+        this.circuitBreakerConfig = circuitBreakerConfig;
+        return this;
+    }
+
+    public HedgingConfig getHedgingConfig() {
+        return hedgingConfig;
+    }
+
+    /**
+     * Enables hedging of the requests sent by {@link LoadBalancer#get()} and {@link LoadBalancer#getAsync()}
+     * with the given settings, null disables it. Hedging is disabled by default.
+     */
+    public LoadBalancerConfig setHedgingConfig(HedgingConfig hedgingConfig) {
+        this.hedgingConfig = hedgingConfig;
+        return this;
+    }
+
+    public RetryConfig getRetryConfig() {
+        return retryConfig;
+    }
+
+    /**
+     * Enables the retries of the failed requests sent by {@link LoadBalancer#get()} and
+     * {@link LoadBalancer#getAsync()} with the given settings, null disables them. Retries are
+     * disabled by default.
+     */
+    public LoadBalancerConfig setRetryConfig(RetryConfig retryConfig) {
+        this.retryConfig = retryConfig;
+        return this;
+    }
+
+    public AdaptiveLimitConfig getAdaptiveLimitConfig() {
+        return adaptiveLimitConfig;
+    }
+
+    /**
+     * Enables the adaptive concurrency limits of the providers with the given settings, null disables them.
+     * When disabled, which is the default, a provider accepts up to weight * {@link LoadBalancer#MAX_REQ_PER_PROVIDER}
+     * requests at a time.
+     */
+    public LoadBalancerConfig setAdaptiveLimitConfig(AdaptiveLimitConfig adaptiveLimitConfig) {
+        this.adaptiveLimitConfig = adaptiveLimitConfig;
+        return this;
+    }
+
+    public CacheConfig getCacheConfig() {
+        return cacheConfig;
+    }
+
+    /**
+     * Enables the caching of the responses of keyed requests with the given settings, null disables it.
+     * Caching is disabled by default.
+     */
+    public LoadBalancerConfig setCacheConfig(CacheConfig cacheConfig) {
+        this.cacheConfig = cacheConfig;
+        return this;
+    }
+
+    public ClusterConfig getClusterConfig() {
+        return clusterConfig;
+    }
+
+    /**
+     * Enables the cluster mode with the given settings, null disables it. In cluster mode the LoadBalancer
+     * shares the health, the manual exclusions and the load of its providers with other LoadBalancers.
+     * The cluster mode is disabled by default.
+     */
+    public LoadBalancerConfig setClusterConfig(ClusterConfig clusterConfig) {
+        this.clusterConfig = clusterConfig;
+        return this;
+    }
+
+    public PriorityConfig getPriorityConfig() {
+        return priorityConfig;
+    }
+
+    /**
+     * Sets the weights and the reserved capacity of the priority classes
+     */
+    public LoadBalancerConfig setPriorityConfig(PriorityConfig priorityConfig) {
+        if(priorityConfig == null) {
+            throw new IllegalArgumentException("priority config cannot be null");
+        }
+
+        this.priorityConfig = priorityConfig;
+        return this;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Sets the max number of calls to blocking providers that can wait for a thread when the
+     * execution mode is {@link ExecutionMode#PLATFORM_THREADS}. Virtual threads are not queued,
+     * they are only limited by the capacity of the providers.
+     */
+    public LoadBalancerConfig setQueueCapacity(int queueCapacity) {
+        if(queueCapacity < 1) {
+            throw new IllegalArgumentException("queue capacity must be at least 1");
+        }
+
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    public OverloadPolicy getOverloadPolicy() {
+        return overloadPolicy;
+    }
+
+    public LoadBalancerConfig setOverloadPolicy(OverloadPolicy overloadPolicy) {
+        if(overloadPolicy == null) {
+            throw new IllegalArgumentException("overload policy cannot be null");
+        }
+
+        this.overloadPolicy = overloadPolicy;
+        return this;
+    }
+
+    public long getQueueBlockTimeoutMillis() {
+        return queueBlockTimeoutMillis;
+    }
+
+    /**
+     * Sets the max time a caller waits for space in the queue, used by {@link OverloadPolicy#BLOCK}
+     */
+    public LoadBalancerConfig setQueueBlockTimeoutMillis(long queueBlockTimeoutMillis) {
+        if(queueBlockTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("block timeout must be positive");
+        }
+
+        this.queueBlockTimeoutMillis = queueBlockTimeoutMillis;
+        return this;
+    }
+
+    public long getQueueTargetDelayMillis() {
+        return queueTargetDelayMillis;
+    }
+
+    /**
+     * Sets the max time a call waits in an overloaded queue, used by {@link OverloadPolicy#ADAPTIVE_LIFO}
+     */
+    public LoadBalancerConfig setQueueTargetDelayMillis(long queueTargetDelayMillis) {
+        if(queueTargetDelayMillis <= 0) {
+            throw new IllegalArgumentException("target delay must be positive");
+        }
+
+        this.queueTargetDelayMillis = queueTargetDelayMillis;
+        return this;
+    }
+
+    public long getQueueIntervalMillis() {
+        return queueIntervalMillis;
+    }
+
+    /**
+     * Sets the time the queue must stay non-empty to be considered overloaded, it is also the max time
+     * a call waits when the queue is not overloaded. Used by {@link OverloadPolicy#ADAPTIVE_LIFO}.
+     */
+    public LoadBalancerConfig setQueueIntervalMillis(long queueIntervalMillis) {
+        if(queueIntervalMillis <= 0) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+
+        this.queueIntervalMillis = queueIntervalMillis;
+        return this;
+    }
+}
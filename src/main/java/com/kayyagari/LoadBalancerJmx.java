@@ -0,0 +1,146 @@
+package com.kayyagari;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exposes the metrics of a LoadBalancer as an MXBean
+ *
+ * The counters are read as they are. The percentiles and the per provider values come from a
+ * {@link LoadBalancerMetrics} snapshot that is reused for {@link #SNAPSHOT_TTL_MILLIS}, so a scrape
+ * reading all the attributes snapshots the histograms once instead of once per attribute.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+final class LoadBalancerJmx implements LoadBalancerMXBean {
+    /** the max age of the snapshot the percentiles are read from */
+    static final long SNAPSHOT_TTL_MILLIS = 1000;
+
+    private final LoadBalancer lb;
+
+    private final long snapshotTtlNanos;
+
+    /** the last snapshot, guarded by this */
+    private LoadBalancerMetrics snapshot;
+
+    /** the System.nanoTime() when the last snapshot was taken, guarded by this */
+    private long snapshotAt;
+
+    LoadBalancerJmx(LoadBalancer lb) {
+        this(lb, SNAPSHOT_TTL_MILLIS);
+    }
+
+    LoadBalancerJmx(LoadBalancer lb, long snapshotTtlMillis) {
+        this.lb = lb;
+        this.snapshotTtlNanos = TimeUnit.MILLISECONDS.toNanos(snapshotTtlMillis);
+    }
+
+    /**
+     * Returns the last snapshot of the metrics, taking a new one if it is older than the TTL
+     */
+    private synchronized LoadBalancerMetrics snapshot() {
+        long now = System.nanoTime();
+        if(snapshot == null || now - snapshotAt >= snapshotTtlNanos) {
+            snapshot = lb.getMetrics();
+            snapshotAt = now;
+        }
+
+        return snapshot;
+    }
+
+    @Override
+    public long getRequestCount() {
+        return lb.requestCount();
+    }
+
+    @Override
+    public long getRejectionCount() {
+        return lb.rejectionCount();
+    }
+
+    @Override
+    public long getSuccessCount() {
+        return lb.successCount();
+    }
+
+    @Override
+    public long getFailureCount() {
+        return lb.failureCount();
+    }
+
+    @Override
+    public long getHedgeCount() {
+        return lb.hedgeCount();
+    }
+
+    @Override
+    public long getRetryCount() {
+        return lb.retryCount();
+    }
+
+    @Override
+    public long getCacheHitCount() {
+        return lb.cacheHitCount();
+    }
+
+    @Override
+    public long getCacheMissCount() {
+        return lb.cacheMissCount();
+    }
+
+    @Override
+    public int getPendingRequestCount() {
+        return lb.getPendingRequestCount();
+    }
+
+    @Override
+    public int getMaxRequestCapacity() {
+        return lb.getMaxRequestCapacity();
+    }
+
+    @Override
+    public int getActiveProviderCount() {
+        return lb.getProviders().size();
+    }
+
+    @Override
+    public double getResponseTimeP50Millis() {
+        return snapshot().getResponseTime().getPercentileMillis(0.5);
+    }
+
+    @Override
+    public double getResponseTimeP99Millis() {
+        return snapshot().getResponseTime().getPercentileMillis(0.99);
+    }
+
+    @Override
+    public double getResponseTimeP999Millis() {
+        return snapshot().getResponseTime().getPercentileMillis(0.999);
+    }
+
+    @Override
+    public double getQueueWaitP99Millis() {
+        return snapshot().getQueueWait().getPercentileMillis(0.99);
+    }
+
+    @Override
+    public Map<String, Double> getProviderServiceTimeP99Millis() {
+        Map<String, Double> p99s = new LinkedHashMap<>();
+        for(ProviderMetrics pm : snapshot().getProviders()) {
+            p99s.put(pm.getId(), pm.getServiceTime().getPercentileMillis(0.99));
+        }
+
+        return p99s;
+    }
+
+    @Override
+    public Map<String, Long> getProviderRequestCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for(ProviderMetrics pm : snapshot().getProviders()) {
+            counts.put(pm.getId(), pm.getRequestCount());
+        }
+
+        return counts;
+    }
+}
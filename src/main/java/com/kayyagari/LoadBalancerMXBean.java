@@ -0,0 +1,53 @@
+package com.kayyagari;
+
+import java.util.Map;
+
+/**
+ * The JMX view of the metrics of a LoadBalancer, registered by {@link LoadBalancer#registerMBean(String)}.
+ *
+ * The latencies are reported in milliseconds. The counters are read as they are, the percentiles and
+ * the per provider attributes come from a snapshot of the metrics that is at most a second old.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public interface LoadBalancerMXBean {
+    long getRequestCount();
+
+    long getRejectionCount();
+
+    long getSuccessCount();
+
+    long getFailureCount();
+
+    long getHedgeCount();
+
+    long getRetryCount();
+
+    long getCacheHitCount();
+
+    long getCacheMissCount();
+
+    int getPendingRequestCount();
+
+    int getMaxRequestCapacity();
+
+    int getActiveProviderCount();
+
+    double getResponseTimeP50Millis();
+
+    double getResponseTimeP99Millis();
+
+    double getResponseTimeP999Millis();
+
+    double getQueueWaitP99Millis();
+
+    /**
+     * Returns the p99 of the service time of each provider, keyed by the provider's ID
+     */
+    Map<String, Double> getProviderServiceTimeP99Millis();
+
+    /**
+     * Returns the number of requests sent to each provider, keyed by the provider's ID
+     */
+    Map<String, Long> getProviderRequestCounts();
+}
@@ -0,0 +1,147 @@
+package com.kayyagari;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A snapshot of the metrics of a LoadBalancer, see {@link LoadBalancer#getMetrics()}.
+ *
+ * The counters are cumulative since the LoadBalancer was created. The values are read one after the
+ * other while requests are being served, so they are not guaranteed to be consistent with each other.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public final class LoadBalancerMetrics {
+    private final long requestCount;
+    private final long rejectionCount;
+    private final long successCount;
+    private final long failureCount;
+    private final long hedgeCount;
+    private final long retryCount;
+    private final long cacheHitCount;
+    private final long cacheMissCount;
+    private final int pendingRequestCount;
+    private final int maxRequestCapacity;
+    private final LatencySnapshot responseTime;
+    private final LatencySnapshot serviceTime;
+    private final LatencySnapshot queueWait;
+    private final List<ProviderMetrics> providers;
+
+    LoadBalancerMetrics(long requestCount, long rejectionCount, long successCount, long failureCount,
+            long hedgeCount, long retryCount, long cacheHitCount, long cacheMissCount, int pendingRequestCount, int maxRequestCapacity,
+            LatencySnapshot responseTime, LatencySnapshot serviceTime, LatencySnapshot queueWait,
+            List<ProviderMetrics> providers) {
+        this.requestCount = requestCount;
+        this.rejectionCount = rejectionCount;
+        this.successCount = successCount;
+        this.failureCount = failureCount;
+        this.hedgeCount = hedgeCount;
+        this.retryCount = retryCount;
+        this.cacheHitCount = cacheHitCount;
+        this.cacheMissCount = cacheMissCount;
+        this.pendingRequestCount = pendingRequestCount;
+        this.maxRequestCapacity = maxRequestCapacity;
+        this.responseTime = responseTime;
+        this.serviceTime = serviceTime;
+        this.queueWait = queueWait;
+        this.providers = Collections.unmodifiableList(providers);
+    }
+
+    /**
+     * Returns the number of requests that were admitted
+     */
+    public long getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * Returns the number of requests that failed with a {@link CapacityExceededException}, either
+     * because they were not admitted or because no provider had a free slot
+     */
+    public long getRejectionCount() {
+        return rejectionCount;
+    }
+
+    public long getSuccessCount() {
+        return successCount;
+    }
+
+    /**
+     * Returns the number of admitted requests that failed, after any retries
+     */
+    public long getFailureCount() {
+        return failureCount;
+    }
+
+    public long getHedgeCount() {
+        return hedgeCount;
+    }
+
+    public long getRetryCount() {
+        return retryCount;
+    }
+
+    /**
+     * Returns the number of keyed requests served from the cache, including the stale responses
+     */
+    public long getCacheHitCount() {
+        return cacheHitCount;
+    }
+
+    /**
+     * Returns the number of keyed requests that were not found in the cache
+     */
+    public long getCacheMissCount() {
+        return cacheMissCount;
+    }
+
+    public int getPendingRequestCount() {
+        return pendingRequestCount;
+    }
+
+    public int getMaxRequestCapacity() {
+        return maxRequestCapacity;
+    }
+
+    /**
+     * Returns the time from the admission of a request until its response was available,
+     * for all the completed requests
+     */
+    public LatencySnapshot getResponseTime() {
+        return responseTime;
+    }
+
+    /**
+     * Returns the time taken by the providers' get() for the successful calls of all the providers
+     */
+    public LatencySnapshot getServiceTime() {
+        return serviceTime;
+    }
+
+    /**
+     * Returns the time the calls to blocking providers spent waiting for a thread of the request pool
+     */
+    public LatencySnapshot getQueueWait() {
+        return queueWait;
+    }
+
+    /**
+     * Returns the metrics of all the providers, active and inactive
+     */
+    public List<ProviderMetrics> getProviders() {
+        return providers;
+    }
+
+    /**
+     * Returns the metrics of the provider with the given ID or null if there is no such provider
+     */
+    public ProviderMetrics getProvider(String id) {
+        for(ProviderMetrics pm : providers) {
+            if(pm.getId().equals(id)) {
+                return pm;
+            }
+        }
+
+        return null;
+    }
+}
@@ -8,5 +8,12 @@ import java.util.List;
  * @author Kiran Ayyagari (kayyagari@apache.org)
  */
 public interface LoadBalancingStrategy {
+    /**
+     * Selects a provider from the given list. This gets called concurrently by all the
+     * request threads, so implementations should avoid taking locks.
+     *
+     * @param providers the active providers, LoadBalancer always passes an immutable and non-empty {@link ProviderSnapshot}
+     * @return the selected provider
+     */
     Provider next(List<Provider> providers);
 }
@@ -0,0 +1,60 @@
+package com.kayyagari;
+
+/**
+ * Where a provider runs, a zone and a rack within it. Used by {@link LocalityTieredStrategy}
+ * to prefer the providers close to the LoadBalancer.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public final class Locality {
+    /** the locality of the providers added without one */
+    public static final Locality NONE = new Locality("", "");
+
+    private final String zone;
+
+    private final String rack;
+
+    /**
+     * @param zone the zone, e.g. an availability zone or a data center
+     * @param rack the rack within the zone, can be empty if unknown
+     */
+    public Locality(String zone, String rack) {
+        if(zone == null || rack == null) {
+            throw new IllegalArgumentException("zone and rack cannot be null");
+        }
+
+        this.zone = zone;
+        this.rack = rack;
+    }
+
+    public String getZone() {
+        return zone;
+    }
+
+    public String getRack() {
+        return rack;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * zone.hashCode() + rack.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if(this == obj) {
+            return true;
+        }
+        if(!(obj instanceof Locality)) {
+            return false;
+        }
+
+        Locality other = (Locality) obj;
+        return zone.equals(other.zone) && rack.equals(other.rack);
+    }
+
+    @Override
+    public String toString() {
+        return zone + "/" + rack;
+    }
+}
@@ -0,0 +1,302 @@
+package com.kayyagari;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the requests on the providers close to the LoadBalancer and spills them over to the farther
+ * ones only as the close ones become unavailable, similar to the priority levels of Envoy.
+ *
+ * The providers are grouped in {@link #TIERS} tiers relative to the LoadBalancer's own locality:
+ * the same rack, the same zone and everything else. The health of a tier is the fraction of its
+ * providers that are active and below their limit of in-flight requests, multiplied by
+ * {@link #OVERPROVISIONING_FACTOR} and capped at 1. Excluded providers count against the health
+ * because a {@link ProviderSnapshot} knows how many providers each locality has.
+ *
+ * A tier gets the share of the requests given by its health and the rest flows to the next tier,
+ * e.g. a local tier with 50% of its providers available has a health of 0.7 and keeps 70% of the
+ * requests. When the tiers are so degraded that their health adds up to less than 1 the requests
+ * are distributed in proportion to the health.
+ *
+ * The tiers are computed once per {@link ProviderSnapshot}, and their health is recomputed at most
+ * once per refresh interval, {@link #DEFAULT_HEALTH_REFRESH_MILLIS} by default, by one of the requests
+ * arriving after it passes. The other requests select a tier from the last computed health without
+ * looking at the providers, so a provider that reaches its limit shifts the load of its tier only
+ * after the next refresh. A change of the membership is seen right away.
+ *
+ * Within a tier the provider is picked by an inner strategy, one instance per tier, so strategies
+ * that cache state per list of providers keep working.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public class LocalityTieredStrategy implements KeyedLoadBalancingStrategy {
+    /** same rack, same zone and the rest */
+    public static final int TIERS = 3;
+
+    /** lets a tier handle all its traffic until less than 1/1.4, about 71%, of its providers are available */
+    public static final double OVERPROVISIONING_FACTOR = 1.4;
+
+    /** the default max age of the health of the tiers */
+    public static final long DEFAULT_HEALTH_REFRESH_MILLIS = 10;
+
+    private final Locality local;
+
+    private final LoadBalancingStrategy[] inner;
+
+    private final long healthRefreshNanos;
+
+    /** the tiers computed for the most recently seen list */
+    private volatile Tiers tiers;
+
+    /**
+     * @param local the locality of the LoadBalancer
+     * @param innerFactory creates the strategy used within each tier
+     */
+    public LocalityTieredStrategy(Locality local, Supplier<? extends LoadBalancingStrategy> innerFactory) {
+        this(local, innerFactory, DEFAULT_HEALTH_REFRESH_MILLIS);
+    }
+
+    /**
+     * @param local the locality of the LoadBalancer
+     * @param innerFactory creates the strategy used within each tier
+     * @param healthRefreshMillis the max age of the health of the tiers, 0 computes it for every request
+     */
+    public LocalityTieredStrategy(Locality local, Supplier<? extends LoadBalancingStrategy> innerFactory, long healthRefreshMillis) {
+        if(healthRefreshMillis < 0) {
+            throw new IllegalArgumentException("health refresh interval cannot be negative");
+        }
+
+        this.local = local;
+        this.healthRefreshNanos = TimeUnit.MILLISECONDS.toNanos(healthRefreshMillis);
+        this.inner = new LoadBalancingStrategy[TIERS];
+        for(int i=0; i < TIERS; i++) {
+            inner[i] = innerFactory.get();
+        }
+    }
+
+    @Override
+    public Provider next(List<Provider> providers) {
+        Tiers t = tiers(providers);
+        int tier = t.select(ThreadLocalRandom.current().nextDouble());
+        return inner[tier].next(t.members.get(tier));
+    }
+
+    /**
+     * Selects the tier from the key's hash, so a key stays in the same tier while the health of the
+     * tiers doesn't change, and uses the inner strategy's key affinity if it has any
+     */
+    @Override
+    public Provider next(List<Provider> providers, String key) {
+        Tiers t = tiers(providers);
+        int h = key.hashCode() * 0x9e3779b9;
+        double point = (h >>> 8) / (double) (1 << 24);
+        int tier = t.select(point);
+        List<Provider> members = t.members.get(tier);
+        if(inner[tier] instanceof KeyedLoadBalancingStrategy) {
+            return ((KeyedLoadBalancingStrategy)inner[tier]).next(members, key);
+        }
+
+        return inner[tier].next(members);
+    }
+
+    /**
+     * Returns the tier of the given locality, 0 being the closest
+     */
+    int tierOf(Locality l) {
+        if(!l.getZone().equals(local.getZone())) {
+            return 2;
+        }
+
+        return l.getRack().equals(local.getRack()) ? 0 : 1;
+    }
+
+    private Tiers tiers(List<Provider> providers) {
+        Tiers t = tiers;
+        if(t == null || t.source != providers) {
+            if(providers instanceof ProviderSnapshot) {
+                // built by one thread, the others racing here wait for it
+                t = ((ProviderSnapshot)providers).derive(this, s -> new Tiers(s));
+            }
+            else {
+                t = new Tiers(providers);
+            }
+            tiers = t;
+        }
+
+        return t;
+    }
+
+    private static Locality localityOf(Provider p) {
+        if(p instanceof MeteredProvider) {
+            return ((MeteredProvider)p).locality();
+        }
+
+        return Locality.NONE;
+    }
+
+    private static boolean isAvailable(Provider p) {
+        if(p instanceof MeteredProvider) {
+            MeteredProvider mp = (MeteredProvider) p;
+            return (mp.inFlight() < mp.limit());
+        }
+
+        return true;
+    }
+
+    /**
+     * The providers of a list grouped by tier
+     */
+    private final class Tiers {
+        private final List<Provider> source;
+
+        private final List<List<Provider>> members = new ArrayList<>(TIERS);
+
+        /** the number of providers in each tier including the inactive ones */
+        private final int[] registered = new int[TIERS];
+
+        /** the last computed health */
+        private volatile Health health;
+
+        /** the System.nanoTime() after which the health gets recomputed */
+        private final AtomicLong refreshAt = new AtomicLong();
+
+        private Tiers(List<Provider> source) {
+            this.source = source;
+            for(int i=0; i < TIERS; i++) {
+                members.add(new ArrayList<Provider>());
+            }
+
+            for(Provider p : source) {
+                members.get(tierOf(localityOf(p))).add(p);
+            }
+
+            for(int i=0; i < TIERS; i++) {
+                members.set(i, Collections.unmodifiableList(members.get(i)));
+            }
+
+            if(source instanceof ProviderSnapshot) {
+                for(Map.Entry<Locality, Integer> e : ((ProviderSnapshot)source).registeredCounts().entrySet()) {
+                    registered[tierOf(e.getKey())] += e.getValue();
+                }
+            }
+
+            // without the counts, or if they are behind, only the active providers are known
+            for(int i=0; i < TIERS; i++) {
+                registered[i] = Math.max(registered[i], members.get(i).size());
+            }
+
+            health = computeHealth();
+            refreshAt.set(System.nanoTime() + healthRefreshNanos);
+        }
+
+        /**
+         * Returns the last computed health, recomputing it first if it is older than the refresh interval
+         */
+        private Health health() {
+            long due = refreshAt.get();
+            long now = System.nanoTime();
+            // only the request winning the race recomputes, the others use the previous health
+            if(now - due >= 0 && refreshAt.compareAndSet(due, now + healthRefreshNanos)) {
+                health = computeHealth();
+            }
+
+            return health;
+        }
+
+        private Health computeHealth() {
+            double[] tierHealth = new double[TIERS];
+            double total = 0;
+            // the farther tiers are not looked at once the closer ones cover all the load
+            for(int i=0; i < TIERS && total < 1; i++) {
+                tierHealth[i] = health(i);
+                total += tierHealth[i];
+            }
+
+            return new Health(tierHealth, total);
+        }
+
+        /**
+         * Returns the tier the request at the given point in [0, 1) of the load goes to
+         */
+        private int select(double point) {
+            Health h = health();
+            double[] health = h.tiers;
+            double total = h.total;
+
+            // every provider is busy, let the closest tier reject the request
+            if(total == 0) {
+                return firstNonEmpty();
+            }
+
+            // a degraded cluster distributes the load in proportion to the health, otherwise
+            // the tiers take their share in order until all the load is covered
+            double scale = Math.min(total, 1);
+            double covered = 0;
+            for(int i=0; i < TIERS; i++) {
+                covered += health[i] / scale;
+                if(point < covered && health[i] > 0) {
+                    return i;
+                }
+            }
+
+            // rounding errors, pick the farthest healthy tier
+            for(int i=TIERS - 1; i >= 0; i--) {
+                if(health[i] > 0) {
+                    return i;
+                }
+            }
+
+            return firstNonEmpty();
+        }
+
+        private double health(int tier) {
+            List<Provider> list = members.get(tier);
+            if(list.isEmpty()) {
+                return 0;
+            }
+
+            int available = 0;
+            for(Provider p : list) {
+                if(isAvailable(p)) {
+                    available++;
+                }
+            }
+
+            return Math.min(1.0, OVERPROVISIONING_FACTOR * available / registered[tier]);
+        }
+
+        private int firstNonEmpty() {
+            for(int i=0; i < TIERS; i++) {
+                if(!members.get(i).isEmpty()) {
+                    return i;
+                }
+            }
+
+            return 0;
+        }
+    }
+
+    /**
+     * The health of each tier and their sum
+     */
+    private static final class Health {
+        private final double[] tiers;
+        private final double total;
+
+        private Health(double[] tiers, double total) {
+            this.tiers = tiers;
+            this.total = total;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "locality-tiered(" + inner[0] + ")";
+    }
+}
@@ -0,0 +1,41 @@
+package com.kayyagari;
+
+/**
+ * A Provider that exposes its live load. The providers passed by LoadBalancer
+ * to a {@link LoadBalancingStrategy} implement this interface, so load-aware
+ * strategies can use it without knowing LoadBalancer's internals.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public interface MeteredProvider extends Provider {
+    /**
+     * Returns the number of requests that are currently being served by this provider
+     */
+    int inFlight();
+
+    /**
+     * Returns the expected latency of this provider's get() method in nanoseconds,
+     * or zero if it is not known yet
+     */
+    double expectedLatencyNanos();
+
+    /**
+     * Returns the weight of this provider, a provider with weight 2 can take twice
+     * the load of a provider with weight 1
+     */
+    int weight();
+
+    /**
+     * Returns the max number of requests this provider accepts at the moment
+     */
+    default int limit() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Returns where this provider runs
+     */
+    default Locality locality() {
+        return Locality.NONE;
+    }
+}
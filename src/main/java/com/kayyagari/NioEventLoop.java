@@ -0,0 +1,238 @@
+package com.kayyagari;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A thread that runs a Selector and dispatches the readiness of the registered channels to their handlers.
+ *
+ * The state of the channels is owned by the loop, other threads hand work to it with {@link #execute(Runnable)}
+ * instead of touching the channels, so the handlers need no locking.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+final class NioEventLoop {
+    /**
+     * Handles the events of a registered channel, called on the loop's thread
+     */
+    interface Handler {
+        /**
+         * Called when the channel is ready for any of the operations it is interested in
+         */
+        void ready(SelectionKey key) throws IOException;
+
+        /**
+         * Called when ready() threw an exception or the loop stopped, the channel must be closed
+         */
+        void failed(Exception e);
+    }
+
+    /**
+     * A task scheduled to run on the loop's thread after a delay, only accessed on the loop's thread
+     */
+    final class Timeout implements Comparable<Timeout> {
+        private final long deadline;
+        private final Runnable task;
+        private boolean cancelled;
+
+        private Timeout(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        /**
+         * Prevents the task from running
+         */
+        void cancel() {
+            if(!cancelled) {
+                cancelled = true;
+                cancelledTimeouts++;
+                // dropped when their deadlines pass, unless they pile up
+                if(cancelledTimeouts > 64 && cancelledTimeouts > timeouts.size() / 2) {
+                    purgeCancelledTimeouts();
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(Timeout o) {
+            return Long.compare(deadline, o.deadline);
+        }
+    }
+
+    private final Selector selector;
+
+    private final Thread thread;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /** the pending timeouts ordered by their deadlines, only accessed on the loop's thread */
+    private final PriorityQueue<Timeout> timeouts = new PriorityQueue<>();
+
+    /** the number of cancelled timeouts still in the queue */
+    private int cancelledTimeouts;
+
+    private volatile boolean running = true;
+
+    NioEventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs the given task on the loop's thread
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if(Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Registers the given non-blocking channel, must be called on the loop's thread
+     */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    /**
+     * Runs the given task on the loop's thread after the given delay unless the returned timeout
+     * is cancelled, must be called on the loop's thread
+     */
+    Timeout schedule(Runnable task, long delayMillis) {
+        Timeout t = new Timeout(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis), task);
+        timeouts.add(t);
+        return t;
+    }
+
+    /**
+     * Stops the loop, the handlers of the channels that are still registered are notified with failed()
+     */
+    void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void loop() {
+        while(running) {
+            try {
+                long waitMillis = waitMillis();
+                if(waitMillis < 0) {
+                    selector.select();
+                }
+                else if(waitMillis == 0) {
+                    selector.selectNow();
+                }
+                else {
+                    selector.select(waitMillis);
+                }
+            }
+            catch(IOException e) {
+                break;
+            }
+
+            Iterator<SelectionKey> itr = selector.selectedKeys().iterator();
+            while(itr.hasNext()) {
+                SelectionKey key = itr.next();
+                itr.remove();
+                Handler h = (Handler) key.attachment();
+                try {
+                    h.ready(key);
+                }
+                catch(CancelledKeyException e) {
+                    // the handler closed the channel
+                }
+                catch(IOException | RuntimeException e) {
+                    h.failed(e);
+                }
+            }
+
+            Runnable task;
+            while((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                }
+                catch(RuntimeException e) {
+                    // a task must not stop the loop
+                }
+            }
+
+            runExpiredTimeouts();
+        }
+
+        IOException stopped = new IOException("event loop stopped");
+        for(SelectionKey key : new ArrayList<>(selector.keys())) {
+            ((Handler) key.attachment()).failed(stopped);
+        }
+
+        try {
+            selector.close();
+        }
+        catch(IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Returns the time until the earliest timeout rounded up to a millisecond, or -1 if there is none
+     */
+    private long waitMillis() {
+        while(!timeouts.isEmpty() && timeouts.peek().cancelled) {
+            timeouts.poll();
+            cancelledTimeouts--;
+        }
+
+        if(timeouts.isEmpty()) {
+            return -1;
+        }
+
+        long nanos = timeouts.peek().deadline - System.nanoTime();
+        return (nanos <= 0) ? 0 : TimeUnit.NANOSECONDS.toMillis(nanos + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+    }
+
+    private void purgeCancelledTimeouts() {
+        Iterator<Timeout> itr = timeouts.iterator();
+        while(itr.hasNext()) {
+            if(itr.next().cancelled) {
+                itr.remove();
+            }
+        }
+        cancelledTimeouts = 0;
+    }
+
+    private void runExpiredTimeouts() {
+        long now = System.nanoTime();
+        while(!timeouts.isEmpty() && timeouts.peek().deadline - now <= 0) {
+            Timeout t = timeouts.poll();
+            if(t.cancelled) {
+                cancelledTimeouts--;
+                continue;
+            }
+
+            try {
+                t.task.run();
+            }
+            catch(RuntimeException e) {
+                // a timeout must not stop the loop
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.kayyagari;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the successful and failed calls made in a sliding window of time, without locks.
+ *
+ * The window is divided into buckets of equal duration that are reused in a circular fashion. Each bucket
+ * remembers the epoch, i.e. the number of the bucket-sized interval since the start of the time, it holds
+ * the counts for, and the first call falling into a bucket with an older epoch resets the bucket. A call
+ * recorded concurrently with the reset may get lost, which is acceptable for a failure rate.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+final class OutcomeWindow {
+    private static final int EPOCH = 0;
+    private static final int SUCCESSES = 1;
+    private static final int FAILURES = 2;
+    private static final int SLOTS = 3;
+
+    private final long bucketMillis;
+
+    private final int bucketCount;
+
+    /** the epoch, the successes and the failures of each bucket, next to each other */
+    private final AtomicLongArray buckets;
+
+    OutcomeWindow(long windowMillis, int bucketCount) {
+        if(windowMillis < bucketCount || bucketCount < 1) {
+            throw new IllegalArgumentException("invalid window of " + windowMillis + "ms with " + bucketCount + " buckets");
+        }
+
+        this.bucketMillis = windowMillis / bucketCount;
+        this.bucketCount = bucketCount;
+        this.buckets = new AtomicLongArray(bucketCount * SLOTS);
+        for(int i=0; i < bucketCount; i++) {
+            buckets.set(i * SLOTS + EPOCH, -1);
+        }
+    }
+
+    void record(boolean success) {
+        long epoch = System.currentTimeMillis() / bucketMillis;
+        int base = (int) (epoch % bucketCount) * SLOTS;
+
+        long bucketEpoch = buckets.get(base + EPOCH);
+        if(bucketEpoch != epoch && buckets.compareAndSet(base + EPOCH, bucketEpoch, epoch)) {
+            buckets.set(base + SUCCESSES, 0);
+            buckets.set(base + FAILURES, 0);
+        }
+
+        buckets.incrementAndGet(base + (success ? SUCCESSES : FAILURES));
+    }
+
+    /**
+     * Returns the number of successes and failures in the window as {successes, failures}
+     */
+    long[] counts() {
+        long epoch = System.currentTimeMillis() / bucketMillis;
+        long[] counts = new long[2];
+        for(int i=0; i < bucketCount; i++) {
+            int base = i * SLOTS;
+            long bucketEpoch = buckets.get(base + EPOCH);
+            if(bucketEpoch > epoch - bucketCount) {
+                counts[0] += buckets.get(base + SUCCESSES);
+                counts[1] += buckets.get(base + FAILURES);
+            }
+        }
+
+        return counts;
+    }
+
+    void reset() {
+        for(int i=0; i < bucketCount; i++) {
+            buckets.set(i * SLOTS + EPOCH, -1);
+        }
+    }
+}
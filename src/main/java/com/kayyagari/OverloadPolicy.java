@@ -0,0 +1,31 @@
+package com.kayyagari;
+
+/**
+ * What the request queue of the {@link ExecutionMode#PLATFORM_THREADS platform threads} does when the
+ * calls to blocking providers arrive faster than the threads can serve them. A request that is rejected
+ * or dropped fails with a {@link CapacityExceededException}.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public enum OverloadPolicy {
+    /** a call that finds the queue full is rejected right away */
+    REJECT,
+
+    /**
+     * the caller waits for space in the queue up to the configured timeout. Hedges and retries never
+     * wait, they are rejected instead, because they are sent from the threads that drain the queue.
+     */
+    BLOCK,
+
+    /** the call that has been waiting the longest is dropped to make space for the new one */
+    DROP_OLDEST,
+
+    /**
+     * the queue is served in FIFO order until it has not been empty for a whole interval, then it
+     * is served newest first and the calls that waited longer than the target delay are dropped,
+     * i.e. CoDel with adaptive LIFO. Outside an overload the calls that waited longer than the interval
+     * are dropped. During an overload the calls that can still finish in time
+     * are served first, instead of all of them timing out. A full queue rejects new calls.
+     */
+    ADAPTIVE_LIFO
+}
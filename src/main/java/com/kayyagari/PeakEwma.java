@@ -0,0 +1,80 @@
+package com.kayyagari;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An exponentially weighted moving average of latency that jumps to the peak.
+ *
+ * A sample higher than the current average replaces it immediately, so a provider that slows down
+ * is penalized right away, while lower samples are blended in with a weight that depends on the time
+ * elapsed since the previous sample. The average also decays towards zero while there are no samples,
+ * which makes a provider that was penalized in the past get retried eventually.
+ *
+ * All the operations are lock-free. The average and the time of the last sample are kept in
+ * separate atomics, a concurrent update may use a slightly stale timestamp, that is harmless
+ * for an estimate.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public final class PeakEwma {
+    /** the time over which the weight of a sample drops to 1/e, in nanoseconds */
+    private final double decayNanos;
+
+    /** the bits of the double holding the current average */
+    private final AtomicLong value = new AtomicLong(Double.doubleToRawLongBits(0.0));
+
+    /** the System.nanoTime() of the last sample */
+    private final AtomicLong lastSampleAt;
+
+    public PeakEwma(long decayMillis) {
+        if(decayMillis <= 0) {
+            throw new IllegalArgumentException("decay time must be positive");
+        }
+
+        this.decayNanos = decayMillis * 1000_000.0;
+        this.lastSampleAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Adds the given sample to the average
+     *
+     * @param latencyNanos the measured latency in nanoseconds
+     */
+    public void observe(long latencyNanos) {
+        long now = System.nanoTime();
+        long prev = lastSampleAt.getAndSet(now);
+        double w = weight(now - prev);
+
+        while(true) {
+            long bits = value.get();
+            double current = Double.longBitsToDouble(bits);
+            double next;
+            if(latencyNanos > current) {
+                next = latencyNanos;
+            }
+            else {
+                next = (current * w) + (latencyNanos * (1 - w));
+            }
+
+            if(value.compareAndSet(bits, Double.doubleToRawLongBits(next))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the current average in nanoseconds, decayed by the time elapsed since the last sample
+     */
+    public double get() {
+        double current = Double.longBitsToDouble(value.get());
+        return current * weight(System.nanoTime() - lastSampleAt.get());
+    }
+
+    private double weight(long elapsedNanos) {
+        if(elapsedNanos <= 0) {
+            return 1.0;
+        }
+
+        return Math.exp(-elapsedNanos / decayNanos);
+    }
+}
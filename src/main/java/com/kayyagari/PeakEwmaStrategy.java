@@ -0,0 +1,53 @@
+package com.kayyagari;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A latency-aware load-balancing strategy. The cost of a provider is its expected latency
+ * (a peak-EWMA, see {@link PeakEwma}) multiplied by the number of requests it has in flight,
+ * and of two randomly chosen providers the cheaper one is selected.
+ *
+ * A provider that slows down has both a higher latency and more requests piling up, so its
+ * share of the traffic drains quickly and comes back once its latency recovers.
+ * Providers that do not implement {@link MeteredProvider} are treated as idle and instantaneous.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public class PeakEwmaStrategy implements LoadBalancingStrategy {
+
+    @Override
+    public Provider next(List<Provider> providers) {
+        int len = providers.size();
+        if(len == 1) {
+            return providers.get(0);
+        }
+
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        int first = rnd.nextInt(len);
+        int second = rnd.nextInt(len - 1);
+        if(second >= first) {
+            second++;
+        }
+
+        Provider p1 = providers.get(first);
+        Provider p2 = providers.get(second);
+        return (cost(p2) < cost(p1)) ? p2 : p1;
+    }
+
+    private static double cost(Provider p) {
+        if(p instanceof MeteredProvider) {
+            MeteredProvider mp = (MeteredProvider)p;
+            // one is added to both the factors so that a provider without any samples
+            // or without any in-flight requests is still ranked by the other factor
+            return (mp.expectedLatencyNanos() + 1) * (mp.inFlight() + 1);
+        }
+
+        return 1;
+    }
+
+    @Override
+    public String toString() {
+        return "peak-ewma";
+    }
+}
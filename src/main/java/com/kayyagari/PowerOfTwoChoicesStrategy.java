@@ -0,0 +1,50 @@
+package com.kayyagari;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An implementation of the "power of two random choices" load-balancing strategy.
+ * Two distinct providers are picked at random and the one with the fewer outstanding (in-flight)
+ * requests gets selected. This avoids the herd behaviour of always choosing the least loaded provider
+ * while costing the same regardless of the number of providers.
+ *
+ * Providers that do not implement {@link MeteredProvider} are treated as idle.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public class PowerOfTwoChoicesStrategy implements LoadBalancingStrategy {
+
+    @Override
+    public Provider next(List<Provider> providers) {
+        int len = providers.size();
+        if(len == 1) {
+            return providers.get(0);
+        }
+
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        int first = rnd.nextInt(len);
+        // pick from the remaining len-1 slots so that both the choices are always distinct
+        int second = rnd.nextInt(len - 1);
+        if(second >= first) {
+            second++;
+        }
+
+        Provider p1 = providers.get(first);
+        Provider p2 = providers.get(second);
+        return (inFlight(p2) < inFlight(p1)) ? p2 : p1;
+    }
+
+    private static int inFlight(Provider p) {
+        if(p instanceof MeteredProvider) {
+            return ((MeteredProvider)p).inFlight();
+        }
+
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "power-of-two-choices";
+    }
+}
@@ -0,0 +1,17 @@
+package com.kayyagari;
+
+/**
+ * The priority class of a request, see {@link PriorityConfig}
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public enum Priority {
+    /** e.g. interactive requests a user is waiting for */
+    HIGH,
+
+    /** the priority of the requests sent without one */
+    NORMAL,
+
+    /** e.g. batch jobs, the first to be shed in an overload */
+    LOW
+}
@@ -0,0 +1,60 @@
+package com.kayyagari;
+
+/**
+ * The settings of the priority classes, see {@link LoadBalancerConfig#setPriorityConfig(PriorityConfig)}.
+ *
+ * The calls to blocking providers are queued per class and the threads of the request pool take them from the
+ * classes in proportion to their weights, a class without queued calls leaves its turns to the others.
+ * A full queue makes space for a call by dropping the newest call of a lower class.
+ *
+ * A class can also reserve a share of the LoadBalancer's capacity, the requests of the other classes
+ * are then rejected while only the unused reservations are left. No capacity is reserved by default,
+ * reserving some for {@link Priority#HIGH} makes {@link Priority#LOW} requests fail first in an overload.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public class PriorityConfig {
+    private final int[] weights = {8, 4, 1};
+
+    private final double[] reservedShares = new double[Priority.values().length];
+
+    public int getWeight(Priority priority) {
+        return weights[priority.ordinal()];
+    }
+
+    /**
+     * Sets the weight of the given class in the scheduling of the queued calls, by default
+     * the weights of HIGH, NORMAL and LOW are 8, 4 and 1
+     */
+    public PriorityConfig setWeight(Priority priority, int weight) {
+        if(weight < 1) {
+            throw new IllegalArgumentException("weight must be at least 1");
+        }
+
+        weights[priority.ordinal()] = weight;
+        return this;
+    }
+
+    public double getReservedShare(Priority priority) {
+        return reservedShares[priority.ordinal()];
+    }
+
+    /**
+     * Sets the fraction of the capacity that only the requests of the given class can use
+     */
+    public PriorityConfig setReservedShare(Priority priority, double share) {
+        double others = 0;
+        for(Priority p : Priority.values()) {
+            if(p != priority) {
+                others += reservedShares[p.ordinal()];
+            }
+        }
+
+        if(share < 0 || others + share > 1) {
+            throw new IllegalArgumentException("the reserved shares must be between 0 and 1 and add up to at most 1");
+        }
+
+        reservedShares[priority.ordinal()] = share;
+        return this;
+    }
+}
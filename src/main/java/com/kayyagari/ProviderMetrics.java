@@ -0,0 +1,101 @@
+package com.kayyagari;
+
+/**
+ * The metrics of a single provider at the time {@link LoadBalancer#getMetrics()} was called.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public final class ProviderMetrics {
+    private final String id;
+    private final boolean active;
+    private final int weight;
+    private final int limit;
+    private final int inFlight;
+    private final long requestCount;
+    private final long failureCount;
+    private final double expectedLatencyNanos;
+    private final String circuitBreakerState;
+    private final LatencySnapshot serviceTime;
+
+    ProviderMetrics(String id, boolean active, int weight, int limit, int inFlight, long requestCount, long failureCount,
+            double expectedLatencyNanos, String circuitBreakerState, LatencySnapshot serviceTime) {
+        this.id = id;
+        this.active = active;
+        this.weight = weight;
+        this.limit = limit;
+        this.inFlight = inFlight;
+        this.requestCount = requestCount;
+        this.failureCount = failureCount;
+        this.expectedLatencyNanos = expectedLatencyNanos;
+        this.circuitBreakerState = circuitBreakerState;
+        this.serviceTime = serviceTime;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Returns true if the provider is part of the selection set, false if it is excluded
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Returns the max number of in-flight requests the provider accepts when its circuit breaker is closed
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Returns the number of requests sent to the provider, including hedges and retries
+     */
+    public long getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * Returns the number of requests the provider failed, cancelled requests and those rejected by
+     * the request queue are not counted
+     */
+    public long getFailureCount() {
+        return failureCount;
+    }
+
+    /**
+     * Returns the peak-EWMA latency the strategies see for this provider
+     */
+    public double getExpectedLatencyNanos() {
+        return expectedLatencyNanos;
+    }
+
+    /**
+     * Returns the state of the provider's circuit breaker, or null if the circuit breakers are disabled
+     */
+    public String getCircuitBreakerState() {
+        return circuitBreakerState;
+    }
+
+    /**
+     * Returns the time taken by the provider's get() for the successful requests
+     */
+    public LatencySnapshot getServiceTime() {
+        return serviceTime;
+    }
+
+    @Override
+    public String toString() {
+        return "ProviderMetrics [id=" + id + ", active=" + active + ", limit=" + limit + ", inFlight=" + inFlight + ", requests=" + requestCount
+                + ", failures=" + failureCount + ", serviceTime={" + serviceTime + "}]";
+    }
+}
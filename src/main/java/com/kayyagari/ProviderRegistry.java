@@ -0,0 +1,242 @@
+package com.kayyagari;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntSupplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * Holds the providers of a LoadBalancer indexed by their ID.
+ *
+ * The active providers are kept in an array where every provider knows its own position, so adding,
+ * excluding and including a provider take constant time: an excluded provider is replaced by the last
+ * one in the array. The array is never handed out, a {@link ProviderSnapshot} of it is published only
+ * when a request asks for one after a change. A burst of changes, e.g. many providers failing their
+ * health checks together, is thus copied once instead of once per change.
+ *
+ * The total capacity, i.e. the sum of the limits of the active providers, is updated along with the
+ * membership instead of being recomputed from all the providers.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+final class ProviderRegistry {
+    private static final class Entry {
+        private final Provider provider;
+
+        /** the position in the array of active providers, -1 if the provider is inactive */
+        private int index = -1;
+
+        /** the limit of the provider counted in the total capacity */
+        private int share;
+
+        private Entry(Provider provider) {
+            this.provider = provider;
+        }
+    }
+
+    private final int maxProviders;
+
+    /** returns the max number of in-flight requests of a provider */
+    private final ToIntFunction<Provider> limitOf;
+
+    /** all the providers, active and inactive */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final Map<String, Provider> inactive = new ConcurrentHashMap<>();
+
+    /** the active providers followed by unused slots, guarded by this */
+    private Entry[] active = new Entry[16];
+
+    private int activeCount;
+
+    /** the number of providers in each locality, replaced when a provider is added or removed */
+    private Map<Locality, Integer> localityCounts = Collections.emptyMap();
+
+    private volatile ProviderSnapshot snapshot;
+
+    /** true if the membership changed after the current snapshot was published */
+    private volatile boolean stale;
+
+    private volatile int capacity;
+
+    /**
+     * @param load the number of pending requests, published with the snapshots
+     */
+    ProviderRegistry(int maxProviders, ToIntFunction<Provider> limitOf, IntSupplier load) {
+        this.maxProviders = maxProviders;
+        this.limitOf = limitOf;
+        this.snapshot = ProviderSnapshot.EMPTY.withLoad(load);
+    }
+
+    /**
+     * Adds the given provider to the active providers
+     *
+     * @throws IllegalStateException if the max number of providers is reached
+     * @throws IllegalArgumentException if a provider with the same ID is present
+     */
+    synchronized void add(Provider p) {
+        if(entries.containsKey(p.id())) {
+            throw new IllegalArgumentException("a provider with the ID " + p.id() + " is already present");
+        }
+
+        if(entries.size() == maxProviders) {
+            throw new IllegalStateException("provider list is full, cannot add new providers. Only a maximum of "
+                    + maxProviders + " providers are allowed");
+        }
+
+        Entry e = new Entry(p);
+        entries.put(p.id(), e);
+        countLocality(p, 1);
+        activate(e);
+    }
+
+    /**
+     * Moves the provider with the given ID to the inactive providers
+     *
+     * @return the provider or null if there is no active provider with the given ID
+     */
+    synchronized Provider exclude(String id) {
+        Entry e = entries.get(id);
+        if(e == null || e.index < 0) {
+            return null;
+        }
+
+        deactivate(e);
+        inactive.put(id, e.provider);
+        return e.provider;
+    }
+
+    /**
+     * Moves the provider with the given ID to the active providers
+     *
+     * @return the provider or null if there is no inactive provider with the given ID
+     */
+    synchronized Provider include(String id) {
+        Provider p = inactive.remove(id);
+        if(p != null) {
+            activate(entries.get(id));
+        }
+
+        return p;
+    }
+
+    /**
+     * Removes the provider with the given ID, whether active or not
+     *
+     * @return the provider or null if there is no provider with the given ID
+     */
+    synchronized Provider remove(String id) {
+        Entry e = entries.remove(id);
+        if(e == null) {
+            return null;
+        }
+
+        if(e.index >= 0) {
+            deactivate(e);
+        }
+        inactive.remove(id);
+        countLocality(e.provider, -1);
+        return e.provider;
+    }
+
+    /**
+     * Updates the total capacity after the limit of the given provider has changed
+     */
+    synchronized void limitChanged(Provider p) {
+        Entry e = entries.get(p.id());
+        if(e != null && e.index >= 0 && e.provider == p) {
+            int limit = limitOf.applyAsInt(p);
+            capacity += limit - e.share;
+            e.share = limit;
+        }
+    }
+
+    /**
+     * Returns the provider with the given ID, either active or inactive, or null if there is no such provider
+     */
+    Provider get(String id) {
+        Entry e = entries.get(id);
+        return (e == null) ? null : e.provider;
+    }
+
+    /**
+     * Returns the active providers, the snapshot is published now if the membership has changed
+     * since the previous one
+     */
+    ProviderSnapshot snapshot() {
+        if(!stale) {
+            return snapshot;
+        }
+
+        synchronized(this) {
+            if(stale) {
+                snapshot = snapshot.next(copyOfActive(), localityCounts);
+                stale = false;
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Returns a read-only view of the inactive providers keyed by their ID
+     */
+    Map<String, Provider> inactive() {
+        return Collections.unmodifiableMap(inactive);
+    }
+
+    /**
+     * Returns the sum of the limits of the active providers
+     */
+    int capacity() {
+        return capacity;
+    }
+
+    private void countLocality(Provider p, int delta) {
+        Locality l = (p instanceof MeteredProvider) ? ((MeteredProvider)p).locality() : Locality.NONE;
+        Map<Locality, Integer> tmp = new HashMap<>(localityCounts);
+        int count = tmp.getOrDefault(l, 0) + delta;
+        if(count == 0) {
+            tmp.remove(l);
+        }
+        else {
+            tmp.put(l, count);
+        }
+        localityCounts = Collections.unmodifiableMap(tmp);
+        stale = true;
+    }
+
+    private void activate(Entry e) {
+        if(activeCount == active.length) {
+            active = Arrays.copyOf(active, active.length * 2);
+        }
+
+        e.index = activeCount;
+        active[activeCount++] = e;
+        e.share = limitOf.applyAsInt(e.provider);
+        capacity += e.share;
+        stale = true;
+    }
+
+    private void deactivate(Entry e) {
+        Entry last = active[--activeCount];
+        active[e.index] = last;
+        last.index = e.index;
+        active[activeCount] = null;
+        e.index = -1;
+        capacity -= e.share;
+        e.share = 0;
+        stale = true;
+    }
+
+    private Provider[] copyOfActive() {
+        Provider[] tmp = new Provider[activeCount];
+        for(int i=0; i < activeCount; i++) {
+            tmp[i] = active[i].provider;
+        }
+
+        return tmp;
+    }
+}
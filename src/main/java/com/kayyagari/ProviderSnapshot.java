@@ -0,0 +1,131 @@
+package com.kayyagari;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+
+/**
+ * An immutable list of the active providers.
+ *
+ * LoadBalancer publishes a new snapshot after a provider gets added, excluded or included
+ * and passes the snapshot it read at the beginning of a request to the {@link LoadBalancingStrategy}.
+ * Because the contents never change strategies can safely use the size() for computing an index
+ * without holding any locks. Strategies that need a lookup structure, e.g. a hash ring, build it once
+ * per snapshot with {@link #derive(Object, Function)}.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public final class ProviderSnapshot extends AbstractList<Provider> implements RandomAccess {
+    static final ProviderSnapshot EMPTY = new ProviderSnapshot(new Provider[0], 0, Collections.<Locality, Integer>emptyMap(), null);
+
+    private final Provider[] providers;
+
+    /** incremented by one for every change in the membership */
+    private final long version;
+
+    /** the number of providers in each locality, active or inactive */
+    private final Map<Locality, Integer> registeredCounts;
+
+    /** the live number of pending requests, null if unknown */
+    private final IntSupplier load;
+
+    /** the keys and the values given to derive(), alternating, replaced under the lock */
+    private volatile Object[] derived = {};
+
+    private final Object deriveLock = new Object();
+
+    private ProviderSnapshot(Provider[] providers, long version, Map<Locality, Integer> registeredCounts, IntSupplier load) {
+        this.providers = providers;
+        this.version = version;
+        this.registeredCounts = registeredCounts;
+        this.load = load;
+    }
+
+    /**
+     * Returns the version of this snapshot. A snapshot with a higher version
+     * was published after the one with lower version.
+     */
+    public long version() {
+        return version;
+    }
+
+    /**
+     * Returns the number of providers added to the LoadBalancer in each locality, including the
+     * excluded ones, so that the active providers of a locality can be compared against all of them
+     */
+    public Map<Locality, Integer> registeredCounts() {
+        return registeredCounts;
+    }
+
+    /**
+     * Returns the number of requests admitted by the LoadBalancer that are yet to complete, including
+     * the one being routed. Unlike the rest of the snapshot this is a live value, read in constant time
+     * instead of summing up the in-flight counts of the providers. Returns -1 if it is not known.
+     */
+    public int load() {
+        return (load == null) ? -1 : load.getAsInt();
+    }
+
+    /**
+     * Returns the value derived from this snapshot for the given key, the builder is called only by the
+     * first caller and the others wait for its result instead of building the same value again.
+     *
+     * @param key the key of the value, compared by identity, e.g. the strategy deriving it
+     * @param builder computes the value from this snapshot
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T derive(Object key, Function<? super ProviderSnapshot, ? extends T> builder) {
+        Object[] d = derived;
+        for(int i=0; i < d.length; i += 2) {
+            if(d[i] == key) {
+                return (T) d[i + 1];
+            }
+        }
+
+        synchronized(deriveLock) {
+            d = derived;
+            for(int i=0; i < d.length; i += 2) {
+                if(d[i] == key) {
+                    return (T) d[i + 1];
+                }
+            }
+
+            T value = builder.apply(this);
+            Object[] tmp = Arrays.copyOf(d, d.length + 2);
+            tmp[d.length] = key;
+            tmp[d.length + 1] = value;
+            derived = tmp;
+            return value;
+        }
+    }
+
+    @Override
+    public Provider get(int index) {
+        return providers[index];
+    }
+
+    @Override
+    public int size() {
+        return providers.length;
+    }
+
+    /**
+     * Returns a new snapshot with the given providers and the next version
+     *
+     * @param registeredCounts an immutable map of the number of providers in each locality
+     */
+    ProviderSnapshot next(Provider[] providers, Map<Locality, Integer> registeredCounts) {
+        return new ProviderSnapshot(providers, version + 1, registeredCounts, load);
+    }
+
+    /**
+     * Returns a copy of this snapshot whose {@link #load()} is read from the given supplier
+     */
+    ProviderSnapshot withLoad(IntSupplier load) {
+        return new ProviderSnapshot(providers, version, registeredCounts, load);
+    }
+}
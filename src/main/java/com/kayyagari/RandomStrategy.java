@@ -1,7 +1,7 @@
 package com.kayyagari;
 
 import java.util.List;
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * An implementation of random load-balancing strategy
@@ -10,11 +10,10 @@ import java.util.Random;
  */
 public class RandomStrategy implements LoadBalancingStrategy {
 
-    private Random rnd = new Random(System.currentTimeMillis());
-
+    // ThreadLocalRandom avoids the contention on the seed of a shared java.util.Random
     @Override
-    public synchronized Provider next(List<Provider> providers) {
-        int index = rnd.nextInt(providers.size());
+    public Provider next(List<Provider> providers) {
+        int index = ThreadLocalRandom.current().nextInt(providers.size());
         // return index will always be between 0 - (size()-1)
         return providers.get(index);
     }
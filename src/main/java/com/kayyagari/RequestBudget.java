@@ -0,0 +1,73 @@
+package com.kayyagari;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket that limits the extra requests, i.e. hedges and retries, to a fraction of the
+ * original requests.
+ *
+ * Every original request deposits a fraction of a token, every extra request withdraws a whole token.
+ * The balance is capped, so a long quiet period cannot fund a burst larger than the cap. When the
+ * providers fail together the extra requests stop once the balance runs out, instead of multiplying
+ * the load on providers that are already struggling.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+final class RequestBudget {
+    /** the balance is kept in thousandths of a token */
+    private static final long SCALE = 1000;
+
+    private final long depositPerRequest;
+
+    private final long maxBalance;
+
+    private final AtomicLong balance;
+
+    /**
+     * @param ratio the number of extra requests allowed per original request
+     * @param maxTokens the max number of extra requests that can be made in a burst, the bucket starts full
+     */
+    RequestBudget(double ratio, int maxTokens) {
+        if(!(ratio > 0 && ratio <= 1) || maxTokens < 1) {
+            throw new IllegalArgumentException("ratio must be in the range (0, 1] and max tokens must be at least 1");
+        }
+
+        this.depositPerRequest = (long) (ratio * SCALE);
+        this.maxBalance = maxTokens * SCALE;
+        this.balance = new AtomicLong(maxBalance);
+    }
+
+    /**
+     * Called for every original request
+     */
+    void deposit() {
+        while(true) {
+            long current = balance.get();
+            if(current >= maxBalance) {
+                return;
+            }
+
+            if(balance.compareAndSet(current, Math.min(maxBalance, current + depositPerRequest))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Takes a token for an extra request
+     *
+     * @return true if the extra request can be made, false if the budget is exhausted
+     */
+    boolean tryWithdraw() {
+        while(true) {
+            long current = balance.get();
+            if(current < SCALE) {
+                return false;
+            }
+
+            if(balance.compareAndSet(current, current - SCALE)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package com.kayyagari;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed number of threads serving a bounded queue of calls to blocking providers.
+ *
+ * Unlike a ThreadPoolExecutor every queued task can be failed, so a call that cannot be queued,
+ * or is dropped from the queue, completes its future with a {@link CapacityExceededException}
+ * instead of waiting forever. What happens when the queue is full is decided by the {@link OverloadPolicy}.
+ *
+ * Each {@link Priority} has its own queue and the threads take from them by smooth weighted round robin
+ * over the non-empty ones, so no class starves another. A full queue first makes space by dropping
+ * the newest task of the lowest class below the new task's, the overload policy applies only when
+ * there is none.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+final class RequestQueue {
+    /**
+     * A call waiting in the queue
+     */
+    abstract static class Task implements Runnable {
+        /** the System.nanoTime() when the task was queued */
+        long enqueuedAt;
+
+        Priority priority = Priority.NORMAL;
+
+        /**
+         * Fails the task without running it, called without holding the lock of the queue
+         */
+        abstract void reject(CapacityExceededException e);
+    }
+
+    private final int capacity;
+
+    private final OverloadPolicy policy;
+
+    private final long blockTimeoutNanos;
+
+    /** the max time a task may wait while the queue is overloaded */
+    private final long targetDelayNanos;
+
+    /** the time the queue must be non-empty to be considered overloaded, also the max wait otherwise */
+    private final long intervalNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final Condition notFull = lock.newCondition();
+
+    /** the queues of the priority classes, indexed by the ordinal */
+    private final List<Deque<Task>> queues = new ArrayList<>();
+
+    private final int[] weights;
+
+    /** the current weights of the round robin over the classes, guarded by the lock */
+    private final int[] currentWeights;
+
+    /** the number of tasks in all the queues, guarded by the lock */
+    private int size;
+
+    /** the last time the queue was seen empty, guarded by the lock */
+    private long lastEmptyAt = System.nanoTime();
+
+    private volatile boolean shutdown;
+
+    private final Thread[] threads;
+
+    RequestQueue(String name, int threadCount, LoadBalancerConfig config) {
+        this.capacity = config.getQueueCapacity();
+        this.policy = config.getOverloadPolicy();
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getQueueBlockTimeoutMillis());
+        this.targetDelayNanos = TimeUnit.MILLISECONDS.toNanos(config.getQueueTargetDelayMillis());
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(config.getQueueIntervalMillis());
+
+        Priority[] priorities = Priority.values();
+        weights = new int[priorities.length];
+        currentWeights = new int[priorities.length];
+        for(Priority p : priorities) {
+            queues.add(new ArrayDeque<Task>());
+            weights[p.ordinal()] = config.getPriorityConfig().getWeight(p);
+        }
+
+        threads = new Thread[threadCount];
+        for(int i=0; i < threadCount; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, name + "-" + i);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * Returns the number of threads serving the queue
+     */
+    int threadCount() {
+        return threads.length;
+    }
+
+    /**
+     * Queues the given task, or rejects it if the queue is full
+     *
+     * @param mayBlock true if the caller can wait for space when the policy is {@link OverloadPolicy#BLOCK}
+     */
+    void execute(Task task, boolean mayBlock) {
+        Task rejected = null;
+        Task dropped = null;
+        String dropReason = "dropped from the request queue to make space for a newer request";
+        lock.lock();
+        try {
+            if(shutdown) {
+                rejected = task;
+            }
+            else if(size >= capacity) {
+                Deque<Task> own = queues.get(task.priority.ordinal());
+                Deque<Task> lower = lowestBelow(task.priority);
+                if(lower != null) {
+                    dropped = lower.pollLast();
+                    size--;
+                    dropReason = "dropped from the request queue to make space for a higher priority request";
+                }
+                else if(policy == OverloadPolicy.DROP_OLDEST && !own.isEmpty()) {
+                    dropped = own.pollFirst();
+                    size--;
+                }
+                else if(policy == OverloadPolicy.BLOCK && mayBlock) {
+                    long nanos = blockTimeoutNanos;
+                    while(size >= capacity && nanos > 0 && !shutdown) {
+                        nanos = notFull.awaitNanos(nanos);
+                    }
+
+                    if(size >= capacity || shutdown) {
+                        rejected = task;
+                    }
+                }
+                else {
+                    rejected = task;
+                }
+            }
+
+            if(rejected == null) {
+                task.enqueuedAt = System.nanoTime();
+                queues.get(task.priority.ordinal()).addLast(task);
+                size++;
+                notEmpty.signal();
+            }
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rejected = task;
+        }
+        finally {
+            lock.unlock();
+        }
+
+        if(dropped != null) {
+            dropped.reject(new CapacityExceededException(dropReason));
+        }
+
+        if(rejected != null) {
+            rejected.reject(new CapacityExceededException(shutdown ? "request queue is shutdown"
+                    : "request queue is full, capacity = " + capacity));
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the threads, the running tasks are interrupted and the queued tasks are rejected
+     */
+    void shutdownNow() {
+        List<Task> pending;
+        lock.lock();
+        try {
+            shutdown = true;
+            pending = new ArrayList<>();
+            for(Deque<Task> q : queues) {
+                pending.addAll(q);
+                q.clear();
+            }
+            size = 0;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+
+        for(Thread t : threads) {
+            t.interrupt();
+        }
+
+        for(Task t : pending) {
+            t.reject(new CapacityExceededException("request queue is shutdown"));
+        }
+    }
+
+    private void work() {
+        List<Task> expired = new ArrayList<>();
+        while(!shutdown) {
+            Task task;
+            try {
+                task = take(expired);
+            }
+            catch(InterruptedException e) {
+                continue;
+            }
+            finally {
+                for(Task t : expired) {
+                    t.reject(new CapacityExceededException("request waited too long in the queue"));
+                }
+                expired.clear();
+            }
+
+            if(task != null) {
+                try {
+                    task.run();
+                }
+                catch(Throwable e) {
+                    // tasks complete their futures themselves, a failing task must not kill the thread
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the next task to run
+     *
+     * @param expired collects the tasks that were dropped because they waited too long
+     * @return the task or null if there is no task that can be run yet
+     */
+    private Task take(List<Task> expired) throws InterruptedException {
+        lock.lock();
+        try {
+            while(size == 0) {
+                lastEmptyAt = System.nanoTime();
+                if(shutdown) {
+                    return null;
+                }
+                notEmpty.await();
+            }
+
+            Task task = null;
+            if(policy == OverloadPolicy.ADAPTIVE_LIFO) {
+                long now = System.nanoTime();
+                boolean overloaded = (now - lastEmptyAt) > intervalNanos;
+                long maxWait = overloaded ? targetDelayNanos : intervalNanos;
+                // the oldest tasks are at the head of each queue
+                for(Deque<Task> q : queues) {
+                    while(!q.isEmpty() && (now - q.peekFirst().enqueuedAt) > maxWait) {
+                        expired.add(q.pollFirst());
+                        size--;
+                    }
+                }
+
+                if(size > 0) {
+                    Deque<Task> q = nextQueue();
+                    task = overloaded ? q.pollLast() : q.pollFirst();
+                    size--;
+                }
+            }
+            else {
+                task = nextQueue().pollFirst();
+                size--;
+            }
+
+            if(size == 0) {
+                lastEmptyAt = System.nanoTime();
+            }
+
+            notFull.signalAll();
+            return task;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Selects the queue to take the next task from, the same as {@link SmoothWeightedRoundRobinStrategy}
+     * but only over the non-empty queues, must be called with the lock held and at least one task queued
+     */
+    private Deque<Task> nextQueue() {
+        int total = 0;
+        int selected = -1;
+        for(int i=0; i < weights.length; i++) {
+            if(queues.get(i).isEmpty()) {
+                // an idle class does not save up turns
+                currentWeights[i] = 0;
+                continue;
+            }
+
+            currentWeights[i] += weights[i];
+            total += weights[i];
+            if(selected < 0 || currentWeights[i] > currentWeights[selected]) {
+                selected = i;
+            }
+        }
+
+        currentWeights[selected] -= total;
+        return queues.get(selected);
+    }
+
+    /**
+     * Returns the non-empty queue of the lowest class below the given one, or null if there is none
+     */
+    private Deque<Task> lowestBelow(Priority priority) {
+        for(int i=queues.size() - 1; i > priority.ordinal(); i--) {
+            if(!queues.get(i).isEmpty()) {
+                return queues.get(i);
+            }
+        }
+
+        return null;
+    }
+}
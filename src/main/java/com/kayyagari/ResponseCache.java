@@ -0,0 +1,240 @@
+package com.kayyagari;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Caches the responses of keyed requests in front of the providers.
+ *
+ * The eviction follows W-TinyLFU: new responses enter a small LRU window, about 1% of the max size,
+ * and a response leaving the window is admitted to the main LRU area only if its key was requested
+ * more often than the key it would evict, as estimated by a {@link FrequencySketch}. A burst of
+ * keys that are requested once can then not flush out the popular ones.
+ *
+ * Lookups read a ConcurrentHashMap without locking. The access order and the frequencies are updated
+ * only if the lock is free, losing some of these updates under contention makes the eviction a little
+ * less precise but keeps the hits cheap.
+ *
+ * Concurrent misses of the same key are coalesced into a single request to the providers.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+final class ResponseCache {
+    private static final class Entry {
+        private final String key;
+        private final String value;
+
+        /** the System.nanoTime() when the response was stored */
+        private final long storedAt;
+
+        /** true if the entry is in the main area, false if in the window, guarded by the lock */
+        private boolean inMain;
+
+        private Entry(String key, String value, long storedAt) {
+            this.key = key;
+            this.value = value;
+            this.storedAt = storedAt;
+        }
+    }
+
+    private final long ttlNanos;
+
+    private final long staleNanos;
+
+    private final int windowCapacity;
+
+    private final int mainCapacity;
+
+    private final Map<String, Entry> data = new ConcurrentHashMap<>();
+
+    /** the requests that are loading a response, either after a miss or for a refresh */
+    private final Map<String, CompletableFuture<String>> loading = new ConcurrentHashMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // the access ordered segments and the sketch, guarded by the lock
+    private final LinkedHashMap<String, Entry> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> main = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    ResponseCache(CacheConfig config) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(config.getTtlMillis());
+        this.staleNanos = TimeUnit.MILLISECONDS.toNanos(config.getStaleWhileRevalidateMillis());
+        this.windowCapacity = Math.max(1, config.getMaxSize() / 100);
+        this.mainCapacity = config.getMaxSize() - windowCapacity;
+        this.sketch = new FrequencySketch(config.getMaxSize());
+    }
+
+    /**
+     * Returns the cached response of the given key or sends a request using the loader
+     *
+     * @param key the key of the request
+     * @param loader sends a request to the providers
+     * @throws RuntimeException thrown by the loader on a miss, e.g. {@link CapacityExceededException}
+     */
+    CompletableFuture<String> get(String key, Function<String, CompletableFuture<String>> loader) {
+        Entry e = data.get(key);
+        recordAccess(key, e);
+        if(e != null) {
+            long age = System.nanoTime() - e.storedAt;
+            if(age < ttlNanos) {
+                hitCount.increment();
+                return CompletableFuture.completedFuture(e.value);
+            }
+
+            if(age < ttlNanos + staleNanos) {
+                hitCount.increment();
+                refresh(key, loader);
+                return CompletableFuture.completedFuture(e.value);
+            }
+
+            invalidate(e);
+        }
+
+        missCount.increment();
+        // every caller gets its own future, cancelling it doesn't affect the others
+        return load(key, loader).thenApply(Function.identity());
+    }
+
+    long hitCount() {
+        return hitCount.sum();
+    }
+
+    long missCount() {
+        return missCount.sum();
+    }
+
+    int size() {
+        return data.size();
+    }
+
+    private void refresh(String key, Function<String, CompletableFuture<String>> loader) {
+        if(loading.containsKey(key)) {
+            return;
+        }
+
+        try {
+            load(key, loader);
+        }
+        catch(RuntimeException e) {
+            // the stale response is served until a refresh succeeds
+        }
+    }
+
+    private CompletableFuture<String> load(final String key, Function<String, CompletableFuture<String>> loader) {
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        CompletableFuture<String> pending = loading.putIfAbsent(key, result);
+        if(pending != null) {
+            return pending;
+        }
+
+        CompletableFuture<String> response;
+        try {
+            response = loader.apply(key);
+        }
+        catch(RuntimeException e) {
+            loading.remove(key, result);
+            throw e;
+        }
+
+        response.whenComplete((val, e) -> {
+            // stored before the waiting callers see the response, so that their next request hits
+            if(e == null && val != null) {
+                put(key, val);
+            }
+            loading.remove(key, result);
+            if(e == null) {
+                result.complete(val);
+            }
+            else {
+                result.completeExceptionally(e);
+            }
+        });
+
+        return result;
+    }
+
+    private void recordAccess(String key, Entry e) {
+        if(!lock.tryLock()) {
+            return;
+        }
+
+        try {
+            sketch.increment(key);
+            if(e != null) {
+                // get() moves the entry to the end of the access order
+                (e.inMain ? main : window).get(key);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private void put(String key, String value) {
+        Entry e = new Entry(key, value, System.nanoTime());
+        lock.lock();
+        try {
+            Entry old = data.put(key, e);
+            if(old != null) {
+                e.inMain = old.inMain;
+                (e.inMain ? main : window).put(key, e);
+                return;
+            }
+
+            window.put(key, e);
+            if(window.size() > windowCapacity) {
+                evictFromWindow();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves the least recently used entry of the window to the main area if it is
+     * requested more often than the entry it replaces, otherwise drops it
+     */
+    private void evictFromWindow() {
+        Iterator<Entry> itr = window.values().iterator();
+        Entry candidate = itr.next();
+        itr.remove();
+
+        if(main.size() >= mainCapacity) {
+            Entry victim = main.values().iterator().next();
+            if(sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+                data.remove(candidate.key, candidate);
+                return;
+            }
+
+            main.remove(victim.key);
+            data.remove(victim.key, victim);
+        }
+
+        candidate.inMain = true;
+        main.put(candidate.key, candidate);
+    }
+
+    private void invalidate(Entry e) {
+        lock.lock();
+        try {
+            if(data.remove(e.key, e)) {
+                (e.inMain ? main : window).remove(e.key);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
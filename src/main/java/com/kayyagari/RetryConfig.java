@@ -0,0 +1,66 @@
+package com.kayyagari;
+
+/**
+ * The settings of the retries, see {@link LoadBalancerConfig#setRetryConfig(RetryConfig)}.
+ *
+ * A request whose provider fails is sent to a different provider chosen by the strategy, never to a
+ * provider that has already failed it. Retries are only safe for requests that can be repeated, so they
+ * are disabled by default.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public class RetryConfig {
+    private int maxAttempts = 2;
+
+    private double budgetRatio = 0.2;
+
+    private int maxBurst = 10;
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Sets the max number of providers a request is sent to, including the first one
+     */
+    public RetryConfig setMaxAttempts(int maxAttempts) {
+        if(maxAttempts < 2) {
+            throw new IllegalArgumentException("max attempts must be at least 2");
+        }
+
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    public double getBudgetRatio() {
+        return budgetRatio;
+    }
+
+    /**
+     * Sets the max number of retries per request, e.g. 0.2 allows one retry for every five requests
+     */
+    public RetryConfig setBudgetRatio(double budgetRatio) {
+        if(!(budgetRatio > 0 && budgetRatio <= 1)) {
+            throw new IllegalArgumentException("budget ratio must be in the range (0, 1]");
+        }
+
+        this.budgetRatio = budgetRatio;
+        return this;
+    }
+
+    public int getMaxBurst() {
+        return maxBurst;
+    }
+
+    /**
+     * Sets the max number of retries that can be made in a burst when the budget has been accumulated
+     */
+    public RetryConfig setMaxBurst(int maxBurst) {
+        if(maxBurst < 1) {
+            throw new IllegalArgumentException("max burst must be at least 1");
+        }
+
+        this.maxBurst = maxBurst;
+        return this;
+    }
+}
@@ -1,6 +1,7 @@
 package com.kayyagari;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * An implementation of round-robin load-balancing strategy
@@ -9,21 +10,14 @@ import java.util.List;
  */
 public class RoundRobinStrategy implements LoadBalancingStrategy {
 
-    /** index of the next provider to be selected */
-    private int nextIdx = 0;
+    /** sequence number of the next selection, the index is derived from it using the size of the list */
+    private AtomicInteger nextIdx = new AtomicInteger();
 
-    // must be synchronized for thread safety
-    public synchronized Provider next(List<Provider> providers) {
-        // this check is to accommodate any newly added providers
-        int len = providers.size();
-        if(nextIdx == len) {
-            nextIdx = 0;
-        }
-
-        Provider p = providers.get(nextIdx);
-        nextIdx++;
-        
-        return p;
+    // no locking is needed, the list passed by LoadBalancer is an immutable snapshot
+    public Provider next(List<Provider> providers) {
+        // the mask keeps the index positive after the counter overflows
+        int seq = nextIdx.getAndIncrement() & Integer.MAX_VALUE;
+        return providers.get(seq % providers.size());
     }
 
     @Override
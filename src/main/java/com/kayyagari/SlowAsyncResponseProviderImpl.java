@@ -0,0 +1,86 @@
+package com.kayyagari;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The asynchronous counterpart of {@link SlowResponseProviderImpl}, the future returned by getAsync()
+ * gets completed after the given delay in milliseconds by a timer thread shared by all the instances.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public class SlowAsyncResponseProviderImpl implements AsyncProvider {
+    private static final ScheduledExecutorService TIMER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "slow-async-provider-timer");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private String id;
+    private long delay;
+
+    public SlowAsyncResponseProviderImpl(long delayMillis) {
+        this.id = UUID.randomUUID().toString();
+        this.delay = delayMillis;
+    }
+
+    @Override
+    public String id() {
+        return id;
+    }
+
+    @Override
+    public CompletableFuture<String> getAsync() {
+        final CompletableFuture<String> cf = new CompletableFuture<>();
+        TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                cf.complete(id);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+
+        return cf;
+    }
+
+    @Override
+    public boolean check() {
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + ((id == null) ? 0 : id.hashCode());
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        SlowAsyncResponseProviderImpl other = (SlowAsyncResponseProviderImpl) obj;
+        if (id == null) {
+            if (other.id != null) {
+                return false;
+            }
+        } else if (!id.equals(other.id)) {
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,193 @@
+package com.kayyagari;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An implementation of the smooth weighted round-robin strategy used by nginx.
+ *
+ * For weights {5, 1, 1} of providers a, b and c the selection order is a a b a c a a, i.e. the
+ * heavier providers are interleaved with the lighter ones instead of receiving their share in a burst.
+ * The weight of a provider is taken from {@link MeteredProvider#weight()}, other providers have a weight of 1.
+ *
+ * nginx adds the weight of every provider to its current weight on each selection and picks the highest.
+ * The providers of the same weight always take their turns in the order of the list, so this strategy
+ * keeps one current weight per distinct weight instead, and a selection costs O(number of distinct weights).
+ *
+ * When a full cycle of the order is short, at most {@link #MAX_CYCLE_LENGTH} selections, it is computed
+ * once and walked with an atomic counter. Otherwise every selection advances the current weights under
+ * a short lock. The state is derived once per {@link ProviderSnapshot}, LoadBalancer passes the same
+ * snapshot until the membership changes.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public class SmoothWeightedRoundRobinStrategy implements LoadBalancingStrategy {
+
+    /** the max length of a cycle that is computed ahead of the selections */
+    static final int MAX_CYCLE_LENGTH = 4096;
+
+    /** the state derived from the most recently seen list */
+    private volatile Schedule schedule;
+
+    /** sequence number of the next selection from a computed cycle */
+    private AtomicInteger nextIdx = new AtomicInteger();
+
+    @Override
+    public Provider next(List<Provider> providers) {
+        Schedule s = schedule;
+        if(s == null || s.source != providers) {
+            if(providers instanceof ProviderSnapshot) {
+                // built by one thread, the others racing here wait for it
+                s = ((ProviderSnapshot)providers).derive(this, p -> new Schedule(p));
+            }
+            else {
+                s = new Schedule(providers);
+            }
+            schedule = s;
+        }
+
+        if(s.order != null) {
+            int seq = nextIdx.getAndIncrement() & Integer.MAX_VALUE;
+            return s.order[seq % s.order.length];
+        }
+
+        synchronized(s.weights) {
+            return s.weights.next();
+        }
+    }
+
+    private static int weight(Provider p) {
+        if(p instanceof MeteredProvider) {
+            return ((MeteredProvider)p).weight();
+        }
+
+        return 1;
+    }
+
+    private static long gcd(long a, long b) {
+        while(b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+
+        return a;
+    }
+
+    private static class Schedule {
+        private final List<Provider> source;
+
+        /** one cycle of the order, null if it is too long to be computed ahead */
+        private final Provider[] order;
+
+        /** the current weights, used for the selections only if the order is null */
+        private final CurrentWeights weights;
+
+        private Schedule(List<Provider> source) {
+            this.source = source;
+            this.weights = new CurrentWeights(source);
+            if(weights.total <= MAX_CYCLE_LENGTH) {
+                // one cycle of nginx's algorithm, it ends with all the current weights back at zero
+                order = new Provider[(int) weights.total];
+                for(int n=0; n < order.length; n++) {
+                    order[n] = weights.next();
+                }
+            }
+            else {
+                order = null;
+            }
+        }
+    }
+
+    /**
+     * The current weights of nginx's algorithm, one per distinct weight. Not thread safe.
+     */
+    private static class CurrentWeights {
+        /** the providers of each distinct weight in the order of the list */
+        private final Provider[][] groups;
+
+        /** the weight of each group, divided by the gcd of all the weights */
+        private final long[] weights;
+
+        /** the current weight of the next provider of each group */
+        private final long[] current;
+
+        /** the index of the next provider of each group */
+        private final int[] next;
+
+        /** the index in the list of the next provider of each group, breaks the ties as nginx does */
+        private final int[][] positions;
+
+        /** the sum of the weights of all the providers, the length of a cycle */
+        private final long total;
+
+        private CurrentWeights(List<Provider> source) {
+            Map<Integer, List<Integer>> byWeight = new LinkedHashMap<>();
+            long divisor = 0;
+            for(int i=0; i < source.size(); i++) {
+                int w = weight(source.get(i));
+                divisor = gcd(divisor, w);
+                List<Integer> indexes = byWeight.get(w);
+                if(indexes == null) {
+                    indexes = new ArrayList<>();
+                    byWeight.put(w, indexes);
+                }
+                indexes.add(i);
+            }
+
+            int count = byWeight.size();
+            groups = new Provider[count][];
+            positions = new int[count][];
+            weights = new long[count];
+            current = new long[count];
+            next = new int[count];
+            // a cycle of weights {10, 20} is the same as that of {1, 2}, only longer
+            long sum = 0;
+            int g = 0;
+            for(Map.Entry<Integer, List<Integer>> e : byWeight.entrySet()) {
+                List<Integer> indexes = e.getValue();
+                groups[g] = new Provider[indexes.size()];
+                positions[g] = new int[indexes.size()];
+                for(int k=0; k < indexes.size(); k++) {
+                    groups[g][k] = source.get(indexes.get(k));
+                    positions[g][k] = indexes.get(k);
+                }
+                weights[g] = e.getKey() / divisor;
+                sum += weights[g] * indexes.size();
+                g++;
+            }
+            total = sum;
+        }
+
+        /**
+         * Selects the provider with the highest current weight, the first one in the list if they are equal
+         */
+        private Provider next() {
+            int best = 0;
+            for(int g=0; g < groups.length; g++) {
+                current[g] += weights[g];
+                if(current[g] > current[best]
+                        || (current[g] == current[best] && positions[g][next[g]] < positions[best][next[best]])) {
+                    best = g;
+                }
+            }
+
+            Provider selected = groups[best][next[best]];
+            // the rest of the group keeps the current weight until all of them took their turn
+            if(++next[best] == groups[best].length) {
+                next[best] = 0;
+                current[best] -= total;
+            }
+
+            return selected;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "smooth-weighted-round-robin";
+    }
+}
@@ -0,0 +1,65 @@
+package com.kayyagari;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * A provider that is a remote TCP server, the connections accepted by a {@link TcpProxyServer}
+ * are relayed to it as they are.
+ *
+ * {@link #check()} opens a connection and closes it right away, the backend is healthy if the
+ * connection is established within {@link #CONNECT_TIMEOUT_MILLIS}.
+ *
+ * A LoadBalancer of TcpProviders only relays connections, it rejects the requests up front and
+ * TcpProviders cannot be added to a LoadBalancer of other providers, see {@link LoadBalancer#add(Provider, int)}.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public class TcpProvider implements Provider {
+    /** the time a health check waits for the connection */
+    public static final int CONNECT_TIMEOUT_MILLIS = 2000;
+
+    private final String id;
+
+    private final InetSocketAddress address;
+
+    public TcpProvider(String id, InetSocketAddress address) {
+        this.id = id;
+        this.address = address;
+    }
+
+    /**
+     * Returns the address of the backend as host:port, a LoadBalancer never calls it because its
+     * TcpProviders do not serve requests
+     */
+    @Override
+    public String get() {
+        return address.getHostString() + ":" + address.getPort();
+    }
+
+    @Override
+    public boolean check() {
+        try(Socket s = new Socket()) {
+            s.connect(address, CONNECT_TIMEOUT_MILLIS);
+            return true;
+        }
+        catch(IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public String id() {
+        return id;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    @Override
+    public String toString() {
+        return "TcpProvider [" + id + ", " + address + "]";
+    }
+}
@@ -0,0 +1,376 @@
+package com.kayyagari;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * A layer 4 proxy in front of a LoadBalancer whose providers are {@link TcpProvider}s, the bytes of
+ * every accepted connection are relayed to a backend and back without being interpreted.
+ *
+ * Every connection is admitted by the LoadBalancer like a request and holds its permit and its provider's
+ * in-flight slot until it closes, so the capacity limits bound the number of open connections, and
+ * {@link LeastOutstandingStrategy} selects the backend with the fewest connections. A connection that is
+ * not admitted is closed right away. The lifetime of a connection is not a latency, so it is not observed
+ * by the latency based strategies, the adaptive limits, the hedger and the response time metrics, and the
+ * call timeouts of the circuit breakers don't apply. A backend that cannot be connected to within
+ * {@link TcpProvider#CONNECT_TIMEOUT_MILLIS} counts as a failure of the provider and of its circuit breaker.
+ * The LoadBalancer must hold only {@link TcpProvider}s and it rejects requests.
+ *
+ * All the connections are served by a single non-blocking I/O thread. The bytes are relayed through
+ * pooled direct buffers, one for each direction of a connection. When one side is slower, the proxy
+ * stops reading from the other side until its buffer is drained, and a side that shuts down its output
+ * is propagated to the other side as a half close.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public class TcpProxyServer {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /** the max number of free buffers retained by the pool */
+    public static final int MAX_POOLED_BUFFERS = 256;
+
+    private final LoadBalancer lb;
+
+    private final InetSocketAddress bindAddress;
+
+    private final BufferPool buffers;
+
+    private NioEventLoop loop;
+
+    private ServerSocketChannel server;
+
+    /**
+     * Same as {@link #TcpProxyServer(LoadBalancer, InetSocketAddress, int)} with {@link #DEFAULT_BUFFER_SIZE}
+     */
+    public TcpProxyServer(LoadBalancer lb, InetSocketAddress bindAddress) {
+        this(lb, bindAddress, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param lb the LoadBalancer the connections are admitted by
+     * @param bindAddress the address to listen on, the port can be 0
+     * @param bufferSize the size of the buffer of each direction of a connection
+     */
+    public TcpProxyServer(LoadBalancer lb, InetSocketAddress bindAddress, int bufferSize) {
+        if(bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize must be at least 1");
+        }
+
+        this.lb = lb;
+        this.bindAddress = bindAddress;
+        this.buffers = new BufferPool(bufferSize, MAX_POOLED_BUFFERS);
+    }
+
+    /**
+     * Starts listening for connections
+     */
+    public synchronized void start() throws IOException {
+        if(loop != null) {
+            throw new IllegalStateException("already started");
+        }
+
+        server = ServerSocketChannel.open();
+        server.bind(bindAddress);
+        server.configureBlocking(false);
+        loop = new NioEventLoop("tcp-proxy-" + bindAddress.getPort());
+        final CompletableFuture<Void> registered = new CompletableFuture<>();
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loop.register(server, SelectionKey.OP_ACCEPT, new Acceptor());
+                    registered.complete(null);
+                }
+                catch(IOException e) {
+                    registered.completeExceptionally(e);
+                }
+            }
+        });
+
+        try {
+            registered.join();
+        }
+        catch(CompletionException e) {
+            stop();
+            throw (IOException) e.getCause();
+        }
+    }
+
+    /**
+     * Returns the address the proxy is listening on
+     */
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    /**
+     * Closes the listening socket and all the connections
+     */
+    public synchronized void stop() {
+        if(loop != null) {
+            loop.stop();
+        }
+    }
+
+    /**
+     * Returns the number of direct buffers allocated so far, for tests
+     */
+    long allocatedBuffers() throws Exception {
+        final CompletableFuture<Long> count = new CompletableFuture<>();
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                count.complete(buffers.allocated());
+            }
+        });
+        return count.get();
+    }
+
+    private static void closeQuietly(Channel ch) {
+        try {
+            ch.close();
+        }
+        catch(IOException e) {
+            // ignore
+        }
+    }
+
+    private final class Acceptor implements NioEventLoop.Handler {
+        @Override
+        public void ready(SelectionKey key) throws IOException {
+            SocketChannel ch;
+            while((ch = server.accept()) != null) {
+                final SocketChannel client = ch;
+                try {
+                    lb.admitConnection(p -> new Relay(client).connect(p)).whenComplete((val, e) -> {
+                        // e.g. no provider had a free slot
+                        if(e != null) {
+                            closeQuietly(client);
+                        }
+                    });
+                }
+                catch(CapacityExceededException e) {
+                    closeQuietly(client);
+                }
+            }
+        }
+
+        @Override
+        public void failed(Exception e) {
+            closeQuietly(server);
+        }
+    }
+
+    /**
+     * Relays the bytes of a client connection to its backend connection and back
+     */
+    private final class Relay {
+        private final Side client;
+        private Side backend;
+
+        /** completes when both the connections are closed */
+        private final CompletableFuture<Void> closed = new CompletableFuture<>();
+
+        /** fails the relay if the backend is not connected in time, null once connected */
+        private NioEventLoop.Timeout connectTimeout;
+
+        private Relay(SocketChannel ch) {
+            this.client = new Side(ch);
+        }
+
+        /**
+         * Connects to the given provider
+         *
+         * @return the future that completes when the relay is closed, exceptionally if it failed
+         */
+        private CompletableFuture<Void> connect(Provider p) {
+            if(!(p instanceof TcpProvider)) {
+                throw new IllegalStateException("provider " + p.id() + " is not a TcpProvider");
+            }
+
+            SocketChannel ch;
+            try {
+                ch = SocketChannel.open();
+            }
+            catch(IOException e) {
+                close(e);
+                return closed;
+            }
+
+            backend = new Side(ch);
+            client.peer = backend;
+            backend.peer = client;
+            try {
+                ch.configureBlocking(false);
+                ch.socket().setTcpNoDelay(true);
+                client.ch.configureBlocking(false);
+                client.ch.socket().setTcpNoDelay(true);
+                if(ch.connect(((TcpProvider)p).getAddress())) {
+                    connected();
+                }
+                else {
+                    backend.key = loop.register(ch, SelectionKey.OP_CONNECT, backend);
+                    final Provider provider = p;
+                    connectTimeout = loop.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            close(new SocketTimeoutException("could not connect to " + provider.id() + " within "
+                                    + TcpProvider.CONNECT_TIMEOUT_MILLIS + "ms"));
+                        }
+                    }, TcpProvider.CONNECT_TIMEOUT_MILLIS);
+                }
+            }
+            catch(IOException e) {
+                close(e);
+            }
+
+            return closed;
+        }
+
+        private void connected() throws IOException {
+            if(connectTimeout != null) {
+                connectTimeout.cancel();
+                connectTimeout = null;
+            }
+
+            client.in = buffers.acquire();
+            backend.in = buffers.acquire();
+            if(backend.key == null) {
+                backend.key = loop.register(backend.ch, SelectionKey.OP_READ, backend);
+            }
+            else {
+                backend.key.interestOps(SelectionKey.OP_READ);
+            }
+            client.key = loop.register(client.ch, SelectionKey.OP_READ, client);
+        }
+
+        /**
+         * Writes the bytes read from the given side to its peer and updates the interest of both the sides
+         */
+        private void pump(Side from) throws IOException {
+            Side to = from.peer;
+            if(from.in.position() > 0) {
+                from.in.flip();
+                to.ch.write(from.in);
+                from.in.compact();
+            }
+
+            boolean pending = from.in.position() > 0;
+            if(!pending && from.eof && !to.outputShut) {
+                to.ch.shutdownOutput();
+                to.outputShut = true;
+            }
+
+            if(client.outputShut && backend.outputShut) {
+                close(null);
+                return;
+            }
+
+            // stop reading from a side until what was read from it is written
+            from.updateInterest();
+            to.updateInterest();
+        }
+
+        private void close(Exception e) {
+            if(closed.isDone()) {
+                return;
+            }
+
+            if(connectTimeout != null) {
+                connectTimeout.cancel();
+                connectTimeout = null;
+            }
+
+            for(Side s : new Side[] {client, backend}) {
+                if(s == null) {
+                    continue;
+                }
+
+                closeQuietly(s.ch);
+                if(s.key != null) {
+                    s.key.cancel();
+                }
+                if(s.in != null) {
+                    buffers.release(s.in);
+                    s.in = null;
+                }
+            }
+
+            if(e == null) {
+                closed.complete(null);
+            }
+            else {
+                closed.completeExceptionally(e);
+            }
+        }
+
+        /**
+         * One of the two connections of a relay
+         */
+        private final class Side implements NioEventLoop.Handler {
+            private final SocketChannel ch;
+            private SelectionKey key;
+            private Side peer;
+
+            /** the bytes read from this side that are yet to be written to the peer */
+            private ByteBuffer in;
+
+            /** true once this side shut down its output */
+            private boolean eof;
+
+            /** true once the output of this side was shut down after the peer's eof */
+            private boolean outputShut;
+
+            private Side(SocketChannel ch) {
+                this.ch = ch;
+            }
+
+            @Override
+            public void ready(SelectionKey key) throws IOException {
+                if(key.isConnectable()) {
+                    ch.finishConnect();
+                    connected();
+                    return;
+                }
+
+                if(key.isReadable()) {
+                    if(ch.read(in) < 0) {
+                        eof = true;
+                    }
+                    pump(this);
+                }
+
+                if(key.isValid() && key.isWritable()) {
+                    pump(peer);
+                }
+            }
+
+            private void updateInterest() {
+                int ops = 0;
+                if(!eof && in.position() == 0) {
+                    ops |= SelectionKey.OP_READ;
+                }
+                if(peer.in.position() > 0) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+                key.interestOps(ops);
+            }
+
+            /**
+             * Closes the relay, only the errors of the backend side count as failures of the provider
+             */
+            @Override
+            public void failed(Exception e) {
+                close((this == client) ? null : e);
+            }
+        }
+    }
+}
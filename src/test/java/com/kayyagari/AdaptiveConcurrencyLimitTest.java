@@ -0,0 +1,88 @@
+package com.kayyagari;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests the adaptive concurrency limit of a provider.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public class AdaptiveConcurrencyLimitTest {
+    private static final long RTT = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final AdaptiveLimitConfig config = new AdaptiveLimitConfig().setWindowMillis(1).setMinWindowSamples(1);
+
+    @Test
+    public void testGrowsWhileLatencyIsStable() throws Exception {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(10, config);
+        for(int i=0; i < 20; i++) {
+            window(limit, RTT, limit.get());
+        }
+
+        assertTrue("limit " + limit.get(), limit.get() > 15);
+    }
+
+    @Test
+    public void testShrinksWhenLatencyRises() throws Exception {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(100, config);
+        window(limit, RTT, 100);
+        int start = limit.get();
+        for(int i=0; i < 10; i++) {
+            window(limit, RTT * 5, limit.get());
+        }
+
+        assertTrue("limit " + limit.get(), limit.get() < start * 0.75);
+    }
+
+    @Test
+    public void testNoGrowthWhenUnused() throws Exception {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(20, config);
+        for(int i=0; i < 20; i++) {
+            window(limit, RTT, 2);
+        }
+
+        assertEquals(20, limit.get());
+    }
+
+    @Test
+    public void testBackoffOnFailure() throws Exception {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(100, config);
+        Thread.sleep(2);
+        assertTrue(limit.onFailure());
+        assertEquals(90, limit.get());
+
+        config.setMinLimit(85);
+        limit = new AdaptiveConcurrencyLimit(100, config);
+        for(int i=0; i < 5; i++) {
+            Thread.sleep(2);
+            limit.onFailure();
+        }
+
+        assertEquals(85, limit.get());
+    }
+
+    @Test
+    public void testBoundedByConfig() throws Exception {
+        config.setMaxLimit(12);
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(50, config);
+        assertEquals(12, limit.get());
+        for(int i=0; i < 20; i++) {
+            window(limit, RTT, limit.get());
+        }
+
+        assertEquals(12, limit.get());
+    }
+
+    /**
+     * records a sample in a new window, which closes the previous one
+     */
+    private static void window(AdaptiveConcurrencyLimit limit, long rtt, int inFlight) throws InterruptedException {
+        Thread.sleep(2);
+        limit.onSample(rtt, inFlight);
+    }
+}
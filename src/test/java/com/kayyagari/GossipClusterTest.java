@@ -0,0 +1,256 @@
+package com.kayyagari;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs a cluster of three LoadBalancers in the same JVM, gossiping over the loopback interface,
+ * in front of the same providers.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public class GossipClusterTest {
+    private static final int NODES = 3;
+
+    private final List<LoadBalancer> nodes = new ArrayList<>();
+
+    private final List<CountingProvider> providers = new ArrayList<>();
+
+    /** counts the calls to check() and fails them on demand */
+    private static class CountingProvider extends SimpleProviderImpl {
+        private final AtomicInteger checks = new AtomicInteger();
+        private final AtomicBoolean healthy = new AtomicBoolean(true);
+
+        CountingProvider(int nameSuffix) {
+            super(nameSuffix);
+        }
+
+        @Override
+        public boolean check() {
+            checks.incrementAndGet();
+            return healthy.get();
+        }
+    }
+
+    @Before
+    public void setup() throws Exception {
+        for(int i=0; i < LoadBalancer.MAX_NUM_PROVIDERS - 1; i++) {
+            providers.add(new CountingProvider(i+1));
+        }
+
+        for(int n=0; n < NODES; n++) {
+            ClusterConfig cc = new ClusterConfig().setNodeId("node-" + n).setGossipIntervalMillis(50).setFailureTimeoutMillis(1000);
+            if(n > 0) {
+                cc.addSeed(nodes.get(0).getClusterAddress());
+            }
+
+            LoadBalancer lb = new LoadBalancer(new RoundRobinStrategy(), new LoadBalancerConfig().setClusterConfig(cc));
+            nodes.add(lb);
+        }
+
+        waitForLiveNodes(nodes, NODES);
+        for(LoadBalancer lb : nodes) {
+            for(Provider p : providers) {
+                lb.add(p);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for(LoadBalancer lb : nodes) {
+            lb.shutdown();
+        }
+    }
+
+    @Test
+    public void testProbesAreSplit() throws Exception {
+        for(Provider p : providers) {
+            int owners = 0;
+            for(LoadBalancer lb : nodes) {
+                if(lb.getCluster().isProbeOwner(p.id())) {
+                    owners++;
+                }
+            }
+            assertEquals(1, owners);
+        }
+
+        // every node checks every 2 seconds, but only the owner calls the provider
+        for(CountingProvider p : providers) {
+            p.checks.set(0);
+        }
+        Thread.sleep(5000);
+        for(CountingProvider p : providers) {
+            assertTrue(p.id() + " was checked " + p.checks.get() + " times", p.checks.get() <= 4);
+        }
+    }
+
+    @Test
+    public void testHealthIsShared() throws Exception {
+        CountingProvider sick = providers.get(0);
+        sick.healthy.set(false);
+        for(LoadBalancer lb : nodes) {
+            waitUntilInactive(lb, sick.id(), true, 8000);
+        }
+
+        sick.healthy.set(true);
+        for(LoadBalancer lb : nodes) {
+            waitUntilInactive(lb, sick.id(), false, 12000);
+        }
+    }
+
+    @Test
+    public void testManualExclusionIsShared() throws Exception {
+        String id = providers.get(1).id();
+        assertTrue(nodes.get(0).exclude(id));
+        for(LoadBalancer lb : nodes) {
+            waitUntilInactive(lb, id, true, 1000);
+        }
+
+        assertTrue(nodes.get(2).include(id));
+        for(LoadBalancer lb : nodes) {
+            waitUntilInactive(lb, id, false, 1000);
+        }
+    }
+
+    @Test
+    public void testLoadIsShared() throws Exception {
+        final CompletableFuture<String> response = new CompletableFuture<>();
+        AsyncProvider slow = new AsyncProvider() {
+            @Override
+            public CompletableFuture<String> getAsync() {
+                return response;
+            }
+
+            @Override
+            public String get() {
+                return response.join();
+            }
+
+            @Override
+            public boolean check() {
+                return true;
+            }
+
+            @Override
+            public String id() {
+                return "pending";
+            }
+        };
+        LoadBalancer first = nodes.get(0);
+        LoadBalancer second = nodes.get(1);
+        for(LoadBalancer lb : nodes) {
+            lb.add(slow);
+        }
+
+        for(int i=0; i < 50; i++) {
+            first.getAsync();
+        }
+        int local = first.getInFlightCount("pending");
+        assertTrue(local > 0);
+
+        for(int i=0; i < 100 && second.getClusterInFlightCount("pending") < local; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(local, second.getClusterInFlightCount("pending"));
+        response.complete("done");
+    }
+
+    @Test
+    public void testDeadNodeIsReplaced() throws Exception {
+        nodes.remove(NODES - 1).shutdown();
+        waitForLiveNodes(nodes, NODES - 1);
+
+        for(Provider p : providers) {
+            int owners = 0;
+            for(LoadBalancer lb : nodes) {
+                if(lb.getCluster().isProbeOwner(p.id())) {
+                    owners++;
+                }
+            }
+            assertEquals(1, owners);
+        }
+    }
+
+    @Test
+    public void testRestartedNodeRejoins() throws Exception {
+        // the node publishes the state of a provider before it restarts
+        String id = providers.get(2).id();
+        LoadBalancer last = nodes.get(NODES - 1);
+        assertTrue(last.exclude(id));
+        assertTrue(last.include(id));
+        for(LoadBalancer lb : nodes) {
+            waitUntilInactive(lb, id, false, 1000);
+        }
+
+        // let the heartbeats advance, a restarted node starts over from zero
+        Thread.sleep(3000);
+        nodes.remove(NODES - 1).shutdown();
+        waitForLiveNodes(nodes, NODES - 1);
+
+        ClusterConfig cc = new ClusterConfig().setNodeId("node-" + (NODES - 1)).setGossipIntervalMillis(50)
+                .setFailureTimeoutMillis(1000).addSeed(nodes.get(0).getClusterAddress());
+        LoadBalancer restarted = new LoadBalancer(new RoundRobinStrategy(), new LoadBalancerConfig().setClusterConfig(cc));
+        nodes.add(restarted);
+        for(Provider p : providers) {
+            restarted.add(p);
+        }
+
+        // alive again long before its heartbeat catches up with the one of its previous incarnation
+        long deadline = System.currentTimeMillis() + 1500;
+        while(System.currentTimeMillis() < deadline) {
+            boolean converged = true;
+            for(LoadBalancer lb : nodes) {
+                converged &= (lb.getCluster().liveNodes().size() == NODES);
+            }
+            if(converged) {
+                break;
+            }
+            Thread.sleep(20);
+        }
+        for(LoadBalancer lb : nodes) {
+            assertEquals(NODES, lb.getCluster().liveNodes().size());
+        }
+
+        // and its state wins over the one it published before the restart
+        assertTrue(restarted.exclude(id));
+        for(LoadBalancer lb : nodes) {
+            waitUntilInactive(lb, id, true, 1000);
+        }
+    }
+
+    private static void waitForLiveNodes(List<LoadBalancer> nodes, int count) throws InterruptedException {
+        for(int i=0; i < 200; i++) {
+            boolean converged = true;
+            for(LoadBalancer lb : nodes) {
+                converged &= (lb.getCluster().liveNodes().size() == count);
+            }
+            if(converged) {
+                return;
+            }
+            Thread.sleep(20);
+        }
+
+        for(LoadBalancer lb : nodes) {
+            assertEquals(count, lb.getCluster().liveNodes().size());
+        }
+    }
+
+    private static void waitUntilInactive(LoadBalancer lb, String id, boolean inactive, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while(lb.getInactiveProviders().containsKey(id) != inactive && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(inactive, lb.getInactiveProviders().containsKey(id));
+    }
+}
@@ -0,0 +1,161 @@
+package com.kayyagari;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the deadlines and the adaptive intervals of the health checks.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public class HealthCheckSchedulerTest {
+    private HealthCheckScheduler scheduler;
+
+    @Before
+    public void setup() {
+        scheduler = new HealthCheckScheduler(100, 200, 1);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testCheckTimesOut() throws Exception {
+        final CountDownLatch reported = new CountDownLatch(1);
+        final AtomicInteger healthyCount = new AtomicInteger();
+        Provider stuck = new CountingProvider(true) {
+            @Override
+            public boolean check() {
+                super.check();
+                try {
+                    Thread.sleep(10000);
+                }
+                catch(InterruptedException e) {
+                    // interrupted when the deadline passes
+                }
+                return true;
+            }
+        };
+
+        long start = System.currentTimeMillis();
+        scheduler.register(stuck, new HealthCheckScheduler.Listener() {
+            @Override
+            public void healthChecked(boolean healthy) {
+                if(healthy) {
+                    healthyCount.incrementAndGet();
+                }
+                reported.countDown();
+            }
+        });
+
+        assertTrue(reported.await(2, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(0, healthyCount.get());
+    }
+
+    @Test
+    public void testIntervalsAdapt() throws Exception {
+        CountingProvider healthy = new CountingProvider(true);
+        CountingProvider failing = new CountingProvider(false);
+        HealthCheckScheduler.Listener ignore = new HealthCheckScheduler.Listener() {
+            @Override
+            public void healthChecked(boolean h) {
+            }
+        };
+
+        scheduler.register(healthy, ignore);
+        HealthCheckScheduler.Registration r = scheduler.register(failing, ignore);
+
+        Thread.sleep(3000);
+        // with a fixed interval of 100ms there would have been about 30 checks
+        assertTrue("healthy provider checked " + healthy.count.get() + " times", healthy.count.get() < 20);
+        assertTrue("failing provider checked " + failing.count.get() + " times", failing.count.get() < 15);
+
+        // restarting forgets the backoff and checks immediately
+        int before = failing.count.get();
+        r.restart();
+        Thread.sleep(300);
+        assertTrue(failing.count.get() > before);
+
+        r.cancel();
+        Thread.sleep(300);
+        int afterCancel = failing.count.get();
+        Thread.sleep(1000);
+        assertEquals(afterCancel, failing.count.get());
+        assertFalse(healthy.count.get() == 0);
+    }
+
+    @Test
+    public void testRestartDuringSlowCheck() throws Exception {
+        scheduler.shutdown();
+        scheduler = new HealthCheckScheduler(100, 1000, 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        CountingProvider slow = new CountingProvider(true) {
+            @Override
+            public boolean check() {
+                super.check();
+                started.countDown();
+                try {
+                    Thread.sleep(400);
+                }
+                catch(InterruptedException e) {
+                    return false;
+                }
+                return true;
+            }
+        };
+
+        final AtomicInteger healthyCount = new AtomicInteger();
+        final AtomicInteger unhealthyCount = new AtomicInteger();
+        HealthCheckScheduler.Registration r = scheduler.register(slow, new HealthCheckScheduler.Listener() {
+            @Override
+            public void healthChecked(boolean healthy) {
+                (healthy ? healthyCount : unhealthyCount).incrementAndGet();
+            }
+        });
+
+        assertTrue(started.await(2, TimeUnit.SECONDS));
+        // the check running during the restart must not make the provider look stuck
+        r.restart();
+        Thread.sleep(2500);
+        assertEquals(0, unhealthyCount.get());
+        assertTrue(healthyCount.get() > 0);
+        r.cancel();
+    }
+
+    private static class CountingProvider implements Provider {
+        final AtomicInteger count = new AtomicInteger();
+        private boolean healthy;
+
+        CountingProvider(boolean healthy) {
+            this.healthy = healthy;
+        }
+
+        @Override
+        public String get() {
+            return id();
+        }
+
+        @Override
+        public boolean check() {
+            count.incrementAndGet();
+            return healthy;
+        }
+
+        @Override
+        public String id() {
+            return "counting-" + healthy;
+        }
+    }
+}
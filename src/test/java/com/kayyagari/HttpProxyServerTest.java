@@ -0,0 +1,587 @@
+package com.kayyagari;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the proxy in front of stub backends listening on the loopback interface.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public class HttpProxyServerTest {
+    private static final int BACKENDS = 3;
+
+    private final List<Backend> backends = new ArrayList<>();
+
+    private final List<HttpProvider> providers = new ArrayList<>();
+
+    private LoadBalancer lb;
+
+    private HttpProxyServer proxy;
+
+    /**
+     * A backend that responds with its name, echoes the body and the x-forwarded-for header of a request.
+     * The responses to /cookies carry two Set-Cookie headers.
+     */
+    private static class Backend implements HttpHandler {
+        private final String name;
+        private final HttpServer server;
+        private final AtomicBoolean healthy = new AtomicBoolean(true);
+        private final AtomicInteger requests = new AtomicInteger();
+
+        Backend(String name) throws IOException {
+            this.name = name;
+            this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            server.createContext("/", this);
+            server.start();
+        }
+
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            byte[] response;
+            int status = 200;
+            if(ex.getRequestURI().getPath().equals("/health")) {
+                status = healthy.get() ? 200 : 500;
+                response = new byte[0];
+            }
+            else {
+                requests.incrementAndGet();
+                byte[] body = readAll(ex.getRequestBody());
+                String forwardedFor = ex.getRequestHeaders().getFirst("X-Forwarded-For");
+                response = (name + " " + ex.getRequestMethod() + " " + ex.getRequestURI() + " " + forwardedFor + " "
+                        + new String(body, StandardCharsets.UTF_8)).getBytes(StandardCharsets.UTF_8);
+            }
+
+            ex.getResponseHeaders().add("X-Backend", name);
+            if(ex.getRequestURI().getPath().equals("/cookies")) {
+                ex.getResponseHeaders().add("Set-Cookie", "a=1; Expires=Wed, 21 Oct 2026 07:28:00 GMT");
+                ex.getResponseHeaders().add("Set-Cookie", "b=2");
+            }
+            // a length of 0 makes the body chunked
+            ex.sendResponseHeaders(status, (response.length == 0) ? -1 : 0);
+            if(response.length > 0) {
+                OutputStream out = ex.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+            ex.close();
+        }
+
+        InetSocketAddress address() {
+            return server.getAddress();
+        }
+    }
+
+    /**
+     * A backend speaking raw HTTP/1.1 that answers /health right away and never answers /hang. Of the other
+     * requests it answers the first one sent on a connection and closes the connection instead of answering
+     * the second one, like a backend closing an idle connection just when a request arrives.
+     */
+    private static class RawBackend implements Runnable {
+        private final ServerSocket server;
+        private final AtomicInteger received = new AtomicInteger();
+
+        RawBackend() throws IOException {
+            server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            Thread t = new Thread(this, "raw-backend-" + server.getLocalPort());
+            t.setDaemon(true);
+            t.start();
+        }
+
+        @Override
+        public void run() {
+            while(!server.isClosed()) {
+                final Socket s;
+                try {
+                    s = server.accept();
+                }
+                catch(IOException e) {
+                    return;
+                }
+
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(s);
+                    }
+                });
+                t.setDaemon(true);
+                t.start();
+            }
+        }
+
+        private void serve(Socket s) {
+            try {
+                InputStream in = s.getInputStream();
+                OutputStream out = s.getOutputStream();
+                for(int n=1; ; n++) {
+                    String head = readHead(in);
+                    if(head == null) {
+                        return;
+                    }
+
+                    received.incrementAndGet();
+                    String path = head.split(" ")[1];
+                    for(String line : head.split("\r\n")) {
+                        if(line.toLowerCase().startsWith("content-length:")) {
+                            int length = Integer.parseInt(line.substring(15).trim());
+                            for(int i=0; i < length; i++) {
+                                in.read();
+                            }
+                        }
+                    }
+
+                    if(path.equals("/hang")) {
+                        // until the client closes the connection
+                        while(in.read() >= 0) {
+                        }
+                        return;
+                    }
+
+                    if(path.equals("/health") || n == 1) {
+                        out.write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes(StandardCharsets.ISO_8859_1));
+                        out.flush();
+                    }
+                    else {
+                        return;
+                    }
+                }
+            }
+            catch(IOException e) {
+                // the client went away
+            }
+            finally {
+                try {
+                    s.close();
+                }
+                catch(IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        private static String readHead(InputStream in) throws IOException {
+            StringBuilder head = new StringBuilder();
+            while(head.length() < 4 || !head.substring(head.length() - 4).equals("\r\n\r\n")) {
+                int c = in.read();
+                if(c < 0) {
+                    return null;
+                }
+                head.append((char) c);
+            }
+            return head.toString();
+        }
+
+        InetSocketAddress address() {
+            return (InetSocketAddress) server.getLocalSocketAddress();
+        }
+    }
+
+    @Before
+    public void setup() throws Exception {
+        lb = new LoadBalancer(new RoundRobinStrategy());
+        for(int i=0; i < BACKENDS; i++) {
+            Backend b = new Backend("backend-" + i);
+            backends.add(b);
+            HttpProvider p = new HttpProvider("http-" + i, b.address(), "/health", 4);
+            providers.add(p);
+            lb.add(p);
+        }
+
+        proxy = new HttpProxyServer(lb, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), "X-Key");
+        proxy.start();
+    }
+
+    @After
+    public void tearDown() {
+        proxy.stop();
+        lb.shutdown();
+        for(HttpProvider p : providers) {
+            p.close();
+        }
+        for(Backend b : backends) {
+            b.server.stop(0);
+        }
+    }
+
+    @Test
+    public void testRoundRobin() throws Exception {
+        Set<String> seen = new HashSet<>();
+        for(int i=0; i < BACKENDS * 3; i++) {
+            HttpURLConnection conn = open("/items?id=" + i);
+            assertEquals(200, conn.getResponseCode());
+            String body = read(conn);
+            String backend = conn.getHeaderField("X-Backend");
+            seen.add(backend);
+            assertEquals(backend + " GET /items?id=" + i + " 127.0.0.1 ", body);
+        }
+
+        assertEquals(BACKENDS, seen.size());
+        for(Backend b : backends) {
+            assertEquals(3, b.requests.get());
+        }
+        assertEquals(BACKENDS * 3, lb.getMetrics().getSuccessCount());
+    }
+
+    @Test
+    public void testPost() throws Exception {
+        HttpURLConnection conn = open("/echo");
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        OutputStream out = conn.getOutputStream();
+        out.write("hello".getBytes(StandardCharsets.UTF_8));
+        out.close();
+        assertEquals(200, conn.getResponseCode());
+        assertTrue(read(conn).endsWith(" POST /echo 127.0.0.1 hello"));
+    }
+
+    @Test
+    public void testConnectionsAreReused() throws Exception {
+        // a raw socket sending requests one after the other on the same client connection
+        try(Socket s = new Socket(proxy.getAddress().getAddress(), proxy.getAddress().getPort())) {
+            for(int i=0; i < 30; i++) {
+                s.getOutputStream().write(("GET /seq/" + i + " HTTP/1.1\r\nHost: test\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                String resp = readResponse(s.getInputStream());
+                assertTrue(resp, resp.startsWith("HTTP/1.1 200"));
+                assertTrue(resp, resp.contains(" GET /seq/" + i + " "));
+            }
+        }
+
+        // sequential requests need only one connection to each backend
+        for(HttpProvider p : providers) {
+            assertEquals(1, p.openConnections());
+        }
+    }
+
+    @Test
+    public void testKeyedRequests() throws Exception {
+        lb.changeStrategy(new ConsistentHashStrategy());
+        for(int k=0; k < 5; k++) {
+            String first = null;
+            for(int i=0; i < 5; i++) {
+                HttpURLConnection conn = open("/keyed");
+                conn.setRequestProperty("X-Key", "key-" + k);
+                assertEquals(200, conn.getResponseCode());
+                read(conn);
+                String backend = conn.getHeaderField("X-Backend");
+                if(first == null) {
+                    first = backend;
+                }
+                assertEquals(first, backend);
+            }
+        }
+    }
+
+    @Test
+    public void testHealthCheck() throws Exception {
+        HttpProvider p = providers.get(0);
+        assertTrue(p.check());
+        backends.get(0).healthy.set(false);
+        assertFalse(p.check());
+        backends.get(0).healthy.set(true);
+        assertTrue(p.check());
+
+        backends.get(0).server.stop(0);
+        assertFalse(p.check());
+    }
+
+    @Test
+    public void testBackendFailure() throws Exception {
+        backends.get(0).server.stop(0);
+        int badGateway = 0;
+        for(int i=0; i < BACKENDS; i++) {
+            HttpURLConnection conn = open("/");
+            if(conn.getResponseCode() == 502) {
+                badGateway++;
+            }
+            else {
+                assertEquals(200, conn.getResponseCode());
+            }
+            read(conn);
+        }
+        // unless the health checks excluded it already
+        assertTrue(badGateway <= 1);
+
+        // the unhealthy backend is excluded by the health checks
+        long deadline = System.currentTimeMillis() + 10000;
+        while(lb.getProviders().size() == BACKENDS && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertEquals(BACKENDS - 1, lb.getProviders().size());
+        for(int i=0; i < BACKENDS; i++) {
+            HttpURLConnection conn = open("/");
+            assertEquals(200, conn.getResponseCode());
+            read(conn);
+        }
+    }
+
+    @Test
+    public void testNoProviders() throws Exception {
+        for(int i=0; i < BACKENDS; i++) {
+            lb.exclude("http-" + i);
+        }
+
+        HttpURLConnection conn = open("/");
+        assertEquals(503, conn.getResponseCode());
+        read(conn);
+    }
+
+    @Test
+    public void testResponseTimeout() throws Exception {
+        RawBackend backend = new RawBackend();
+        HttpProvider p = new HttpProvider("raw", backend.address(), "/health", 1, 500);
+        try {
+            CompletableFuture<HttpResponse> hung = p.send(new HttpRequest("GET", "/hang", null, null));
+
+            // the health check does not wait for the only connection of the pool
+            assertTrue(p.check());
+
+            try {
+                hung.get(5, TimeUnit.SECONDS);
+                fail("the request must time out");
+            }
+            catch(ExecutionException e) {
+                assertTrue(e.getCause() instanceof SocketTimeoutException);
+            }
+            assertEquals(0, p.openConnections());
+
+            // a cancelled request gives up its connection
+            CompletableFuture<HttpResponse> cancelled = p.send(new HttpRequest("GET", "/hang", null, null));
+            waitForConnections(p, 1);
+            cancelled.cancel(true);
+            waitForConnections(p, 0);
+        }
+        finally {
+            p.close();
+            backend.server.close();
+        }
+    }
+
+    @Test
+    public void testOnlyIdempotentRequestsAreResent() throws Exception {
+        RawBackend backend = new RawBackend();
+        HttpProvider p = new HttpProvider("raw", backend.address(), "/health", 1);
+        try {
+            assertEquals(200, p.send(new HttpRequest("GET", "/a", null, null)).get().getStatus());
+
+            // the backend closes the reused connection, the GET is sent again on a new one
+            assertEquals(200, p.send(new HttpRequest("GET", "/b", null, null)).get().getStatus());
+            assertEquals(3, backend.received.get());
+
+            // the backend may have processed the POST, it is not sent again
+            byte[] body = "data".getBytes(StandardCharsets.UTF_8);
+            try {
+                p.send(new HttpRequest("POST", "/c", null, body)).get();
+                fail("the POST must fail");
+            }
+            catch(ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+            assertEquals(4, backend.received.get());
+        }
+        finally {
+            p.close();
+            backend.server.close();
+        }
+    }
+
+    @Test
+    public void testRepeatedHeaders() throws Exception {
+        HttpResponse resp = providers.get(0).send(new HttpRequest("GET", "/cookies", null, null)).get();
+        assertEquals(Arrays.asList("a=1; Expires=Wed, 21 Oct 2026 07:28:00 GMT", "b=2"), resp.getHeaderValues("Set-Cookie"));
+
+        // the proxy writes each value on its own line
+        try(Socket s = new Socket(proxy.getAddress().getAddress(), proxy.getAddress().getPort())) {
+            s.getOutputStream().write("GET /cookies HTTP/1.1\r\nHost: x\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            String head = readResponse(s.getInputStream());
+            List<String> cookies = new ArrayList<>();
+            for(String line : head.split("\r\n")) {
+                if(line.toLowerCase().startsWith("set-cookie:")) {
+                    cookies.add(line.substring(11).trim());
+                }
+            }
+            assertEquals(Arrays.asList("a=1; Expires=Wed, 21 Oct 2026 07:28:00 GMT", "b=2"), cookies);
+        }
+    }
+
+    @Test
+    public void testClientDisconnectCancelsRequest() throws Exception {
+        RawBackend backend = new RawBackend();
+        HttpProvider p = new HttpProvider("raw", backend.address(), "/health", 1);
+        LoadBalancer rawLb = new LoadBalancer(new RoundRobinStrategy());
+        rawLb.add(p);
+        HttpProxyServer rawProxy = new HttpProxyServer(rawLb, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        rawProxy.start();
+        try {
+            try(Socket s = new Socket(rawProxy.getAddress().getAddress(), rawProxy.getAddress().getPort())) {
+                s.getOutputStream().write("GET /hang HTTP/1.1\r\nHost: x\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                waitForConnections(p, 1);
+            }
+
+            // the backend request is cancelled long before the response timeout
+            waitForConnections(p, 0);
+        }
+        finally {
+            rawProxy.stop();
+            rawLb.shutdown();
+            p.close();
+            backend.server.close();
+        }
+    }
+
+    @Test
+    public void testBusyConnectionStopsReading() throws Exception {
+        RawBackend backend = new RawBackend();
+        HttpProvider p = new HttpProvider("raw", backend.address(), "/health", 1);
+        LoadBalancer rawLb = new LoadBalancer(new RoundRobinStrategy());
+        rawLb.add(p);
+        HttpProxyServer rawProxy = new HttpProxyServer(rawLb, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        rawProxy.start();
+        final Socket s = new Socket(rawProxy.getAddress().getAddress(), rawProxy.getAddress().getPort());
+        try {
+            s.getOutputStream().write("GET /hang HTTP/1.1\r\nHost: x\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            waitForConnections(p, 1);
+
+            // the proxy does not buffer the bytes sent while it serves the request, the writes block
+            final int total = 64 * 1024 * 1024;
+            final AtomicInteger written = new AtomicInteger();
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] chunk = new byte[64 * 1024];
+                    try {
+                        while(written.get() < total) {
+                            s.getOutputStream().write(chunk);
+                            written.addAndGet(chunk.length);
+                        }
+                    }
+                    catch(IOException e) {
+                        // the socket was closed
+                    }
+                }
+            });
+            writer.setDaemon(true);
+            writer.start();
+            writer.join(3000);
+            assertTrue(writer.isAlive());
+            assertTrue(written.get() < total);
+        }
+        finally {
+            s.close();
+            rawProxy.stop();
+            rawLb.shutdown();
+            p.close();
+            backend.server.close();
+        }
+    }
+
+    @Test
+    public void testMalformedRequest() throws Exception {
+        try(Socket s = new Socket(proxy.getAddress().getAddress(), proxy.getAddress().getPort())) {
+            s.getOutputStream().write("GET\r\nno colon\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            String resp = readResponse(s.getInputStream());
+            assertTrue(resp, resp.startsWith("HTTP/1.1 400"));
+            // the proxy closes the connection
+            assertEquals(-1, s.getInputStream().read());
+        }
+    }
+
+    private static void waitForConnections(HttpProvider p, int count) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(p.openConnections() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, p.openConnections());
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        InetSocketAddress addr = proxy.getAddress();
+        URL url = new URL("http", addr.getHostString(), addr.getPort(), path);
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(5000);
+        conn.setReadTimeout(5000);
+        return conn;
+    }
+
+    private static String read(HttpURLConnection conn) throws IOException {
+        InputStream in = (conn.getResponseCode() >= 400) ? conn.getErrorStream() : conn.getInputStream();
+        return (in == null) ? "" : new String(readAll(in), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads a response whose body is sized by Content-Length, as sent by the proxy
+     */
+    private static String readResponse(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        while(!head.toString().endsWith("\r\n\r\n")) {
+            int c = in.read();
+            if(c < 0) {
+                throw new IOException("connection closed, received " + head);
+            }
+            head.append((char) c);
+        }
+
+        int length = 0;
+        for(String line : head.toString().split("\r\n")) {
+            if(line.toLowerCase().startsWith("content-length:")) {
+                length = Integer.parseInt(line.substring(15).trim());
+            }
+        }
+
+        byte[] body = new byte[length];
+        int read = 0;
+        while(read < length) {
+            int n = in.read(body, read, length - read);
+            if(n < 0) {
+                throw new IOException("connection closed");
+            }
+            read += n;
+        }
+
+        return head + new String(body, StandardCharsets.UTF_8);
+    }
+}
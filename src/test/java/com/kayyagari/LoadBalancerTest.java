@@ -2,10 +2,26 @@ package com.kayyagari;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -78,6 +94,19 @@ public class LoadBalancerTest {
         assertTrue(lb.getInactiveProviders().isEmpty());
     }
     
+    @Test
+    public void testSnapshotIsNotAffectedByExclusion() {
+        ProviderSnapshot before = lb.getProviders();
+        String id = prefix + 1;
+        assertTrue(lb.exclude(id));
+
+        ProviderSnapshot after = lb.getProviders();
+        assertEquals(LoadBalancer.MAX_NUM_PROVIDERS, before.size());
+        assertEquals(LoadBalancer.MAX_NUM_PROVIDERS - 1, after.size());
+        assertTrue(after.version() > before.version());
+        assertTrue(before.contains(lb.getInactiveProviders().get(id)));
+    }
+
     // Step 6 – Heart beat checker
     // and
     // Step 7 – Improving Heart beat checker
@@ -142,4 +171,809 @@ public class LoadBalancerTest {
             assertEquals(expectedFailureAtReqNo, i);
         }
     }
+
+    @Test
+    public void testCapacityIsReleasedWhenProviderFails() throws Exception {
+        lb = new LoadBalancer(new RoundRobinStrategy());
+        lb.add(new Provider() {
+            @Override
+            public String get() {
+                throw new IllegalStateException("failing provider");
+            }
+
+            @Override
+            public boolean check() {
+                return true;
+            }
+
+            @Override
+            public String id() {
+                return "failing";
+            }
+        });
+
+        // send more requests than the capacity, none of them should be rejected
+        for(int i=0; i < LoadBalancer.MAX_REQ_PER_PROVIDER * 2; i++) {
+            try {
+                lb.get().get();
+                fail("provider's exception should be propagated");
+            }
+            catch(ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+
+        assertEquals(0, lb.getPendingRequestCount());
+        assertEquals(0, lb.getInFlightCount("failing"));
+        assertEquals(-1, lb.getInFlightCount("unknown"));
+    }
+
+    @Test
+    public void testPeakEwmaDrainsSlowProvider() throws Exception {
+        lb = new LoadBalancer(new PeakEwmaStrategy());
+        for(int i=0; i < LoadBalancer.MAX_NUM_PROVIDERS - 1; i++) {
+            lb.add(new SimpleProviderImpl(i+1));
+        }
+
+        SlowResponseProviderImpl slow = new SlowResponseProviderImpl(50);
+        lb.add(slow);
+
+        int slowCount = 0;
+        int total = 500;
+        for(int i=0; i < total; i++) {
+            if(slow.id().equals(lb.get().get())) {
+                slowCount++;
+            }
+        }
+
+        // round-robin would have sent 10% of the requests to the slow provider
+        assertTrue("slow provider served " + slowCount + " requests", slowCount < total / 50);
+    }
+
+    @Test
+    public void testWeightedCapacity() {
+        lb = new LoadBalancer(new SmoothWeightedRoundRobinStrategy());
+        lb.add(new SlowResponseProviderImpl(10), 3);
+        lb.add(new SlowResponseProviderImpl(10));
+        assertEquals(4 * LoadBalancer.MAX_REQ_PER_PROVIDER, lb.getMaxRequestCapacity());
+
+        try {
+            lb.add(new SimpleProviderImpl(1), 0);
+            fail("weight must be validated");
+        }
+        catch(IllegalArgumentException e) {
+            assertTrue(true);
+        }
+    }
+
+    @Test
+    public void testKeyedGet() throws Exception {
+        lb.changeStrategy(new ConsistentHashStrategy());
+        for(int k=0; k < 20; k++) {
+            String key = "key-" + k;
+            String first = lb.get(key).get();
+            for(int i=0; i < 5; i++) {
+                assertEquals(first, lb.get(key).get());
+            }
+        }
+
+        // keys are ignored by the other strategies
+        lb.changeStrategy(new RoundRobinStrategy());
+        assertNotEquals(lb.get("key").get(), lb.get("key").get());
+    }
+
+    @Test
+    public void testLocalityTiers() throws Exception {
+        Locality local = new Locality("zone-a", "rack-1");
+        lb = new LoadBalancer(new LocalityTieredStrategy(local, RoundRobinStrategy::new));
+        lb.add(new SimpleProviderImpl(1), 1, local);
+        lb.add(new SimpleProviderImpl(2), 1, local);
+        lb.add(new SimpleProviderImpl(3), 1, new Locality("zone-b", "rack-1"));
+        lb.add(new SimpleProviderImpl(4));
+
+        for(int i=0; i < 20; i++) {
+            String val = lb.get().get();
+            assertTrue(val, val.equals(prefix + 1) || val.equals(prefix + 2));
+        }
+
+        // one of two local providers excluded, 1.4 * 1/2 of the requests stay local
+        assertTrue(lb.exclude(prefix + 1));
+        int local2 = 0;
+        for(int i=0; i < 1000; i++) {
+            if(lb.get().get().equals(prefix + 2)) {
+                local2++;
+            }
+        }
+        assertTrue(String.valueOf(local2), local2 > 600 && local2 < 800);
+
+        // the local tier is gone, everything spills over
+        assertTrue(lb.exclude(prefix + 2));
+        for(int i=0; i < 20; i++) {
+            String val = lb.get().get();
+            assertTrue(val, val.equals(prefix + 3) || val.equals(prefix + 4));
+        }
+    }
+
+    @Test
+    public void testAsyncGet() throws Exception {
+        lb = new LoadBalancer(new RoundRobinStrategy());
+        SlowAsyncResponseProviderImpl p1 = new SlowAsyncResponseProviderImpl(200);
+        SlowAsyncResponseProviderImpl p2 = new SlowAsyncResponseProviderImpl(200);
+        lb.add(p1, 50);
+        lb.add(p2, 50);
+
+        // far more requests than the threads in the request pool
+        int total = 1000;
+        long start = System.currentTimeMillis();
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        for(int i=0; i < total; i++) {
+            futures.add(lb.getAsync());
+        }
+        assertEquals(total, lb.getPendingRequestCount());
+
+        for(CompletableFuture<String> f : futures) {
+            String val = f.get();
+            assertTrue(val.equals(p1.id()) || val.equals(p2.id()));
+        }
+
+        // had they been blocking calls on the request pool this would take 20 seconds
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("took " + elapsed + "ms", elapsed < 5000);
+        assertEquals(0, lb.getPendingRequestCount());
+        assertEquals(0, lb.getInFlightCount(p1.id()));
+
+        // the requests of a batch are counted once each
+        assertEquals(4, lb.getBatch(4).get().size());
+        LoadBalancerMetrics metrics = lb.getMetrics();
+        assertEquals(total + 4, metrics.getProvider(p1.id()).getRequestCount() + metrics.getProvider(p2.id()).getRequestCount());
+    }
+
+    @Test
+    public void testVirtualThreads() throws Exception {
+        boolean supported = true;
+        try {
+            Thread.class.getMethod("ofVirtual");
+        }
+        catch(NoSuchMethodException e) {
+            supported = false;
+        }
+
+        LoadBalancerConfig config = new LoadBalancerConfig().setExecutionMode(ExecutionMode.VIRTUAL_THREADS);
+        lb = new LoadBalancer(new RoundRobinStrategy(), config);
+        assertEquals(supported ? ExecutionMode.VIRTUAL_THREADS : ExecutionMode.PLATFORM_THREADS, lb.getExecutionMode());
+
+        lb.add(new SimpleProviderImpl(1));
+        assertEquals(prefix + 1, lb.get().get());
+        lb.shutdown();
+    }
+
+    @Test
+    public void testBatchGet() throws Exception {
+        List<String> vals = lb.getBatch(25).get();
+        assertEquals(25, vals.size());
+        for(int i=0; i < vals.size(); i++) {
+            assertEquals(prefix + ((i % LoadBalancer.MAX_NUM_PROVIDERS) + 1), vals.get(i));
+        }
+        assertEquals(0, lb.getPendingRequestCount());
+
+        // a batch is either admitted as a whole or not at all
+        try {
+            lb.getBatch(lb.getMaxRequestCapacity() + 1);
+            fail("batch larger than the capacity must be rejected");
+        }
+        catch(CapacityExceededException e) {
+            assertEquals(0, lb.getPendingRequestCount());
+        }
+    }
+
+    @Test
+    public void testCancelledBatchReleasesPermits() throws Exception {
+        lb = new LoadBalancer(new RoundRobinStrategy());
+        Provider p1 = new SlowResponseProviderImpl(100);
+        Provider p2 = new SlowResponseProviderImpl(100);
+        lb.add(p1);
+        lb.add(p2);
+        CompletableFuture<List<String>> batch = lb.getBatch(6);
+        assertEquals(6, lb.getPendingRequestCount());
+        assertTrue(batch.cancel(true));
+
+        // the permits are held as long as the cancelled parts still hold their slots
+        long deadline = System.currentTimeMillis() + 5000;
+        while(System.currentTimeMillis() < deadline) {
+            int pending = lb.getPendingRequestCount();
+            int inFlight = lb.getInFlightCount(p1.id()) + lb.getInFlightCount(p2.id());
+            assertTrue(pending + " pending, " + inFlight + " in flight", pending >= inFlight);
+            if(pending == 0) {
+                break;
+            }
+            Thread.sleep(5);
+        }
+        assertEquals(0, lb.getPendingRequestCount());
+        assertEquals(0, lb.getInFlightCount(p1.id()) + lb.getInFlightCount(p2.id()));
+        assertEquals(lb.getMaxRequestCapacity(), lb.getBatch(lb.getMaxRequestCapacity()).get().size());
+        lb.shutdown();
+    }
+
+    @Test
+    public void testBatchProvider() throws Exception {
+        final AtomicInteger batchCalls = new AtomicInteger();
+        lb = new LoadBalancer(new RoundRobinStrategy());
+        lb.add(new BatchProvider() {
+            @Override
+            public List<String> getBatch(int count) {
+                batchCalls.incrementAndGet();
+                List<String> vals = new ArrayList<>();
+                for(int i=0; i < count; i++) {
+                    vals.add(id() + "-" + i);
+                }
+                return vals;
+            }
+
+            @Override
+            public String get() {
+                throw new IllegalStateException("batch provider should not be called for each request");
+            }
+
+            @Override
+            public boolean check() {
+                return true;
+            }
+
+            @Override
+            public String id() {
+                return "batch";
+            }
+        });
+        lb.add(new SimpleProviderImpl(1));
+
+        List<String> vals = lb.getBatch(10).get();
+        assertEquals(1, batchCalls.get());
+        for(int i=0; i < vals.size(); i += 2) {
+            assertEquals("batch-" + (i / 2), vals.get(i));
+            assertEquals(prefix + 1, vals.get(i + 1));
+        }
+    }
+
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        final AtomicBoolean failing = new AtomicBoolean(true);
+        CircuitBreakerConfig breakerConfig = new CircuitBreakerConfig().setMinimumCalls(5).setOpenMillis(300).setHalfOpenTrials(2);
+        lb = new LoadBalancer(new RoundRobinStrategy(), new LoadBalancerConfig().setCircuitBreakerConfig(breakerConfig));
+        lb.add(new Provider() {
+            @Override
+            public String get() {
+                if(failing.get()) {
+                    throw new IllegalStateException("failing provider");
+                }
+                return id();
+            }
+
+            @Override
+            public boolean check() {
+                return true;
+            }
+
+            @Override
+            public String id() {
+                return "flaky";
+            }
+        });
+        lb.add(new SimpleProviderImpl(1));
+
+        // the flaky provider gets every other request
+        sendIgnoringFailures(10);
+
+        // passing check() doesn't bring it back while the breaker is open
+        waitUntilInactive("flaky", true);
+        for(int i=0; i < 10; i++) {
+            assertEquals(prefix + 1, lb.get().get());
+        }
+
+        // included again after the open duration, a failed trial opens the breaker again
+        waitUntilInactive("flaky", false);
+        sendIgnoringFailures(2);
+        waitUntilInactive("flaky", true);
+
+        // closed after the successful trials
+        failing.set(false);
+        waitUntilInactive("flaky", false);
+        int served = 0;
+        for(int i=0; i < 10; i++) {
+            if("flaky".equals(lb.get().get())) {
+                served++;
+            }
+        }
+        assertEquals(5, served);
+
+        // a manual include closes the breaker without waiting for the open duration
+        failing.set(true);
+        sendIgnoringFailures(10);
+        waitUntilInactive("flaky", true);
+        failing.set(false);
+        assertTrue(lb.include("flaky"));
+        assertEquals(2, lb.getProviders().size());
+        String first = lb.get().get();
+        assertTrue("flaky".equals(first) || "flaky".equals(lb.get().get()));
+        lb.shutdown();
+    }
+
+    @Test
+    public void testHedging() throws Exception {
+        HedgingConfig hedgingConfig = new HedgingConfig().setDelayMillis(20).setMaxBurst(20);
+        lb = new LoadBalancer(new RoundRobinStrategy(), new LoadBalancerConfig().setHedgingConfig(hedgingConfig));
+        SlowResponseProviderImpl slow = new SlowResponseProviderImpl(2000);
+        lb.add(slow);
+        lb.add(new SimpleProviderImpl(1));
+
+        // every request sent to the slow provider is answered by the other one, a hedge
+        // advances the round-robin counter so it is not known how many of them get hedged
+        long start = System.nanoTime();
+        for(int i=0; i < 10; i++) {
+            assertEquals(prefix + 1, lb.get().get());
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+
+        // the losing calls are cancelled
+        for(int i=0; i < 100 && lb.getInFlightCount(slow.id()) > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, lb.getInFlightCount(slow.id()));
+
+        // the budget is exhausted, the slow provider's response is awaited
+        boolean slowServed = false;
+        for(int i=0; i < 60 && !slowServed; i++) {
+            slowServed = slow.id().equals(lb.get().get());
+        }
+        assertTrue(slowServed);
+        lb.shutdown();
+    }
+
+    @Test
+    public void testRetry() throws Exception {
+        final AtomicInteger failingCalls = new AtomicInteger();
+        LoadBalancerConfig config = new LoadBalancerConfig().setCircuitBreakerConfig(null)
+                .setRetryConfig(new RetryConfig().setBudgetRatio(0.1).setMaxBurst(5));
+        lb = new LoadBalancer(new RandomStrategy(), config);
+        lb.add(new Provider() {
+            @Override
+            public String get() {
+                failingCalls.incrementAndGet();
+                throw new IllegalStateException("failing provider");
+            }
+
+            @Override
+            public boolean check() {
+                return true;
+            }
+
+            @Override
+            public String id() {
+                return "failing";
+            }
+        });
+        lb.add(new SimpleProviderImpl(1));
+
+        // the failed requests are retried on the other provider, never on the failed one
+        int failures = 0;
+        int total = 100;
+        for(int i=0; i < total; i++) {
+            try {
+                assertEquals(prefix + 1, lb.get().get());
+            }
+            catch(ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+                failures++;
+            }
+        }
+
+        // the budget allows the burst and a tenth of the requests to be retried
+        int retries = failingCalls.get() - failures;
+        assertTrue("retries " + retries, retries >= 5 && retries <= 5 + total / 10);
+        assertTrue("failures " + failures, failures > 0);
+        assertEquals(0, lb.getPendingRequestCount());
+        assertEquals(0, lb.getInFlightCount("failing"));
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        for(int i=0; i < 20; i++) {
+            lb.get().get();
+        }
+
+        LoadBalancerMetrics metrics = lb.getMetrics();
+        assertEquals(20, metrics.getRequestCount());
+        assertEquals(20, metrics.getSuccessCount());
+        assertEquals(0, metrics.getFailureCount());
+        assertEquals(0, metrics.getRejectionCount());
+        assertEquals(20, metrics.getResponseTime().getCount());
+        assertEquals(20, metrics.getServiceTime().getCount());
+        assertEquals(20, metrics.getQueueWait().getCount());
+        assertEquals(LoadBalancer.MAX_NUM_PROVIDERS, metrics.getProviders().size());
+        ProviderMetrics pm = metrics.getProvider(prefix + 1);
+        assertEquals(2, pm.getRequestCount());
+        assertEquals(2, pm.getServiceTime().getCount());
+        assertTrue(pm.isActive());
+        // the circuit breakers are disabled by default
+        assertNull(pm.getCircuitBreakerState());
+
+        lb = new LoadBalancer(new RoundRobinStrategy());
+        lb.add(new SlowResponseProviderImpl(100));
+        for(int i=0; i < LoadBalancer.MAX_REQ_PER_PROVIDER; i++) {
+            lb.get();
+        }
+        try {
+            lb.get();
+            fail("capacity must be exceeded");
+        }
+        catch(CapacityExceededException e) {
+            assertEquals(1, lb.getMetrics().getRejectionCount());
+        }
+
+        lb.registerMBean("test");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.kayyagari:type=LoadBalancer,name=\"test\"");
+        assertEquals(1L, server.getAttribute(name, "RejectionCount"));
+        lb.shutdown();
+        assertFalse(server.isRegistered(name));
+
+        // the counters are live, the percentiles and the per provider values come from the cached snapshot
+        lb = new LoadBalancer(new RoundRobinStrategy());
+        lb.add(new SimpleProviderImpl(1));
+        LoadBalancerJmx jmx = new LoadBalancerJmx(lb, TimeUnit.HOURS.toMillis(1));
+        assertEquals(0, jmx.getProviderRequestCounts().get(prefix + 1).longValue());
+        lb.get().get();
+        assertEquals(1, jmx.getRequestCount());
+        assertEquals(1, jmx.getSuccessCount());
+        assertEquals(0, jmx.getProviderRequestCounts().get(prefix + 1).longValue());
+        assertEquals(1, new LoadBalancerJmx(lb, 0).getProviderRequestCounts().get(prefix + 1).longValue());
+        lb.shutdown();
+    }
+
+    @Test
+    public void testManyProviders() throws Exception {
+        int count = 2000;
+        lb = new LoadBalancer(new RoundRobinStrategy(), new LoadBalancerConfig().setMaxProviders(count));
+        for(int i=0; i < count; i++) {
+            lb.add(new SimpleProviderImpl(i));
+        }
+        assertEquals(count, lb.getProviders().size());
+        assertEquals(count * LoadBalancer.MAX_REQ_PER_PROVIDER, lb.getMaxRequestCapacity());
+
+        try {
+            lb.add(new SimpleProviderImpl(count));
+            fail("the provider limit must be enforced");
+        }
+        catch(IllegalStateException e) {
+            assertTrue(true);
+        }
+
+        // every change is applied, but the snapshot is published only once
+        ProviderSnapshot before = lb.getProviders();
+        for(int i=0; i < count; i += 2) {
+            assertTrue(lb.exclude(prefix + i));
+        }
+        ProviderSnapshot after = lb.getProviders();
+        assertEquals(before.version() + 1, after.version());
+        assertEquals(count / 2, after.size());
+        assertEquals(count / 2, lb.getInactiveProviders().size());
+        assertEquals((count / 2) * LoadBalancer.MAX_REQ_PER_PROVIDER, lb.getMaxRequestCapacity());
+        for(Provider p : after) {
+            assertFalse(lb.getInactiveProviders().containsKey(p.id()));
+        }
+
+        assertTrue(lb.include(prefix + 0));
+        assertFalse(lb.include(prefix + 0));
+        assertFalse(lb.exclude(prefix + 0 + "-unknown"));
+        assertEquals(count / 2 + 1, lb.getProviders().size());
+        assertEquals(0, lb.getInFlightCount(prefix + 2));
+    }
+
+    @Test
+    public void testRequestThreads() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger entered = new AtomicInteger();
+        int threads = LoadBalancer.MAX_NUM_PROVIDERS * 2;
+        lb = new LoadBalancer(new RoundRobinStrategy(), new LoadBalancerConfig().setRequestThreads(threads));
+        lb.add(new Provider() {
+            @Override
+            public String get() {
+                entered.incrementAndGet();
+                try {
+                    release.await();
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return id();
+            }
+
+            @Override
+            public boolean check() {
+                return true;
+            }
+
+            @Override
+            public String id() {
+                return "blocking";
+            }
+        }, 2);
+
+        // more concurrent calls than the default number of threads
+        int calls = threads - 5;
+        List<Future<String>> futures = new ArrayList<>();
+        for(int i=0; i < calls; i++) {
+            futures.add(lb.get());
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while(entered.get() < calls && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(calls, entered.get());
+
+        release.countDown();
+        for(Future<String> f : futures) {
+            assertEquals("blocking", f.get());
+        }
+        lb.shutdown();
+    }
+
+    @Test
+    public void testDuplicateProviderId() {
+        try {
+            lb.add(new SimpleProviderImpl(1));
+            fail("the IDs of the providers must be unique");
+        }
+        catch(IllegalArgumentException e) {
+            assertEquals(LoadBalancer.MAX_NUM_PROVIDERS, lb.getProviders().size());
+        }
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        lb = new LoadBalancer(new RoundRobinStrategy(), new LoadBalancerConfig().setCacheConfig(new CacheConfig()));
+        lb.add(new Provider() {
+            @Override
+            public String get() {
+                return id() + "-" + calls.incrementAndGet();
+            }
+
+            @Override
+            public boolean check() {
+                return true;
+            }
+
+            @Override
+            public String id() {
+                return "counting";
+            }
+        });
+
+        for(int i=0; i < 10; i++) {
+            assertEquals("counting-1", lb.get("key").get());
+        }
+        assertEquals("counting-2", lb.get("other").get());
+
+        // requests without a key are never cached
+        assertEquals("counting-3", lb.get().get());
+        assertEquals(3, calls.get());
+
+        LoadBalancerMetrics metrics = lb.getMetrics();
+        assertEquals(9, metrics.getCacheHitCount());
+        assertEquals(2, metrics.getCacheMissCount());
+        assertEquals(3, metrics.getRequestCount());
+    }
+
+    @Test
+    public void testAdaptiveLimit() throws Exception {
+        final AtomicBoolean failing = new AtomicBoolean(true);
+        AdaptiveLimitConfig limitConfig = new AdaptiveLimitConfig().setWindowMillis(1).setMinWindowSamples(1);
+        lb = new LoadBalancer(new RoundRobinStrategy(), new LoadBalancerConfig()
+                .setCircuitBreakerConfig(null).setAdaptiveLimitConfig(limitConfig));
+        lb.add(new Provider() {
+            @Override
+            public String get() {
+                if(failing.get()) {
+                    throw new IllegalStateException("failing provider");
+                }
+                return id();
+            }
+
+            @Override
+            public boolean check() {
+                return true;
+            }
+
+            @Override
+            public String id() {
+                return "flaky";
+            }
+        }, 2);
+        assertEquals(2 * LoadBalancer.MAX_REQ_PER_PROVIDER, lb.getMaxRequestCapacity());
+
+        // every failure in a new window backs the limit off
+        for(int i=0; i < 5; i++) {
+            Thread.sleep(2);
+            sendIgnoringFailures(1);
+        }
+
+        int limit = lb.getMetrics().getProvider("flaky").getLimit();
+        assertTrue("limit " + limit, limit < 2 * LoadBalancer.MAX_REQ_PER_PROVIDER);
+        assertEquals(limit, lb.getMaxRequestCapacity());
+    }
+
+    @Test
+    public void testAdaptiveLimitDoesNotGrowWhileQueueing() throws Exception {
+        AdaptiveLimitConfig limitConfig = new AdaptiveLimitConfig().setWindowMillis(20).setMinWindowSamples(1);
+        lb = new LoadBalancer(new RoundRobinStrategy(), new LoadBalancerConfig()
+                .setCircuitBreakerConfig(null).setAdaptiveLimitConfig(limitConfig));
+        SlowResponseProviderImpl p = new SlowResponseProviderImpl(10);
+        lb.add(p);
+        int initial = lb.getMaxRequestCapacity();
+
+        // keep the provider at its limit, any growth beyond the threads of the request pool only queues
+        List<Future<String>> futures = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + 1500;
+        while(System.currentTimeMillis() < deadline) {
+            try {
+                futures.add(lb.get());
+            }
+            catch(CapacityExceededException e) {
+                Thread.sleep(1);
+            }
+        }
+
+        for(Future<String> f : futures) {
+            f.get();
+        }
+
+        int limit = lb.getMetrics().getProvider(p.id()).getLimit();
+        assertTrue("limit " + limit, limit <= Math.max(initial, LoadBalancer.MAX_NUM_PROVIDERS));
+        lb.shutdown();
+    }
+
+    @Test
+    public void testBoundedQueue() throws Exception {
+        lb = new LoadBalancer(new RoundRobinStrategy(), new LoadBalancerConfig().setQueueCapacity(5));
+        lb.add(new SlowResponseProviderImpl(200));
+        lb.add(new SlowResponseProviderImpl(200));
+
+        // 10 calls occupy the threads, 5 are queued and the rest are rejected by the queue
+        List<Future<String>> futures = new ArrayList<>();
+        for(int i=0; i < lb.getMaxRequestCapacity(); i++) {
+            futures.add(lb.get());
+            // the first calls are sent one at a time so that they don't wait in the queue for the idle threads
+            for(int j=0; j < 100 && i < LoadBalancer.MAX_NUM_PROVIDERS && lb.getMetrics().getQueueWait().getCount() <= i; j++) {
+                Thread.sleep(5);
+            }
+        }
+
+        int rejected = 0;
+        for(Future<String> f : futures) {
+            try {
+                assertNotNull(f.get());
+            }
+            catch(ExecutionException e) {
+                assertTrue(e.getCause() instanceof CapacityExceededException);
+                rejected++;
+            }
+        }
+
+        assertEquals(5, rejected);
+        LoadBalancerMetrics metrics = lb.getMetrics();
+        assertEquals(5, metrics.getRejectionCount());
+        // the providers are not blamed for the rejections
+        for(ProviderMetrics pm : metrics.getProviders()) {
+            assertEquals(0, pm.getFailureCount());
+        }
+        lb.shutdown();
+    }
+
+    @Test
+    public void testReservedCapacity() throws Exception {
+        PriorityConfig pc = new PriorityConfig().setReservedShare(Priority.HIGH, 0.3);
+        lb = new LoadBalancer(new RoundRobinStrategy(), new LoadBalancerConfig().setPriorityConfig(pc));
+        lb.add(new SlowResponseProviderImpl(200));
+        int reserved = 3;
+
+        List<Future<String>> futures = new ArrayList<>();
+        for(int i=0; i < lb.getMaxRequestCapacity() - reserved; i++) {
+            futures.add(lb.get(null, Priority.LOW));
+        }
+
+        // the reserved part is left only to the high priority requests
+        for(Priority p : new Priority[] {Priority.LOW, Priority.NORMAL}) {
+            try {
+                lb.get(null, p);
+                fail("capacity must be exceeded for " + p);
+            }
+            catch(CapacityExceededException e) {
+                // expected
+            }
+        }
+
+        for(int i=0; i < reserved; i++) {
+            futures.add(lb.get(null, Priority.HIGH));
+        }
+        try {
+            lb.get(null, Priority.HIGH);
+            fail("capacity must be exceeded");
+        }
+        catch(CapacityExceededException e) {
+            // expected
+        }
+
+        for(Future<String> f : futures) {
+            assertNotNull(f.get());
+        }
+        assertEquals(3, lb.getMetrics().getRejectionCount());
+        assertEquals(0, lb.getPendingRequestCount());
+
+        // an unused reservation of a lower class is available to the higher ones
+        lb.shutdown();
+        pc = new PriorityConfig().setReservedShare(Priority.LOW, 0.5);
+        lb = new LoadBalancer(new RoundRobinStrategy(), new LoadBalancerConfig().setPriorityConfig(pc));
+        lb.add(new SlowResponseProviderImpl(50));
+        futures.clear();
+        for(int i=0; i < lb.getMaxRequestCapacity() / 2; i++) {
+            futures.add(lb.get(null, Priority.HIGH));
+        }
+        try {
+            lb.get(null, Priority.HIGH);
+            fail("capacity must be exceeded");
+        }
+        catch(CapacityExceededException e) {
+            // expected
+        }
+        futures.add(lb.get(null, Priority.LOW));
+        for(Future<String> f : futures) {
+            assertNotNull(f.get());
+        }
+        lb.shutdown();
+    }
+
+    @Test
+    public void testLatencyHistogram() {
+        LatencyHistogram h = new LatencyHistogram();
+        for(int i=1; i <= 1000; i++) {
+            h.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+
+        LatencySnapshot snapshot = h.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        long[] expected = {500, 990, 999};
+        long[] actual = {snapshot.getP50(), snapshot.getP99(), snapshot.getP999()};
+        for(int i=0; i < expected.length; i++) {
+            long nanos = TimeUnit.MICROSECONDS.toNanos(expected[i]);
+            // the reported value is the upper bound of the bucket, at most 1/16th above the actual value
+            assertTrue(actual[i] >= nanos && actual[i] <= nanos + nanos / LatencyHistogram.SUB_BUCKETS);
+        }
+
+        for(long v : new long[] {0, 1, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE}) {
+            int index = LatencyHistogram.indexOf(v);
+            assertTrue(v <= LatencyHistogram.upperBoundOf(index));
+            if(index > 0) {
+                assertTrue(v > LatencyHistogram.upperBoundOf(index - 1));
+            }
+        }
+    }
+
+    private void sendIgnoringFailures(int count) throws InterruptedException {
+        for(int i=0; i < count; i++) {
+            try {
+                lb.get().get();
+            }
+            catch(ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+    }
+
+    private void waitUntilInactive(String id, boolean inactive) throws InterruptedException {
+        for(int i=0; i < 100 && lb.getInactiveProviders().containsKey(id) != inactive; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(inactive, lb.getInactiveProviders().containsKey(id));
+    }
 }
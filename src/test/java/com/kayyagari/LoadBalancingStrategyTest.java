@@ -0,0 +1,533 @@
+package com.kayyagari;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the selection logic of the load-aware strategies in isolation, i.e. without a LoadBalancer.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public class LoadBalancingStrategyTest {
+    private List<Provider> providers;
+
+    @Before
+    public void setup() {
+        providers = new ArrayList<>();
+        for(int i=0; i < 5; i++) {
+            providers.add(new FakeMeteredProvider(i));
+        }
+    }
+
+    @Test
+    public void testLeastOutstanding() {
+        LeastOutstandingStrategy strategy = new LeastOutstandingStrategy();
+        for(Provider p : providers) {
+            ((FakeMeteredProvider)p).inFlight = 5;
+        }
+
+        FakeMeteredProvider leastBusy = (FakeMeteredProvider) providers.get(3);
+        leastBusy.inFlight = 2;
+        for(int i=0; i < 10; i++) {
+            assertSame(leastBusy, strategy.next(providers));
+        }
+
+        // ties must be spread across the providers instead of always picking the first one
+        leastBusy.inFlight = 5;
+        assertNotSame(strategy.next(providers), strategy.next(providers));
+    }
+
+    @Test
+    public void testPowerOfTwoChoices() {
+        PowerOfTwoChoicesStrategy strategy = new PowerOfTwoChoicesStrategy();
+        FakeMeteredProvider busy = (FakeMeteredProvider) providers.get(0);
+        busy.inFlight = 100;
+
+        // the busiest provider loses every comparison, so it can never be selected
+        for(int i=0; i < 1000; i++) {
+            assertNotSame(busy, strategy.next(providers));
+        }
+
+        List<Provider> single = providers.subList(0, 1);
+        assertSame(busy, strategy.next(single));
+    }
+
+    @Test
+    public void testPowerOfTwoChoicesWithTwoProviders() {
+        PowerOfTwoChoicesStrategy strategy = new PowerOfTwoChoicesStrategy();
+        List<Provider> two = providers.subList(0, 2);
+        ((FakeMeteredProvider)two.get(0)).inFlight = 1;
+        for(int i=0; i < 100; i++) {
+            // both the providers are always compared
+            assertEquals(two.get(1), strategy.next(two));
+        }
+    }
+
+    @Test
+    public void testPeakEwma() throws Exception {
+        PeakEwma ewma = new PeakEwma(100);
+        assertEquals(0.0, ewma.get(), 0.0);
+
+        ewma.observe(1000);
+        ewma.observe(5000);
+        // a higher sample is taken as is
+        assertTrue(ewma.get() > 4000);
+
+        // and it decays when there are no further samples
+        Thread.sleep(300);
+        assertTrue(ewma.get() < 1000);
+    }
+
+    @Test
+    public void testPeakEwmaStrategy() {
+        PeakEwmaStrategy strategy = new PeakEwmaStrategy();
+        for(Provider p : providers) {
+            ((FakeMeteredProvider)p).latency = 1000;
+        }
+
+        FakeMeteredProvider slow = (FakeMeteredProvider) providers.get(2);
+        slow.latency = 100000;
+        for(int i=0; i < 1000; i++) {
+            assertNotSame(slow, strategy.next(providers));
+        }
+
+        // a fast provider that is loaded heavily costs more than the slow one
+        FakeMeteredProvider loaded = (FakeMeteredProvider) providers.get(4);
+        loaded.inFlight = 1000;
+        for(int i=0; i < 1000; i++) {
+            assertNotSame(loaded, strategy.next(providers));
+        }
+    }
+
+    @Test
+    public void testSmoothWeightedRoundRobin() {
+        SmoothWeightedRoundRobinStrategy strategy = new SmoothWeightedRoundRobinStrategy();
+        List<Provider> abc = new ArrayList<>(providers.subList(0, 3));
+        ((FakeMeteredProvider)abc.get(0)).weight = 5;
+
+        // the sequence produced by nginx for weights {5, 1, 1}
+        int[] expected = {0, 0, 1, 0, 2, 0, 0};
+        for(int cycle=0; cycle < 3; cycle++) {
+            for(int e : expected) {
+                assertSame(abc.get(e), strategy.next(abc));
+            }
+        }
+
+        // the order must be recomputed when the list changes
+        List<Provider> ab = abc.subList(0, 2);
+        int count = 0;
+        for(int i=0; i < 60; i++) {
+            if(strategy.next(ab) == abc.get(0)) {
+                count++;
+            }
+        }
+        assertEquals(50, count);
+    }
+
+    @Test
+    public void testSmoothWeightedRoundRobinLongCycle() {
+        // the cycles too long to be computed ahead must follow nginx's order as well
+        List<Provider> list = new ArrayList<>();
+        int[] weights = {700, 1, 300, 1, 700, 3000, 300, 1};
+        for(int i=0; i < weights.length; i++) {
+            FakeMeteredProvider p = new FakeMeteredProvider(100 + i);
+            p.weight = weights[i];
+            list.add(p);
+        }
+
+        SmoothWeightedRoundRobinStrategy strategy = new SmoothWeightedRoundRobinStrategy();
+        int total = 0;
+        for(int w : weights) {
+            total += w;
+        }
+        assertTrue(total > SmoothWeightedRoundRobinStrategy.MAX_CYCLE_LENGTH);
+        int[] current = new int[weights.length];
+        for(int n=0; n < total * 2; n++) {
+            int best = 0;
+            for(int i=0; i < weights.length; i++) {
+                current[i] += weights[i];
+                if(current[i] > current[best]) {
+                    best = i;
+                }
+            }
+            current[best] -= total;
+            assertSame(list.get(best), strategy.next(list));
+        }
+
+        // a total weight beyond the range of an int
+        ((FakeMeteredProvider)list.get(0)).weight = Integer.MAX_VALUE;
+        ((FakeMeteredProvider)list.get(5)).weight = Integer.MAX_VALUE - 2;
+        List<Provider> heavy = new ArrayList<>(list);
+        int light = 0;
+        for(int i=0; i < 1000; i++) {
+            Provider p = strategy.next(heavy);
+            if(p != list.get(0) && p != list.get(5)) {
+                light++;
+            }
+        }
+        assertEquals(0, light);
+    }
+
+    @Test
+    public void testConsistentHash() {
+        ConsistentHashStrategy strategy = new ConsistentHashStrategy();
+        int keys = 10000;
+        Map<Provider, Integer> counts = new HashMap<>();
+        Map<String, Provider> before = new HashMap<>();
+        for(int i=0; i < keys; i++) {
+            String key = "key-" + i;
+            Provider p = strategy.next(providers, key);
+            assertSame(p, strategy.next(providers, key));
+            before.put(key, p);
+            Integer c = counts.get(p);
+            counts.put(p, (c == null) ? 1 : c + 1);
+        }
+
+        // every provider should get a fair share of the keys
+        for(Provider p : providers) {
+            int c = counts.get(p);
+            assertTrue(p.id() + " owns " + c + " keys", c > keys / 10 && c < keys * 3 / 10);
+        }
+
+        // only the keys owned by the removed provider should move
+        Provider removed = providers.get(2);
+        List<Provider> remaining = new ArrayList<>(providers);
+        remaining.remove(removed);
+        for(Map.Entry<String, Provider> e : before.entrySet()) {
+            Provider now = strategy.next(remaining, e.getKey());
+            if(e.getValue() == removed) {
+                assertNotSame(removed, now);
+            }
+            else {
+                assertSame(e.getValue(), now);
+            }
+        }
+    }
+
+    @Test
+    public void testConsistentHashDerivedRing() {
+        for(int i=0; i < 1000; i += 7) {
+            assertEquals(ConsistentHashStrategy.hash("p-" + i + "-" + i),
+                    ConsistentHashStrategy.pointHash(ConsistentHashStrategy.idState("p-" + i), i));
+        }
+
+        // a ring derived from the previous one routes like one built from scratch
+        ConsistentHashStrategy derived = new ConsistentHashStrategy();
+        derived.next(providers, "warm-up");
+        List<Provider> changed = new ArrayList<>(providers);
+        changed.remove(1);
+        changed.add(new FakeMeteredProvider(5));
+        FakeMeteredProvider heavy = new FakeMeteredProvider(6);
+        heavy.weight = 3;
+        changed.add(heavy);
+        ((FakeMeteredProvider)changed.get(0)).weight = 2;
+        ConsistentHashStrategy fresh = new ConsistentHashStrategy();
+        for(int i=0; i < 10000; i++) {
+            String key = "key-" + i;
+            assertSame(fresh.next(changed, key), derived.next(changed, key));
+        }
+
+        // the positions of a departed provider are skipped, and used again when it returns
+        List<Provider> shrunk = new ArrayList<>(changed);
+        shrunk.remove(2);
+        shrunk.remove(0);
+        ConsistentHashStrategy freshShrunk = new ConsistentHashStrategy();
+        for(int i=0; i < 10000; i++) {
+            String key = "key-" + i;
+            assertSame(freshShrunk.next(shrunk, key), derived.next(shrunk, key));
+        }
+        for(int i=0; i < 10000; i++) {
+            String key = "key-" + i;
+            assertSame(fresh.next(changed, key), derived.next(changed, key));
+        }
+    }
+
+    @Test
+    public void testSnapshotDerive() {
+        ProviderSnapshot snapshot = ProviderSnapshot.EMPTY.next(providers.toArray(new Provider[0]),
+                Collections.<Locality, Integer>emptyMap());
+        final AtomicInteger builds = new AtomicInteger();
+        Object key = new Object();
+        for(int i=0; i < 3; i++) {
+            assertEquals(Integer.valueOf(5), snapshot.derive(key, s -> {
+                builds.incrementAndGet();
+                return s.size();
+            }));
+        }
+        assertEquals(1, builds.get());
+        assertEquals("other", snapshot.derive(new Object(), s -> "other"));
+    }
+
+    @Test
+    public void testConsistentHashWithBoundedLoad() {
+        ConsistentHashStrategy strategy = new ConsistentHashStrategy();
+        String key = "hot-key";
+        FakeMeteredProvider home = (FakeMeteredProvider) strategy.next(providers, key);
+
+        home.inFlight = 20;
+        Provider spill = strategy.next(providers, key);
+        assertNotSame(home, spill);
+        // the spillover target must be stable as well
+        assertSame(spill, strategy.next(providers, key));
+
+        // with the spillover disabled the home provider is returned regardless of its load
+        ConsistentHashStrategy unbounded = new ConsistentHashStrategy(Double.POSITIVE_INFINITY);
+        assertSame(home, unbounded.next(providers, key));
+    }
+
+    @Test
+    public void testConsistentHashReadsLoadFromSnapshot() {
+        ConsistentHashStrategy strategy = new ConsistentHashStrategy();
+        final AtomicInteger load = new AtomicInteger(100);
+        ProviderSnapshot snapshot = ProviderSnapshot.EMPTY.next(providers.toArray(new Provider[0]),
+                Collections.<Locality, Integer>emptyMap()).withLoad(load::get);
+        String key = "hot-key";
+        FakeMeteredProvider home = (FakeMeteredProvider) strategy.next(snapshot, key);
+
+        // within its share of the load the snapshot reports, but not of the sum of the in-flight counts
+        home.inFlight = 20;
+        assertSame(home, strategy.next(snapshot, key));
+        load.set(21);
+        assertNotSame(home, strategy.next(snapshot, key));
+
+        // the walk ends at the home provider when every provider is busy
+        for(Provider p : providers) {
+            ((FakeMeteredProvider) p).inFlight = 20;
+        }
+        assertSame(home, strategy.next(snapshot, key));
+    }
+
+    @Test
+    public void testLocalityTiers() {
+        Locality local = new Locality("zone-a", "rack-1");
+        List<Provider> tiered = localityProviders(4, 4, 4);
+        // the health is recomputed for every request, so the changes below are seen right away
+        LocalityTieredStrategy strategy = new LocalityTieredStrategy(local, RoundRobinStrategy::new, 0);
+        assertEquals(0, strategy.tierOf(local));
+        assertEquals(1, strategy.tierOf(new Locality("zone-a", "rack-2")));
+        assertEquals(2, strategy.tierOf(new Locality("zone-b", "rack-1")));
+        assertEquals(2, strategy.tierOf(Locality.NONE));
+
+        // all the requests stay in the local tier while it is healthy, spread by the inner strategy
+        Map<Provider, Integer> counts = countSelections(strategy, tiered, 400);
+        assertEquals(4, counts.size());
+        for(int i=0; i < 4; i++) {
+            assertEquals(Integer.valueOf(100), counts.get(tiered.get(i)));
+        }
+
+        // losing one of the four local providers is absorbed by the overprovisioning factor
+        FakeMeteredProvider saturated = (FakeMeteredProvider) tiered.get(0);
+        saturated.limit = 10;
+        saturated.inFlight = 10;
+        counts = countSelections(strategy, tiered, 400);
+        assertEquals(4, counts.size());
+        assertEquals(400, tierShare(strategy, counts, 0));
+    }
+
+    @Test
+    public void testLocalityTiersSpillover() {
+        Locality local = new Locality("zone-a", "rack-1");
+        List<Provider> tiered = localityProviders(4, 4, 4);
+        // the health is recomputed for every request, so the changes below are seen right away
+        LocalityTieredStrategy strategy = new LocalityTieredStrategy(local, RoundRobinStrategy::new, 0);
+
+        // two of four local providers busy, health 1.4 * 2/4 = 0.7 and the rest spills to the same zone
+        for(int i=0; i < 2; i++) {
+            FakeMeteredProvider p = (FakeMeteredProvider) tiered.get(i);
+            p.limit = 1;
+            p.inFlight = 1;
+        }
+        int total = 20000;
+        Map<Provider, Integer> counts = countSelections(strategy, tiered, total);
+        assertEquals(0.7, tierShare(strategy, counts, 0) / (double) total, 0.03);
+        assertEquals(0.3, tierShare(strategy, counts, 1) / (double) total, 0.03);
+        assertEquals(0, tierShare(strategy, counts, 2));
+
+        // the whole local tier busy, the same zone takes everything
+        for(int i=0; i < 4; i++) {
+            FakeMeteredProvider p = (FakeMeteredProvider) tiered.get(i);
+            p.limit = 1;
+            p.inFlight = 1;
+        }
+        counts = countSelections(strategy, tiered, 1000);
+        assertEquals(1000, tierShare(strategy, counts, 1));
+
+        // every provider busy, the local tier gets the request and the LoadBalancer applies its limits
+        for(Provider p : tiered) {
+            ((FakeMeteredProvider)p).limit = 1;
+            ((FakeMeteredProvider)p).inFlight = 1;
+        }
+        assertEquals(0, strategy.tierOf(((MeteredProvider)strategy.next(tiered)).locality()));
+    }
+
+    @Test
+    public void testLocalityTiersHealthRefresh() throws Exception {
+        Locality local = new Locality("zone-a", "rack-1");
+        List<Provider> tiered = localityProviders(4, 4, 4);
+        LocalityTieredStrategy strategy = new LocalityTieredStrategy(local, RoundRobinStrategy::new, 200);
+        assertEquals(400, tierShare(strategy, countSelections(strategy, tiered, 400), 0));
+
+        // the busy local tier is noticed only when the health gets refreshed
+        for(int i=0; i < 4; i++) {
+            FakeMeteredProvider p = (FakeMeteredProvider) tiered.get(i);
+            p.limit = 1;
+            p.inFlight = 1;
+        }
+        long start = System.nanoTime();
+        Map<Provider, Integer> counts = countSelections(strategy, tiered, 100);
+        if(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(150)) {
+            assertEquals(100, tierShare(strategy, counts, 0));
+        }
+
+        Thread.sleep(250);
+        counts = countSelections(strategy, tiered, 100);
+        assertEquals(100, tierShare(strategy, counts, 1));
+
+        // a new list gets its health right away
+        List<Provider> copy = new ArrayList<>(tiered);
+        assertEquals(100, tierShare(strategy, countSelections(strategy, copy, 100), 1));
+    }
+
+    @Test
+    public void testLocalityTiersWithExcludedProviders() {
+        Locality local = new Locality("zone-a", "rack-1");
+        List<Provider> all = localityProviders(4, 0, 4);
+        LocalityTieredStrategy strategy = new LocalityTieredStrategy(local, RoundRobinStrategy::new);
+
+        // the snapshot knows of 4 local providers, only 1 of which is active: health 1.4 * 1/4 = 0.35
+        Map<Locality, Integer> registered = new HashMap<>();
+        registered.put(local, 4);
+        registered.put(new Locality("zone-b", "rack-1"), 4);
+        Provider[] active = new Provider[5];
+        active[0] = all.get(0);
+        for(int i=0; i < 4; i++) {
+            active[i+1] = all.get(4 + i);
+        }
+        ProviderSnapshot snapshot = ProviderSnapshot.EMPTY.next(active, registered);
+
+        int total = 20000;
+        Map<Provider, Integer> counts = countSelections(strategy, snapshot, total);
+        assertEquals(0.35, tierShare(strategy, counts, 0) / (double) total, 0.03);
+        assertEquals(0.65, tierShare(strategy, counts, 2) / (double) total, 0.03);
+    }
+
+    @Test
+    public void testLocalityTiersWithKeys() {
+        Locality local = new Locality("zone-a", "rack-1");
+        List<Provider> tiered = localityProviders(4, 4, 4);
+        LocalityTieredStrategy strategy = new LocalityTieredStrategy(local, ConsistentHashStrategy::new);
+        for(int i=0; i < 100; i++) {
+            String key = "key-" + i;
+            Provider p = strategy.next(tiered, key);
+            assertEquals(0, strategy.tierOf(((MeteredProvider)p).locality()));
+            assertSame(p, strategy.next(tiered, key));
+        }
+    }
+
+    private static List<Provider> localityProviders(int sameRack, int sameZone, int otherZone) {
+        List<Provider> list = new ArrayList<>();
+        int suffix = 0;
+        for(int i=0; i < sameRack; i++) {
+            list.add(new FakeMeteredProvider(suffix++, new Locality("zone-a", "rack-1")));
+        }
+        for(int i=0; i < sameZone; i++) {
+            list.add(new FakeMeteredProvider(suffix++, new Locality("zone-a", "rack-2")));
+        }
+        for(int i=0; i < otherZone; i++) {
+            list.add(new FakeMeteredProvider(suffix++, new Locality("zone-b", "rack-1")));
+        }
+
+        return list;
+    }
+
+    private static Map<Provider, Integer> countSelections(LoadBalancingStrategy strategy, List<Provider> list, int n) {
+        Map<Provider, Integer> counts = new HashMap<>();
+        for(int i=0; i < n; i++) {
+            counts.merge(strategy.next(list), 1, Integer::sum);
+        }
+
+        return counts;
+    }
+
+    private static int tierShare(LocalityTieredStrategy strategy, Map<Provider, Integer> counts, int tier) {
+        int sum = 0;
+        for(Map.Entry<Provider, Integer> e : counts.entrySet()) {
+            if(strategy.tierOf(((MeteredProvider)e.getKey()).locality()) == tier) {
+                sum += e.getValue();
+            }
+        }
+
+        return sum;
+    }
+
+    static class FakeMeteredProvider implements MeteredProvider {
+        private String id;
+        volatile int inFlight;
+        volatile double latency;
+        volatile int weight = 1;
+        volatile int limit = Integer.MAX_VALUE;
+        Locality locality = Locality.NONE;
+
+        FakeMeteredProvider(int nameSuffix) {
+            this.id = "fake-" + nameSuffix;
+        }
+
+        FakeMeteredProvider(int nameSuffix, Locality locality) {
+            this(nameSuffix);
+            this.locality = locality;
+        }
+
+        @Override
+        public String get() {
+            return id;
+        }
+
+        @Override
+        public boolean check() {
+            return true;
+        }
+
+        @Override
+        public String id() {
+            return id;
+        }
+
+        @Override
+        public int inFlight() {
+            return inFlight;
+        }
+
+        @Override
+        public double expectedLatencyNanos() {
+            return latency;
+        }
+
+        @Override
+        public int weight() {
+            return weight;
+        }
+
+        @Override
+        public int limit() {
+            return limit;
+        }
+
+        @Override
+        public Locality locality() {
+            return locality;
+        }
+    }
+}
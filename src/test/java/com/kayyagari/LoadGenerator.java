@@ -0,0 +1,312 @@
+package com.kayyagari;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends requests to a LoadBalancer at a fixed rate, independent of how fast they are served (open-loop).
+ *
+ * The i-th request is due at start + i * (1s / rate). When the generator falls behind, e.g. because
+ * getAsync() blocked on a full queue, the overdue requests are sent immediately one after the other.
+ * The latency of each request is measured twice:
+ * <ul>
+ *   <li>corrected, from the time the request was due, this includes the time the request could not be
+ *   sent because the LoadBalancer was stalled and avoids coordinated omission</li>
+ *   <li>uncorrected, from the time the request was actually sent, this is what a closed-loop test
+ *   like {@link LoadBalancerStressTest} reports</li>
+ * </ul>
+ *
+ * A sweep runs the generator at increasing rates, the point where the throughput stops following the
+ * target rate or the latency shoots up is the saturation knee of the LoadBalancer and its providers.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public class LoadGenerator {
+    /** a rate is saturated if less than this fraction of the target rate is served */
+    static final double MIN_THROUGHPUT_RATIO = 0.9;
+
+    /** a rate is saturated if its corrected p99 is this many times the p99 of the lowest rate */
+    static final int MAX_LATENCY_RATIO = 10;
+
+    /** the max time to wait for the outstanding requests after the last one was sent */
+    static final long DRAIN_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * The providers of a LoadBalancer built for a load test
+     */
+    public static class ProviderMix {
+        private int simple = 6;
+        private int slow = 2;
+        private long slowDelayMillis = 5;
+        private int unhealthy = 2;
+        private int unhealthyIntervalSec = 5;
+
+        public ProviderMix setSimple(int simple) {
+            this.simple = simple;
+            return this;
+        }
+
+        public ProviderMix setSlow(int slow, long delayMillis) {
+            this.slow = slow;
+            this.slowDelayMillis = delayMillis;
+            return this;
+        }
+
+        public ProviderMix setUnhealthy(int unhealthy, int intervalSec) {
+            this.unhealthy = unhealthy;
+            this.unhealthyIntervalSec = intervalSec;
+            return this;
+        }
+
+        /**
+         * Creates a LoadBalancer and adds the providers of this mix to it
+         */
+        public LoadBalancer build(LoadBalancingStrategy strategy, LoadBalancerConfig config) {
+            LoadBalancer lb = new LoadBalancer(strategy, config.setMaxProviders(Math.max(1, simple + slow + unhealthy)));
+            for(int i=0; i < simple; i++) {
+                lb.add(new SimpleProviderImpl(i+1));
+            }
+            for(int i=0; i < slow; i++) {
+                lb.add(new SlowResponseProviderImpl(slowDelayMillis));
+            }
+            for(int i=0; i < unhealthy; i++) {
+                lb.add(new PeriodicallyUnhealthyProviderImpl(unhealthyIntervalSec));
+            }
+
+            return lb;
+        }
+    }
+
+    /**
+     * The outcome of a run at one rate
+     */
+    public static class Result {
+        private final int targetRate;
+        private final long durationNanos;
+        private final int sent;
+        private final int succeeded;
+        private final int failed;
+        private final int rejected;
+        private final int outstanding;
+        private final LatencySnapshot corrected;
+        private final LatencySnapshot uncorrected;
+
+        Result(int targetRate, long durationNanos, int sent, int succeeded, int failed, int rejected, int outstanding,
+                LatencySnapshot corrected, LatencySnapshot uncorrected) {
+            this.targetRate = targetRate;
+            this.durationNanos = durationNanos;
+            this.sent = sent;
+            this.succeeded = succeeded;
+            this.failed = failed;
+            this.rejected = rejected;
+            this.outstanding = outstanding;
+            this.corrected = corrected;
+            this.uncorrected = uncorrected;
+        }
+
+        public int getTargetRate() {
+            return targetRate;
+        }
+
+        public int getSent() {
+            return sent;
+        }
+
+        public int getSucceeded() {
+            return succeeded;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        /**
+         * Returns the number of requests that failed with a {@link CapacityExceededException}
+         */
+        public int getRejected() {
+            return rejected;
+        }
+
+        /**
+         * Returns the number of requests that didn't complete within {@link LoadGenerator#DRAIN_TIMEOUT_MILLIS}
+         */
+        public int getOutstanding() {
+            return outstanding;
+        }
+
+        /**
+         * Returns the number of successful requests per second over the duration of the run
+         */
+        public double getThroughput() {
+            return succeeded / (durationNanos / (double) TimeUnit.SECONDS.toNanos(1));
+        }
+
+        /**
+         * Returns the latency measured from the time each successful request was due
+         */
+        public LatencySnapshot getCorrected() {
+            return corrected;
+        }
+
+        /**
+         * Returns the latency measured from the time each successful request was sent
+         */
+        public LatencySnapshot getUncorrected() {
+            return uncorrected;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%8d %10.1f %8d %8d %8d %10.2f %10.2f %10.2f %10.2f",
+                    targetRate, getThroughput(), rejected, failed, outstanding,
+                    corrected.getPercentileMillis(0.5), corrected.getPercentileMillis(0.99),
+                    corrected.getPercentileMillis(0.999), uncorrected.getPercentileMillis(0.99));
+        }
+    }
+
+    private final LoadBalancer lb;
+
+    public LoadGenerator(LoadBalancer lb) {
+        this.lb = lb;
+    }
+
+    /**
+     * Sends requests at the given rate for the given duration and waits for them to complete
+     *
+     * @param ratePerSec the number of requests sent per second
+     * @param durationMillis the time requests are sent for
+     */
+    public Result run(int ratePerSec, long durationMillis) throws InterruptedException {
+        if(ratePerSec < 1) {
+            throw new IllegalArgumentException("rate must be at least 1");
+        }
+
+        final long interval = TimeUnit.SECONDS.toNanos(1) / ratePerSec;
+        final int total = (int) (ratePerSec * durationMillis / 1000);
+        final LatencyHistogram corrected = new LatencyHistogram();
+        final LatencyHistogram uncorrected = new LatencyHistogram();
+        final AtomicInteger succeeded = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger rejected = new AtomicInteger();
+        final AtomicInteger completed = new AtomicInteger();
+
+        final long start = System.nanoTime();
+        for(int i=0; i < total; i++) {
+            final long due = start + i * interval;
+            long wait = due - System.nanoTime();
+            while(wait > 0) {
+                LockSupport.parkNanos(wait);
+                wait = due - System.nanoTime();
+            }
+
+            final long sentAt = System.nanoTime();
+            CompletableFuture<String> response;
+            try {
+                response = lb.getAsync();
+            }
+            catch(CapacityExceededException e) {
+                rejected.incrementAndGet();
+                completed.incrementAndGet();
+                continue;
+            }
+
+            response.whenComplete((val, e) -> {
+                long now = System.nanoTime();
+                if(e == null) {
+                    corrected.record(now - due);
+                    uncorrected.record(now - sentAt);
+                    succeeded.incrementAndGet();
+                }
+                else if(isRejection(e)) {
+                    rejected.incrementAndGet();
+                }
+                else {
+                    failed.incrementAndGet();
+                }
+                completed.incrementAndGet();
+            });
+        }
+
+        long sendDuration = System.nanoTime() - start;
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        while(completed.get() < total && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+
+        // the throughput is measured over the intended duration, or longer if sending fell behind
+        long duration = Math.max(sendDuration, TimeUnit.MILLISECONDS.toNanos(durationMillis));
+        return new Result(ratePerSec, duration, total, succeeded.get(), failed.get(), rejected.get(),
+                total - completed.get(), corrected.snapshot(), uncorrected.snapshot());
+    }
+
+    /**
+     * Runs the generator at each of the given rates in order
+     *
+     * @param rates the rates in requests per second, in increasing order
+     * @param durationMillis the time requests are sent for at each rate
+     */
+    public List<Result> sweep(int[] rates, long durationMillis) throws InterruptedException {
+        List<Result> results = new ArrayList<>();
+        for(int rate : rates) {
+            results.add(run(rate, durationMillis));
+        }
+
+        return results;
+    }
+
+    /**
+     * Returns the index of the first result whose rate saturated the LoadBalancer, i.e. the knee lies
+     * between it and the previous rate, or -1 if none of the rates saturated it
+     */
+    public static int saturationPoint(List<Result> results) {
+        if(results.isEmpty()) {
+            return -1;
+        }
+
+        long baseP99 = Math.max(1, results.get(0).getCorrected().getP99());
+        for(int i=0; i < results.size(); i++) {
+            Result r = results.get(i);
+            if(r.getThroughput() < r.getTargetRate() * MIN_THROUGHPUT_RATIO
+                    || r.getCorrected().getP99() > baseP99 * MAX_LATENCY_RATIO) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Formats the throughput against latency curve of a sweep as a table, the latencies are in milliseconds
+     */
+    public static String report(List<Result> results) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "%8s %10s %8s %8s %8s %10s %10s %10s %10s%n", "rate", "throughput",
+                "rejected", "failed", "pending", "p50", "p99", "p999", "raw p99"));
+        int knee = saturationPoint(results);
+        for(int i=0; i < results.size(); i++) {
+            sb.append(results.get(i));
+            if(i == knee) {
+                sb.append("  <- saturated");
+            }
+            sb.append(String.format("%n"));
+        }
+
+        return sb.toString();
+    }
+
+    private static boolean isRejection(Throwable e) {
+        while(e != null) {
+            if(e instanceof CapacityExceededException) {
+                return true;
+            }
+            e = e.getCause();
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,61 @@
+package com.kayyagari;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Short runs of the open-loop load generator, the full sweeps are meant to be run by hand.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public class LoadGeneratorTest {
+    private LoadBalancer lb;
+
+    @After
+    public void tearDown() {
+        lb.shutdown();
+    }
+
+    @Test
+    public void testOpenLoop() throws Exception {
+        lb = new LoadGenerator.ProviderMix().build(new RoundRobinStrategy(), new LoadBalancerConfig());
+        LoadGenerator.Result r = new LoadGenerator(lb).run(200, 1000);
+
+        assertEquals(200, r.getSent());
+        assertEquals(r.getSent(), r.getSucceeded() + r.getFailed() + r.getRejected() + r.getOutstanding());
+        assertTrue("throughput " + r.getThroughput(), r.getThroughput() > 200 * LoadGenerator.MIN_THROUGHPUT_RATIO);
+        assertTrue(r.getCorrected().getP99() >= r.getUncorrected().getP99());
+    }
+
+    @Test
+    public void testCoordinatedOmission() throws Exception {
+        // getAsync() blocks while the queue is full, a closed-loop client wouldn't notice the backlog
+        LoadBalancerConfig config = new LoadBalancerConfig().setOverloadPolicy(OverloadPolicy.BLOCK)
+                .setQueueCapacity(1).setQueueBlockTimeoutMillis(1000);
+        lb = new LoadGenerator.ProviderMix().setSimple(0).setSlow(LoadBalancer.MAX_NUM_PROVIDERS, 50).setUnhealthy(0, 1)
+                .build(new RoundRobinStrategy(), config);
+        LoadGenerator.Result r = new LoadGenerator(lb).run(1000, 500);
+
+        System.out.println("corrected {" + r.getCorrected() + "}, uncorrected {" + r.getUncorrected() + "}");
+        assertTrue(r.getThroughput() < 1000 * LoadGenerator.MIN_THROUGHPUT_RATIO);
+        assertTrue(r.getCorrected().getP99() > 2 * r.getUncorrected().getP99());
+    }
+
+    @Test
+    public void testSweep() throws Exception {
+        lb = new LoadGenerator.ProviderMix().setSimple(0).setSlow(2, 10).setUnhealthy(0, 1)
+                .build(new RoundRobinStrategy(), new LoadBalancerConfig());
+        List<LoadGenerator.Result> results = new LoadGenerator(lb).sweep(new int[] {100, 400, 5000}, 400);
+
+        String report = LoadGenerator.report(results);
+        System.out.println(report);
+        assertEquals(2, LoadGenerator.saturationPoint(results));
+        assertTrue(report.contains("<- saturated"));
+        assertTrue(results.get(2).getRejected() > 0);
+    }
+}
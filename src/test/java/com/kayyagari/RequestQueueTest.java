@@ -0,0 +1,220 @@
+package com.kayyagari;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests the overload policies and the priority classes of the request queue.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public class RequestQueueTest {
+    private RequestQueue queue;
+
+    /** holds the only thread of the queue until released */
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private final List<String> executed = Collections.synchronizedList(new ArrayList<String>());
+
+    private final List<String> rejected = Collections.synchronizedList(new ArrayList<String>());
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        queue.shutdownNow();
+    }
+
+    @Test
+    public void testReject() throws Exception {
+        start(OverloadPolicy.REJECT);
+        queue.execute(new NamedTask("a"), true);
+        queue.execute(new NamedTask("b"), true);
+        queue.execute(new NamedTask("c"), true);
+        assertEquals(Arrays.asList("c"), rejected);
+
+        drain(2);
+        assertEquals(Arrays.asList("a", "b"), executed);
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        start(OverloadPolicy.DROP_OLDEST);
+        queue.execute(new NamedTask("a"), true);
+        queue.execute(new NamedTask("b"), true);
+        queue.execute(new NamedTask("c"), true);
+        assertEquals(Arrays.asList("a"), rejected);
+
+        drain(2);
+        assertEquals(Arrays.asList("b", "c"), executed);
+    }
+
+    @Test
+    public void testBlock() throws Exception {
+        start(OverloadPolicy.BLOCK);
+        queue.execute(new NamedTask("a"), true);
+        queue.execute(new NamedTask("b"), true);
+
+        // a caller that must not block is rejected right away
+        queue.execute(new NamedTask("c"), false);
+        assertEquals(Arrays.asList("c"), rejected);
+
+        long start = System.nanoTime();
+        queue.execute(new NamedTask("d"), true);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 50);
+        assertEquals(Arrays.asList("c", "d"), rejected);
+
+        // a caller waiting for space is admitted when the queue drains
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                }
+                catch(InterruptedException e) {
+                    // ignore
+                }
+                release.countDown();
+            }
+        }.start();
+        queue.execute(new NamedTask("e"), true);
+        drain(3);
+        assertEquals(Arrays.asList("a", "b", "e"), executed);
+    }
+
+    @Test
+    public void testAdaptiveLifo() throws Exception {
+        start(OverloadPolicy.ADAPTIVE_LIFO, 10);
+        queue.execute(new NamedTask("old"), true);
+        Thread.sleep(100);
+        queue.execute(new NamedTask("b"), true);
+        queue.execute(new NamedTask("c"), true);
+        release.countDown();
+
+        // the queue has not been empty for longer than the interval, the old task is dropped
+        // and the remaining ones are served newest first
+        drain(2);
+        assertEquals(Arrays.asList("c", "b"), executed);
+        assertEquals(Arrays.asList("old"), rejected);
+    }
+
+    @Test
+    public void testShutdownRejectsQueuedTasks() throws Exception {
+        start(OverloadPolicy.REJECT);
+        queue.execute(new NamedTask("a"), true);
+        queue.shutdownNow();
+        assertEquals(Arrays.asList("a"), rejected);
+
+        queue.execute(new NamedTask("b"), true);
+        assertEquals(Arrays.asList("a", "b"), rejected);
+    }
+
+    @Test
+    public void testWeightedFairQueueing() throws Exception {
+        start(new LoadBalancerConfig().setQueueCapacity(10)
+                .setPriorityConfig(new PriorityConfig().setWeight(Priority.HIGH, 2).setWeight(Priority.LOW, 1)));
+        for(int i=1; i <= 4; i++) {
+            queue.execute(new NamedTask("l" + i, Priority.LOW), true);
+        }
+        for(int i=1; i <= 4; i++) {
+            queue.execute(new NamedTask("h" + i, Priority.HIGH), true);
+        }
+
+        // two high priority tasks for every low priority one, the low ones are not starved
+        drain(8);
+        assertEquals(Arrays.asList("h1", "l1", "h2", "h3", "l2", "h4", "l3", "l4"), executed);
+    }
+
+    @Test
+    public void testLowPriorityIsShedFirst() throws Exception {
+        start(OverloadPolicy.REJECT);
+        queue.execute(new NamedTask("l1", Priority.LOW), true);
+        queue.execute(new NamedTask("n1", Priority.NORMAL), true);
+
+        // a full queue makes space for a higher class by dropping the lowest one
+        queue.execute(new NamedTask("h1", Priority.HIGH), true);
+        assertEquals(Arrays.asList("l1"), rejected);
+
+        // and applies the policy when there is no lower class queued
+        queue.execute(new NamedTask("n2", Priority.NORMAL), true);
+        queue.execute(new NamedTask("l2", Priority.LOW), true);
+        assertEquals(Arrays.asList("l1", "n2", "l2"), rejected);
+
+        drain(2);
+        assertEquals(Arrays.asList("h1", "n1"), executed);
+    }
+
+    /**
+     * Starts a queue with one thread and space for two tasks, the thread is kept busy until released
+     */
+    private void start(OverloadPolicy policy) throws InterruptedException {
+        start(policy, 2);
+    }
+
+    private void start(OverloadPolicy policy, int capacity) throws InterruptedException {
+        start(new LoadBalancerConfig().setQueueCapacity(capacity).setOverloadPolicy(policy)
+                .setQueueBlockTimeoutMillis(50).setQueueTargetDelayMillis(30).setQueueIntervalMillis(50));
+    }
+
+    private void start(LoadBalancerConfig config) throws InterruptedException {
+        queue = new RequestQueue("test-queue", 1, config);
+
+        final CountDownLatch running = new CountDownLatch(1);
+        queue.execute(new RequestQueue.Task() {
+            @Override
+            public void run() {
+                running.countDown();
+                try {
+                    release.await();
+                }
+                catch(InterruptedException e) {
+                    // shutdown
+                }
+            }
+
+            @Override
+            void reject(CapacityExceededException e) {
+            }
+        }, true);
+        running.await();
+    }
+
+    private void drain(int count) throws InterruptedException {
+        release.countDown();
+        for(int i=0; i < 100 && executed.size() < count; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    private class NamedTask extends RequestQueue.Task {
+        private final String name;
+
+        private NamedTask(String name) {
+            this(name, Priority.NORMAL);
+        }
+
+        private NamedTask(String name, Priority priority) {
+            this.name = name;
+            this.priority = priority;
+        }
+
+        @Override
+        public void run() {
+            executed.add(name);
+        }
+
+        @Override
+        void reject(CapacityExceededException e) {
+            rejected.add(name);
+        }
+    }
+}
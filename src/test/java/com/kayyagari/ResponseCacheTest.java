@@ -0,0 +1,132 @@
+package com.kayyagari;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+/**
+ * Tests the expiry, eviction and coalescing of the response cache.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public class ResponseCacheTest {
+    private final AtomicInteger loads = new AtomicInteger();
+
+    /** responds immediately with the key and the number of the load */
+    private final Function<String, CompletableFuture<String>> loader = new Function<String, CompletableFuture<String>>() {
+        @Override
+        public CompletableFuture<String> apply(String key) {
+            return CompletableFuture.completedFuture(key + "-" + loads.incrementAndGet());
+        }
+    };
+
+    @Test
+    public void testHitAndExpiry() throws Exception {
+        ResponseCache cache = new ResponseCache(new CacheConfig().setTtlMillis(50));
+        assertEquals("a-1", cache.get("a", loader).get());
+        assertEquals("a-1", cache.get("a", loader).get());
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.missCount());
+
+        Thread.sleep(60);
+        assertEquals("a-2", cache.get("a", loader).get());
+        assertEquals(2, cache.missCount());
+    }
+
+    @Test
+    public void testStaleWhileRevalidate() throws Exception {
+        ResponseCache cache = new ResponseCache(new CacheConfig().setTtlMillis(20).setStaleWhileRevalidateMillis(1000));
+        final CompletableFuture<String> refresh = new CompletableFuture<>();
+        Function<String, CompletableFuture<String>> slow = new Function<String, CompletableFuture<String>>() {
+            @Override
+            public CompletableFuture<String> apply(String key) {
+                loads.incrementAndGet();
+                return refresh;
+            }
+        };
+
+        cache.get("a", loader).get();
+        Thread.sleep(30);
+
+        // the stale response is served while a single refresh is running
+        for(int i=0; i < 5; i++) {
+            assertEquals("a-1", cache.get("a", slow).get());
+        }
+        assertEquals(2, loads.get());
+
+        refresh.complete("a-fresh");
+        assertEquals("a-fresh", cache.get("a", slow).get());
+        assertEquals(1, cache.missCount());
+    }
+
+    @Test
+    public void testConcurrentMissesAreCoalesced() throws Exception {
+        ResponseCache cache = new ResponseCache(new CacheConfig());
+        final CompletableFuture<String> response = new CompletableFuture<>();
+        Function<String, CompletableFuture<String>> pending = new Function<String, CompletableFuture<String>>() {
+            @Override
+            public CompletableFuture<String> apply(String key) {
+                loads.incrementAndGet();
+                return response;
+            }
+        };
+
+        CompletableFuture<String> first = cache.get("a", pending);
+        CompletableFuture<String> second = cache.get("a", pending);
+        assertEquals(1, loads.get());
+
+        // cancelling one caller's future doesn't affect the other
+        first.cancel(true);
+        response.complete("value");
+        assertEquals("value", second.get());
+        assertEquals("value", cache.get("a", pending).get());
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void testFailuresAreNotCached() throws Exception {
+        ResponseCache cache = new ResponseCache(new CacheConfig());
+        CompletableFuture<String> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalStateException("failing provider"));
+        final CompletableFuture<String> response = failed;
+        Function<String, CompletableFuture<String>> failing = new Function<String, CompletableFuture<String>>() {
+            @Override
+            public CompletableFuture<String> apply(String key) {
+                return response;
+            }
+        };
+
+        assertTrue(cache.get("a", failing).isCompletedExceptionally());
+        assertEquals(0, cache.size());
+        assertEquals("a-1", cache.get("a", loader).get());
+    }
+
+    @Test
+    public void testFrequentKeysSurviveScan() throws Exception {
+        int maxSize = 100;
+        ResponseCache cache = new ResponseCache(new CacheConfig().setMaxSize(maxSize).setTtlMillis(60000));
+        for(int round=0; round < 5; round++) {
+            for(int i=0; i < 50; i++) {
+                cache.get("hot-" + i, loader).get();
+            }
+        }
+
+        // keys that are requested only once must not flush out the popular ones
+        for(int i=0; i < 1000; i++) {
+            cache.get("scan-" + i, loader).get();
+        }
+        assertTrue(cache.size() <= maxSize);
+
+        int before = loads.get();
+        for(int i=0; i < 50; i++) {
+            cache.get("hot-" + i, loader).get();
+        }
+        assertFalse("hot keys were evicted " + (loads.get() - before), loads.get() - before > 5);
+    }
+}
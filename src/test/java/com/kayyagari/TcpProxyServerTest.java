@@ -0,0 +1,397 @@
+package com.kayyagari;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the proxy in front of echo servers listening on the loopback interface.
+ *
+ * @author Kiran Ayyagari (kayyagari@apache.org)
+ */
+public class TcpProxyServerTest {
+    private static final int BACKENDS = 2;
+
+    private final List<EchoServer> backends = new ArrayList<>();
+
+    private LoadBalancer lb;
+
+    private TcpProxyServer proxy;
+
+    /** echoes every byte it receives and shuts down its output when the client does */
+    static class EchoServer implements Runnable {
+        private final ServerSocket server;
+        private final AtomicInteger accepted = new AtomicInteger();
+
+        EchoServer() throws IOException {
+            server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            Thread t = new Thread(this, "echo-" + server.getLocalPort());
+            t.setDaemon(true);
+            t.start();
+        }
+
+        @Override
+        public void run() {
+            while(!server.isClosed()) {
+                final Socket s;
+                try {
+                    s = server.accept();
+                }
+                catch(IOException e) {
+                    return;
+                }
+
+                accepted.incrementAndGet();
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            InputStream in = s.getInputStream();
+                            OutputStream out = s.getOutputStream();
+                            byte[] buf = new byte[8192];
+                            int n;
+                            while((n = in.read(buf)) > 0) {
+                                out.write(buf, 0, n);
+                            }
+                            s.shutdownOutput();
+                        }
+                        catch(IOException e) {
+                            // the client went away
+                        }
+                        finally {
+                            try {
+                                s.close();
+                            }
+                            catch(IOException e) {
+                                // ignore
+                            }
+                        }
+                    }
+                });
+                t.setDaemon(true);
+                t.start();
+            }
+        }
+
+        InetSocketAddress address() {
+            return (InetSocketAddress) server.getLocalSocketAddress();
+        }
+
+        void close() throws IOException {
+            server.close();
+        }
+    }
+
+    @Before
+    public void setup() throws Exception {
+        lb = new LoadBalancer(new RoundRobinStrategy());
+        for(int i=0; i < BACKENDS; i++) {
+            EchoServer echo = new EchoServer();
+            backends.add(echo);
+            lb.add(new TcpProvider("tcp-" + i, echo.address()));
+        }
+
+        // small buffers make the large payloads go through many partial reads and writes
+        proxy = new TcpProxyServer(lb, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4096);
+        proxy.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        proxy.stop();
+        lb.shutdown();
+        for(EchoServer echo : backends) {
+            echo.close();
+        }
+    }
+
+    @Test
+    public void testEcho() throws Exception {
+        for(int i=0; i < BACKENDS * 2; i++) {
+            try(Socket s = connect()) {
+                byte[] msg = ("hello " + i).getBytes("UTF-8");
+                s.getOutputStream().write(msg);
+                byte[] echoed = new byte[msg.length];
+                new DataInputStream(s.getInputStream()).readFully(echoed);
+                assertArrayEquals(msg, echoed);
+            }
+        }
+
+        // round robin over the connections
+        for(EchoServer echo : backends) {
+            assertEquals(2, echo.accepted.get());
+        }
+    }
+
+    @Test
+    public void testLargePayloadWithHalfClose() throws Exception {
+        final byte[] payload = new byte[4 * 1024 * 1024];
+        new Random(7).nextBytes(payload);
+        try(final Socket s = connect()) {
+            // written on another thread, the echo comes back while the payload is still being sent
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        s.getOutputStream().write(payload);
+                        s.shutdownOutput();
+                    }
+                    catch(IOException e) {
+                        // the read side fails the test
+                    }
+                }
+            });
+            writer.start();
+
+            byte[] echoed = new byte[payload.length];
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            in.readFully(echoed);
+            assertArrayEquals(payload, echoed);
+            // the half close travelled to the backend and its half close came back
+            assertEquals(-1, in.read());
+            writer.join();
+        }
+
+        waitUntilReleased();
+        // the buffers of the closed relay are reused by the next one
+        long allocated = proxy.allocatedBuffers();
+        try(Socket s = connect()) {
+            s.getOutputStream().write(1);
+            assertEquals(1, s.getInputStream().read());
+        }
+        assertEquals(allocated, proxy.allocatedBuffers());
+    }
+
+    @Test
+    public void testConnectionLimit() throws Exception {
+        List<Socket> open = new ArrayList<>();
+        int capacity = lb.getMaxRequestCapacity();
+        try {
+            for(int i=0; i < capacity; i++) {
+                Socket s = connect();
+                open.add(s);
+                // a round trip makes sure the connection was admitted
+                s.getOutputStream().write(i);
+                assertEquals(i & 0xff, s.getInputStream().read());
+            }
+
+            assertEquals(capacity, lb.getPendingRequestCount());
+            assertEquals(capacity / BACKENDS, lb.getInFlightCount("tcp-0"));
+
+            // the connection beyond the capacity is closed right away
+            try(Socket rejected = connect()) {
+                rejected.setSoTimeout(5000);
+                try {
+                    assertEquals(-1, rejected.getInputStream().read());
+                }
+                catch(SocketException e) {
+                    // reset, also fine
+                }
+            }
+        }
+        finally {
+            for(Socket s : open) {
+                s.close();
+            }
+        }
+
+        // closing the connections releases their slots
+        waitUntilReleased();
+        assertEquals(0, lb.getInFlightCount("tcp-0"));
+        assertEquals(1, lb.getMetrics().getRejectionCount());
+    }
+
+    @Test
+    public void testBackendDown() throws Exception {
+        backends.get(0).close();
+        int closed = 0;
+        for(int i=0; i < BACKENDS; i++) {
+            try(Socket s = connect()) {
+                s.setSoTimeout(5000);
+                s.getOutputStream().write(42);
+                int b;
+                try {
+                    b = s.getInputStream().read();
+                }
+                catch(SocketException e) {
+                    b = -1;
+                }
+
+                if(b == -1) {
+                    closed++;
+                }
+                else {
+                    assertEquals(42, b);
+                }
+            }
+        }
+
+        // unless the health checks excluded the backend already
+        assertTrue(closed <= 1);
+        waitUntilReleased();
+        assertEquals(closed, lb.getMetrics().getFailureCount());
+    }
+
+    @Test
+    public void testBackendConnectTimeout() throws Exception {
+        // a backend that never accepts, once its backlog is full the SYNs of new connections are dropped
+        ServerSocket hung = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        List<Socket> queued = new ArrayList<>();
+        boolean full = false;
+        try {
+            for(int i=0; i < 16 && !full; i++) {
+                Socket s = new Socket();
+                queued.add(s);
+                try {
+                    s.connect(hung.getLocalSocketAddress(), 200);
+                }
+                catch(SocketTimeoutException e) {
+                    full = true;
+                }
+            }
+            Assume.assumeTrue("the backlog of the backend could not be filled", full);
+
+            proxy.stop();
+            lb.shutdown();
+            lb = new LoadBalancer(new RoundRobinStrategy());
+            lb.add(new TcpProvider("hung", (InetSocketAddress) hung.getLocalSocketAddress()));
+            proxy = new TcpProxyServer(lb, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4096);
+            proxy.start();
+
+            long start = System.currentTimeMillis();
+            try(Socket s = connect()) {
+                try {
+                    assertEquals(-1, s.getInputStream().read());
+                }
+                catch(SocketException e) {
+                    // reset, also fine
+                }
+            }
+
+            // the client is closed when the connect deadline passes and the backend is blamed
+            long elapsed = System.currentTimeMillis() - start;
+            assertTrue("took " + elapsed + "ms", elapsed < TcpProvider.CONNECT_TIMEOUT_MILLIS + 3000);
+            waitUntilReleased();
+            assertEquals(1, lb.getMetrics().getFailureCount());
+        }
+        finally {
+            for(Socket s : queued) {
+                s.close();
+            }
+            hung.close();
+        }
+    }
+
+    @Test
+    public void testRequestsRejected() throws Exception {
+        try {
+            lb.get();
+            fail("a LoadBalancer of TcpProviders must reject the requests");
+        }
+        catch(IllegalStateException e) {
+            // expected
+        }
+
+        try {
+            lb.getBatch(2);
+            fail("a LoadBalancer of TcpProviders must reject the requests");
+        }
+        catch(IllegalStateException e) {
+            // expected
+        }
+
+        try {
+            lb.add(new SimpleProviderImpl(1));
+            fail("a LoadBalancer of TcpProviders must not accept other providers");
+        }
+        catch(IllegalArgumentException e) {
+            // expected
+        }
+
+        assertEquals(BACKENDS, lb.getMetrics().getProviders().size());
+        assertEquals(0, lb.getMetrics().getRequestCount());
+
+        LoadBalancer requests = new LoadBalancer(new RoundRobinStrategy());
+        try {
+            requests.add(new SimpleProviderImpl(1));
+            try {
+                requests.add(new TcpProvider("tcp", backends.get(0).address()));
+                fail("a LoadBalancer of other providers must not accept TcpProviders");
+            }
+            catch(IllegalArgumentException e) {
+                // expected
+            }
+        }
+        finally {
+            requests.shutdown();
+        }
+    }
+
+    @Test
+    public void testLongConnectionsAreNotTimedOut() throws Exception {
+        proxy.stop();
+        lb.shutdown();
+        CircuitBreakerConfig breaker = new CircuitBreakerConfig().setCallTimeoutMillis(100)
+                .setMinimumCalls(1).setFailureRateThreshold(0.1);
+        lb = new LoadBalancer(new RoundRobinStrategy(), new LoadBalancerConfig().setCircuitBreakerConfig(breaker));
+        for(int i=0; i < BACKENDS; i++) {
+            lb.add(new TcpProvider("tcp-" + i, backends.get(i).address()));
+        }
+        proxy = new TcpProxyServer(lb, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4096);
+        proxy.start();
+
+        for(int i=0; i < BACKENDS; i++) {
+            try(Socket s = connect()) {
+                s.getOutputStream().write(i);
+                assertEquals(i, s.getInputStream().read());
+                // held open well past the call timeout
+                Thread.sleep(300);
+                s.getOutputStream().write(i);
+                assertEquals(i, s.getInputStream().read());
+            }
+        }
+
+        waitUntilReleased();
+        assertEquals(0, lb.getMetrics().getFailureCount());
+        for(ProviderMetrics pm : lb.getMetrics().getProviders()) {
+            assertEquals(pm.getId(), "CLOSED", pm.getCircuitBreakerState());
+            assertEquals(0, pm.getFailureCount());
+        }
+    }
+
+    private Socket connect() throws IOException {
+        InetSocketAddress addr = proxy.getAddress();
+        Socket s = new Socket(addr.getAddress(), addr.getPort());
+        s.setSoTimeout(10000);
+        return s;
+    }
+
+    private void waitUntilReleased() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(lb.getPendingRequestCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, lb.getPendingRequestCount());
+    }
+}